@@ -0,0 +1,329 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.BulkPortMapper;
+import com.offbynull.portmapper.mapper.GatewayFaultException;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.MapperIoUtils;
+import com.offbynull.portmapper.mapper.PortMapper;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link PortMapper} that wraps another mapper with a circuit breaker. When a gateway hangs, each request through it normally sits
+ * through the full retry schedule before failing -- once enough requests fail back-to-back, the circuit opens and requests fail
+ * immediately instead. After a cool-down, a single probe request is let through: if it succeeds the circuit closes again, otherwise it
+ * stays open for another cool-down.
+ * <p>
+ * Requests that throw {@link IllegalStateException} count as failures (as do bulk requests where every result failed), except for
+ * {@link GatewayFaultException}s -- those are definitive answers (e.g. a conflicting mapping or a request the gateway isn't authorized to
+ * serve), so they count the same as successes: the gateway is evidently responding. Bad arguments and interruptions don't count either
+ * way. Mapped ports returned by the wrapped mapper are passed through as-is. This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class CircuitBreakerPortMapper implements BulkPortMapper {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakerPortMapper.class);
+
+    private final PortMapper mapper;
+    private final int failureThreshold;
+    private final long coolDown;
+    private final CircuitStateListener listener;
+
+    // All fields below are guarded by this
+    private CircuitState state;
+    private int consecutiveFailures;
+    private long openTime;
+
+    /**
+     * Constructs a {@link CircuitBreakerPortMapper} object.
+     * @param mapper mapper to wrap
+     * @param failureThreshold number of back-to-back failures before the circuit opens
+     * @param coolDown number of milliseconds an open circuit waits before letting a probe request through
+     * @param listener listener to notify when the state of the circuit changes
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code failureThreshold < 1 || coolDown < 0L}
+     */
+    public CircuitBreakerPortMapper(PortMapper mapper, int failureThreshold, long coolDown, CircuitStateListener listener) {
+        Validate.notNull(mapper);
+        Validate.notNull(listener);
+        Validate.isTrue(failureThreshold >= 1);
+        Validate.isTrue(coolDown >= 0L);
+
+        this.mapper = mapper;
+        this.failureThreshold = failureThreshold;
+        this.coolDown = coolDown;
+        this.listener = listener;
+        this.state = CircuitState.CLOSED;
+    }
+
+    /**
+     * Get the wrapped mapper.
+     * @return wrapped mapper
+     */
+    public PortMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Get the current state of the circuit.
+     * @return state of the circuit
+     */
+    public synchronized CircuitState getState() {
+        return state;
+    }
+
+    /**
+     * Get the number of requests that have failed back-to-back.
+     * @return number of consecutive failures
+     */
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    @Override
+    public MappedPort mapPort(PortType portType, int internalPort, int externalPort, long lifetime) throws InterruptedException {
+        boolean probe = permit();
+        Outcome outcome = Outcome.ABANDONED;
+        try {
+            MappedPort mappedPort = mapper.mapPort(portType, internalPort, externalPort, lifetime);
+            outcome = Outcome.SUCCEEDED;
+            return mappedPort;
+        } catch (GatewayFaultException gfe) {
+            outcome = Outcome.SUCCEEDED; // gateway answered, it just refused
+            throw gfe;
+        } catch (IllegalStateException ise) {
+            outcome = Outcome.FAILED;
+            throw ise;
+        } finally {
+            record(probe, outcome);
+        }
+    }
+
+    @Override
+    public void unmapPort(MappedPort mappedPort) throws InterruptedException {
+        boolean probe = permit();
+        Outcome outcome = Outcome.ABANDONED;
+        try {
+            mapper.unmapPort(mappedPort);
+            outcome = Outcome.SUCCEEDED;
+        } catch (GatewayFaultException gfe) {
+            outcome = Outcome.SUCCEEDED; // gateway answered, it just refused
+            throw gfe;
+        } catch (IllegalStateException ise) {
+            outcome = Outcome.FAILED;
+            throw ise;
+        } finally {
+            record(probe, outcome);
+        }
+    }
+
+    @Override
+    public MappedPort refreshPort(MappedPort mappedPort, long lifetime) throws InterruptedException {
+        boolean probe = permit();
+        Outcome outcome = Outcome.ABANDONED;
+        try {
+            MappedPort newMappedPort = mapper.refreshPort(mappedPort, lifetime);
+            outcome = Outcome.SUCCEEDED;
+            return newMappedPort;
+        } catch (GatewayFaultException gfe) {
+            outcome = Outcome.SUCCEEDED; // gateway answered, it just refused
+            throw gfe;
+        } catch (IllegalStateException ise) {
+            outcome = Outcome.FAILED;
+            throw ise;
+        } finally {
+            record(probe, outcome);
+        }
+    }
+
+    @Override
+    public List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException {
+        Validate.notNull(requests);
+        Validate.noNullElements(requests);
+
+        boolean probe;
+        try {
+            probe = permit();
+        } catch (IllegalStateException ise) {
+            return toErrors(requests.size(), ise);
+        }
+
+        Outcome outcome = Outcome.ABANDONED;
+        try {
+            List<PortMappingResult> results = MapperIoUtils.mapPorts(mapper, requests);
+            outcome = toOutcome(results);
+            return results;
+        } finally {
+            record(probe, outcome);
+        }
+    }
+
+    @Override
+    public List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+
+        boolean probe;
+        try {
+            probe = permit();
+        } catch (IllegalStateException ise) {
+            return toErrors(mappedPorts.size(), ise);
+        }
+
+        Outcome outcome = Outcome.ABANDONED;
+        try {
+            List<PortMappingResult> results = MapperIoUtils.unmapPorts(mapper, mappedPorts);
+            outcome = toOutcome(results);
+            return results;
+        } finally {
+            record(probe, outcome);
+        }
+    }
+
+    @Override
+    public List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+
+        boolean probe;
+        try {
+            probe = permit();
+        } catch (IllegalStateException ise) {
+            return toErrors(mappedPorts.size(), ise);
+        }
+
+        Outcome outcome = Outcome.ABANDONED;
+        try {
+            List<PortMappingResult> results = MapperIoUtils.refreshPorts(mapper, mappedPorts, lifetime);
+            outcome = toOutcome(results);
+            return results;
+        } finally {
+            record(probe, outcome);
+        }
+    }
+
+    @Override
+    public InetAddress getSourceAddress() {
+        return mapper.getSourceAddress();
+    }
+
+    // Returns true if the caller is the half-open probe, or throws if the circuit is open
+    private boolean permit() {
+        synchronized (this) {
+            switch (state) {
+                case CLOSED:
+                    return false;
+                case OPEN:
+                    if (System.nanoTime() - openTime < TimeUnit.MILLISECONDS.toNanos(coolDown)) {
+                        throw new IllegalStateException("Circuit open for " + mapper);
+                    }
+                    state = CircuitState.HALF_OPEN;
+                    break;
+                case HALF_OPEN:
+                    throw new IllegalStateException("Circuit open for " + mapper + " (probe in progress)");
+                default:
+                    throw new IllegalStateException(); // should never happen
+            }
+        }
+
+        LOG.debug("Cool-down passed, probing {}", mapper);
+        fireStateChanged(CircuitState.OPEN, CircuitState.HALF_OPEN);
+        return true;
+    }
+
+    private void record(boolean probe, Outcome outcome) {
+        CircuitState oldState;
+        CircuitState newState;
+        synchronized (this) {
+            oldState = state;
+            switch (outcome) {
+                case SUCCEEDED:
+                    consecutiveFailures = 0;
+                    state = CircuitState.CLOSED; // gateway is evidently responding, regardless of who got through
+                    break;
+                case FAILED:
+                    consecutiveFailures++;
+                    if (probe || (state == CircuitState.CLOSED && consecutiveFailures >= failureThreshold)) {
+                        state = CircuitState.OPEN;
+                        openTime = System.nanoTime();
+                    }
+                    break;
+                case ABANDONED:
+                    if (probe && state == CircuitState.HALF_OPEN) {
+                        state = CircuitState.OPEN; // leave openTime as-is so that the next request becomes the probe
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException(); // should never happen
+            }
+            newState = state;
+        }
+
+        if (oldState != newState) {
+            LOG.debug("Circuit for {} changed from {} to {}", mapper, oldState, newState);
+            fireStateChanged(oldState, newState);
+        }
+    }
+
+    private void fireStateChanged(CircuitState oldState, CircuitState newState) {
+        try {
+            listener.stateChanged(this, oldState, newState);
+        } catch (RuntimeException re) {
+            LOG.error("Listener threw exception", re);
+        }
+    }
+
+    private static Outcome toOutcome(List<PortMappingResult> results) {
+        if (results.isEmpty()) {
+            return Outcome.ABANDONED; // nothing was sent, so nothing was learned about the gateway
+        }
+        for (PortMappingResult result : results) {
+            if (result.isSuccessful() || result.getError() instanceof GatewayFaultException) {
+                return Outcome.SUCCEEDED;
+            }
+        }
+        return Outcome.FAILED;
+    }
+
+    private static List<PortMappingResult> toErrors(int count, IllegalStateException error) {
+        List<PortMappingResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(new PortMappingResult(error));
+        }
+        return results;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreakerPortMapper{" + "mapper=" + mapper + ", failureThreshold=" + failureThreshold + ", coolDown=" + coolDown
+                + ", state=" + state + ", consecutiveFailures=" + consecutiveFailures + '}';
+    }
+
+    private enum Outcome {
+        SUCCEEDED,
+        FAILED,
+        ABANDONED
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+/**
+ * Health of the gateway behind a {@link CircuitBreakerPortMapper}.
+ * @author Kasra Faghihi
+ */
+public enum CircuitState {
+    /**
+     * Gateway is healthy -- requests go through.
+     */
+    CLOSED,
+    /**
+     * Gateway kept failing -- requests fail immediately until the cool-down passes.
+     */
+    OPEN,
+    /**
+     * Cool-down passed -- a single probe request is going through to see if the gateway has recovered, all others fail immediately.
+     */
+    HALF_OPEN
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+/**
+ * Receives health changes from a {@link CircuitBreakerPortMapper}. Use this to switch over to a different gateway/protocol when a
+ * gateway goes down. Methods are invoked from whichever thread triggered the change, so implementations must be thread-safe and should
+ * return quickly.
+ * @author Kasra Faghihi
+ */
+public interface CircuitStateListener {
+
+    /**
+     * Called when the state of a circuit changes.
+     * @param mapper circuit breaker whose state changed
+     * @param oldState state before the change
+     * @param newState state after the change
+     */
+    void stateChanged(CircuitBreakerPortMapper mapper, CircuitState oldState, CircuitState newState);
+}
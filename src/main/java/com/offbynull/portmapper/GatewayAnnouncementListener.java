@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMapper;
+
+/**
+ * Receives the outcome of re-mapping ports after a NAT-PMP/PCP gateway has been detected as having lost its mappings. Methods are invoked
+ * from the thread that's listening for announcements, so implementations should return quickly.
+ * @author Kasra Faghihi
+ */
+public interface GatewayAnnouncementListener {
+
+    /**
+     * Called when a mapping has been re-created. The monitor tracks {@code newMappedPort} in place of {@code oldMappedPort} from this
+     * point forward.
+     * @param mapper mapper used to re-create the mapping
+     * @param oldMappedPort mapping that was lost
+     * @param newMappedPort mapping that replaced it (external port/address may differ from {@code oldMappedPort})
+     */
+    void mappingRestored(PortMapper mapper, MappedPort oldMappedPort, MappedPort newMappedPort);
+
+    /**
+     * Called when a mapping couldn't be re-created. The monitor stops tracking {@code mappedPort} from this point forward.
+     * @param mapper mapper used to attempt to re-create the mapping
+     * @param mappedPort mapping that was lost
+     * @param cause reason for failure
+     */
+    void mappingLost(PortMapper mapper, MappedPort mappedPort, RuntimeException cause);
+}
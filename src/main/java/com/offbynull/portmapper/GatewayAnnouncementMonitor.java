@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.gateway.Bus;
+import com.offbynull.portmapper.gateways.network.internalmessages.CloseNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.IdentifiableErrorNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.IdentifiableErrorNetworkResponse;
+import com.offbynull.portmapper.gateways.network.internalmessages.ReadUdpNetworkNotification;
+import com.offbynull.portmapper.mapper.EpochResetListener;
+import com.offbynull.portmapper.mapper.EpochTracker;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.ParseResult;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.listenMulticastUdp;
+import com.offbynull.portmapper.mapper.PortMapper;
+import com.offbynull.portmapper.mappers.natpmp.NatPmpPortMapper;
+import com.offbynull.portmapper.mappers.natpmp.NatPmpResultCode;
+import com.offbynull.portmapper.mappers.natpmp.externalmessages.ExternalAddressNatPmpResponse;
+import com.offbynull.portmapper.mappers.pcp.PcpPortMapper;
+import com.offbynull.portmapper.mappers.pcp.externalmessages.AnnouncePcpResponse;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens for the unsolicited announcements that NAT-PMP/PCP gateways multicast when they reboot or when their external address changes
+ * (sent to port 5350 of {@code 224.0.0.1} / {@code ff02::1}), and restores mappings that were lost as a result.
+ * <p>
+ * Each NAT-PMP/PCP mapper tracks its gateway's epoch from every response it receives. The epochs in announcements are fed into the same
+ * trackers, so a gateway that has lost its state is detected whether it announced itself or not. As soon as it's detected, all tracked
+ * mappings for that gateway are re-mapped in bulk (asking for the same external port and lifetime as before) and the outcome is reported
+ * to a {@link GatewayAnnouncementListener}.
+ * @author Kasra Faghihi
+ */
+public final class GatewayAnnouncementMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(GatewayAnnouncementMonitor.class);
+
+    private static final int PORT = 5350;
+    private static final InetAddress IPV4_GROUP_ADDRESS;
+    private static final InetAddress IPV6_GROUP_ADDRESS;
+    private static final long CHECK_INTERVAL = 1000L;
+
+    static {
+        try {
+            IPV4_GROUP_ADDRESS = InetAddress.getByAddress(new byte[] {(byte) 224, 0, 0, 1});
+            IPV6_GROUP_ADDRESS = InetAddress.getByAddress(new byte[] {(byte) 0xff, 0x02, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+        } catch (UnknownHostException uhe) {
+            throw new IllegalStateException(uhe); // should never happen
+        }
+    }
+
+    private final Bus networkBus;
+    private final LinkedBlockingQueue<Object> queue;
+    private final List<Integer> socketIds;
+    private final GatewayMappingRegistry registry;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Creates a {@link GatewayAnnouncementMonitor} object and starts listening. Multicast groups are joined on the interfaces that
+     * {@code sourceAddresses} belong to.
+     * @param networkBus network bus
+     * @param sourceAddresses local addresses identifying the interfaces to listen on
+     * @param listener listener to notify of re-mapped ports
+     * @return new {@link GatewayAnnouncementMonitor}
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if {@code sourceAddresses} is empty
+     * @throws IllegalStateException if the network gateway didn't respond
+     * @throws InterruptedException if interrupted
+     */
+    public static GatewayAnnouncementMonitor create(Bus networkBus, Set<InetAddress> sourceAddresses, GatewayAnnouncementListener listener)
+            throws InterruptedException {
+        Validate.notNull(networkBus);
+        Validate.notNull(sourceAddresses);
+        Validate.noNullElements(sourceAddresses);
+        Validate.notNull(listener);
+        Validate.isTrue(!sourceAddresses.isEmpty());
+
+        LOG.info("Attempting to listen for announcements on {}", sourceAddresses);
+
+        final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+        // Create sockets and join groups -- failures show up as errors on the queue and get logged
+        List<Integer> socketIds = listenMulticastUdp(networkBus, queue, PORT, IPV4_GROUP_ADDRESS, IPV6_GROUP_ADDRESS, sourceAddresses);
+
+        // Resets spotted by the mappers themselves wake up the monitor thread so that lost mappings are re-mapped right away
+        GatewayMappingRegistry registry = new GatewayMappingRegistry(listener, new EpochResetListener() {
+            @Override
+            public void epochReset(EpochTracker epochTracker) {
+                queue.add(epochTracker);
+            }
+        });
+
+        GatewayAnnouncementMonitor monitor = new GatewayAnnouncementMonitor(networkBus, queue, socketIds, registry);
+        monitor.thread.start();
+        return monitor;
+    }
+
+    private GatewayAnnouncementMonitor(Bus networkBus, LinkedBlockingQueue<Object> queue, List<Integer> socketIds,
+            GatewayMappingRegistry registry) {
+        this.networkBus = networkBus;
+        this.queue = queue;
+        this.socketIds = socketIds;
+        this.registry = registry;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        });
+        this.thread.setDaemon(true);
+        this.thread.setName("NAT-PMP/PCP Announcement Monitor");
+    }
+
+    /**
+     * Start tracking a mapping so that it gets re-mapped if its gateway loses state.
+     * @param mapper mapper that created {@code mappedPort} (must be a {@link NatPmpPortMapper} or a {@link PcpPortMapper})
+     * @param mappedPort mapped port
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code mapper} isn't a NAT-PMP/PCP mapper
+     */
+    public void track(PortMapper mapper, MappedPort mappedPort) {
+        Validate.notNull(mapper);
+        Validate.notNull(mappedPort);
+
+        if (mapper instanceof NatPmpPortMapper) {
+            NatPmpPortMapper natPmpMapper = (NatPmpPortMapper) mapper;
+            registry.add(mapper, natPmpMapper.getGatewayAddress(), natPmpMapper.getEpochTracker(), natPmpMapper.getExternalAddressCache(),
+                    mappedPort);
+        } else if (mapper instanceof PcpPortMapper) {
+            PcpPortMapper pcpMapper = (PcpPortMapper) mapper;
+            registry.add(mapper, pcpMapper.getGatewayAddress(), pcpMapper.getEpochTracker(), null, mappedPort);
+        } else {
+            throw new IllegalArgumentException("Only NAT-PMP and PCP mappers supported");
+        }
+    }
+
+    /**
+     * Stop tracking a mapping. Mappings that have been re-mapped are tracked under the new {@link MappedPort} handed to
+     * {@link GatewayAnnouncementListener#mappingRestored(com.offbynull.portmapper.mapper.PortMapper,
+     * com.offbynull.portmapper.mapper.MappedPort, com.offbynull.portmapper.mapper.MappedPort) }.
+     * @param mappedPort mapped port
+     * @return {@code true} if {@code mappedPort} was being tracked, {@code false} otherwise
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public boolean untrack(MappedPort mappedPort) {
+        return registry.remove(mappedPort);
+    }
+
+    /**
+     * Get the mappings currently being tracked.
+     * @return mappings being tracked
+     */
+    public List<MappedPort> getMappedPorts() {
+        return registry.getMappedPorts();
+    }
+
+    /**
+     * Stop listening. Does nothing if already stopped. Mappings being tracked are left as-is.
+     */
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Wait for the listening thread to die.
+     * @throws InterruptedException if interrupted
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    private void listen() {
+        LOG.debug("Starting announcement monitor");
+        try {
+            while (!closed) {
+                Object msg = queue.poll(CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+                if (msg instanceof ReadUdpNetworkNotification) {
+                    ReadUdpNetworkNotification readMsg = (ReadUdpNetworkNotification) msg;
+                    handleAnnouncement(registry, readMsg.getRemoteAddress().getAddress(), readMsg.getData());
+                } else if (msg instanceof IdentifiableErrorNetworkResponse || msg instanceof IdentifiableErrorNetworkNotification) {
+                    LOG.warn("Encountered socket error: {}", msg);
+                }
+
+                registry.remapLost();
+            }
+        } catch (InterruptedException ie) {
+            // do nothing -- closed
+        } finally {
+            LOG.debug("Stopping announcement monitor");
+            for (int id : socketIds) {
+                networkBus.send(new CloseNetworkRequest(id));
+            }
+        }
+    }
+
+    static void handleAnnouncement(GatewayMappingRegistry registry, InetAddress gatewayAddress, byte[] data) {
+        if (data.length < 1) {
+            return;
+        }
+
+        switch (data[0]) {
+            case 0: { // NAT-PMP
+                ParseResult<ExternalAddressNatPmpResponse> result = ExternalAddressNatPmpResponse.tryParse(data);
+                if (!result.isSuccessful()) { // Not an announcement -- skip
+                    break;
+                }
+                ExternalAddressNatPmpResponse resp = result.getValue();
+                if (resp.getResultCode() == NatPmpResultCode.SUCCESS.ordinal()) {
+                    LOG.debug("Received NAT-PMP announcement from {}: {}", gatewayAddress, resp);
+                    registry.handleEpoch(gatewayAddress, resp.getSecondsSinceStartOfEpoch());
+                    registry.handleExternalAddress(gatewayAddress, resp.getAddress());
+                }
+                break;
+            }
+            case 2: { // PCP
+                ParseResult<AnnouncePcpResponse> result = AnnouncePcpResponse.tryParse(data);
+                if (!result.isSuccessful()) { // Not an announcement -- skip
+                    break;
+                }
+                AnnouncePcpResponse resp = result.getValue();
+                if (resp.getResultCode() == 0) { // SUCCESS
+                    LOG.debug("Received PCP announcement from {}: {}", gatewayAddress, resp);
+                    registry.handleEpoch(gatewayAddress, resp.getEpochTime());
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.EpochResetListener;
+import com.offbynull.portmapper.mapper.EpochTracker;
+import com.offbynull.portmapper.mapper.ExternalAddressCache;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.MapperIoUtils;
+import com.offbynull.portmapper.mapper.PortMapper;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Tracks mapped ports per NAT-PMP/PCP mapper and re-maps them in bulk once the mapper's gateway is detected as having lost its state.
+// Thread-safe -- mappings are added/removed by user threads while announcements/re-mapping happen on the monitor's thread.
+//
+// resetListener is hooked up to the epoch tracker of every mapper being tracked, so whoever calls remapLost() can be woken up as soon as a
+// mapper spots a reset in one of its own responses (rather than only finding out the next time it checks).
+final class GatewayMappingRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(GatewayMappingRegistry.class);
+
+    private final GatewayAnnouncementListener listener;
+    private final EpochResetListener resetListener;
+    private final Map<PortMapper, Record> records;
+
+    GatewayMappingRegistry(GatewayAnnouncementListener listener, EpochResetListener resetListener) {
+        Validate.notNull(listener);
+        Validate.notNull(resetListener);
+        this.listener = listener;
+        this.resetListener = resetListener;
+        this.records = new IdentityHashMap<>();
+    }
+
+    // externalAddressCache is null for mappers that don't cache the external address (PCP responses carry the external address)
+    synchronized void add(PortMapper mapper, InetAddress gatewayAddress, EpochTracker epochTracker,
+            ExternalAddressCache externalAddressCache, MappedPort mappedPort) {
+        Validate.notNull(mapper);
+        Validate.notNull(gatewayAddress);
+        Validate.notNull(epochTracker);
+        Validate.notNull(mappedPort);
+
+        Record record = records.get(mapper);
+        if (record == null) {
+            record = new Record(gatewayAddress, epochTracker, externalAddressCache);
+            records.put(mapper, record);
+            epochTracker.addResetListener(resetListener);
+        }
+        record.mappedPorts.add(mappedPort);
+    }
+
+    synchronized boolean remove(MappedPort mappedPort) {
+        Validate.notNull(mappedPort);
+
+        Iterator<Record> it = records.values().iterator();
+        while (it.hasNext()) {
+            Record record = it.next();
+            if (record.mappedPorts.remove(mappedPort)) {
+                record.staleMappedPorts.remove(mappedPort);
+                if (record.mappedPorts.isEmpty()) {
+                    record.epochTracker.removeResetListener(resetListener);
+                    it.remove();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized List<MappedPort> getMappedPorts() {
+        List<MappedPort> ret = new ArrayList<>();
+        for (Record record : records.values()) {
+            ret.addAll(record.mappedPorts);
+        }
+        return ret;
+    }
+
+    synchronized void handleEpoch(InetAddress gatewayAddress, long epoch) {
+        Validate.notNull(gatewayAddress);
+
+        for (Record record : records.values()) {
+            if (record.gatewayAddress.equals(gatewayAddress) && record.epochTracker.update(epoch)) {
+                LOG.warn("Gateway {} appears to have lost its mappings (epoch {})", gatewayAddress, epoch);
+                if (record.externalAddressCache != null) {
+                    record.externalAddressCache.invalidate();
+                }
+            }
+        }
+    }
+
+    synchronized void handleExternalAddress(InetAddress gatewayAddress, InetAddress externalAddress) {
+        Validate.notNull(gatewayAddress);
+        Validate.notNull(externalAddress);
+
+        for (Record record : records.values()) {
+            if (!record.gatewayAddress.equals(gatewayAddress)) {
+                continue;
+            }
+
+            if (record.externalAddressCache != null) {
+                record.externalAddressCache.put(externalAddress); // so re-mapping doesn't pick up the old address from the cache
+            }
+
+            for (MappedPort mappedPort : record.mappedPorts) {
+                if (!Objects.equals(mappedPort.getExternalAddress(), externalAddress)) {
+                    LOG.warn("Gateway {} external address changed to {} for {}", gatewayAddress, externalAddress, mappedPort);
+                    record.staleMappedPorts.add(mappedPort);
+                }
+            }
+        }
+    }
+
+    void remapLost() throws InterruptedException {
+        // Collect what needs to be re-mapped while holding the lock, but perform the actual IO without holding it
+        Map<PortMapper, List<MappedPort>> pending = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Entry<PortMapper, Record> entry : records.entrySet()) {
+                PortMapper mapper = entry.getKey();
+                Record record = entry.getValue();
+
+                long resetCount = record.epochTracker.getResetCount();
+                if (resetCount != record.lastResetCount) {
+                    record.lastResetCount = resetCount;
+                    record.staleMappedPorts.addAll(record.mappedPorts);
+                }
+
+                if (!record.staleMappedPorts.isEmpty()) {
+                    pending.put(mapper, new ArrayList<>(record.staleMappedPorts));
+                    record.staleMappedPorts.clear();
+                }
+            }
+        }
+
+        // One bulk request per mapper, so all of a gateway's mappings get re-mapped in a single pipelined round
+        for (Entry<PortMapper, List<MappedPort>> entry : pending.entrySet()) {
+            remap(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void remap(PortMapper mapper, List<MappedPort> oldMappedPorts) throws InterruptedException {
+        List<PortMappingRequest> requests = new ArrayList<>(oldMappedPorts.size());
+        for (MappedPort oldMappedPort : oldMappedPorts) {
+            requests.add(new PortMappingRequest(oldMappedPort.getPortType(), oldMappedPort.getInternalPort(),
+                    oldMappedPort.getExternalPort(), oldMappedPort.getLifetime()));
+        }
+
+        List<PortMappingResult> results;
+        try {
+            results = MapperIoUtils.mapPorts(mapper, requests);
+        } catch (IllegalArgumentException iae) {
+            LOG.warn("Unable to re-map {}", oldMappedPorts, iae);
+            for (MappedPort oldMappedPort : oldMappedPorts) {
+                if (remove(oldMappedPort)) {
+                    fireLost(mapper, oldMappedPort, iae);
+                }
+            }
+            return;
+        }
+
+        List<MappedPort> orphanedMappedPorts = new ArrayList<>();
+        for (int i = 0; i < oldMappedPorts.size(); i++) {
+            MappedPort oldMappedPort = oldMappedPorts.get(i);
+            PortMappingResult result = results.get(i);
+
+            if (!result.isSuccessful()) {
+                LOG.warn("Unable to re-map {}", oldMappedPort, result.getError());
+                if (remove(oldMappedPort)) {
+                    fireLost(mapper, oldMappedPort, result.getError());
+                }
+                continue;
+            }
+
+            MappedPort newMappedPort = result.getMappedPort();
+            boolean replaced;
+            synchronized (this) {
+                Record record = records.get(mapper);
+                replaced = record != null && record.mappedPorts.remove(oldMappedPort);
+                if (replaced) {
+                    record.mappedPorts.add(newMappedPort);
+                }
+            }
+
+            if (replaced) {
+                fireRestored(mapper, oldMappedPort, newMappedPort);
+            } else {
+                // Removed while we were re-mapping -- the user no longer cares about it, so don't leave the new mapping lying around
+                orphanedMappedPorts.add(newMappedPort);
+            }
+        }
+
+        if (!orphanedMappedPorts.isEmpty()) {
+            try {
+                MapperIoUtils.unmapPorts(mapper, orphanedMappedPorts); // don't care if these fail
+            } catch (IllegalArgumentException iae) {
+                LOG.debug("Unable to unmap {}", orphanedMappedPorts, iae);
+            }
+        }
+    }
+
+    private void fireRestored(PortMapper mapper, MappedPort oldMappedPort, MappedPort newMappedPort) {
+        try {
+            listener.mappingRestored(mapper, oldMappedPort, newMappedPort);
+        } catch (RuntimeException re) {
+            LOG.error("Listener threw exception", re);
+        }
+    }
+
+    private void fireLost(PortMapper mapper, MappedPort mappedPort, RuntimeException cause) {
+        try {
+            listener.mappingLost(mapper, mappedPort, cause);
+        } catch (RuntimeException re) {
+            LOG.error("Listener threw exception", re);
+        }
+    }
+
+    private static final class Record {
+        private final InetAddress gatewayAddress;
+        private final EpochTracker epochTracker;
+        private final ExternalAddressCache externalAddressCache;
+        private final Set<MappedPort> mappedPorts;
+        private final Set<MappedPort> staleMappedPorts;
+        private long lastResetCount;
+
+        Record(InetAddress gatewayAddress, EpochTracker epochTracker, ExternalAddressCache externalAddressCache) {
+            this.gatewayAddress = gatewayAddress;
+            this.epochTracker = epochTracker;
+            this.externalAddressCache = externalAddressCache;
+            this.mappedPorts = new LinkedHashSet<>();
+            this.staleMappedPorts = new LinkedHashSet<>();
+            this.lastResetCount = epochTracker.getResetCount();
+        }
+    }
+}
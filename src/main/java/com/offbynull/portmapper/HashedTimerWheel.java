@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.lang3.Validate;
+
+// Hashed timer wheel (Varghese & Lauck). Time is split into ticks of tickDuration milliseconds and each tick hashes to one of wheelSize
+// buckets. Scheduling and cancelling are O(1) and advancing only touches the buckets for the ticks that passed, so the cost doesn't depend
+// on the number of timeouts outstanding. Not thread-safe -- access is synchronized by MappingManager.
+final class HashedTimerWheel<T> {
+    private final long startTime;
+    private final long tickDuration;
+    private final Timeout<T>[] buckets;
+    private long nextTick;
+    private int size;
+
+    HashedTimerWheel(long startTime, long tickDuration, int wheelSize) {
+        Validate.isTrue(tickDuration > 0L);
+        Validate.isTrue(wheelSize > 0);
+        this.startTime = startTime;
+        this.tickDuration = tickDuration;
+        @SuppressWarnings("unchecked")
+        Timeout<T>[] buckets = (Timeout<T>[]) new Timeout<?>[wheelSize];
+        this.buckets = buckets;
+    }
+
+    Timeout<T> schedule(T item, long deadline) {
+        Validate.notNull(item);
+
+        long tick = ceilDiv(deadline - startTime, tickDuration);
+        if (tick < nextTick) {
+            tick = nextTick; // already passed, fire on next advance
+        }
+
+        Timeout<T> timeout = new Timeout<>(item, tick);
+        int idx = bucketIndex(tick);
+        timeout.bucket = idx;
+        timeout.next = buckets[idx];
+        if (buckets[idx] != null) {
+            buckets[idx].prev = timeout;
+        }
+        buckets[idx] = timeout;
+        size++;
+
+        return timeout;
+    }
+
+    boolean cancel(Timeout<T> timeout) {
+        Validate.notNull(timeout);
+        if (timeout.bucket == -1) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    List<T> advance(long currentTime) {
+        List<T> expired = new ArrayList<>();
+
+        long lastTick = floorDiv(currentTime - startTime, tickDuration);
+        if (lastTick < nextTick) {
+            return expired;
+        }
+
+        // If more ticks than buckets passed, each bucket only has to be visited once
+        long steps = Math.min(lastTick - nextTick + 1L, buckets.length);
+        for (long i = 0L; i < steps; i++) {
+            Timeout<T> timeout = buckets[bucketIndex(nextTick + i)];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.tick <= lastTick) {
+                    unlink(timeout);
+                    expired.add(timeout.item);
+                }
+                timeout = next;
+            }
+        }
+        nextTick = lastTick + 1L;
+
+        return expired;
+    }
+
+    long getNextTickTime() {
+        return startTime + nextTick * tickDuration;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    private int bucketIndex(long tick) {
+        return (int) (tick % buckets.length);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long r = x / y;
+        if ((x % y != 0) && ((x < 0L) != (y < 0L))) {
+            r--;
+        }
+        return r;
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return -floorDiv(-x, y);
+    }
+
+    static final class Timeout<T> {
+        private final T item;
+        private final long tick;
+        private int bucket;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMapper;
+import com.offbynull.portmapper.mapper.PortType;
+import java.net.InetAddress;
+import org.apache.commons.lang3.Validate;
+
+// Mapped port handed out by HedgedPortMapper -- remembers which of the wrapped mappers won, since only that mapper can refresh/unmap it
+final class HedgedMappedPort implements MappedPort {
+    private final PortMapper mapper;
+    private final MappedPort mappedPort;
+
+    HedgedMappedPort(PortMapper mapper, MappedPort mappedPort) {
+        Validate.notNull(mapper);
+        Validate.notNull(mappedPort);
+        this.mapper = mapper;
+        this.mappedPort = mappedPort;
+    }
+
+    PortMapper getMapper() {
+        return mapper;
+    }
+
+    MappedPort getMappedPort() {
+        return mappedPort;
+    }
+
+    @Override
+    public int getInternalPort() {
+        return mappedPort.getInternalPort();
+    }
+
+    @Override
+    public int getExternalPort() {
+        return mappedPort.getExternalPort();
+    }
+
+    @Override
+    public InetAddress getExternalAddress() {
+        return mappedPort.getExternalAddress();
+    }
+
+    @Override
+    public PortType getPortType() {
+        return mappedPort.getPortType();
+    }
+
+    @Override
+    public long getLifetime() {
+        return mappedPort.getLifetime();
+    }
+
+    @Override
+    public String toString() {
+        return "HedgedMappedPort{" + "mapper=" + mapper + ", mappedPort=" + mappedPort + '}';
+    }
+}
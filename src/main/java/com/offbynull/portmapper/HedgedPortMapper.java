@@ -0,0 +1,611 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.BulkPortMapper;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.MapperIoUtils;
+import com.offbynull.portmapper.mapper.PortMapper;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link PortMapper} that wraps several mappers for the same gateway (e.g. the PCP, NAT-PMP, and UPnP-IGD mappers that discovery found
+ * for the same router) and hedges between them. A mapping is sent through the preferred mapper first, and if it hasn't succeeded after a
+ * delay (or has failed), it's also sent through the next mapper, and so on. The first success is kept and any mapping that succeeds
+ * after it is unmapped (unless it landed on the same external address, port, and protocol as the first, since unmapping it would remove
+ * the first as well).
+ * <p>
+ * Mappers are preferred in the order they were given until they have a track record -- after that, mappers with higher success rates and
+ * lower latencies are tried first. Refreshes/unmaps go to the mapper that created the mapping. Bulk maps aren't raced: requests that fail
+ * through one mapper are retried through the next. This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class HedgedPortMapper implements BulkPortMapper {
+    private static final Logger LOG = LoggerFactory.getLogger(HedgedPortMapper.class);
+
+    private static final double LATENCY_SMOOTHING = 0.2;
+    private static final long IDLE_THREAD_TIMEOUT = 60000L;
+
+    private final List<MapperStats> stats;
+    private final long hedgeDelay;
+    private final ExecutorService executor;
+
+    /**
+     * Constructs a {@link HedgedPortMapper} object. Attempts are performed on daemon threads that are created as needed and die off once
+     * idle.
+     * @param mappers mappers to hedge between, all for the same gateway (in order of initial preference)
+     * @param hedgeDelay number of milliseconds to wait on an attempt before also trying the next mapper
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if {@code mappers} is empty, or if {@code hedgeDelay < 0L}
+     */
+    public HedgedPortMapper(List<? extends PortMapper> mappers, long hedgeDelay) {
+        Validate.notNull(mappers);
+        Validate.noNullElements(mappers);
+        Validate.isTrue(!mappers.isEmpty());
+        Validate.isTrue(hedgeDelay >= 0L);
+
+        List<MapperStats> stats = new ArrayList<>(mappers.size());
+        for (PortMapper mapper : mappers) {
+            stats.add(new MapperStats(mapper, Math.max(hedgeDelay, 1L))); // nothing known yet -- assume responses take the hedge delay
+        }
+        this.stats = Collections.unmodifiableList(stats);
+        this.hedgeDelay = hedgeDelay;
+        this.executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_THREAD_TIMEOUT, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        thread.setName("Hedged Port Mapper Attempt");
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Get the track record of each wrapped mapper.
+     * @return stats for each wrapped mapper, in the order that they're currently preferred
+     */
+    public List<MapperStats> getStats() {
+        final Map<MapperStats, Double> scores = new IdentityHashMap<>();
+        for (MapperStats mapperStats : stats) {
+            scores.put(mapperStats, mapperStats.getScore());
+        }
+
+        List<MapperStats> ordered = new ArrayList<>(stats);
+        Collections.sort(ordered, new Comparator<MapperStats>() { // stable -- ties keep the order mappers were given in
+            @Override
+            public int compare(MapperStats o1, MapperStats o2) {
+                return Double.compare(scores.get(o1), scores.get(o2));
+            }
+        });
+        return ordered;
+    }
+
+    @Override
+    public MappedPort mapPort(PortType portType, int internalPort, int externalPort, long lifetime) throws InterruptedException {
+        LOG.info("Attempting to map {} Internal:{} External:{} Lifetime:{}", portType, internalPort, externalPort, lifetime);
+
+        Validate.notNull(portType);
+        Validate.inclusiveBetween(1, 65535, internalPort);
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        List<MapperStats> order = getStats();
+        Race race = new Race();
+        CompletionService<Attempt> completionService = new ExecutorCompletionService<>(executor);
+        PortMappingRequest request = new PortMappingRequest(portType, internalPort, externalPort, lifetime);
+
+        int started = 0;
+        int finished = 0;
+        IllegalStateException error = null;
+        try {
+            while (finished < order.size()) {
+                if (started == finished) {
+                    // nothing in flight -- no point waiting before trying the next mapper
+                    completionService.submit(new MapAttempt(order.get(started), request, race));
+                    started++;
+                    continue;
+                }
+
+                Future<Attempt> future = started < order.size()
+                        ? completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS)
+                        : completionService.take();
+                if (future == null) {
+                    LOG.debug("No result after {}ms, hedging with {}", hedgeDelay, order.get(started).getMapper());
+                    completionService.submit(new MapAttempt(order.get(started), request, race));
+                    started++;
+                    continue;
+                }
+                finished++;
+
+                Attempt attempt = getAttempt(future);
+                if (attempt.mappedPort != null) {
+                    MappedPort mappedPort = new HedgedMappedPort(attempt.stats.getMapper(), attempt.mappedPort);
+                    LOG.debug("Map successful {}", mappedPort);
+                    return mappedPort; // attempts still in flight unmap themselves if they succeed
+                }
+
+                if (error == null) {
+                    error = new IllegalStateException("Unable to map port through any mapper", attempt.error);
+                } else {
+                    error.addSuppressed(attempt.error);
+                }
+            }
+        } catch (InterruptedException ie) {
+            abandon(completionService, race, started - finished);
+            throw ie;
+        }
+        throw error;
+    }
+
+    // Make sure nothing still in flight leaves a mapping behind -- anything that succeeds from here on unmaps itself, and a winner that
+    // snuck in before the caller gave up gets unmapped once it's picked up off the completion queue
+    private void abandon(final CompletionService<Attempt> completionService, Race race, final int inFlight) {
+        race.abandon();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < inFlight; i++) {
+                        Attempt attempt = getAttempt(completionService.take());
+                        if (attempt.mappedPort != null) {
+                            unmapQuietly(attempt.stats.getMapper(), attempt.mappedPort);
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private static Attempt getAttempt(Future<Attempt> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            throw new IllegalStateException(ee.getCause()); // should never happen -- attempts catch everything
+        }
+    }
+
+    private static void unmapQuietly(PortMapper mapper, MappedPort mappedPort) {
+        try {
+            mapper.unmapPort(mappedPort);
+        } catch (RuntimeException re) {
+            LOG.warn("Unable to unmap losing mapping {}", mappedPort, re);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void unmapPort(MappedPort mappedPort) throws InterruptedException {
+        LOG.info("Attempting to unmap {}", mappedPort);
+
+        Validate.notNull(mappedPort);
+        Validate.isTrue(mappedPort instanceof HedgedMappedPort);
+
+        HedgedMappedPort hedgedMappedPort = (HedgedMappedPort) mappedPort;
+        hedgedMappedPort.getMapper().unmapPort(hedgedMappedPort.getMappedPort());
+
+        LOG.debug("Unmap successful {}", mappedPort);
+    }
+
+    @Override
+    public MappedPort refreshPort(MappedPort mappedPort, long lifetime) throws InterruptedException {
+        LOG.info("Attempting to refresh mapping {} for {}", mappedPort, lifetime);
+
+        Validate.notNull(mappedPort);
+        Validate.isTrue(mappedPort instanceof HedgedMappedPort);
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        HedgedMappedPort hedgedMappedPort = (HedgedMappedPort) mappedPort;
+        PortMapper mapper = hedgedMappedPort.getMapper();
+        MapperStats mapperStats = getStats(mapper);
+
+        long startTime = System.nanoTime();
+        MappedPort newMappedPort;
+        try {
+            newMappedPort = mapper.refreshPort(hedgedMappedPort.getMappedPort(), lifetime);
+        } catch (RuntimeException re) {
+            mapperStats.record(0, 1, 0L);
+            throw re;
+        }
+        mapperStats.record(1, 0, elapsedSince(startTime));
+
+        MappedPort hedgedNewMappedPort = new HedgedMappedPort(mapper, newMappedPort);
+        LOG.debug("Mapping refreshed {}: ", mappedPort, hedgedNewMappedPort);
+
+        return hedgedNewMappedPort;
+    }
+
+    @Override
+    public List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException {
+        LOG.info("Attempting to map {}", requests);
+
+        Validate.notNull(requests);
+        Validate.noNullElements(requests);
+
+        PortMappingResult[] results = new PortMappingResult[requests.size()];
+        List<Integer> pending = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            pending.add(i);
+        }
+
+        for (MapperStats mapperStats : getStats()) {
+            if (pending.isEmpty()) {
+                break;
+            }
+
+            List<PortMappingRequest> pendingRequests = new ArrayList<>(pending.size());
+            for (int idx : pending) {
+                pendingRequests.add(requests.get(idx));
+            }
+
+            PortMapper mapper = mapperStats.getMapper();
+            long startTime = System.nanoTime();
+            List<PortMappingResult> mapperResults;
+            try {
+                mapperResults = MapperIoUtils.mapPorts(mapper, pendingRequests);
+            } catch (RuntimeException re) {
+                mapperStats.record(0, pending.size(), 0L);
+                for (int idx : pending) {
+                    results[idx] = new PortMappingResult(re);
+                }
+                continue;
+            }
+            long latency = elapsedSince(startTime);
+
+            List<Integer> nextPending = new ArrayList<>();
+            int successes = 0;
+            for (int i = 0; i < pending.size(); i++) {
+                int idx = pending.get(i);
+                PortMappingResult result = mapperResults.get(i);
+                if (result.isSuccessful()) {
+                    results[idx] = new PortMappingResult(new HedgedMappedPort(mapper, result.getMappedPort()));
+                    successes++;
+                } else {
+                    results[idx] = result;
+                    nextPending.add(idx); // try again through the next mapper
+                }
+            }
+            mapperStats.record(successes, nextPending.size(), latency);
+            pending = nextPending;
+        }
+
+        List<PortMappingResult> ret = new ArrayList<>(results.length);
+        Collections.addAll(ret, results);
+        LOG.debug("Bulk map completed {}", ret);
+
+        return ret;
+    }
+
+    @Override
+    public List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        LOG.info("Attempting to unmap {}", mappedPorts);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof HedgedMappedPort);
+        }
+
+        PortMappingResult[] results = new PortMappingResult[mappedPorts.size()];
+        for (Entry<PortMapper, List<Integer>> group : groupByMapper(mappedPorts).entrySet()) {
+            PortMapper mapper = group.getKey();
+            List<Integer> indices = group.getValue();
+
+            List<PortMappingResult> mapperResults;
+            try {
+                mapperResults = MapperIoUtils.unmapPorts(mapper, toDelegates(mappedPorts, indices));
+            } catch (RuntimeException re) {
+                for (int idx : indices) {
+                    results[idx] = new PortMappingResult(re);
+                }
+                continue;
+            }
+
+            for (int i = 0; i < indices.size(); i++) {
+                int idx = indices.get(i);
+                PortMappingResult result = mapperResults.get(i);
+                results[idx] = result.isSuccessful() ? new PortMappingResult(mappedPorts.get(idx)) : result;
+            }
+        }
+
+        List<PortMappingResult> ret = new ArrayList<>(results.length);
+        Collections.addAll(ret, results);
+        LOG.debug("Bulk unmap completed {}", ret);
+
+        return ret;
+    }
+
+    @Override
+    public List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        LOG.info("Attempting to refresh mappings {} for {}", mappedPorts, lifetime);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof HedgedMappedPort);
+        }
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        PortMappingResult[] results = new PortMappingResult[mappedPorts.size()];
+        for (Entry<PortMapper, List<Integer>> group : groupByMapper(mappedPorts).entrySet()) {
+            PortMapper mapper = group.getKey();
+            List<Integer> indices = group.getValue();
+            MapperStats mapperStats = getStats(mapper);
+
+            long startTime = System.nanoTime();
+            List<PortMappingResult> mapperResults;
+            try {
+                mapperResults = MapperIoUtils.refreshPorts(mapper, toDelegates(mappedPorts, indices), lifetime);
+            } catch (RuntimeException re) {
+                mapperStats.record(0, indices.size(), 0L);
+                for (int idx : indices) {
+                    results[idx] = new PortMappingResult(re);
+                }
+                continue;
+            }
+            long latency = elapsedSince(startTime);
+
+            int successes = 0;
+            for (int i = 0; i < indices.size(); i++) {
+                int idx = indices.get(i);
+                PortMappingResult result = mapperResults.get(i);
+                if (result.isSuccessful()) {
+                    results[idx] = new PortMappingResult(new HedgedMappedPort(mapper, result.getMappedPort()));
+                    successes++;
+                } else {
+                    results[idx] = result;
+                }
+            }
+            mapperStats.record(successes, indices.size() - successes, latency);
+        }
+
+        List<PortMappingResult> ret = new ArrayList<>(results.length);
+        Collections.addAll(ret, results);
+        LOG.debug("Bulk refresh completed {}", ret);
+
+        return ret;
+    }
+
+    private static Map<PortMapper, List<Integer>> groupByMapper(List<MappedPort> mappedPorts) {
+        Map<PortMapper, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            PortMapper mapper = ((HedgedMappedPort) mappedPorts.get(i)).getMapper();
+            List<Integer> indices = groups.get(mapper);
+            if (indices == null) {
+                indices = new ArrayList<>();
+                groups.put(mapper, indices);
+            }
+            indices.add(i);
+        }
+        return groups;
+    }
+
+    private static List<MappedPort> toDelegates(List<MappedPort> mappedPorts, List<Integer> indices) {
+        List<MappedPort> delegates = new ArrayList<>(indices.size());
+        for (int idx : indices) {
+            delegates.add(((HedgedMappedPort) mappedPorts.get(idx)).getMappedPort());
+        }
+        return delegates;
+    }
+
+    private MapperStats getStats(PortMapper mapper) {
+        for (MapperStats mapperStats : stats) {
+            if (mapperStats.getMapper() == mapper) {
+                return mapperStats;
+            }
+        }
+        throw new IllegalArgumentException("Mapped port not created by this mapper");
+    }
+
+    private static long elapsedSince(long startTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public InetAddress getSourceAddress() {
+        return stats.get(0).getMapper().getSourceAddress();
+    }
+
+    @Override
+    public String toString() {
+        return "HedgedPortMapper{" + "stats=" + stats + ", hedgeDelay=" + hedgeDelay + '}';
+    }
+
+    // Maps through one of the wrapped mappers. Only the first attempt to succeed gets to keep its mapping, any attempt that succeeds after
+    // it unmaps what it mapped -- unless what it mapped is the same NAT entry as the winner's (mappers for the same gateway can end up
+    // pointing at the same entry), in which case unmapping it would take the winner's mapping down with it.
+    private static final class MapAttempt implements Callable<Attempt> {
+        private final MapperStats stats;
+        private final PortMappingRequest request;
+        private final Race race;
+
+        MapAttempt(MapperStats stats, PortMappingRequest request, Race race) {
+            this.stats = stats;
+            this.request = request;
+            this.race = race;
+        }
+
+        @Override
+        public Attempt call() {
+            PortMapper mapper = stats.getMapper();
+            long startTime = System.nanoTime();
+            MappedPort mappedPort;
+            try {
+                mappedPort = mapper.mapPort(request.getPortType(), request.getInternalPort(), request.getExternalPort(),
+                        request.getLifetime());
+            } catch (RuntimeException re) {
+                stats.record(0, 1, 0L);
+                return new Attempt(stats, null, re);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return new Attempt(stats, null, new IllegalStateException(ie));
+            }
+            stats.record(1, 0, elapsedSince(startTime));
+
+            if (race.settle(mappedPort)) {
+                return new Attempt(stats, mappedPort, null);
+            }
+
+            MappedPort winner = race.getWinner();
+            if (winner != null && isSameEntry(winner, mappedPort)) {
+                LOG.debug("Lost race but mapped the same entry as the winner, leaving {}", mappedPort);
+            } else {
+                LOG.debug("Lost race, unmapping {}", mappedPort);
+                unmapQuietly(mapper, mappedPort);
+            }
+            return new Attempt(stats, null, new IllegalStateException("Lost race"));
+        }
+
+        private static boolean isSameEntry(MappedPort winner, MappedPort mappedPort) {
+            return winner.getPortType() == mappedPort.getPortType()
+                    && winner.getExternalPort() == mappedPort.getExternalPort()
+                    && Objects.equals(winner.getExternalAddress(), mappedPort.getExternalAddress());
+        }
+    }
+
+    // Decides which of the attempts for a single map gets to keep its mapping. Settled either by the first attempt to succeed (the winner)
+    // or by the caller giving up (no winner).
+    private static final class Race {
+        private boolean settled;
+        private MappedPort winner;
+
+        synchronized boolean settle(MappedPort mappedPort) {
+            if (settled) {
+                return false;
+            }
+            settled = true;
+            winner = mappedPort;
+            return true;
+        }
+
+        synchronized void abandon() {
+            settled = true;
+        }
+
+        synchronized MappedPort getWinner() {
+            return winner;
+        }
+    }
+
+    private static final class Attempt {
+        private final MapperStats stats;
+        private final MappedPort mappedPort;
+        private final RuntimeException error;
+
+        Attempt(MapperStats stats, MappedPort mappedPort, RuntimeException error) {
+            this.stats = stats;
+            this.mappedPort = mappedPort;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Track record of a mapper wrapped by a {@link HedgedPortMapper}. This class is thread-safe.
+     */
+    public static final class MapperStats {
+        private final PortMapper mapper;
+        private long successCount;
+        private long failureCount;
+        private double averageLatency;
+
+        MapperStats(PortMapper mapper, double averageLatency) {
+            this.mapper = mapper;
+            this.averageLatency = averageLatency;
+        }
+
+        /**
+         * Get the mapper.
+         * @return mapper
+         */
+        public PortMapper getMapper() {
+            return mapper;
+        }
+
+        /**
+         * Get the number of mappings/refreshes that succeeded.
+         * @return number of successes
+         */
+        public synchronized long getSuccessCount() {
+            return successCount;
+        }
+
+        /**
+         * Get the number of mappings/refreshes that failed.
+         * @return number of failures
+         */
+        public synchronized long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Get the smoothed time it takes for a mapping/refresh to succeed.
+         * @return average latency (in milliseconds)
+         */
+        public synchronized double getAverageLatency() {
+            return averageLatency;
+        }
+
+        synchronized void record(int successes, int failures, long latency) {
+            successCount += successes;
+            failureCount += failures;
+            if (successes > 0) {
+                averageLatency += LATENCY_SMOOTHING * (latency - averageLatency);
+            }
+        }
+
+        // Expected time to get a success out of this mapper -- lower is better. The success rate starts off at 50% (Laplace smoothing) so
+        // that a single failure/success doesn't swing it to an extreme.
+        synchronized double getScore() {
+            double successRate = (successCount + 1.0) / (successCount + failureCount + 2.0);
+            return Math.max(averageLatency, 1.0) / successRate;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "MapperStats{" + "mapper=" + mapper + ", successCount=" + successCount + ", failureCount=" + failureCount
+                    + ", averageLatency=" + averageLatency + '}';
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.PortType;
+import java.util.Arrays;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A mapping recorded in a {@link MappingJournal}.
+ * @author Kasra Faghihi
+ */
+public final class JournaledMapping {
+    private final String identity;
+    private final PortType portType;
+    private final int internalPort;
+    private final int externalPort;
+    private final long lifetime;
+    private final long recordTime;
+    private final byte[] data;
+
+    JournaledMapping(String identity, PortType portType, int internalPort, int externalPort, long lifetime, long recordTime,
+            byte[] data) {
+        Validate.notNull(identity);
+        Validate.notNull(portType);
+        Validate.notNull(data);
+        this.identity = identity;
+        this.portType = portType;
+        this.internalPort = internalPort;
+        this.externalPort = externalPort;
+        this.lifetime = lifetime;
+        this.recordTime = recordTime;
+        this.data = Arrays.copyOf(data, data.length);
+    }
+
+    /**
+     * Get the identity of the mapper that created the mapping.
+     * @return mapper identity
+     * @see com.offbynull.portmapper.mapper.RestorablePortMapper#getIdentity()
+     */
+    public String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Get the port type.
+     * @return port type
+     */
+    public PortType getPortType() {
+        return portType;
+    }
+
+    /**
+     * Get the internal port.
+     * @return internal port
+     */
+    public int getInternalPort() {
+        return internalPort;
+    }
+
+    /**
+     * Get the external port.
+     * @return external port
+     */
+    public int getExternalPort() {
+        return externalPort;
+    }
+
+    /**
+     * Get the lifetime the mapping had when it was last mapped/refreshed.
+     * @return lifetime (in seconds)
+     */
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Get the time the mapping was last mapped/refreshed.
+     * @return time the mapping was recorded (in milliseconds since epoch)
+     */
+    public long getRecordTime() {
+        return recordTime;
+    }
+
+    byte[] getData() {
+        return Arrays.copyOf(data, data.length);
+    }
+
+    @Override
+    public String toString() {
+        return "JournaledMapping{" + "identity=" + identity + ", portType=" + portType + ", internalPort=" + internalPort
+                + ", externalPort=" + externalPort + ", lifetime=" + lifetime + ", recordTime=" + recordTime + '}';
+    }
+}
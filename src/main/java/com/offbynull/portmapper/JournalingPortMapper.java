@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.BulkPortMapper;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.MapperIoUtils;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mapper.RestorablePortMapper;
+import java.net.InetAddress;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Records every successful map/refresh/unmap of the wrapped mapper in a MappingJournal. A mapping that succeeded on the device is still
+// handed back if it couldn't be recorded -- failing it would leave the caller with no way to refresh/unmap it.
+final class JournalingPortMapper implements RestorablePortMapper, BulkPortMapper {
+    private static final Logger LOG = LoggerFactory.getLogger(JournalingPortMapper.class);
+
+    private final MappingJournal journal;
+    private final RestorablePortMapper mapper;
+
+    JournalingPortMapper(MappingJournal journal, RestorablePortMapper mapper) {
+        this.journal = journal;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public MappedPort mapPort(PortType portType, int internalPort, int externalPort, long lifetime) throws InterruptedException {
+        MappedPort mappedPort = mapper.mapPort(portType, internalPort, externalPort, lifetime);
+        recordMapping(mappedPort);
+        return mappedPort;
+    }
+
+    @Override
+    public void unmapPort(MappedPort mappedPort) throws InterruptedException {
+        mapper.unmapPort(mappedPort);
+        recordUnmapping(mappedPort);
+    }
+
+    @Override
+    public MappedPort refreshPort(MappedPort mappedPort, long lifetime) throws InterruptedException {
+        MappedPort newMappedPort = mapper.refreshPort(mappedPort, lifetime);
+        recordMapping(newMappedPort);
+        return newMappedPort;
+    }
+
+    @Override
+    public List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException {
+        List<PortMappingResult> results = MapperIoUtils.mapPorts(mapper, requests);
+        for (PortMappingResult result : results) {
+            if (result.isSuccessful()) {
+                recordMapping(result.getMappedPort());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        List<PortMappingResult> results = MapperIoUtils.unmapPorts(mapper, mappedPorts);
+        for (PortMappingResult result : results) {
+            if (result.isSuccessful()) {
+                recordUnmapping(result.getMappedPort());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        List<PortMappingResult> results = MapperIoUtils.refreshPorts(mapper, mappedPorts, lifetime);
+        for (PortMappingResult result : results) {
+            if (result.isSuccessful()) {
+                recordMapping(result.getMappedPort());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public InetAddress getSourceAddress() {
+        return mapper.getSourceAddress();
+    }
+
+    @Override
+    public String getIdentity() {
+        return mapper.getIdentity();
+    }
+
+    @Override
+    public byte[] saveMappedPort(MappedPort mappedPort) {
+        return mapper.saveMappedPort(mappedPort);
+    }
+
+    @Override
+    public MappedPort restoreMappedPort(byte[] data) {
+        return mapper.restoreMappedPort(data);
+    }
+
+    private void recordMapping(MappedPort mappedPort) {
+        try {
+            journal.recordMapping(mapper, mappedPort);
+        } catch (RuntimeException re) {
+            LOG.error("Unable to record mapping {}", mappedPort, re);
+        }
+    }
+
+    private void recordUnmapping(MappedPort mappedPort) {
+        try {
+            journal.recordUnmapping(mapper, mappedPort);
+        } catch (RuntimeException re) {
+            LOG.error("Unable to record unmapping {}", mappedPort, re);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JournalingPortMapper{" + "journal=" + journal + ", mapper=" + mapper + '}';
+    }
+}
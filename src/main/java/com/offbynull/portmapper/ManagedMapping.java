@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.HashedTimerWheel.Timeout;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMapper;
+
+/**
+ * A mapping that's kept alive by a {@link MappingManager}.
+ * @author Kasra Faghihi
+ */
+public final class ManagedMapping {
+    private final PortMapper mapper;
+    private final long lifetime;
+
+    // All fields below are guarded by the owning MappingManager
+    private MappedPort mappedPort;
+    private long expireTime;
+    private Timeout<ManagedMapping> timeout;
+    private boolean released;
+
+    ManagedMapping(PortMapper mapper, MappedPort mappedPort, long lifetime, long expireTime) {
+        this.mapper = mapper;
+        this.mappedPort = mappedPort;
+        this.lifetime = lifetime;
+        this.expireTime = expireTime;
+    }
+
+    /**
+     * Get the mapper used to create/refresh this mapping.
+     * @return mapper
+     */
+    public PortMapper getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Get the lifetime requested whenever this mapping is refreshed.
+     * @return requested lifetime (in seconds)
+     */
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * Get the mapped port as of the last successful refresh.
+     * @return mapped port
+     */
+    public synchronized MappedPort getMappedPort() {
+        return mappedPort;
+    }
+
+    synchronized void setMappedPort(MappedPort mappedPort) {
+        this.mappedPort = mappedPort;
+    }
+
+    long getExpireTime() {
+        return expireTime;
+    }
+
+    void setExpireTime(long expireTime) {
+        this.expireTime = expireTime;
+    }
+
+    Timeout<ManagedMapping> getTimeout() {
+        return timeout;
+    }
+
+    void setTimeout(Timeout<ManagedMapping> timeout) {
+        this.timeout = timeout;
+    }
+
+    boolean isReleased() {
+        return released;
+    }
+
+    void setReleased(boolean released) {
+        this.released = released;
+    }
+
+    @Override
+    public String toString() {
+        return "ManagedMapping{" + "mapper=" + mapper + ", lifetime=" + lifetime + ", mappedPort=" + getMappedPort() + '}';
+    }
+}
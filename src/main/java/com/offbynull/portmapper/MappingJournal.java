@@ -0,0 +1,540 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.MapperIoUtils;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mapper.RestorablePortMapper;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the mappings a process holds, used to clean up after (or carry on from) a run that died without unmapping its
+ * ports. Without it, mappings left behind stay on the device until their leases run out -- which, with long UPnP-IGD leases or devices
+ * that only allow permanent leases, may be never -- and eventually the device's mapping table fills up.
+ * <p>
+ * Every successful map/refresh/unmap is recorded (automatically if the mapper is {@link #wrap(RestorablePortMapper) wrapped}), along with
+ * the mapper-specific details needed to undo it (e.g. PCP nonce, UPnP-IGD pinhole ID). On startup, mappings still recorded in the journal
+ * are orphans from the previous run, and should be either {@link #unmapOrphans(RestorablePortMapper) unmapped in bulk} or
+ * {@link #adopt(RestorablePortMapper) adopted} before new mappings are made.
+ * <p>
+ * Records are appended to a memory-mapped file, so they survive the process crashing as soon as they're written. They're only forced to
+ * disk in batches (periodically, and on {@link #sync() }/{@link #close() }), so an OS crash or power loss may lose the last second or so
+ * of records. Every record carries a checksum, and replay stops at the first record that's torn or corrupt. When the file fills up, it's
+ * compacted down to the mappings that are still live (and grown if that isn't enough). This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class MappingJournal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MappingJournal.class);
+
+    private static final int DEFAULT_CAPACITY = 1024 * 1024;
+    private static final long SYNC_INTERVAL = 1000L;
+    private static final byte MAPPED = 1;
+    private static final byte UNMAPPED = 2;
+    private static final int RECORD_OVERHEAD = 8; // length + checksum
+
+    private final File file;
+    private final Map<String, JournaledMapping> mappings;
+    private final Thread syncThread;
+
+    // All fields below are guarded by this
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer; // null if a compaction failed after unmapping the file (next record retries the compaction)
+    private int capacity;
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * Opens a journal with a 1MB file, replaying whatever is already recorded in it. If the file doesn't exist, it's created.
+     * @param file journal file
+     * @return journal
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if the file couldn't be opened
+     */
+    public static MappingJournal open(File file) throws IOException {
+        return open(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens a journal, replaying whatever is already recorded in it. If the file doesn't exist, it's created.
+     * @param file journal file
+     * @param capacity size of the journal file in bytes (ignored if the file is already larger)
+     * @return journal
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code capacity < 1024}
+     * @throws IOException if the file couldn't be opened
+     */
+    public static MappingJournal open(File file, int capacity) throws IOException {
+        Validate.notNull(file);
+        Validate.isTrue(capacity >= 1024);
+
+        LOG.info("Attempting to open journal {}", file);
+
+        MappingJournal journal = new MappingJournal(file);
+        synchronized (journal) {
+            journal.mapFile((int) Math.max(capacity, Math.min(file.length(), Integer.MAX_VALUE)));
+            journal.replay();
+        }
+        journal.syncThread.start();
+
+        LOG.debug("Journal opened with {} live mappings", journal.mappings.size());
+        return journal;
+    }
+
+    private MappingJournal(File file) {
+        this.file = file;
+        this.mappings = new LinkedHashMap<>();
+        this.syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncPeriodically();
+            }
+        });
+        this.syncThread.setDaemon(true);
+        this.syncThread.setName("Mapping Journal Sync");
+    }
+
+    /**
+     * Wrap a mapper such that every successful map/refresh/unmap it performs is recorded in this journal.
+     * @param mapper mapper to wrap
+     * @return journaling mapper
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public RestorablePortMapper wrap(RestorablePortMapper mapper) {
+        Validate.notNull(mapper);
+        return new JournalingPortMapper(this, mapper);
+    }
+
+    /**
+     * Record that a mapping has been mapped or refreshed. A mapping is identified by its mapper's identity, port type, and internal port,
+     * so recording a refreshed mapping replaces what was recorded for it earlier.
+     * @param mapper mapper that created {@code mappedPort}
+     * @param mappedPort mapped port
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code mappedPort} is not expected by {@code mapper}
+     * @throws IllegalStateException if closed, or if the record couldn't be written
+     */
+    public synchronized void recordMapping(RestorablePortMapper mapper, MappedPort mappedPort) {
+        Validate.notNull(mapper);
+        Validate.notNull(mappedPort);
+        Validate.validState(!closed, "Journal closed");
+
+        JournaledMapping mapping = new JournaledMapping(mapper.getIdentity(), mappedPort.getPortType(), mappedPort.getInternalPort(),
+                mappedPort.getExternalPort(), mappedPort.getLifetime(), System.currentTimeMillis(), mapper.saveMappedPort(mappedPort));
+        append(encodeMapped(mapping));
+        mappings.put(toKey(mapping.getIdentity(), mapping.getPortType(), mapping.getInternalPort()), mapping);
+    }
+
+    /**
+     * Record that a mapping has been unmapped.
+     * @param mapper mapper that created {@code mappedPort}
+     * @param mappedPort mapped port
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if closed, or if the record couldn't be written
+     */
+    public synchronized void recordUnmapping(RestorablePortMapper mapper, MappedPort mappedPort) {
+        Validate.notNull(mapper);
+        Validate.notNull(mappedPort);
+        Validate.validState(!closed, "Journal closed");
+
+        removeMapping(mapper.getIdentity(), mappedPort.getPortType(), mappedPort.getInternalPort());
+    }
+
+    /**
+     * Drop a mapping from the journal without unmapping it (e.g. an orphan for a device that's gone for good).
+     * @param mapping mapping to drop
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if closed, or if the record couldn't be written
+     */
+    public synchronized void forget(JournaledMapping mapping) {
+        Validate.notNull(mapping);
+        Validate.validState(!closed, "Journal closed");
+
+        removeMapping(mapping.getIdentity(), mapping.getPortType(), mapping.getInternalPort());
+    }
+
+    private void removeMapping(String identity, PortType portType, int internalPort) {
+        String key = toKey(identity, portType, internalPort);
+        if (!mappings.containsKey(key)) {
+            return;
+        }
+        append(encodeUnmapped(identity, portType, internalPort));
+        mappings.remove(key);
+    }
+
+    /**
+     * Get the mappings currently recorded. Right after opening, these are the mappings left behind by the previous run.
+     * @return recorded mappings
+     */
+    public synchronized List<JournaledMapping> getMappings() {
+        return new ArrayList<>(mappings.values());
+    }
+
+    /**
+     * Restore the recorded mappings that belong to a mapper (same {@link RestorablePortMapper#getIdentity() identity}), so that they can
+     * be refreshed/unmapped as if they had been mapped by it. Adopted mappings stay recorded. Recorded mappings that the mapper can't
+     * restore are dropped.
+     * @param mapper mapper to adopt mappings into
+     * @return restored mapped ports
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if closed
+     */
+    public synchronized List<MappedPort> adopt(RestorablePortMapper mapper) {
+        Validate.notNull(mapper);
+        Validate.validState(!closed, "Journal closed");
+
+        String identity = mapper.getIdentity();
+        List<MappedPort> mappedPorts = new ArrayList<>();
+        for (JournaledMapping mapping : new ArrayList<>(mappings.values())) {
+            if (!mapping.getIdentity().equals(identity)) {
+                continue;
+            }
+
+            try {
+                mappedPorts.add(mapper.restoreMappedPort(mapping.getData()));
+            } catch (RuntimeException re) {
+                LOG.warn("Unable to restore {} -- dropping", mapping, re);
+                forget(mapping);
+            }
+        }
+        return mappedPorts;
+    }
+
+    /**
+     * Unmap (in bulk) the recorded mappings that belong to a mapper. Mappings that are successfully unmapped are dropped from the journal.
+     * @param mapper mapper to unmap with
+     * @return result of each unmapping
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if closed
+     * @throws InterruptedException if thread was interrupted
+     */
+    public List<PortMappingResult> unmapOrphans(RestorablePortMapper mapper) throws InterruptedException {
+        LOG.info("Attempting to unmap orphans of {}", mapper);
+
+        List<MappedPort> orphans = adopt(mapper);
+        List<PortMappingResult> results = orphans.isEmpty()
+                ? new ArrayList<PortMappingResult>()
+                : MapperIoUtils.unmapPorts(mapper, orphans);
+        for (PortMappingResult result : results) {
+            if (result.isSuccessful()) {
+                recordUnmapping(mapper, result.getMappedPort());
+            }
+        }
+
+        LOG.debug("Orphan unmap completed {}", results);
+        return results;
+    }
+
+    /**
+     * Force everything recorded so far to disk.
+     * @throws IllegalStateException if closed
+     */
+    public synchronized void sync() {
+        Validate.validState(!closed, "Journal closed");
+        if (dirty && buffer != null) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Force everything recorded to disk and close the journal. Does nothing if already closed.
+     * @throws IOException if the file couldn't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        syncThread.interrupt();
+        unmapFile();
+        raf.close();
+    }
+
+    private void syncPeriodically() {
+        try {
+            while (true) {
+                Thread.sleep(SYNC_INTERVAL);
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    sync();
+                }
+            }
+        } catch (InterruptedException ie) {
+            // closed, do nothing
+        } catch (RuntimeException re) {
+            LOG.error("Journal sync failed", re);
+        }
+    }
+
+    private void mapFile(int capacity) throws IOException {
+        this.capacity = capacity;
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < capacity) {
+                raf.setLength(capacity);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, capacity);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private void replay() {
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining() - 4) {
+                buffer.position(start);
+                break;
+            }
+
+            byte[] body = new byte[length];
+            buffer.get(body);
+            int checksum = buffer.getInt();
+            if (checksum != checksum(body)) {
+                LOG.warn("Torn or corrupt record at {} -- ignoring it and everything after it", start);
+                buffer.position(start);
+                break;
+            }
+
+            try {
+                apply(ByteBuffer.wrap(body));
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                LOG.warn("Malformed record at {} -- ignoring it and everything after it", start, e);
+                buffer.position(start);
+                break;
+            }
+        }
+
+        // Wipe out whatever's left of a torn record so it can't be mistaken for part of a record appended later on
+        for (int i = buffer.position(); i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+    }
+
+    private void apply(ByteBuffer body) {
+        byte type = body.get();
+        long recordTime = body.getLong();
+        String identity = getString(body);
+        PortType portType = toPortType(body.get());
+        int internalPort = body.getShort() & 0xFFFF;
+        String key = toKey(identity, portType, internalPort);
+        switch (type) {
+            case MAPPED: {
+                int externalPort = body.getShort() & 0xFFFF;
+                long lifetime = body.getLong();
+                byte[] data = new byte[body.getShort() & 0xFFFF];
+                body.get(data);
+                mappings.put(key, new JournaledMapping(identity, portType, internalPort, externalPort, lifetime, recordTime, data));
+                break;
+            }
+            case UNMAPPED:
+                mappings.remove(key);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown record type " + type);
+        }
+    }
+
+    private void append(byte[] body) {
+        if (buffer == null || buffer.remaining() < body.length + RECORD_OVERHEAD) {
+            compact(body.length + RECORD_OVERHEAD);
+        }
+
+        buffer.putInt(body.length);
+        buffer.put(body);
+        buffer.putInt(checksum(body));
+        dirty = true;
+    }
+
+    // Rewrite the journal with only live mappings (into a new file that replaces the old one, so a crash midway leaves the old one intact).
+    // The old file has to be closed and unmapped before the new one is moved over it -- Windows won't replace a file that's open or
+    // mapped. If anything fails from that point on, the journal stays unmapped and the next record retries the compaction (records are
+    // kept in memory, so nothing is lost but the record that failed).
+    private void compact(int required) {
+        LOG.debug("Compacting journal {}", file);
+
+        List<byte[]> bodies = new ArrayList<>(mappings.size());
+        long size = required;
+        long used = 0L;
+        for (JournaledMapping mapping : mappings.values()) {
+            byte[] body = encodeMapped(mapping);
+            bodies.add(body);
+            used += body.length + RECORD_OVERHEAD;
+        }
+        size += used;
+
+        long newCapacity = capacity;
+        while (size > newCapacity / 2L) { // keep at least half free so that compactions don't happen back-to-back
+            newCapacity *= 2L;
+        }
+        Validate.validState(newCapacity <= Integer.MAX_VALUE, "Journal too large");
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            writeFile(tempFile, bodies, newCapacity);
+
+            unmapFile();
+            raf.close();
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            mapFile((int) newCapacity);
+            buffer.position((int) used); // just past the records that were copied over
+        } catch (IOException ioe) {
+            tempFile.delete();
+            throw new IllegalStateException("Unable to compact journal", ioe);
+        }
+    }
+
+    private static void writeFile(File file, List<byte[]> bodies, long capacity) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0L);
+            for (byte[] body : bodies) {
+                out.writeInt(body.length);
+                out.write(body);
+                out.writeInt(checksum(body));
+            }
+            out.setLength(capacity);
+            out.getFD().sync();
+        }
+    }
+
+    private void unmapFile() {
+        if (buffer == null) {
+            return;
+        }
+        if (dirty) {
+            buffer.force();
+            dirty = false;
+        }
+        MappedByteBuffer oldBuffer = buffer;
+        buffer = null; // never touch a buffer after it's been unmapped, the JVM will crash
+        unmap(oldBuffer);
+    }
+
+    // There's no public way to unmap a file before the buffer is garbage collected (JDK-4724038), so go through the JDK internals that do
+    // it. If those aren't available, the file stays mapped until the buffer is collected -- harmless on most platforms, but on Windows the
+    // journal can't be replaced until then (compaction fails and is retried on the next record).
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleanerMethod;
+            try {
+                invokeCleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class); // Java 9+
+            } catch (NoSuchMethodException nsme) {
+                invokeCleanerMethod = null;
+            }
+
+            if (invokeCleanerMethod != null) {
+                Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+                unsafeField.setAccessible(true);
+                invokeCleanerMethod.invoke(unsafeField.get(null), buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner"); // Java 7/8
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Unable to unmap journal, leaving it to the garbage collector", e);
+        }
+    }
+
+    private static byte[] encodeMapped(JournaledMapping mapping) {
+        byte[] identityBytes = mapping.getIdentity().getBytes(StandardCharsets.UTF_8);
+        byte[] data = mapping.getData();
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 2 + identityBytes.length + 1 + 2 + 2 + 8 + 2 + data.length);
+        body.put(MAPPED);
+        body.putLong(mapping.getRecordTime());
+        body.putShort((short) identityBytes.length);
+        body.put(identityBytes);
+        body.put((byte) mapping.getPortType().ordinal());
+        body.putShort((short) mapping.getInternalPort());
+        body.putShort((short) mapping.getExternalPort());
+        body.putLong(mapping.getLifetime());
+        body.putShort((short) data.length);
+        body.put(data);
+        return body.array();
+    }
+
+    private static byte[] encodeUnmapped(String identity, PortType portType, int internalPort) {
+        byte[] identityBytes = identity.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 2 + identityBytes.length + 1 + 2);
+        body.put(UNMAPPED);
+        body.putLong(System.currentTimeMillis());
+        body.putShort((short) identityBytes.length);
+        body.put(identityBytes);
+        body.put((byte) portType.ordinal());
+        body.putShort((short) internalPort);
+        return body.array();
+    }
+
+    private static String getString(ByteBuffer body) {
+        byte[] data = new byte[body.getShort() & 0xFFFF];
+        body.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static PortType toPortType(byte ordinal) {
+        PortType[] portTypes = PortType.values();
+        Validate.isTrue(ordinal >= 0 && ordinal < portTypes.length);
+        return portTypes[ordinal];
+    }
+
+    private static String toKey(String identity, PortType portType, int internalPort) {
+        return identity + '/' + portType + '/' + internalPort;
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MappingJournal{" + "file=" + file + ", mappings=" + mappings.size() + ", closed=" + closed + '}';
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMapper;
+import com.offbynull.portmapper.mapper.PortType;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps mappings alive by refreshing them automatically.
+ * <p>
+ * Refreshes are scheduled on a hashed timer wheel at a fraction of each mapping's lifetime (minus some random jitter, so that mappings
+ * created together don't all get refreshed at the same instant) and are performed on a fixed-size pool of worker threads. The number of
+ * threads used is constant regardless of how many mappings are being managed. If a refresh fails, it's re-attempted until the mapping's
+ * lease runs out.
+ * <p>
+ * Closing the manager unmaps all mappings that it's managing.
+ * @author Kasra Faghihi
+ */
+public final class MappingManager {
+    private static final Logger LOG = LoggerFactory.getLogger(MappingManager.class);
+
+    private static final long TICK_DURATION = 100L;
+    private static final int WHEEL_SIZE = 512;
+    private static final long MIN_RETRY_DELAY = 1000L;
+
+    private final Object lock;
+    private final HashedTimerWheel<ManagedMapping> wheel;
+    private final Set<ManagedMapping> mappings;
+    private final Random random;
+    private final ExecutorService workers;
+    private final Thread timerThread;
+    private final double refreshFraction;
+    private final double jitterFraction;
+    private final MappingManagerListener listener;
+    private boolean closed;
+
+    /**
+     * Creates a {@link MappingManager} object and starts its threads.
+     * @param workerCount number of threads to perform refreshes/unmaps on
+     * @param refreshFraction fraction of a mapping's lifetime to wait before refreshing it (e.g. {@code 0.5} to refresh half-way through)
+     * @param jitterFraction fraction of the refresh delay that's randomly shaved off (e.g. {@code 0.1} to refresh up to 10% early)
+     * @param listener listener to notify of refreshes
+     * @return new {@link MappingManager}
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code workerCount < 1}, or {@code refreshFraction} isn't in {@code (0, 1]}, or
+     * {@code jitterFraction} isn't in {@code [0, 1)}
+     */
+    public static MappingManager create(int workerCount, double refreshFraction, double jitterFraction, MappingManagerListener listener) {
+        Validate.isTrue(workerCount >= 1);
+        Validate.isTrue(refreshFraction > 0.0 && refreshFraction <= 1.0);
+        Validate.isTrue(jitterFraction >= 0.0 && jitterFraction < 1.0);
+        Validate.notNull(listener);
+
+        MappingManager manager = new MappingManager(workerCount, refreshFraction, jitterFraction, listener);
+        manager.timerThread.start();
+        return manager;
+    }
+
+    private MappingManager(int workerCount, double refreshFraction, double jitterFraction, MappingManagerListener listener) {
+        this.lock = new Object();
+        this.wheel = new HashedTimerWheel<>(currentTime(), TICK_DURATION, WHEEL_SIZE);
+        this.mappings = new LinkedHashSet<>();
+        this.random = new Random();
+        this.refreshFraction = refreshFraction;
+        this.jitterFraction = jitterFraction;
+        this.listener = listener;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        thread.setName("Mapping Manager Worker");
+                        return thread;
+                    }
+                });
+        this.timerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        });
+        this.timerThread.setDaemon(true);
+        this.timerThread.setName("Mapping Manager Timer");
+    }
+
+    /**
+     * Map a port and start managing it. The mapping is performed on the calling thread.
+     * @param mapper mapper to map/refresh with
+     * @param portType port type
+     * @param internalPort internal port
+     * @param externalPort external port (suggestion only)
+     * @param lifetime lifetime to request (in seconds) -- re-requested on each refresh
+     * @return managed mapping
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code 1 > internalPort > 65535 || 0 > externalPort > 65535 || lifetime < 1}
+     * @throws IllegalStateException if closed, or if the port couldn't be mapped
+     * @throws InterruptedException if interrupted
+     */
+    public ManagedMapping map(PortMapper mapper, PortType portType, int internalPort, int externalPort, long lifetime)
+            throws InterruptedException {
+        Validate.notNull(mapper);
+        Validate.notNull(portType);
+        Validate.inclusiveBetween(1, 65535, internalPort);
+        Validate.inclusiveBetween(0, 65535, externalPort);
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+        synchronized (lock) {
+            Validate.validState(!closed, "Closed");
+        }
+
+        MappedPort mappedPort = mapper.mapPort(portType, internalPort, externalPort, lifetime);
+        try {
+            return manage(mapper, mappedPort, lifetime);
+        } catch (IllegalStateException ise) {
+            // closed while we were mapping
+            mapper.unmapPort(mappedPort);
+            throw ise;
+        }
+    }
+
+    /**
+     * Start managing an existing mapping.
+     * @param mapper mapper that created {@code mappedPort}
+     * @param mappedPort mapped port
+     * @param lifetime lifetime to request (in seconds) on each refresh
+     * @return managed mapping
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code lifetime < 1}
+     * @throws IllegalStateException if closed
+     */
+    public ManagedMapping manage(PortMapper mapper, MappedPort mappedPort, long lifetime) {
+        Validate.notNull(mapper);
+        Validate.notNull(mappedPort);
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        synchronized (lock) {
+            Validate.validState(!closed, "Closed");
+
+            long time = currentTime();
+            ManagedMapping mapping = new ManagedMapping(mapper, mappedPort, lifetime, time + mappedPort.getLifetime() * 1000L);
+            mappings.add(mapping);
+            schedule(mapping, time + calculateRefreshDelay(mappedPort.getLifetime()));
+            return mapping;
+        }
+    }
+
+    /**
+     * Stop managing a mapping and unmap it. The unmapping is performed on the calling thread. Does nothing if {@code mapping} isn't being
+     * managed.
+     * @param mapping managed mapping
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if the port couldn't be unmapped
+     * @throws InterruptedException if interrupted
+     */
+    public void release(ManagedMapping mapping) throws InterruptedException {
+        Validate.notNull(mapping);
+
+        MappedPort mappedPort;
+        synchronized (lock) {
+            if (!mappings.remove(mapping)) {
+                return;
+            }
+            stopManaging(mapping);
+            mappedPort = mapping.getMappedPort();
+        }
+
+        mapping.getMapper().unmapPort(mappedPort);
+    }
+
+    /**
+     * Get the mappings currently being managed.
+     * @return managed mappings
+     */
+    public List<ManagedMapping> getMappings() {
+        synchronized (lock) {
+            return new ArrayList<>(mappings);
+        }
+    }
+
+    /**
+     * Stop managing all mappings, unmap them, and stop the manager's threads. Does nothing if already closed.
+     * @throws InterruptedException if interrupted
+     */
+    public void close() throws InterruptedException {
+        List<ManagedMapping> remaining;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            remaining = new ArrayList<>(mappings);
+            for (ManagedMapping mapping : remaining) {
+                stopManaging(mapping);
+            }
+            mappings.clear();
+        }
+
+        LOG.info("Attempting to unmap {} managed mappings", remaining.size());
+
+        timerThread.interrupt();
+        timerThread.join();
+
+        for (final ManagedMapping mapping : remaining) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    unmap(mapping.getMapper(), mapping.getMappedPort());
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void runTimer() {
+        LOG.debug("Starting mapping manager timer");
+        try {
+            while (true) {
+                List<ManagedMapping> expired;
+                long sleepTime;
+                synchronized (lock) {
+                    if (closed) {
+                        return;
+                    }
+                    long time = currentTime();
+                    expired = wheel.advance(time);
+                    for (ManagedMapping mapping : expired) {
+                        mapping.setTimeout(null);
+                    }
+                    sleepTime = Math.max(1L, wheel.getNextTickTime() - time);
+                }
+
+                for (final ManagedMapping mapping : expired) {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            refresh(mapping);
+                        }
+                    });
+                }
+
+                Thread.sleep(sleepTime);
+            }
+        } catch (InterruptedException | RejectedExecutionException e) {
+            // do nothing -- closed
+        } finally {
+            LOG.debug("Stopping mapping manager timer");
+        }
+    }
+
+    private void refresh(ManagedMapping mapping) {
+        MappedPort oldMappedPort;
+        synchronized (lock) {
+            if (mapping.isReleased()) {
+                return;
+            }
+            oldMappedPort = mapping.getMappedPort();
+        }
+
+        MappedPort newMappedPort;
+        try {
+            newMappedPort = mapping.getMapper().refreshPort(oldMappedPort, mapping.getLifetime());
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            boolean lost;
+            synchronized (lock) {
+                if (mapping.isReleased()) {
+                    return;
+                }
+
+                long time = currentTime();
+                long retryDelay = Math.max((mapping.getExpireTime() - time) / 2L, MIN_RETRY_DELAY);
+                lost = time + retryDelay >= mapping.getExpireTime();
+                if (lost) {
+                    mappings.remove(mapping);
+                    stopManaging(mapping);
+                } else {
+                    schedule(mapping, time + retryDelay);
+                }
+            }
+
+            LOG.warn("Unable to refresh {} (lost={})", oldMappedPort, lost, e);
+            try {
+                listener.mappingRefreshFailed(mapping, e, lost);
+            } catch (RuntimeException re) {
+                LOG.error("Listener threw exception", re);
+            }
+            return;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        boolean released;
+        synchronized (lock) {
+            released = mapping.isReleased();
+            if (!released) {
+                long time = currentTime();
+                mapping.setMappedPort(newMappedPort);
+                mapping.setExpireTime(time + newMappedPort.getLifetime() * 1000L);
+                schedule(mapping, time + calculateRefreshDelay(newMappedPort.getLifetime()));
+            }
+        }
+
+        if (released) {
+            // Released while we were refreshing -- make sure the refresh didn't bring back the mapping
+            unmap(mapping.getMapper(), newMappedPort);
+            return;
+        }
+
+        try {
+            listener.mappingRefreshed(mapping, oldMappedPort, newMappedPort);
+        } catch (RuntimeException re) {
+            LOG.error("Listener threw exception", re);
+        }
+    }
+
+    private void unmap(PortMapper mapper, MappedPort mappedPort) {
+        try {
+            mapper.unmapPort(mappedPort);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            LOG.warn("Unable to unmap {}", mappedPort, e);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // must be called while holding lock
+    private void schedule(ManagedMapping mapping, long time) {
+        mapping.setTimeout(wheel.schedule(mapping, time));
+    }
+
+    // must be called while holding lock
+    private void stopManaging(ManagedMapping mapping) {
+        mapping.setReleased(true);
+        if (mapping.getTimeout() != null) {
+            wheel.cancel(mapping.getTimeout());
+            mapping.setTimeout(null);
+        }
+    }
+
+    // must be called while holding lock
+    private long calculateRefreshDelay(long lifetime) {
+        double delay = lifetime * 1000.0 * refreshFraction;
+        delay -= delay * jitterFraction * random.nextDouble();
+        return Math.max((long) delay, TICK_DURATION);
+    }
+
+    private static long currentTime() {
+        return System.nanoTime() / 1000000L;
+    }
+}
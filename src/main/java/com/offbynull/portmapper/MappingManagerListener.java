@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+
+/**
+ * Receives the outcome of refreshes performed by a {@link MappingManager}. Methods are invoked from the manager's worker threads, so
+ * implementations must be thread-safe and should return quickly.
+ * @author Kasra Faghihi
+ */
+public interface MappingManagerListener {
+
+    /**
+     * Called when a mapping has been refreshed.
+     * @param mapping managed mapping
+     * @param oldMappedPort mapped port before the refresh
+     * @param newMappedPort mapped port after the refresh (now returned by {@link ManagedMapping#getMappedPort() })
+     */
+    void mappingRefreshed(ManagedMapping mapping, MappedPort oldMappedPort, MappedPort newMappedPort);
+
+    /**
+     * Called when a mapping failed to refresh.
+     * @param mapping managed mapping
+     * @param cause reason for failure
+     * @param lost {@code true} if the mapping's lease ran out before it could be refreshed and the manager has stopped managing it,
+     * {@code false} if the refresh will be re-attempted
+     */
+    void mappingRefreshFailed(ManagedMapping mapping, RuntimeException cause, boolean lost);
+}
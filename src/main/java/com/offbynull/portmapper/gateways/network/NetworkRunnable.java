@@ -19,6 +19,7 @@ import com.offbynull.portmapper.gateway.Bus;
 import com.offbynull.portmapper.helpers.ByteBufferUtils;
 import com.offbynull.portmapper.gateways.network.UdpNetworkEntry.AddressedByteBuffer;
 import com.offbynull.portmapper.gateways.network.internalmessages.ConnectedTcpNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.CreateMulticastUdpNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.CreateTcpNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.CreateTcpNetworkResponse;
 import com.offbynull.portmapper.gateways.network.internalmessages.CreateUdpNetworkRequest;
@@ -32,7 +33,11 @@ import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetwo
 import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkResponse;
 import com.offbynull.portmapper.gateways.network.internalmessages.IdentifiableErrorNetworkNotification;
 import com.offbynull.portmapper.gateways.network.internalmessages.IdentifiableErrorNetworkResponse;
+import com.offbynull.portmapper.gateways.network.internalmessages.JoinMulticastUdpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.JoinMulticastUdpNetworkResponse;
 import com.offbynull.portmapper.gateways.network.internalmessages.KillNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.LeaveMulticastUdpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.LeaveMulticastUdpNetworkResponse;
 import com.offbynull.portmapper.gateways.network.internalmessages.ReadClosedTcpNetworkNotification;
 import com.offbynull.portmapper.gateways.network.internalmessages.ReadTcpNetworkNotification;
 import com.offbynull.portmapper.gateways.network.internalmessages.ReadUdpNetworkNotification;
@@ -43,13 +48,17 @@ import com.offbynull.portmapper.gateways.network.internalmessages.WriteTcpNetwor
 import com.offbynull.portmapper.gateways.network.internalmessages.WriteUdpNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.WriteUdpNetworkResponse;
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -57,11 +66,13 @@ import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -349,6 +360,107 @@ final class NetworkRunnable implements Runnable {
 
                 responseBus.send(new IdentifiableErrorNetworkResponse(id));
             }
+        } else if (msg instanceof CreateMulticastUdpNetworkRequest) {
+            CreateMulticastUdpNetworkRequest req = (CreateMulticastUdpNetworkRequest) msg;
+            int id = req.getId();
+            Bus responseBus = req.getResponseBus();
+            
+            DatagramChannel channel = null;
+            UdpNetworkEntry entry = null;
+            try {
+                // Multicast membership and the options below require the Java 7 NetworkChannel/MulticastChannel APIs, which are only
+                // available on newer versions of Android. The protocol family must be explicit, otherwise joining IPv4 groups may fail on
+                // dual-stack hosts.
+                InetAddress bindAddress = req.getBindAddress();
+                StandardProtocolFamily family = bindAddress instanceof Inet4Address
+                        ? StandardProtocolFamily.INET
+                        : StandardProtocolFamily.INET6;
+                channel = DatagramChannel.open(family);
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, req.getTtl());
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, req.isLoopback());
+                channel.socket().bind(new InetSocketAddress(bindAddress, req.getPort()));
+                
+                entry = new UdpNetworkEntry(id, channel, responseBus);
+                updateSelectionKey(entry, channel);
+                
+                idMap.put(id, entry);
+                channelMap.put(channel, entry);
+                
+                responseBus.send(new CreateUdpNetworkResponse(id));
+            } catch (IOException | RuntimeException e) {
+                if (channel != null) {
+                    IOUtils.closeQuietly(channel);
+                }
+
+                if (entry != null) {
+                    idMap.remove(entry.getId());
+                    channelMap.remove(entry.getChannel());
+                }
+                
+                LOG.error("Unable to create socket", e);
+
+                responseBus.send(new IdentifiableErrorNetworkResponse(id));
+            }
+        } else if (msg instanceof JoinMulticastUdpNetworkRequest) {
+            JoinMulticastUdpNetworkRequest req = (JoinMulticastUdpNetworkRequest) msg;
+            Bus responseBus = null;
+            int id = req.getId();
+            try {
+                UdpNetworkEntry entry = (UdpNetworkEntry) idMap.get(id);
+                if (entry != null) {
+                    responseBus = entry.getResponseBus();
+                    NetworkInterface networkInterface = NetworkInterface.getByInetAddress(req.getInterfaceAddress());
+                    Validate.isTrue(networkInterface != null, "No interface for address");
+                    
+                    DatagramChannel channel = (DatagramChannel) entry.getChannel();
+                    MembershipKey membershipKey = channel.join(req.getGroupAddress(), networkInterface); // returns existing key if joined
+                    if (!entry.getMemberships().contains(membershipKey)) {
+                        entry.getMemberships().add(membershipKey);
+                    }
+                    
+                    LOG.debug("{} UDP joined {} on {}", id, req.getGroupAddress(), networkInterface.getName());
+                    
+                    responseBus.send(new JoinMulticastUdpNetworkResponse(id));
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Unable to process message", e);
+                if (responseBus != null) {
+                    responseBus.send(new IdentifiableErrorNetworkResponse(id));
+                }
+            }
+        } else if (msg instanceof LeaveMulticastUdpNetworkRequest) {
+            LeaveMulticastUdpNetworkRequest req = (LeaveMulticastUdpNetworkRequest) msg;
+            Bus responseBus = null;
+            int id = req.getId();
+            try {
+                UdpNetworkEntry entry = (UdpNetworkEntry) idMap.get(id);
+                if (entry != null) {
+                    responseBus = entry.getResponseBus();
+                    NetworkInterface networkInterface = NetworkInterface.getByInetAddress(req.getInterfaceAddress());
+                    Validate.isTrue(networkInterface != null, "No interface for address");
+                    
+                    Iterator<MembershipKey> it = entry.getMemberships().iterator();
+                    while (it.hasNext()) {
+                        MembershipKey membershipKey = it.next();
+                        if (membershipKey.group().equals(req.getGroupAddress())
+                                && membershipKey.networkInterface().equals(networkInterface)) {
+                            membershipKey.drop();
+                            it.remove();
+                        }
+                    }
+                    
+                    LOG.debug("{} UDP left {} on {}", id, req.getGroupAddress(), networkInterface.getName());
+                    
+                    responseBus.send(new LeaveMulticastUdpNetworkResponse(id));
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Unable to process message", e);
+                if (responseBus != null) {
+                    responseBus.send(new IdentifiableErrorNetworkResponse(id));
+                }
+            }
         } else if (msg instanceof CreateTcpNetworkRequest) {
             CreateTcpNetworkRequest req = (CreateTcpNetworkRequest) msg;
             int id = req.getId();
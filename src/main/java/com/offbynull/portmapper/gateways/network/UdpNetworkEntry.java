@@ -20,20 +20,27 @@ import com.offbynull.portmapper.gateways.network.UdpNetworkEntry.AddressedByteBu
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.nio.channels.MembershipKey;
 import java.util.LinkedList;
 
 final class UdpNetworkEntry extends NetworkEntry<AddressedByteBuffer> {
     private LinkedList<AddressedByteBuffer> outgoingBuffers;
+    private LinkedList<MembershipKey> memberships;
 
     UdpNetworkEntry(int id, Channel channel, Bus responseBus) {
         super(id, channel, responseBus);
         outgoingBuffers = new LinkedList<>();
+        memberships = new LinkedList<>();
     }
 
     @Override
     LinkedList<AddressedByteBuffer> getOutgoingBuffers() {
         return outgoingBuffers;
     }
+
+    LinkedList<MembershipKey> getMemberships() {
+        return memberships;
+    }
     
     static final class AddressedByteBuffer  {
         private ByteBuffer buffer;
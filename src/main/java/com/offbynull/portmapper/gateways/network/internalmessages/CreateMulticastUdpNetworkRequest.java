@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.gateways.network.internalmessages;
+
+import com.offbynull.portmapper.gateway.Bus;
+import java.net.InetAddress;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Create a multicast-capable UDP socket. Unlike {@link CreateUdpNetworkRequest}, the socket is bound to a specific port with address reuse
+ * enabled so that it can receive traffic sent to multicast groups (joined via {@link JoinMulticastUdpNetworkRequest}). Possible responses
+ * are {@link CreateUdpNetworkResponse} and {@link IdentifiableErrorNetworkResponse}).
+ * @author Kasra Faghihi
+ */
+public final class CreateMulticastUdpNetworkRequest extends IdentifiableNetworkRequest {
+    private Bus responseBus;
+    private InetAddress bindAddress;
+    private int port;
+    private int ttl;
+    private boolean loopback;
+
+    /**
+     * Constructs a {@link CreateMulticastUdpNetworkRequest} object.
+     * @param id id of socket
+     * @param responseBus bus to send responses/notifications to for the created socket
+     * @param bindAddress address to bind to (typically the wildcard address -- the type of this address decides if the socket will be
+     * able to join IPv4 or IPv6 groups)
+     * @param port port to bind to
+     * @param ttl time-to-live of outgoing multicast packets
+     * @param loopback whether outgoing multicast packets should be looped back to the local host
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code 0 > port > 65535 || 0 > ttl > 255}
+     */
+    public CreateMulticastUdpNetworkRequest(int id, Bus responseBus, InetAddress bindAddress, int port, int ttl, boolean loopback) {
+        super(id);
+        Validate.notNull(responseBus);
+        Validate.notNull(bindAddress);
+        Validate.inclusiveBetween(0, 65535, port);
+        Validate.inclusiveBetween(0, 255, ttl);
+        this.responseBus = responseBus;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.ttl = ttl;
+        this.loopback = loopback;
+    }
+
+    /**
+     * Bus to send responses/notifications to for the created socket.
+     * @return response bus
+     */
+    public Bus getResponseBus() {
+        return responseBus;
+    }
+
+    /**
+     * Address of the socket to be created.
+     * @return bind address
+     */
+    public InetAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    /**
+     * Port of the socket to be created.
+     * @return bind port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Time-to-live of outgoing multicast packets.
+     * @return multicast time-to-live
+     */
+    public int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Whether outgoing multicast packets should be looped back to the local host.
+     * @return {@code true} if outgoing multicast packets are looped back
+     */
+    public boolean isLoopback() {
+        return loopback;
+    }
+
+    @Override
+    public String toString() {
+        return "CreateMulticastUdpNetworkRequest{super=" + super.toString() + "responseBus=" + responseBus + ", bindAddress=" + bindAddress
+                + ", port=" + port + ", ttl=" + ttl + ", loopback=" + loopback + '}';
+    }
+}
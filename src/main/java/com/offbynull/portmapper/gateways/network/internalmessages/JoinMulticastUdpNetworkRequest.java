@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.gateways.network.internalmessages;
+
+import java.net.InetAddress;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Join a multicast group on a UDP socket. Datagrams sent to the group will show up as {@link ReadUdpNetworkNotification}s. Possible
+ * responses are {@link JoinMulticastUdpNetworkResponse} and {@link IdentifiableErrorNetworkResponse}).
+ * @author Kasra Faghihi
+ */
+public final class JoinMulticastUdpNetworkRequest extends IdentifiableNetworkRequest {
+    private InetAddress groupAddress;
+    private InetAddress interfaceAddress;
+
+    /**
+     * Constructs a {@link JoinMulticastUdpNetworkRequest} object.
+     * @param id id of socket
+     * @param groupAddress multicast group to join
+     * @param interfaceAddress local address of the network interface to join the group on
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code groupAddress} isn't a multicast address
+     */
+    public JoinMulticastUdpNetworkRequest(int id, InetAddress groupAddress, InetAddress interfaceAddress) {
+        super(id);
+        Validate.notNull(groupAddress);
+        Validate.notNull(interfaceAddress);
+        Validate.isTrue(groupAddress.isMulticastAddress());
+        this.groupAddress = groupAddress;
+        this.interfaceAddress = interfaceAddress;
+    }
+
+    /**
+     * Get multicast group address.
+     * @return multicast group address
+     */
+    public InetAddress getGroupAddress() {
+        return groupAddress;
+    }
+
+    /**
+     * Get local address of the network interface.
+     * @return local address of the network interface
+     */
+    public InetAddress getInterfaceAddress() {
+        return interfaceAddress;
+    }
+
+    @Override
+    public String toString() {
+        return "JoinMulticastUdpNetworkRequest{super=" + super.toString() + "groupAddress=" + groupAddress + ", interfaceAddress="
+                + interfaceAddress + '}';
+    }
+}
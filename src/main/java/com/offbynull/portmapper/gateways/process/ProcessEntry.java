@@ -16,6 +16,8 @@
 package com.offbynull.portmapper.gateways.process;
 
 import com.offbynull.portmapper.gateway.Bus;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.lang3.Validate;
 
 final class ProcessEntry {
@@ -23,29 +25,26 @@ final class ProcessEntry {
     private final int id;
     private final Bus responseBus;
     private final Process process;
-    private final Thread exitThread;
-    private final Thread stdinThread;
-    private final Thread stdoutThread;
-    private final Thread stderrThread;
-    private final Bus stdinBus;
+    
+    // Accessed by the stdin writer threads as well as the gateway thread
+    private final AtomicInteger pendingWrites;
+
+    // Guarded by writeQueue -- data waiting to be written to stdin, and whether a stdin writer thread is draining it
+    private final LinkedList<byte[]> writeQueue;
+    private boolean writing;
 
-    ProcessEntry(Process process, Thread exitThread, Thread stdinThread, Thread stdoutThread, Thread stderrThread, Bus stdinBus,
-            int id, Bus responseBus) {
+    // Only accessed by the gateway thread
+    private int outputSize;
+    private boolean outputTruncated;
+
+    ProcessEntry(Process process, int id, Bus responseBus) {
         Validate.notNull(responseBus);
         Validate.notNull(process);
-        Validate.notNull(exitThread);
-        Validate.notNull(stdinThread);
-        Validate.notNull(stdoutThread);
-        Validate.notNull(stderrThread);
-        Validate.notNull(stdinBus);
         this.id = id;
         this.responseBus = responseBus;
         this.process = process;
-        this.exitThread = exitThread;
-        this.stdinThread = stdinThread;
-        this.stdoutThread = stdoutThread;
-        this.stderrThread = stderrThread;
-        this.stdinBus = stdinBus;
+        this.pendingWrites = new AtomicInteger();
+        this.writeQueue = new LinkedList<>();
     }
 
     int getId() {
@@ -60,23 +59,46 @@ final class ProcessEntry {
         return process;
     }
 
-    Thread getExitThread() {
-        return exitThread;
+    AtomicInteger getPendingWrites() {
+        return pendingWrites;
+    }
+
+    // Queue data to write to stdin. Returns true if nothing is draining the queue, in which case the caller has to start draining it.
+    boolean queueWrite(byte[] data) {
+        synchronized (writeQueue) {
+            writeQueue.add(data);
+            if (writing) {
+                return false;
+            }
+            writing = true;
+            return true;
+        }
+    }
+
+    // Take the next data to write to stdin. Returns null if there's nothing left, in which case the queue is no longer being drained.
+    byte[] nextWrite() {
+        synchronized (writeQueue) {
+            byte[] data = writeQueue.poll();
+            if (data == null) {
+                writing = false;
+            }
+            return data;
+        }
     }
 
-    Thread getStdinThread() {
-        return stdinThread;
+    int getOutputSize() {
+        return outputSize;
     }
 
-    Thread getStdoutThread() {
-        return stdoutThread;
+    void setOutputSize(int outputSize) {
+        this.outputSize = outputSize;
     }
 
-    Thread getStderrThread() {
-        return stderrThread;
+    boolean isOutputTruncated() {
+        return outputTruncated;
     }
 
-    Bus getStdinBus() {
-        return stdinBus;
+    void setOutputTruncated(boolean outputTruncated) {
+        this.outputTruncated = outputTruncated;
     }
 }
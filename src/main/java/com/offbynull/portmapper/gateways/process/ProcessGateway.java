@@ -17,6 +17,7 @@ package com.offbynull.portmapper.gateways.process;
 
 import com.offbynull.portmapper.gateway.Bus;
 import com.offbynull.portmapper.gateway.Gateway;
+import org.apache.commons.lang3.Validate;
 
 /**
  * Process gateway.
@@ -24,17 +25,37 @@ import com.offbynull.portmapper.gateway.Gateway;
  */
 public final class ProcessGateway implements Gateway {
 
+    private static final int DEFAULT_MAX_OUTPUT_SIZE = 1024 * 1024;
+    
     private ProcessRunnable runnable;
     private Thread thread;
     
     /**
-     * Creates a {@link ProcessGateway} object.
+     * Creates a {@link ProcessGateway} object. Equivalent to calling {@code create(1024 * 1024)}.
      * @return new {@link ProcessGateway}
      */
     public static ProcessGateway create() {
+        return create(DEFAULT_MAX_OUTPUT_SIZE);
+    }
+    
+    /**
+     * Creates a {@link ProcessGateway} object.
+     * <p>
+     * Processes are serviced by a fixed set of threads regardless of how many are running: the gateway thread (which also reads the
+     * stdout/stderr of every process), a reaper thread that waits on every process, and a thread that hands off writes to the stdin of
+     * every process. Writes to stdin are done on pooled threads that only exist while a process has writes queued up (at most one thread
+     * per process), so a process that isn't reading its stdin never holds up writes to other processes.
+     * @param maxOutputSize maximum number of bytes of output (stdout and stderr combined) to pass on for each process -- anything past this
+     * is read and discarded
+     * @return new {@link ProcessGateway}
+     * @throws IllegalArgumentException if {@code maxOutputSize} is negative
+     */
+    public static ProcessGateway create(int maxOutputSize) {
+        Validate.isTrue(maxOutputSize >= 0);
+        
         ProcessGateway pg = new ProcessGateway();
         
-        pg.runnable = new ProcessRunnable();
+        pg.runnable = new ProcessRunnable(maxOutputSize);
         pg.thread = new Thread(pg.runnable);
         pg.thread.setDaemon(true);
         pg.thread.setName("Process IO");
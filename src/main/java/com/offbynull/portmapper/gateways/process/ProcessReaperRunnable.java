@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.gateways.process;
+
+import com.offbynull.portmapper.gateway.BasicBus;
+import com.offbynull.portmapper.gateway.Bus;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Single thread that watches every running process and tells the gateway when each one exits. Java 7 has no way to wait on multiple
+// processes at once (or to wait on a process with a timeout), so processes are polled via Process.exitValue(). The poll interval starts
+// out short whenever a new process comes in (most of the commands run are over in a few milliseconds) and backs off from there.
+final class ProcessReaperRunnable implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessReaperRunnable.class);
+    
+    private static final long MIN_CHECK_INTERVAL = 1L;
+    private static final long MAX_CHECK_INTERVAL = 32L;
+
+    private final LinkedBlockingQueue<Object> localInputBusQueue;
+    private final Bus localInputBus;
+    private final Bus processBus;
+
+    ProcessReaperRunnable(Bus processBus) {
+        Validate.notNull(processBus);
+        
+        this.localInputBusQueue = new LinkedBlockingQueue<>();
+        this.localInputBus = new BasicBus(localInputBusQueue);
+        this.processBus = processBus;
+    }
+
+    // Send ProcessEntry objects to this bus to have them watched
+    Bus getLocalInputBus() {
+        return localInputBus;
+    }
+    
+    @Override
+    public void run() {
+        LOG.debug("Starting up reaper");
+        
+        List<ProcessEntry> entries = new LinkedList<>();
+        long checkInterval = MIN_CHECK_INTERVAL;
+        try {
+            while (true) {
+                Object msg = entries.isEmpty()
+                        ? localInputBusQueue.take()
+                        : localInputBusQueue.poll(checkInterval, TimeUnit.MILLISECONDS);
+                
+                if (msg != null) {
+                    do {
+                        entries.add((ProcessEntry) msg);
+                    } while ((msg = localInputBusQueue.poll()) != null);
+                    checkInterval = MIN_CHECK_INTERVAL;
+                } else {
+                    checkInterval = Math.min(checkInterval * 2L, MAX_CHECK_INTERVAL);
+                }
+
+                Iterator<ProcessEntry> it = entries.iterator();
+                while (it.hasNext()) {
+                    ProcessEntry entry = it.next();
+                    Integer exitCode = getExitCode(entry.getProcess());
+                    if (exitCode == null) {
+                        continue;
+                    }
+
+                    int id = entry.getId();
+                    LOG.debug("{} Process closed with exit code {}", id, exitCode);
+                    
+                    processBus.send(new TerminatedMessage(id, exitCode));
+                    it.remove();
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Encountered exception", e);
+        } catch (InterruptedException ie) {
+            Thread.interrupted();
+            LOG.debug("Interrupted");
+        } finally {
+            LOG.debug("Shutting down reaper");
+        }
+    }
+    
+    private static Integer getExitCode(Process process) {
+        try {
+            return process.exitValue();
+        } catch (IllegalThreadStateException itse) {
+            return null; // still running
+        }
+    }
+}
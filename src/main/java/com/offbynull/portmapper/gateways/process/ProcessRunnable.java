@@ -30,27 +30,46 @@ import com.offbynull.portmapper.gateways.process.internalmessages.ReadType;
 import com.offbynull.portmapper.gateways.process.internalmessages.WriteEmptyProcessNotification;
 import com.offbynull.portmapper.gateways.process.internalmessages.WriteProcessRequest;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.collections4.list.UnmodifiableList;
+import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+// The gateway thread handles messages and also services the stdout/stderr pipes of every running process. Pipes are only ever read up to
+// what's available, so one process going quiet never holds up the others. Process exits are picked up by a single reaper thread and
+// stdin writes are handed off by a single writer thread -- the number of threads doesn't change with the number of processes being run,
+// apart from the threads that write to the stdin of processes that have writes queued up (one per process at most).
 final class ProcessRunnable implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(ProcessRunnable.class);
     
+    private static final long PIPE_CHECK_INTERVAL = 10L;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_READS_PER_CHECK = 16; // stops a process that's spewing output from starving everything else
+    
     private final Bus bus;
     private final LinkedBlockingQueue<Object> queue;
+    private final int maxOutputSize;
+    private final byte[] readBuffer; // re-used for every read of every pipe
+    private final ProcessReaperRunnable reaperRunnable;
+    private final ProcessWriterRunnable writerRunnable;
     private int nextId = 0;
 
-    ProcessRunnable() {
+    ProcessRunnable(int maxOutputSize) {
+        Validate.isTrue(maxOutputSize >= 0);
         queue = new LinkedBlockingQueue<>();
         bus = new BasicBus(queue);
+        this.maxOutputSize = maxOutputSize;
+        readBuffer = new byte[READ_BUFFER_SIZE];
+        reaperRunnable = new ProcessReaperRunnable(bus);
+        writerRunnable = new ProcessWriterRunnable(bus);
     }
     private Map<Integer, ProcessEntry> idMap = new HashMap<>();
 
@@ -61,10 +80,29 @@ final class ProcessRunnable implements Runnable {
     @Override
     public void run() {
         LOG.debug("Starting gateway");
+        
+        Thread reaperThread = new Thread(reaperRunnable);
+        reaperThread.setDaemon(true);
+        reaperThread.setName("Process Reaper");
+        Thread writerThread = new Thread(writerRunnable);
+        writerThread.setDaemon(true);
+        writerThread.setName("Process Stdin");
+        
         try {
+            reaperThread.start();
+            writerThread.start();
+            
             while (true) {
-                Object msg = queue.take();
-                processMessage(msg);
+                Object msg = idMap.isEmpty()
+                        ? queue.take()
+                        : queue.poll(PIPE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                if (msg != null) {
+                    processMessage(msg);
+                }
+                
+                for (ProcessEntry entry : idMap.values()) {
+                    readAvailable(entry);
+                }
             }
         } catch (KillRequestException kre) {
             // do nothing
@@ -73,7 +111,7 @@ final class ProcessRunnable implements Runnable {
             throw new RuntimeException(e); // rethrow exception
         } finally {
             LOG.debug("Stopping gateway");
-            shutdownResources();
+            shutdownResources(reaperThread, writerThread);
             LOG.debug("Shutdown of resources complete");
         }
     }
@@ -92,10 +130,6 @@ final class ProcessRunnable implements Runnable {
             int id = req.getId();
             Bus responseBus = req.getResponseBus();
             Process process = null;
-            Thread monitorThread = null;
-            Thread stdoutThread = null;
-            Thread stderrThread = null;
-            Thread stdinThread = null;
             try {
                 String executable = req.getExecutable();
                 UnmodifiableList<String> parameters = req.getParameters();
@@ -105,51 +139,15 @@ final class ProcessRunnable implements Runnable {
                 ProcessBuilder pb = new ProcessBuilder(command);
                 process = pb.start();
                 
-                ProcessMonitorRunnable monitorRunnable = new ProcessMonitorRunnable(id, process, bus);
-                monitorThread = new Thread(monitorRunnable);
-                monitorThread.setDaemon(true);
-                monitorThread.setName("Process Monitor");
-                ProcessReaderRunnable stdoutRunnable = new ProcessReaderRunnable(id, process.getInputStream(), bus,
-                        ReadType.STDOUT);
-                stdoutThread = new Thread(stdoutRunnable);
-                stdoutThread.setDaemon(true);
-                stdoutThread.setName("Stdout Monitor");
-                ProcessReaderRunnable stderrRunnable = new ProcessReaderRunnable(id, process.getErrorStream(), bus,
-                        ReadType.STDERR);
-                stderrThread = new Thread(stderrRunnable);
-                stderrThread.setDaemon(true);
-                stderrThread.setName("Stderr Monitor");
-                ProcessWriterRunnable stdinRunnable = new ProcessWriterRunnable(id, process.getOutputStream(), bus);
-                stdinThread = new Thread(stdinRunnable);
-                stdinThread.setDaemon(true);
-                stdinThread.setName("Stdin Monitor");
-                
-                ProcessEntry entry = new ProcessEntry(process, monitorThread, stdinThread, stdoutThread, stderrThread,
-                        stdinRunnable.getLocalInputBus(), id, responseBus);
-                responseBus.send(new CreateProcessResponse(id));
+                ProcessEntry entry = new ProcessEntry(process, id, responseBus);
                 idMap.put(id, entry);
+                responseBus.send(new CreateProcessResponse(id));
+                responseBus.send(new WriteEmptyProcessNotification(id)); // nothing has been queued to write yet
                 
-                // just assume at this point it'll never fuck up -- if we get to the point where we're starting threads and one of the
-                // threads fails to start, something happened that we didn't expect / couldn't predict
-                stdoutThread.start();
-                stderrThread.start();
-                stdinThread.start();
-                monitorThread.start();
+                reaperRunnable.getLocalInputBus().send(entry);
             } catch (IOException | RuntimeException re) {
                 idMap.remove(id);
                 LOG.error("Unable to create process", re);
-                if (stdoutThread != null) {
-                    stdoutThread.interrupt();
-                }
-                if (stderrThread != null) {
-                    stderrThread.interrupt();
-                }
-                if (stdinThread != null) {
-                    stdinThread.interrupt();
-                }
-                if (monitorThread != null) {
-                    monitorThread.interrupt();
-                }
                 if (process != null) {
                     process.destroy();
                 }
@@ -162,8 +160,8 @@ final class ProcessRunnable implements Runnable {
             ProcessEntry entry = idMap.get(id);
             if (entry != null) {
                 entry.getProcess().destroy();
-                // what happens next is that the thread responsible for checking the process state will find out that it died, then send a
-                // "TerminatedMessage" back to this gateway to initiate cleanup
+                // what happens next is that the reaper thread will find out that it died, then send a "TerminatedMessage" back to this
+                // gateway to initiate cleanup
             }
         } else if (msg instanceof TerminatedMessage) {
             // sent internally once process exits -- not by user
@@ -173,11 +171,10 @@ final class ProcessRunnable implements Runnable {
             ProcessEntry entry = idMap.remove(id);
             if (entry != null) {
                 try {
+                    // The process has exited, so whatever it wrote out is already sitting in its pipes. Pick it up before sending out
+                    // the exit notification, so that the exit notification is always the last thing sent for this process.
+                    readAvailable(entry);
                     entry.getProcess().destroy();
-                    entry.getStdoutThread().interrupt();
-                    entry.getStderrThread().interrupt();
-                    entry.getStdinThread().interrupt();
-                    entry.getExitThread().interrupt();
                 } catch (RuntimeException re) {
                     LOG.error("Unable to process terminate message", re);
                 } finally {
@@ -194,57 +191,91 @@ final class ProcessRunnable implements Runnable {
                 Bus responseBus = entry.getResponseBus();
                 responseBus.send(new WriteEmptyProcessNotification(id));
             }
-        } else if (msg instanceof ReadMessage) {
-            // sent internally once process has read something in
-            ReadMessage req = (ReadMessage) msg;
-            int id = req.getId();
-            ProcessEntry entry = idMap.get(id);
-            if (entry != null) {
-                Bus responseBus = entry.getResponseBus();
-                responseBus.send(new ReadProcessNotification(id, req.getData(), req.getReadType()));
-            }
         } else if (msg instanceof WriteProcessRequest) {
             WriteProcessRequest req = (WriteProcessRequest) msg;
             int id = req.getId();
 
             ProcessEntry entry = idMap.get(id);
             if (entry != null) {
-                entry.getStdinBus().send(ByteBuffer.wrap(req.getData()));
+                entry.getPendingWrites().incrementAndGet();
+                writerRunnable.getLocalInputBus().send(new WriteMessage(entry, req.getData()));
             }
         } else if (msg instanceof KillProcessRequest) {
             throw new KillRequestException();
         }
     }
 
-    private void shutdownResources() {
+    private void readAvailable(ProcessEntry entry) {
+        Process process = entry.getProcess();
+        readAvailable(entry, process.getInputStream(), ReadType.STDOUT);
+        readAvailable(entry, process.getErrorStream(), ReadType.STDERR);
+    }
+
+    private void readAvailable(ProcessEntry entry, InputStream inputStream, ReadType readType) {
+        int id = entry.getId();
+        try {
+            for (int i = 0; i < MAX_READS_PER_CHECK; i++) {
+                int available = inputStream.available();
+                if (available <= 0) {
+                    break;
+                }
+                
+                int count = inputStream.read(readBuffer, 0, Math.min(available, readBuffer.length));
+                if (count == -1) {
+                    break;
+                }
+                
+                LOG.debug("{} Read {} bytes from {}", id, count, readType);
+                
+                // Output past the cap still gets read (so the process doesn't stall on a full pipe), but it's thrown away
+                int outputSize = entry.getOutputSize();
+                int keepCount = Math.min(count, maxOutputSize - outputSize);
+                if (keepCount > 0) {
+                    entry.setOutputSize(outputSize + keepCount);
+                    entry.getResponseBus().send(new ReadProcessNotification(id, readBuffer, 0, keepCount, readType));
+                }
+                if (keepCount < count && !entry.isOutputTruncated()) {
+                    LOG.warn("{} Output exceeded {} bytes, discarding the remainder", id, maxOutputSize);
+                    entry.setOutputTruncated(true);
+                }
+            }
+        } catch (IOException ioe) {
+            // stream was closed (e.g. process was destroyed) -- nothing left to read
+            LOG.debug(id + " " + readType + " encountered exception", ioe);
+        }
+    }
+
+    private void shutdownResources(Thread reaperThread, Thread writerThread) {
         LOG.debug("Shutting down all resources");
         
+        // Destroy processes before stopping the writer thread -- its pooled threads may be blocked writing to them
         for (Entry<Integer, ProcessEntry> entry : idMap.entrySet()) {
             int id = entry.getKey();
             
             LOG.debug("{} Attempting to shutdown", id);
             
-            ProcessEntry pe = entry.getValue();
-
             try {
-                pe.getProcess().destroy();
-                pe.getStdoutThread().interrupt();
-                pe.getStderrThread().interrupt();
-                pe.getStdinThread().interrupt();
-                pe.getStdoutThread().join();
-                pe.getStderrThread().join();
-                pe.getStdinThread().join();
-                pe.getExitThread().join();
-            } catch (InterruptedException ie) {
-                throw new RuntimeException(ie);
+                entry.getValue().getProcess().destroy();
             } catch (RuntimeException e) {
                 LOG.error(id + " Error shutting down resource", e);
             }
+        }
+        
+        reaperThread.interrupt();
+        writerThread.interrupt();
+        try {
+            reaperThread.join();
+            writerThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while waiting for reaper/writer threads to stop", ie);
+        }
 
-            // shutdownResources() is the last thing that gets called before the ProcessRunnable thread gets shut down. Any messages put on
-            // the ProcessRunnable bus by the threads that were interrupted will never be processed, including notifications of the process
-            // stopping. As such, we send the notification here that the process is being forcefully stopped.
-            pe.getResponseBus().send(new ExitProcessNotification(id, null));
+        // shutdownResources() is the last thing that gets called before the ProcessRunnable thread gets shut down. Any messages put on the
+        // ProcessRunnable bus by the reaper/writer threads will never be processed, including notifications of the process stopping. As
+        // such, we send the notification here that the process is being forcefully stopped.
+        for (Entry<Integer, ProcessEntry> entry : idMap.entrySet()) {
+            entry.getValue().getResponseBus().send(new ExitProcessNotification(entry.getKey(), null));
         }
         idMap.clear();
     }
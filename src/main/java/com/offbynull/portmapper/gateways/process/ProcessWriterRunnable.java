@@ -17,63 +17,101 @@ package com.offbynull.portmapper.gateways.process;
 
 import com.offbynull.portmapper.gateway.BasicBus;
 import com.offbynull.portmapper.gateway.Bus;
-import com.offbynull.portmapper.helpers.ByteBufferUtils;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+// Single thread that hands off writes to the stdin of every running process. Writes to a pipe can block (if the process isn't reading
+// what's being written), so each process has its own queue of writes that's drained on a pooled thread. Pooled threads only exist while a
+// process has writes queued up, and a process that isn't reading its stdin only ever holds up its own writes -- never those of other
+// processes, this thread, or the gateway thread.
 final class ProcessWriterRunnable implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(ProcessWriterRunnable.class);
 
-    private int id;
-    private final OutputStream outputStream;
+    private static final long IDLE_THREAD_TIMEOUT = 10000L;
+
     private final LinkedBlockingQueue<Object> localInputBusQueue;
     private final Bus localInputBus;
     private final Bus processBus;
+    private final ExecutorService executor;
 
-    ProcessWriterRunnable(int id, OutputStream outputStream, Bus processBus) {
-        Validate.notNull(outputStream);
+    ProcessWriterRunnable(Bus processBus) {
         Validate.notNull(processBus);
         
-        this.id = id;
-        this.outputStream = outputStream;
         this.localInputBusQueue = new LinkedBlockingQueue<>();
         this.localInputBus = new BasicBus(localInputBusQueue);
         this.processBus = processBus;
+        this.executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, IDLE_THREAD_TIMEOUT, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        thread.setName("Process Stdin Writer");
+                        return thread;
+                    }
+                });
     }
 
+    // Send WriteMessage objects to this bus to have them written
     Bus getLocalInputBus() {
         return localInputBus;
     }
     
     @Override
     public void run() {
-        LOG.debug("{} Starting up writer", id);
+        LOG.debug("Starting up writer");
         
         try {
             while (true) {
-                ByteBuffer sendBuffer = (ByteBuffer) localInputBusQueue.poll();
-                if (sendBuffer == null) {
-                    LOG.debug("{} Write empty", id);
-                    processBus.send(new WriteEmptyMessage(id));
-                    sendBuffer = (ByteBuffer) localInputBusQueue.take();
+                WriteMessage msg = (WriteMessage) localInputBusQueue.take();
+                final ProcessEntry entry = msg.getEntry();
+                if (entry.queueWrite(msg.getData())) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            drain(entry);
+                        }
+                    });
                 }
-                byte[] buffer = ByteBufferUtils.copyContentsToArray(sendBuffer);
-                outputStream.write(buffer);
-
-                LOG.debug("{} Write {} bytes", id, buffer.length);
             }
-        } catch (RuntimeException | IOException ioe) {
-            LOG.error(id + " Encountered exception", ioe);
+        } catch (RuntimeException e) {
+            LOG.error("Encountered exception", e);
         } catch (InterruptedException ie) {
             Thread.interrupted();
-            LOG.error(id + " Interrupted", ie);
+            LOG.debug("Interrupted");
         } finally {
-            LOG.debug("{} Shutting down writer", id);
+            executor.shutdownNow(); // processes are destroyed before this thread is stopped, so writes blocked on them will fail
+            LOG.debug("Shutting down writer");
+        }
+    }
+
+    private void drain(ProcessEntry entry) {
+        int id = entry.getId();
+        byte[] data;
+        while ((data = entry.nextWrite()) != null) {
+            try {
+                OutputStream outputStream = entry.getProcess().getOutputStream();
+                outputStream.write(data);
+                outputStream.flush();
+                LOG.debug("{} Write {} bytes", id, data.length);
+            } catch (IOException ioe) {
+                LOG.error(id + " Encountered exception", ioe);
+            }
+
+            if (entry.getPendingWrites().decrementAndGet() == 0) {
+                LOG.debug("{} Write empty", id);
+                processBus.send(new WriteEmptyMessage(id));
+            }
         }
     }
     
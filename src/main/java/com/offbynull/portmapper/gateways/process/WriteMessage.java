@@ -15,39 +15,31 @@
  */
 package com.offbynull.portmapper.gateways.process;
 
-import com.offbynull.portmapper.gateways.process.internalmessages.ReadType;
-import java.util.Arrays;
 import org.apache.commons.lang3.Validate;
 
+final class WriteMessage {
 
-final class ReadMessage {
-
-    private int id;
-    private byte[] data;
-    private ReadType readType;
+    private final ProcessEntry entry;
+    private final byte[] data;
     
-    ReadMessage(int id, byte[] data, ReadType readType) {
+    WriteMessage(ProcessEntry entry, byte[] data) { // data is not copied
+        Validate.notNull(entry);
         Validate.notNull(data);
-        this.id = id;
-        this.data = Arrays.copyOf(data, data.length);
-        this.readType = readType;
+        this.entry = entry;
+        this.data = data;
     }
 
-    int getId() {
-        return id;
+    ProcessEntry getEntry() {
+        return entry;
     }
 
     byte[] getData() {
-        return Arrays.copyOf(data, data.length);
-    }
-
-    ReadType getReadType() {
-        return readType;
+        return data;
     }
 
     @Override
     public String toString() {
-        return "ReadMessage{" + "id=" + id + ", data=" + Arrays.toString(data) + ", readType=" + readType + '}';
+        return "WriteMessage{" + "id=" + entry.getId() + ", length=" + data.length + '}';
     }
 
 }
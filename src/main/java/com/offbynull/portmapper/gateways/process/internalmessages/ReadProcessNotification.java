@@ -41,6 +41,28 @@ public final class ReadProcessNotification extends IdentifiableProcessNotificati
         this.readType = readType;
     }
 
+    /**
+     * Constructs a {@link ReadProcessNotification} object from a portion of a buffer. Only {@code data[offset]} to
+     * {@code data[offset + length - 1]} is copied, so {@code data} can be re-used as soon as this returns.
+     * @param id id of process
+     * @param data buffer containing received data
+     * @param offset offset of received data within {@code data}
+     * @param length length of received data
+     * @param readType stream which received the data (STDOUT or STDERR)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code offset} or {@code length} are negative or are out of bounds for {@code data}
+     */
+    public ReadProcessNotification(int id, byte[] data, int offset, int length, ReadType readType) {
+        super(id);
+        Validate.notNull(data);
+        Validate.notNull(readType);
+        Validate.isTrue(offset >= 0);
+        Validate.isTrue(length >= 0);
+        Validate.isTrue(offset <= data.length - length);
+        this.data = Arrays.copyOfRange(data, offset, offset + length);
+        this.readType = readType;
+    }
+
     /**
      * Get data.
      * @return data
@@ -15,7 +15,6 @@
  */
 package com.offbynull.portmapper.helpers;
 
-import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import org.apache.commons.lang3.StringUtils;
@@ -33,6 +32,7 @@ public final class TextUtils {
     
     private static final int IPV4_COMPONENT_MAX = 255;
     private static final int IPV4_COMPONENT_MAX_SIZE = 3;
+    private static final int IPV4_NUMBER_OF_COMPONENTS = 4;
     private static final int IPV6_MAX_NUMBER_OF_COMPONENTS = 8;
     private static final int IPV6_COMPONENT_MAX_SIZE = 4;
 
@@ -196,9 +196,11 @@ public final class TextUtils {
         
         return ret;
     }
-    
     /**
      * Finds all IPv4 addresses in a block of text.
+     * <p>
+     * Every position in {@code text} is tried as the start of an address. If an address is found, the search resumes right after it.
+     * Otherwise it resumes at the next position.
      *
      * @param text block of text to search in
      * @return all IPv4 addresses in {@code text}
@@ -209,91 +211,82 @@ public final class TextUtils {
 
         List<String> ret = new LinkedList<>();
 
+        // Digits/dots/hex are all in the BMP, so going char-by-char instead of codepoint-by-codepoint doesn't change anything -- a
+        // surrogate can never start or be a part of an address.
         int len = text.length();
         for (int i = 0; i < len;) {
-            int cp = text.codePointAt(i);
-            try {
-                String ip = readIp4(text, i);
-                i += ip.length();
-                
-                ret.add(ip);
-            } catch (IllegalArgumentException iae) {
-                i += Character.charCount(cp);
+            int end = matchIp4(text, i);
+            if (end == -1) {
+                i++;
+                continue;
             }
+            
+            ret.add(text.substring(i, end));
+            i = end;
         }
         
         return ret;
     }
 
-    private static String readIp4(String text, int offset) {
-        try {
-            String component1 = readIp4Component(text, offset);
-            offset += component1.length();
-
-            Validate.isTrue(text.codePointAt(offset) == '.');
-            offset++;
-
-            String component2 = readIp4Component(text, offset);
-            offset += component2.length();
-
-            Validate.isTrue(text.codePointAt(offset) == '.');
-            offset++;
-
-            String component3 = readIp4Component(text, offset);
-            offset += component3.length();
-
-            Validate.isTrue(text.codePointAt(offset) == '.');
-            offset++;
-
-            String component4 = readIp4Component(text, offset);
-//            offset += component4.length();
-
-            return component1 + '.' + component2 + '.' + component3 + '.' + component4;
-        } catch (IndexOutOfBoundsException e) {
-            throw new IllegalArgumentException(e);
-        }
-    }
-
-    private static String readIp4Component(String text, int offset) {
-        try {
-            int len = text.length();
-
-            StringBuilder component = new StringBuilder();
-            while (offset < len) {
-                int cp = text.codePointAt(offset);
-                if (cp >= '0' && cp <= '9') {
-                    component.appendCodePoint(cp);
-                } else {
-                    break;
+    // Returns the index just past the IPv4 address that starts at offset, or -1 if there is no address at offset.
+    private static int matchIp4(String text, int offset) {
+        int len = text.length();
+        
+        for (int i = 0; i < IPV4_NUMBER_OF_COMPONENTS; i++) {
+            if (i > 0) {
+                if (offset >= len || text.charAt(offset) != '.') {
+                    return -1;
                 }
-                offset += Character.charCount(cp);
+                offset++;
             }
-
-            String componentStr = component.toString();
-            
-            // make sure we only read a max of 3 bytes
-            Validate.isTrue(componentStr.length() <= IPV4_COMPONENT_MAX_SIZE);
             
-            int componentAsNum = Integer.parseInt(componentStr);
-
-            // not a IP4 component if it has has trailing zeros
-            if (!String.valueOf(componentAsNum).equals(componentStr)) {
-                throw new IllegalArgumentException();
+            offset = matchIp4Component(text, offset);
+            if (offset == -1) {
+                return -1;
             }
+        }
+        
+        return offset;
+    }
 
-            // not a IP4 component if its greater than 255
-            if (componentAsNum > IPV4_COMPONENT_MAX) {
-                throw new IllegalArgumentException();
+    // Returns the index just past the IPv4 component that starts at offset, or -1 if there is no component at offset. The entire run of
+    // digits at offset has to make up the component -- no more than 3 digits, no leading zeros, and no greater than 255.
+    private static int matchIp4Component(String text, int offset) {
+        int len = text.length();
+        
+        int value = 0;
+        int count = 0;
+        while (offset + count < len && count <= IPV4_COMPONENT_MAX_SIZE) { // stop reading once we know it's too long
+            char ch = text.charAt(offset + count);
+            if (ch < '0' || ch > '9') {
+                break;
             }
+            value = value * 10 + (ch - '0');
+            count++;
+        }
+        
+        if (count == 0 || count > IPV4_COMPONENT_MAX_SIZE) {
+            return -1;
+        }
+        
+        // not a IP4 component if it has leading zeros
+        if (count > 1 && text.charAt(offset) == '0') {
+            return -1;
+        }
 
-            return componentStr;
-        } catch (NumberFormatException | IndexOutOfBoundsException e) {
-            throw new IllegalArgumentException(e);
+        // not a IP4 component if its greater than 255
+        if (value > IPV4_COMPONENT_MAX) {
+            return -1;
         }
+        
+        return offset + count;
     }
 
     /**
      * Finds all IPv6 addresses in a block of text.
+     * <p>
+     * Every position in {@code text} is tried as the start of an address. If an address is found, the search resumes right after it.
+     * Otherwise it resumes at the next position. An address must be followed by at least 1 character.
      *
      * @param text block of text to search in
      * @return all IPv6 addresses in {@code text}
@@ -304,153 +297,117 @@ public final class TextUtils {
 
         List<String> ret = new LinkedList<>();
 
+        // Same as IPv4 -- going char-by-char is fine because an address can only be made up of BMP characters.
         int len = text.length();
         for (int i = 0; i < len;) {
-            int cp = text.codePointAt(i);
-            try {
-                String ip = readIp6(text, i);
-                i += ip.length();
-                
-                ret.add(ip);
-            } catch (IllegalArgumentException iae) {
-                i += Character.charCount(cp);
+            int end = matchIp6(text, i);
+            if (end == -1) {
+                i++;
+                continue;
             }
+            
+            ret.add(text.substring(i, end));
+            i = end;
         }
         
         return ret;
     }
 
-    private static String readIp6(String text, int offset) {
-        try {
-            List<String> components = new ArrayList<>(IPV6_MAX_NUMBER_OF_COMPONENTS);
-            for (int i = 0; i < IPV6_MAX_NUMBER_OF_COMPONENTS; i++) {
-                String component = readIp6Component(text, offset);
-                offset += component.length();
-                
-                components.add(component);
+    // Returns the index just past the IPv6 address that starts at offset, or -1 if there is no address at offset.
+    private static int matchIp6(String text, int offset) {
+        int len = text.length();
 
-                if (text.codePointAt(offset) != ':') {
-                    break;
-                }
-                
-                offset++;
+        // Read up to 8 colon-separated components, tracking which are empty as a bitmask (bit n set = component n is empty)
+        int count = 0;
+        int emptyMask = 0;
+        int addressEnd;
+        while (true) {
+            int componentEnd = matchIp6Component(text, offset);
+            if (componentEnd == -1) {
+                return -1;
             }
-            
-            if (components.size() < IPV6_MAX_NUMBER_OF_COMPONENTS) {
-                // If less than 8 components, must have 1 empty group ...
-                // "::" is a valid address  (has 3 empty components at start -- note that this means 1 empty group)
-                // "::1" is a valid address  (has 2 empty components at start -- note that this means 1 empty group)
-                // "1::" is a valid address  (has 2 empty components at end -- note that this means 1 empty group)
-                // "1::1" is a valid address  (has 1 empty component in the middle -- note that this means 1 empty group)
-                // "0:0::0" is a valid address  (has 1 empty component in the middle -- note that this means 1 empty group)
-                // "0::0::0" is NOT a valid address  (has 2 empty component in the middle -- note that this means 2 empty group)
-        
-                if (components.size() == 3
-                        && components.get(0).isEmpty()
-                        && components.get(1).isEmpty()
-                        && components.get(2).isEmpty()) {
-                    // SPECIAL CASE:
-                    // If 3 empty components, then this is a valid address that means full 0...
-                    // "::" is a valid address        
-                    
-                    // do nothing -- all 3 components are empty so this is valid
-                } else if (components.size() > 2
-                        && components.get(0).isEmpty()
-                        && components.get(1).isEmpty()) {
-                    // SPECIAL CASE:
-                    // If more than 2 components, but first 2 componetns are empty, then this is a valid address that starts with 0s...
-                    // "::1:2" is a valid address        
-                    
-                    Validate.isTrue(2 == getEmptyComponentCount(components)); // already made sure there's 2 in the start, making sure there
-                                                                              // are no others by doing this check
-                } else if (components.size() > 2
-                        && components.get(components.size() - 2).isEmpty()
-                        && components.get(components.size() - 1).isEmpty()) {
-                    // SPECIAL CASE:
-                    // If more than 2 components, but last 2 componetns are empty, then this is a valid address that ends with 0s...
-                    // "1:2::" is a valid address        
-                    
-                    Validate.isTrue(2 == getEmptyComponentCount(components)); // already made sure there's 2 in the end, making sure there
-                                                                              // are no others by doing this check.
-                } else if (components.size() > 2
-                        && !components.get(0).isEmpty()
-                        && !components.get(components.size() - 1).isEmpty()) {
-                    // SPECIAL CASE:
-                    // If more than 2 components, but the first and last components are not empty, there must be at least 1 empty component
-                    // in the middle...
-                    // "1::2" is a valid address        
-                    Validate.isTrue(1 == getEmptyComponentCount(components));
-                } else {
-                    // This is a bad address... addresses that don't have enough components + property empty components end up here ..
-                    // "" is an invalid address
-                    // "abcd" is an invalid address
-                    // "abcd:" is an invalid address
-                    // ":abcd:" is an invalid address
-                    // "abcd:abcd:" is an invalid address
-                    throw new IllegalArgumentException();
-                }
-            } else {
-                // Otherwise must have exactly 8 non-empty components
-                Validate.isTrue(components.size() == IPV6_MAX_NUMBER_OF_COMPONENTS);
-                Validate.isTrue(0 == getEmptyComponentCount(components));
+            if (componentEnd == offset) {
+                emptyMask |= 1 << count;
             }
+            count++;
+            offset = componentEnd;
+            addressEnd = componentEnd;
 
-            // Construct IP
-            StringBuilder ip = new StringBuilder();
-            for (int i = 0; i < components.size(); i++) {
-                String component = components.get(i);
-                ip.append(component);
-                
-                if (i != components.size() - 1) {
-                    ip.append(':');
-                }
+            if (offset >= len) { // ran out of text before seeing what's after the component
+                return -1;
+            }
+            if (text.charAt(offset) != ':') {
+                break;
+            }
+            offset++;
+            
+            if (count == IPV6_MAX_NUMBER_OF_COMPONENTS) {
+                break;
             }
-
-            return ip.toString();
-        } catch (IndexOutOfBoundsException e) {
-            throw new IllegalArgumentException(e);
         }
-    }
-
-    private static int getEmptyComponentCount(List<String> components) {
-        int emptyComponentCount = 0;
-        for (String component : components) {
-            if (component.isEmpty()) {
-                emptyComponentCount++;
+        
+        int emptyCount = Integer.bitCount(emptyMask);
+        boolean firstEmpty = (emptyMask & 1) != 0;
+        boolean secondEmpty = (emptyMask & 2) != 0;
+        boolean secondLastEmpty = count >= 2 && (emptyMask & (1 << (count - 2))) != 0;
+        boolean lastEmpty = (emptyMask & (1 << (count - 1))) != 0;
+        
+        boolean valid;
+        if (count < IPV6_MAX_NUMBER_OF_COMPONENTS) {
+            // If less than 8 components, must have 1 empty group ...
+            // "::" is a valid address  (has 3 empty components at start -- note that this means 1 empty group)
+            // "::1" is a valid address  (has 2 empty components at start -- note that this means 1 empty group)
+            // "1::" is a valid address  (has 2 empty components at end -- note that this means 1 empty group)
+            // "1::1" is a valid address  (has 1 empty component in the middle -- note that this means 1 empty group)
+            // "0:0::0" is a valid address  (has 1 empty component in the middle -- note that this means 1 empty group)
+            // "0::0::0" is NOT a valid address  (has 2 empty component in the middle -- note that this means 2 empty group)
+            if (count == 3 && emptyCount == 3) {
+                // SPECIAL CASE: "::" -- 3 empty components means full 0
+                valid = true;
+            } else if (count > 2 && firstEmpty && secondEmpty) {
+                // SPECIAL CASE: "::1:2" -- starts with 0s, the 2 empty components at the start must be the only ones
+                valid = emptyCount == 2;
+            } else if (count > 2 && secondLastEmpty && lastEmpty) {
+                // SPECIAL CASE: "1:2::" -- ends with 0s, the 2 empty components at the end must be the only ones
+                valid = emptyCount == 2;
+            } else if (count > 2 && !firstEmpty && !lastEmpty) {
+                // SPECIAL CASE: "1::2" -- first and last aren't empty, so there must be exactly 1 empty component in the middle
+                valid = emptyCount == 1;
+            } else {
+                // This is a bad address... addresses that don't have enough components + property empty components end up here ..
+                // "" is an invalid address
+                // "abcd" is an invalid address
+                // "abcd:" is an invalid address
+                // ":abcd:" is an invalid address
+                // "abcd:abcd:" is an invalid address
+                valid = false;
             }
+        } else {
+            // Otherwise must have exactly 8 non-empty components
+            valid = emptyCount == 0;
         }
-        return emptyComponentCount;
+        
+        return valid ? addressEnd : -1;
     }
 
-    private static String readIp6Component(String text, int offset) {
-        try {
-            int len = text.length();
+    // Returns the index just past the IPv6 component that starts at offset, or -1 if the run of hex digits at offset is too long to be a
+    // component. Components may be empty (empty means 0000) and leading zeros may be omitted.
+    private static int matchIp6Component(String text, int offset) {
+        int len = text.length();
 
-            StringBuilder component = new StringBuilder();
-            while (offset < len) {
-                int cp = text.codePointAt(offset);
-                if ((cp >= '0' && cp <= '9')
-                        || (cp >= 'a' && cp <= 'f')
-                        || (cp >= 'A' && cp <= 'F')) {
-                    component.appendCodePoint(cp);
-                } else {
-                    break;
-                }
-                offset += Character.charCount(cp);
+        int count = 0;
+        while (offset + count < len && count <= IPV6_COMPONENT_MAX_SIZE) { // stop reading once we know it's too long
+            char ch = text.charAt(offset + count);
+            if ((ch < '0' || ch > '9') && (ch < 'a' || ch > 'f') && (ch < 'A' || ch > 'F')) {
+                break;
             }
-
-            String componentStr = component.toString();
-            
-            // make sure we only read a max of 4 bytes
-            Validate.isTrue(componentStr.length() <= IPV6_COMPONENT_MAX_SIZE);
-
-            // no need to check for leading 0's -- leading zeros may be omitted
-            
-            // may be empty -- empty means 0000
-            
-            return componentStr;
-        } catch (NumberFormatException | IndexOutOfBoundsException e) {
-            throw new IllegalArgumentException(e);
+            count++;
+        }
+        
+        if (count > IPV6_COMPONENT_MAX_SIZE) {
+            return -1;
         }
+        
+        return offset + count;
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+import java.util.List;
+
+/**
+ * A {@link PortMapper} that can map, unmap, and refresh a group of ports in one go. Requests are pipelined to the gateway rather than
+ * performed one after the other, so this is much faster than calling the single port operations for each port.
+ * <p>
+ * Code that takes in a {@link PortMapper} should go through {@link MapperIoUtils#mapPorts(PortMapper, List) },
+ * {@link MapperIoUtils#unmapPorts(PortMapper, List) }, and {@link MapperIoUtils#refreshPorts(PortMapper, List, long) } rather than casting
+ * to this interface. Those use the bulk operations if the mapper supports them and fall back to mapping ports one at a time if it doesn't.
+ * @author Kasra Faghihi
+ */
+public interface BulkPortMapper extends PortMapper {
+
+    /**
+     * Map a group of ports. Mapping the same port multiple times has undefined behaviour.
+     * @param requests ports to map
+     * @return result for each port (in the same order as {@code requests})
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws InterruptedException if thread was interrupted
+     */
+    List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException;
+
+    /**
+     * Unmap a group of ports. Unmapping the same port multiple times or unmapping a port that hasn't been mapped yet has undefined
+     * behaviour.
+     * @param mappedPorts mapped port details
+     * @return result for each port (in the same order as {@code mappedPorts})
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if any element of {@code mappedPorts} is not expected by this mapper (e.g. created by a different
+     * mapper or not the same type of mapped port that was expected by this mapper)
+     * @throws InterruptedException if thread was interrupted
+     */
+    List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException;
+
+    /**
+     * Refresh a group of mappings. Refreshing a port that hasn't been mapped or has been unmapped has undefined behaviour.
+     * @param mappedPorts mapped ports
+     * @param lifetime number of seconds to acquire mappings for (may be reduced or extended depending on server and/or client)
+     * @return result for each port (in the same order as {@code mappedPorts}) -- successful results contain the objects that should be
+     * used now to control the mappings
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if any numeric argument is non-positive, or if any element of {@code mappedPorts} is not expected by
+     * this mapper (e.g. created by a different mapper or not the same type of mapped port that was expected by this mapper)
+     * @throws InterruptedException if thread was interrupted
+     */
+    List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException;
+}
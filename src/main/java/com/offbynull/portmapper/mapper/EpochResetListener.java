@@ -0,0 +1,30 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+/**
+ * Receives notice from an {@link EpochTracker} that its gateway has lost its mapping state. Methods are invoked from whichever thread
+ * updated the tracker (usually a thread performing a mapping), so implementations must be thread-safe and should return quickly.
+ * @author Kasra Faghihi
+ */
+public interface EpochResetListener {
+
+    /**
+     * Called when a gateway is detected as having lost its mapping state.
+     * @param epochTracker tracker that detected the reset
+     */
+    void epochReset(EpochTracker epochTracker);
+}
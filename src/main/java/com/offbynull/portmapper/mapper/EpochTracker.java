@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the epoch (seconds since start of epoch) reported by a NAT-PMP/PCP gateway and detects when the gateway has lost its mapping state
+ * (e.g. it rebooted). From RFC 6887 (section 8.5):
+ * <pre>
+ * Whenever a client receives a PCP response, the client computes its
+ * own conservative estimate of the expected server Epoch Time value by
+ * taking the server Epoch Time value in the last packet it received
+ * from the gateway and adding 7/8 (87.5%) of the time elapsed according
+ * to the client's local clock since that packet was received.  If the
+ * Epoch Time value in the newly received packet is less than the
+ * client's conservative estimate by more than 1 second, then the client
+ * concludes that the PCP server lost state...
+ * </pre>
+ * RFC 6886 (section 3.6) describes the same check for NAT-PMP. This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class EpochTracker {
+    private static final Logger LOG = LoggerFactory.getLogger(EpochTracker.class);
+
+    private final CopyOnWriteArrayList<EpochResetListener> listeners = new CopyOnWriteArrayList<>();
+    private boolean initialized;
+    private long lastServerEpoch;
+    private long lastClientTime;
+    private long resetCount;
+
+    /**
+     * Constructs a {@link EpochTracker} object.
+     */
+    public EpochTracker() {
+        // do nothing
+    }
+
+    /**
+     * Add a listener to notify as soon as a reset is detected. Does nothing if {@code listener} was already added.
+     * @param listener listener to add
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void addResetListener(EpochResetListener listener) {
+        Validate.notNull(listener);
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Remove a listener added by {@link #addResetListener(com.offbynull.portmapper.mapper.EpochResetListener) }.
+     * @param listener listener to remove
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void removeResetListener(EpochResetListener listener) {
+        Validate.notNull(listener);
+        listeners.remove(listener);
+    }
+
+    /**
+     * Update with the epoch from a newly received response/announcement. If the gateway is detected as having lost its mapping state,
+     * reset listeners are notified before this method returns.
+     * @param serverEpoch seconds since start of epoch reported by the gateway
+     * @return {@code true} if the gateway lost its mapping state since the last update, {@code false} otherwise
+     * @throws IllegalArgumentException if {@code 0L > serverEpoch > 0xFFFFFFFFL}
+     */
+    public boolean update(long serverEpoch) {
+        return update(serverEpoch, System.nanoTime() / 1000000L);
+    }
+
+    boolean update(long serverEpoch, long clientTime) {
+        boolean lost = updateState(serverEpoch, clientTime);
+        if (lost) {
+            // Notify outside of lock so listeners can call back in to this tracker
+            for (EpochResetListener listener : listeners) {
+                try {
+                    listener.epochReset(this);
+                } catch (RuntimeException re) {
+                    LOG.error("Listener threw exception", re);
+                }
+            }
+        }
+        return lost;
+    }
+
+    private synchronized boolean updateState(long serverEpoch, long clientTime) {
+        Validate.inclusiveBetween(0L, 0xFFFFFFFFL, serverEpoch);
+
+        boolean lost = false;
+        if (initialized) {
+            long clientDelta = (clientTime - lastClientTime) / 1000L;
+            long serverDelta = serverEpoch - lastServerEpoch;
+
+            if (serverEpoch + 1L < lastServerEpoch) {
+                lost = true; // epoch went backwards
+            } else if (clientDelta + 2L < serverDelta - serverDelta / 16L || serverDelta + 2L < clientDelta - clientDelta / 16L) {
+                lost = true; // epoch moved too little (or too much) compared to our clock
+            }
+        }
+
+        if (lost) {
+            resetCount++;
+        }
+
+        initialized = true;
+        lastServerEpoch = serverEpoch;
+        lastClientTime = clientTime;
+
+        return lost;
+    }
+
+    /**
+     * Get the number of times the gateway has been detected as having lost its mapping state. Compare against a previously retrieved value
+     * to find out if a reset has happened in between.
+     * @return number of resets detected
+     */
+    public synchronized long getResetCount() {
+        return resetCount;
+    }
+
+    /**
+     * Get the last epoch reported by the gateway.
+     * @return last epoch reported by the gateway, or {@code -1L} if no epoch has been reported yet
+     */
+    public synchronized long getLastServerEpoch() {
+        return initialized ? lastServerEpoch : -1L;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EpochTracker{" + "initialized=" + initialized + ", lastServerEpoch=" + lastServerEpoch + ", lastClientTime="
+                + lastClientTime + ", resetCount=" + resetCount + '}';
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+import java.net.InetAddress;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Caches the external address reported by a gateway so that it doesn't have to be queried before every mapping. An entry is considered
+ * stale once its time-to-live has elapsed, and should be explicitly invalidated whenever there's reason to believe the external address
+ * changed (e.g. the gateway lost its state or a mapping response disagreed with the cached address). This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class ExternalAddressCache {
+    private final long timeToLive;
+    private InetAddress address;
+    private long expireTime;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Constructs a {@link ExternalAddressCache} object.
+     * @param timeToLive number of milliseconds a cached address stays valid for
+     * @throws IllegalArgumentException if {@code timeToLive < 0L}
+     */
+    public ExternalAddressCache(long timeToLive) {
+        Validate.inclusiveBetween(0L, Long.MAX_VALUE, timeToLive);
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Get the cached external address.
+     * @return cached external address, or {@code null} if nothing is cached or the cached address is stale
+     */
+    public InetAddress get() {
+        return get(System.nanoTime() / 1000000L);
+    }
+
+    synchronized InetAddress get(long time) {
+        if (address == null || time - expireTime >= 0L) {
+            address = null;
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return address;
+    }
+
+    /**
+     * Cache an external address that was just reported by the gateway.
+     * @param address external address
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void put(InetAddress address) {
+        put(address, System.nanoTime() / 1000000L);
+    }
+
+    synchronized void put(InetAddress address, long time) {
+        Validate.notNull(address);
+        this.address = address;
+        this.expireTime = time + timeToLive;
+    }
+
+    /**
+     * Drop the cached external address, forcing the next lookup to query the gateway.
+     */
+    public synchronized void invalidate() {
+        address = null;
+    }
+
+    /**
+     * Get the number of lookups that were served from the cache.
+     * @return number of cache hits
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the number of lookups that had to go to the gateway.
+     * @return number of cache misses
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExternalAddressCache{" + "timeToLive=" + timeToLive + ", address=" + address + ", expireTime=" + expireTime
+                + ", hitCount=" + hitCount + ", missCount=" + missCount + '}';
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+/**
+ * Thrown when a gateway answered a request with an error (e.g. a NAT-PMP/PCP error result code or a UPnP-IGD SOAP fault). Unlike a
+ * request that timed out or got back garbage, this is a definitive answer -- the gateway is reachable and responding, it just won't do
+ * what was asked.
+ * @author Kasra Faghihi
+ */
+public class GatewayFaultException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a {@link GatewayFaultException} object.
+     * @param message detail message
+     */
+    public GatewayFaultException(String message) {
+        super(message);
+    }
+}
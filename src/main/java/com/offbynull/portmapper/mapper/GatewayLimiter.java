@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Limits the number of requests in flight to a gateway at the same time. Cheap gateways tend to drop requests (or crash outright) when
+ * they get more than a handful at once, so all mappers talking to the same gateway address share the same limiter (see
+ * {@link #forGateway(java.net.InetAddress) }). Callers that can't get a slot wait for one in the order they arrived. This class is
+ * thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class GatewayLimiter {
+    /**
+     * Default maximum number of requests in flight to a gateway. The HTTP specification mentions that servers shouldn't be expected to
+     * handle more than a few concurrent connections from the same client, and NAT-PMP/PCP gateways tend to be the same devices.
+     */
+    public static final int DEFAULT_PARALLELISM = 3;
+
+    private static final ConcurrentMap<InetAddress, GatewayLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    // parallelism only changes along with the semaphore's permit count, so both are updated while holding this
+    private volatile int parallelism;
+    private final ResizableSemaphore semaphore;
+
+    GatewayLimiter(int parallelism) {
+        Validate.isTrue(parallelism >= 1);
+        this.parallelism = parallelism;
+        this.semaphore = new ResizableSemaphore(parallelism);
+    }
+
+    /**
+     * Get the limiter shared by everything talking to a gateway, creating one with {@link #DEFAULT_PARALLELISM} if it doesn't exist yet.
+     * @param gatewayAddress gateway address
+     * @return limiter for {@code gatewayAddress}
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static GatewayLimiter forGateway(InetAddress gatewayAddress) {
+        Validate.notNull(gatewayAddress);
+        GatewayLimiter limiter = LIMITERS.get(gatewayAddress);
+        if (limiter == null) {
+            GatewayLimiter newLimiter = new GatewayLimiter(DEFAULT_PARALLELISM);
+            limiter = LIMITERS.putIfAbsent(gatewayAddress, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Set the maximum number of requests in flight to a gateway. The gateway's existing limiter is resized rather than replaced, so
+     * requests already in flight still count against the new limit -- if there are more of them than the new limit allows, new requests
+     * wait until enough of them complete.
+     * @param gatewayAddress gateway address
+     * @param parallelism maximum number of requests in flight to {@code gatewayAddress}
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code parallelism < 1}
+     */
+    public static void setParallelism(InetAddress gatewayAddress, int parallelism) {
+        Validate.notNull(gatewayAddress);
+        Validate.isTrue(parallelism >= 1);
+        forGateway(gatewayAddress).resize(parallelism);
+    }
+
+    synchronized void resize(int newParallelism) {
+        Validate.isTrue(newParallelism >= 1);
+        int delta = newParallelism - parallelism;
+        if (delta > 0) {
+            semaphore.release(delta);
+        } else if (delta < 0) {
+            semaphore.reducePermits(-delta); // may go negative if more than newParallelism are in flight
+        }
+        parallelism = newParallelism;
+    }
+
+    /**
+     * Get the maximum number of requests in flight allowed by this limiter.
+     * @return maximum number of requests in flight
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Get the number of requests currently in flight through this limiter.
+     * @return number of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return parallelism - semaphore.availablePermits();
+    }
+
+    /**
+     * Wait for slots to send requests. As many of the slots that are free right now are taken (up to {@code requestCount}), and if none
+     * are free this waits for a single slot. Slots taken must be handed back through {@link #release(int) } once the requests they were
+     * taken for have completed.
+     * @param requestCount number of requests waiting to be sent
+     * @return number of slots taken (number of requests that can be sent now), between {@code 1} and {@link #getParallelism() }
+     * @throws IllegalArgumentException if {@code requestCount < 1}
+     * @throws InterruptedException if interrupted
+     */
+    public int acquire(int requestCount) throws InterruptedException {
+        Validate.isTrue(requestCount >= 1);
+        for (int permits = Math.min(requestCount, parallelism); permits > 1; permits--) {
+            if (semaphore.tryAcquire(permits, 0L, TimeUnit.MILLISECONDS)) { // timed variant so that threads already waiting go first
+                return permits;
+            }
+        }
+        semaphore.acquire();
+        return 1;
+    }
+
+    /**
+     * Take a slot to send a request if one is free right now.
+     * @return {@code true} if a slot was taken (hand it back through {@link #release(int) }), {@code false} otherwise
+     * @throws InterruptedException if interrupted
+     */
+    public boolean tryAcquire() throws InterruptedException {
+        return semaphore.tryAcquire(1, 0L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand back slots taken by {@link #acquire(int) } or {@link #tryAcquire() }.
+     * @param permits number of slots to hand back
+     * @throws IllegalArgumentException if {@code permits < 1}
+     */
+    public void release(int permits) {
+        Validate.isTrue(permits >= 1);
+        semaphore.release(permits);
+    }
+
+    @Override
+    public String toString() {
+        return "GatewayLimiter{" + "parallelism=" + parallelism + ", inFlight=" + getInFlight() + '}';
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) { // widened so that the limiter can shrink
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -17,9 +17,11 @@ package com.offbynull.portmapper.mapper;
 
 import com.offbynull.portmapper.gateway.BasicBus;
 import com.offbynull.portmapper.gateway.Bus;
+import com.offbynull.portmapper.helpers.NetworkUtils;
 import static com.offbynull.portmapper.helpers.NetworkUtils.ZERO_IPV4;
 import static com.offbynull.portmapper.helpers.NetworkUtils.ZERO_IPV6;
 import com.offbynull.portmapper.gateways.network.internalmessages.CloseNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.CreateMulticastUdpNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.CreateTcpNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.CreateUdpNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.GetLocalIpAddressesNetworkRequest;
@@ -27,6 +29,7 @@ import com.offbynull.portmapper.gateways.network.internalmessages.GetLocalIpAddr
 import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkResponse;
 import com.offbynull.portmapper.gateways.network.internalmessages.IdentifiableErrorNetworkResponse;
+import com.offbynull.portmapper.gateways.network.internalmessages.JoinMulticastUdpNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.ReadClosedTcpNetworkNotification;
 import com.offbynull.portmapper.gateways.network.internalmessages.ReadTcpNetworkNotification;
 import com.offbynull.portmapper.gateways.network.internalmessages.ReadUdpNetworkNotification;
@@ -43,6 +46,8 @@ import com.offbynull.portmapper.gateways.process.internalmessages.ReadProcessNot
 import com.offbynull.portmapper.gateways.process.internalmessages.ReadType;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
@@ -57,6 +62,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -76,237 +82,96 @@ import org.slf4j.LoggerFactory;
  */
 public final class MapperIoUtils {
     private static final Logger LOG = LoggerFactory.getLogger(MapperIoUtils.class);
+
+    // How often requests waiting on a sliding window check for slots freed up by other callers talking to the same gateway
+    private static final long SLOT_POLL_INTERVAL = 50L;
     
     private MapperIoUtils() {
         
     }
     
+    // Default IPv4 router addresses as big-endian ints, deduplicated and sorted. IPs grabbed from
+    // http://www.techspot.com/guides/287-default-router-ip-addresses/ + comments @ 1/10/2016. These are kept as ints rather than strings so
+    // that nothing here can ever end up going through a DNS lookup, and so that loading this class doesn't create dozens of InetAddresses
+    // that may never be used -- the InetAddresses are only created once getPresetIpv4GatewayAddresses() is called.
+    private static final int[] PRESET_IPV4_GATEWAY_TABLE = new int[] {
+            0x0A000001, // 10.0.0.1        Cisco, D-Link, Sitecom, SMC Networks
+            0x0A000002, // 10.0.0.2        Belkin, Billion, Cisco, D-Link, Siemens, Zoom, Zyxel
+            0x0A00008A, // 10.0.0.138      2Wire, Huawei, NetComm, Siemens, SpeedTouch, Zoom, Zyxel
+            0x0A000101, // 10.0.1.1        Apple
+            0x0A010101, // 10.1.1.1        Belkin, D-Link
+            0x0A010A01, // 10.1.10.1       SMC Networks
+            0x0A0A0101, // 10.10.1.1       Asus
+            0x0A5A5A5A, // 10.90.90.90     D-Link
+            0xC0A80001, // 192.168.0.1     most vendors
+            0xC0A80003, // 192.168.0.3     Sonicwall
+            0xC0A8000A, // 192.168.0.10    D-Link
+            0xC0A8001E, // 192.168.0.30    Cisco, D-Link, Trendnet
+            0xC0A80032, // 192.168.0.50    Cisco, D-Link
+            0xC0A80064, // 192.168.0.100   Trendnet
+            0xC0A80065, // 192.168.0.101   D-Link
+            0xC0A800E3, // 192.168.0.227   Netgear
+            0xC0A800FE, // 192.168.0.254   TP-Link
+            0xC0A80101, // 192.168.1.1     most vendors
+            0xC0A8010A, // 192.168.1.10    Linksys
+            0xC0A80163, // 192.168.1.99    Linksys
+            0xC0A80164, // 192.168.1.100   Trendnet
+            0xC0A801C8, // 192.168.1.200   Hawking
+            0xC0A801D2, // 192.168.1.210   Linksys
+            0xC0A801FE, // 192.168.1.254   most vendors
+            0xC0A80201, // 192.168.2.1     most vendors
+            0xC0A802FE, // 192.168.2.254   ZTE
+            0xC0A80301, // 192.168.3.1     Amped Wireless, Huawei
+            0xC0A80401, // 192.168.4.1     Zoom, Zyxel
+            0xC0A80801, // 192.168.8.1     Eminent, Huawei
+            0xC0A80A01, // 192.168.10.1    Motorola, Repotec, Trendnet, Zoom, Zyxel
+            0xC0A80A0A, // 192.168.10.10   Trendnet
+            0xC0A80A32, // 192.168.10.50   NetComm
+            0xC0A80A64, // 192.168.10.100  Trendnet
+            0xC0A80B01, // 192.168.11.1    Buffalo
+            0xC0A80F01, // 192.168.15.1    D-Link, Linksys, Motorola, Sweex
+            0xC0A81001, // 192.168.16.1    Linksys, Repotec
+            0xC0A81401, // 192.168.20.1    Motorola, NetComm
+            0xC0A81E01, // 192.168.30.1    Motorola
+            0xC0A83201, // 192.168.50.1    Sweex
+            0xC0A83701, // 192.168.55.1    Sweex
+            0xC0A83E01, // 192.168.62.1    Motorola
+            0xC0A86401, // 192.168.100.1   Huawei, Motorola, Thomson
+            0xC0A86464, // 192.168.100.100 ZTE
+            0xC0A86601, // 192.168.102.1   Motorola
+            0xC0A87BFE, // 192.168.123.254 LevelOne, Repotec, Sitecom, U.S. Robotics
+            0xC0A8A8A8, // 192.168.168.168 Sonicwall
+            0xC0A8DF64, // 192.168.223.100 Trendnet
+            0xC0A8FB01, // 192.168.251.1   Sweex
+            0xC0A8FEFE  // 192.168.254.254 Actiontec, Aztech, D-Link, Siemens, Zyxel
+    };
+    
+    private static final class PresetIpv4GatewayAddressesHolder {
+        private static final UnmodifiableSet<InetAddress> ADDRESSES;
+        static {
+            Set<InetAddress> addresses = new HashSet<>();
+            for (int address : PRESET_IPV4_GATEWAY_TABLE) {
+                byte[] addressBytes = new byte[] {
+                    (byte) (address >>> 24),
+                    (byte) (address >>> 16),
+                    (byte) (address >>> 8),
+                    (byte) address
+                };
+                addresses.add(NetworkUtils.convertBytesToAddress(addressBytes));
+            }
+            ADDRESSES = (UnmodifiableSet<InetAddress>) UnmodifiableSet.unmodifiableSet(addresses);
+        }
+    }
+    
     /**
-     * Default IPv4 router addresses. IPs grabbed from http://www.techspot.com/guides/287-default-router-ip-addresses/ + comments @
+     * Get the default IPv4 router addresses. IPs grabbed from http://www.techspot.com/guides/287-default-router-ip-addresses/ + comments @
      * 1/10/2016.
+     * <p>
+     * The addresses are created on the first call rather than when this class is loaded. No DNS lookups are ever performed.
+     * @return default IPv4 router addresses
      */
-    public static final UnmodifiableSet<InetAddress> PRESET_IPV4_GATEWAY_ADDRESSES;
-    static {
-        Set<InetAddress> gatewayAddresses = convertToAddressSet(Arrays.asList(
-                // 2Wire
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.1.254",
-                "10.0.0.138",
-                // 3Com
-                "192.168.1.1",
-                "192.168.1.10.1",
-                // Actiontec
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.2.1",
-                "192.168.254.254",
-                // Airlink
-                "192.168.1.1",
-                "192.168.2.1",
-                // Airlive
-                "192.168.2.1",
-                // Airties
-                "192.168.2.1",
-                // Apple
-                "10.0.1.1",
-                // Amped Wireless
-                "192.168.3.1",
-                // Asus
-                "192.168.1.1",
-                "192.168.2.1",
-                "10.10.1.1",
-                // Aztech
-                "192.168.1.1",
-                "192.168.2.1",
-                "192.168.1.254",
-                "192.168.254.254",
-                // Belkin
-                "192.168.1.1",
-                "192.168.2.1",
-                "10.0.0.2",
-                "10.1.1.1",
-                // Billion
-                "192.168.1.254",
-                "10.0.0.2",
-                // Buffalo
-                "192.168.1.1",
-                "192.168.11.1",
-                // Dell
-                "192.168.1.1",
-                // Cisco
-                "192.168.1.1",
-                "192.168.0.30",
-                "192.168.0.50",
-                "10.0.0.1",
-                "10.0.0.2",
-                // D-Link
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.0.10",
-                "192.168.0.101",
-                "192.168.0.30",
-                "192.168.0.50",
-                "192.168.1.254",
-                "192.168.15.1",
-                "192.168.254.254",
-                "10.0.0.1",
-                "10.0.0.2",
-                "10.1.1.1",
-                "10.90.90.90",
-                // Edimax
-                "192.168.2.1",
-                // Eminent
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.8.1",
-                // Gigabyte
-                "192.168.1.254",
-                // Hawking
-                "192.168.1.200",
-                "192.168.1.254",
-                // Huawei
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.3.1",
-                "192.168.8.1",
-                "192.168.100.1",
-                "10.0.0.138",
-                // LevelOne
-                "192.168.0.1",
-                "192.168.123.254",
-                // Linksys
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.1.10",
-                "192.168.1.210",
-                "192.168.1.254",
-                "192.168.1.99",
-                "192.168.15.1",
-                "192.168.16.1",
-                "192.168.2.1",
-                // Microsoft
-                "192.168.2.1",
-                // Motorola
-                "192.168.0.1",
-                "192.168.10.1",
-                "192.168.15.1",
-                "192.168.20.1",
-                "192.168.30.1",
-                "192.168.62.1",
-                "192.168.100.1",
-                "192.168.102.1",
-                "192.168.1.254",
-                // MSI
-                "192.168.1.254",
-                // Netgear
-                "192.168.0.1",
-                "192.168.0.227",
-                // NetComm
-                "192.168.1.1",
-                "192.168.10.50",
-                "192.168.20.1",
-                "10.0.0.138",
-                // Netopia
-                "192.168.0.1",
-                "192.168.1.254",
-                // Planet
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.1.254",
-                // Repotec
-                "192.168.1.1",
-                "192.168.10.1",
-                "192.168.16.1",
-                "192.168.123.254",
-                // Senao
-                "192.168.0.1",
-                // Siemens
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.1.254",
-                "192.168.2.1",
-                "192.168.254.254",
-                "10.0.0.138",
-                "10.0.0.2",
-                // Sitecom
-                "192.168.0.1",
-                "192.168.1.254",
-                "192.168.123.254",
-                "10.0.0.1",
-                // SMC Networks
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.2.1",
-                "10.0.0.1",
-                "10.1.10.1",
-                // Sonicwall
-                "192.168.0.3",
-                "192.168.168.168",
-                // SpeedTouch
-                "10.0.0.138",
-                "192.168.1.254",
-                // Sweex
-                "192.168.15.1",
-                "192.168.50.1",
-                "192.168.55.1",
-                "192.168.251.1",
-                // Tenda
-                "192.168.1.1",
-                "192.168.0.1",
-                // Thomson
-                "192.168.0.1",
-                "192.168.1.254",
-                "192.168.100.1",
-                // TP-Link
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.0.254",
-                // Trendnet
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.0.30",
-                "192.168.0.100",
-                "192.168.1.100",
-                "192.168.1.254",
-                "192.168.10.1",
-                "192.168.10.10",
-                "192.168.10.100",
-                "192.168.2.1",
-                "192.168.223.100",
-                // "200.200.200.5", -- this seems invalid, it isn't a local IP
-                // U.S. Robotics
-                "192.168.1.1",
-                "192.168.2.1",
-                "192.168.123.254",
-                // Zoom
-                "192.168.1.1",
-                "192.168.2.1",
-                "192.168.4.1",
-                "192.168.10.1",
-                "192.168.1.254",
-                "10.0.0.2",
-                "10.0.0.138",
-                // ZTE
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.100.100",
-                "192.168.1.254",
-                "192.168.2.1",
-                "192.168.2.254",
-                // Zyxel
-                "192.168.1.1",
-                "192.168.0.1",
-                "192.168.2.1",
-                "192.168.4.1",
-                "192.168.10.1",
-                "192.168.1.254",
-                "192.168.254.254",
-                "10.0.0.2",
-                "10.0.0.138"
-        ));
-        
-        PRESET_IPV4_GATEWAY_ADDRESSES = (UnmodifiableSet<InetAddress>) UnmodifiableSet.unmodifiableSet(gatewayAddresses);
+    public static UnmodifiableSet<InetAddress> getPresetIpv4GatewayAddresses() {
+        return PresetIpv4GatewayAddressesHolder.ADDRESSES;
     }
     
     /**
@@ -519,6 +384,229 @@ public final class MapperIoUtils {
         return localIpsResp.getLocalAddresses();
     }
 
+    /**
+     * Create sockets that listen for multicast UDP packets. A socket is bound to {@code port} for each address family present in
+     * {@code sourceAddresses}, and each socket joins the multicast group for its address family on the interfaces that
+     * {@code sourceAddresses} belong to. Packets received (as well as errors) are sent to {@code queue}.
+     * <p>
+     * Failures to create sockets or join groups don't cause this method to fail -- they show up as errors on {@code queue}.
+     * @param networkBus network bus
+     * @param queue queue to receive incoming messages on
+     * @param port port to listen on
+     * @param ipv4GroupAddress IPv4 multicast group to join
+     * @param ipv6GroupAddress IPv6 multicast group to join
+     * @param sourceAddresses local addresses identifying the interfaces to listen on
+     * @return ids of the sockets created (these must be closed by the caller)
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if {@code port} is out of range, or if either group address isn't a multicast address of the
+     * correct type
+     * @throws IllegalStateException if the network gateway didn't respond
+     * @throws InterruptedException if interrupted
+     */
+    public static List<Integer> listenMulticastUdp(Bus networkBus, LinkedBlockingQueue<Object> queue, int port,
+            InetAddress ipv4GroupAddress, InetAddress ipv6GroupAddress, Collection<InetAddress> sourceAddresses)
+            throws InterruptedException {
+        Validate.notNull(networkBus);
+        Validate.notNull(queue);
+        Validate.notNull(ipv4GroupAddress);
+        Validate.notNull(ipv6GroupAddress);
+        Validate.notNull(sourceAddresses);
+        Validate.noNullElements(sourceAddresses);
+        Validate.inclusiveBetween(1, 65535, port);
+        Validate.isTrue(ipv4GroupAddress instanceof Inet4Address && ipv4GroupAddress.isMulticastAddress());
+        Validate.isTrue(ipv6GroupAddress instanceof Inet6Address && ipv6GroupAddress.isMulticastAddress());
+
+        Bus selfBus = new BasicBus(queue);
+
+        List<InetAddress> ipv4Addresses = new ArrayList<>();
+        List<InetAddress> ipv6Addresses = new ArrayList<>();
+        for (InetAddress sourceAddress : sourceAddresses) {
+            if (sourceAddress instanceof Inet4Address) {
+                ipv4Addresses.add(sourceAddress);
+            } else {
+                ipv6Addresses.add(sourceAddress);
+            }
+        }
+
+        // Assign IDs for new sockets before creating any of them, otherwise socket responses would get mixed in with ID responses
+        Integer ipv4Id = ipv4Addresses.isEmpty() ? null : getNextNetworkId(networkBus, queue, selfBus);
+        Integer ipv6Id = ipv6Addresses.isEmpty() ? null : getNextNetworkId(networkBus, queue, selfBus);
+
+        // Create new sockets and join groups -- don't worry if it worked or not
+        List<Integer> socketIds = new ArrayList<>();
+        if (ipv4Id != null) {
+            socketIds.add(ipv4Id);
+            networkBus.send(new CreateMulticastUdpNetworkRequest(ipv4Id, selfBus, ZERO_IPV4, port, 2, false));
+            for (InetAddress interfaceAddress : ipv4Addresses) {
+                networkBus.send(new JoinMulticastUdpNetworkRequest(ipv4Id, ipv4GroupAddress, interfaceAddress));
+            }
+        }
+        if (ipv6Id != null) {
+            socketIds.add(ipv6Id);
+            networkBus.send(new CreateMulticastUdpNetworkRequest(ipv6Id, selfBus, ZERO_IPV6, port, 2, false));
+            for (InetAddress interfaceAddress : ipv6Addresses) {
+                networkBus.send(new JoinMulticastUdpNetworkRequest(ipv6Id, ipv6GroupAddress, interfaceAddress));
+            }
+        }
+
+        return socketIds;
+    }
+
+    private static int getNextNetworkId(Bus networkBus, LinkedBlockingQueue<Object> queue, Bus selfBus) throws InterruptedException {
+        networkBus.send(new GetNextIdNetworkRequest(selfBus));
+        Object resp = queue.poll(3000L, TimeUnit.MILLISECONDS);
+        Validate.validState(resp instanceof GetNextIdNetworkResponse, "Network gateway didn't respond");
+        return ((GetNextIdNetworkResponse) resp).getId();
+    }
+
+    /**
+     * Map a group of ports. If {@code mapper} is a {@link BulkPortMapper}, the requests are pipelined to the gateway. Otherwise, the ports
+     * are mapped one after the other and any {@link IllegalStateException} thrown by the mapper is turned in to a failed result.
+     * @param mapper mapper to map ports with
+     * @param requests ports to map
+     * @return result for each port (in the same order as {@code requests})
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if any request is rejected by {@code mapper}
+     * @throws InterruptedException if interrupted
+     */
+    public static List<PortMappingResult> mapPorts(PortMapper mapper, List<PortMappingRequest> requests) throws InterruptedException {
+        Validate.notNull(mapper);
+        Validate.notNull(requests);
+        Validate.noNullElements(requests);
+
+        if (mapper instanceof BulkPortMapper) {
+            return ((BulkPortMapper) mapper).mapPorts(requests);
+        }
+
+        List<PortMappingResult> ret = new ArrayList<>(requests.size());
+        for (PortMappingRequest request : requests) {
+            try {
+                MappedPort mappedPort = mapper.mapPort(request.getPortType(), request.getInternalPort(), request.getExternalPort(),
+                        request.getLifetime());
+                ret.add(new PortMappingResult(mappedPort));
+            } catch (IllegalStateException ise) {
+                ret.add(new PortMappingResult(ise));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Unmap a group of ports. If {@code mapper} is a {@link BulkPortMapper}, the requests are pipelined to the gateway. Otherwise, the
+     * ports are unmapped one after the other and any {@link IllegalStateException} thrown by the mapper is turned in to a failed result.
+     * @param mapper mapper to unmap ports with
+     * @param mappedPorts mapped ports
+     * @return result for each port (in the same order as {@code mappedPorts})
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if any element of {@code mappedPorts} is not expected by {@code mapper}
+     * @throws InterruptedException if interrupted
+     */
+    public static List<PortMappingResult> unmapPorts(PortMapper mapper, List<MappedPort> mappedPorts) throws InterruptedException {
+        Validate.notNull(mapper);
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+
+        if (mapper instanceof BulkPortMapper) {
+            return ((BulkPortMapper) mapper).unmapPorts(mappedPorts);
+        }
+
+        List<PortMappingResult> ret = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            try {
+                mapper.unmapPort(mappedPort);
+                ret.add(new PortMappingResult(mappedPort));
+            } catch (IllegalStateException ise) {
+                ret.add(new PortMappingResult(ise));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Refresh a group of ports. If {@code mapper} is a {@link BulkPortMapper}, the requests are pipelined to the gateway. Otherwise, the
+     * ports are refreshed one after the other and any {@link IllegalStateException} thrown by the mapper is turned in to a failed result.
+     * @param mapper mapper to refresh ports with
+     * @param mappedPorts mapped ports
+     * @param lifetime number of seconds to acquire mappings for
+     * @return result for each port (in the same order as {@code mappedPorts})
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if any numeric argument is non-positive, or if any element of {@code mappedPorts} is not expected by
+     * {@code mapper}
+     * @throws InterruptedException if interrupted
+     */
+    public static List<PortMappingResult> refreshPorts(PortMapper mapper, List<MappedPort> mappedPorts, long lifetime)
+            throws InterruptedException {
+        Validate.notNull(mapper);
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+
+        if (mapper instanceof BulkPortMapper) {
+            return ((BulkPortMapper) mapper).refreshPorts(mappedPorts, lifetime);
+        }
+
+        List<PortMappingResult> ret = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            try {
+                ret.add(new PortMappingResult(mapper.refreshPort(mappedPort, lifetime)));
+            } catch (IllegalStateException ise) {
+                ret.add(new PortMappingResult(ise));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Verify the results of a bulk refresh that was performed by re-mapping. Refreshes that ended up with a different external IP/port
+     * than what was originally mapped are turned in to failures (and the new mappings that were accidentally created get unmapped), which
+     * is the same behaviour as refreshing ports individually.
+     * @param mapper mapper that performed the refresh
+     * @param oldMappedPorts mapped ports that were refreshed
+     * @param results results of the refresh (in the same order as {@code oldMappedPorts})
+     * @return verified results (in the same order as {@code oldMappedPorts})
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if {@code oldMappedPorts} and {@code results} are different sizes
+     * @throws InterruptedException if interrupted
+     */
+    public static List<PortMappingResult> verifyRefreshes(PortMapper mapper, List<MappedPort> oldMappedPorts,
+            List<PortMappingResult> results) throws InterruptedException {
+        Validate.notNull(mapper);
+        Validate.notNull(oldMappedPorts);
+        Validate.notNull(results);
+        Validate.noNullElements(oldMappedPorts);
+        Validate.noNullElements(results);
+        Validate.isTrue(oldMappedPorts.size() == results.size());
+
+        List<PortMappingResult> ret = new ArrayList<>(results.size());
+        List<MappedPort> mismatched = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            MappedPort oldMappedPort = oldMappedPorts.get(i);
+            PortMappingResult result = results.get(i);
+            if (!result.isSuccessful()) {
+                ret.add(result);
+                continue;
+            }
+
+            MappedPort newMappedPort = result.getMappedPort();
+            if (oldMappedPort.getExternalPort() != newMappedPort.getExternalPort()
+                    || !Objects.equals(oldMappedPort.getExternalAddress(), newMappedPort.getExternalAddress())) {
+                LOG.warn("Failed refresh mapping {}: {}", oldMappedPort, newMappedPort);
+                mismatched.add(newMappedPort);
+                ret.add(new PortMappingResult(new IllegalStateException("External IP/port changed from "
+                        + oldMappedPort.getExternalAddress() + ":" + oldMappedPort.getExternalPort()
+                        + " to "
+                        + newMappedPort.getExternalAddress() + ":" + newMappedPort.getExternalPort())));
+            } else {
+                ret.add(result);
+            }
+        }
+
+        if (!mismatched.isEmpty()) {
+            unmapPorts(mapper, mismatched); // don't care if these fail
+        }
+
+        return ret;
+    }
+
     /**
      * Calculate attempt durations as per NAT-PMP/PCP specifications. Starts off at 250ms and doubles for each attempt (e.g. 250, 500, 1000,
      * ...). The RFCs say that this shouldn't extend past 9 attempts, but practically this should be much lower (otherwise the user would
@@ -646,7 +734,7 @@ public final class MapperIoUtils {
                 // Wait for responses
                 long timeout = remainingAttemptDurations.poll();
                 long endTime = System.currentTimeMillis() + timeout;
-                while (true) {
+                while (broadcastBehaviour || !socketIdToRequests.isEmpty()) { // nothing left to wait for once everything is answered
                     long sleepTime = endTime - System.currentTimeMillis();
                     if (sleepTime <= 0L) {
                         break;
@@ -665,27 +753,39 @@ public final class MapperIoUtils {
                     int id = readNetResp.getId();
 
                     InetSocketAddress remoteSocketAddress = readNetResp.getRemoteAddress();
+                    byte[] respData = readNetResp.getData();
+                    String lastFailureReason = null;
+                    boolean matched = false;
                     Iterator<UdpRequest> it = socketIdToRequests.get(id).iterator();
                     while (it.hasNext()) {
                         UdpRequest pendingReq = it.next();
                         if (broadcastBehaviour || pendingReq.getDestinationSocketAddress().equals(remoteSocketAddress)) {
-                            byte[] respData = readNetResp.getData();
-                            try {
-                                Object response = pendingReq.getBytesToResponseTransformer().create(respData);
-                                LOG.debug("Parsed the following response to {} from {}", response, respData);
-                                pendingReq.addResponse(response);
-
-                                if (!broadcastBehaviour) {
-                                    LOG.debug("Removed request from send queue");
-                                    it.remove();
-                                }
-                            } catch (RuntimeException e) {
-                                LOG.error("Encountered error while parsing response from {}", respData, e);
+                            // Multiple requests may be pending to the same destination (e.g. bulk mappings) -- the transformer rejects
+                            // responses that aren't for its request, so keep trying until one of the pending requests accepts it
+                            ParseResult<?> result = pendingReq.getBytesToResponseTransformer().create(respData);
+                            if (!result.isSuccessful()) {
+                                lastFailureReason = result.getFailureReason();
+                                continue;
+                            }
+
+                            Object response = result.getValue();
+                            LOG.debug("Parsed the following response to {} from {}", response, respData);
+                            pendingReq.addResponse(response);
+
+                            if (!broadcastBehaviour) {
+                                LOG.debug("Removed request from send queue");
+                                it.remove();
                             }
 
+                            matched = true;
                             break;
                         }
                     }
+                    
+                    if (!matched && lastFailureReason != null) {
+                        // stray traffic (or a late duplicate of a response that's already been processed) is expected, so not an error
+                        LOG.debug("Unable to parse response from {}: {}", remoteSocketAddress, lastFailureReason);
+                    }
                 }
             }
         } finally {
@@ -819,7 +919,369 @@ public final class MapperIoUtils {
         }
     }
 
-    // avoids flooding a single server with a bunch of requests -- does requests to each server in batches of no more than 3
+    /**
+     * Perform a group of UDP requests to a single gateway without going over that gateway's limit on requests in flight. Requests are sent
+     * through a sliding window: each request takes a slot from {@code limiter} when it's first sent and hands it back as soon as it gets
+     * its response (or runs through all of {@code attemptDurations}), at which point the next request waiting to go out takes its place.
+     * Each request is resent on its own schedule, so one slow request doesn't hold up the others.
+     * @param networkBus network bus
+     * @param limiter limiter for the gateway that {@code reqs} are going to
+     * @param reqs requests to perform
+     * @param attemptDurations amount of time to wait before resending a request
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalStateException if it takes too long to create sockets
+     * @throws IllegalArgumentException if any {@code attemptDuration} element is negative
+     * @throws InterruptedException if interrupted
+     */
+    public static void performLimitedUdpRequests(Bus networkBus, GatewayLimiter limiter, Collection<UdpRequest> reqs,
+            long ... attemptDurations) throws InterruptedException {
+        Validate.notNull(networkBus);
+        Validate.notNull(limiter);
+        Validate.notNull(reqs);
+        Validate.noNullElements(reqs);
+        Validate.notNull(attemptDurations);
+        for (long attemptDuration : attemptDurations) {
+            Validate.isTrue(attemptDuration >= 0);
+        }
+
+        LOG.debug("Performing limited udp requests {} with durations {}", reqs, attemptDurations);
+
+        if (attemptDurations.length == 0) {
+            return;
+        }
+
+        LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        Bus selfBus = new BasicBus(queue);
+
+        Map<InetAddress, Integer> addressToSocketId = new HashMap<>();
+        LinkedList<UdpRequest> unsentReqs = new LinkedList<>();
+        List<PendingUdpRequest> inFlight = new LinkedList<>();
+
+        try {
+            // Create a socket for each source address
+            for (UdpRequest req : reqs) {
+                InetAddress destination = req.getDestinationSocketAddress().getAddress();
+                if (destination.equals(ZERO_IPV4) || destination.equals(ZERO_IPV6)) {
+                    continue; // skip if 0.0.0.0 or :: -- we don't want to bind to 'any' address
+                }
+
+                InetAddress source = req.getSourceAddress();
+                if (!addressToSocketId.containsKey(source)) {
+                    int id = getNextNetworkId(networkBus, queue, selfBus);
+                    networkBus.send(new CreateUdpNetworkRequest(id, selfBus, source));
+                    // Don't worry if it was created or not -- just assume that it was
+                    addressToSocketId.put(source, id);
+                }
+                unsentReqs.add(req);
+            }
+
+            while (!unsentReqs.isEmpty() || !inFlight.isEmpty()) {
+                // Fill the window -- if nothing is in flight, wait for a slot (otherwise responses will free one up)
+                while (!unsentReqs.isEmpty()) {
+                    if (inFlight.isEmpty()) {
+                        limiter.acquire(1);
+                    } else if (!limiter.tryAcquire()) {
+                        break;
+                    }
+
+                    UdpRequest req = unsentReqs.removeFirst();
+                    PendingUdpRequest pending = new PendingUdpRequest(req, addressToSocketId.get(req.getSourceAddress()));
+                    inFlight.add(pending);
+                    sendUdpAttempt(networkBus, pending, attemptDurations);
+                }
+
+                // Wait for the next response, the next resend, or (if requests are waiting for a slot) a slot freed up by someone else
+                long now = System.currentTimeMillis();
+                long endTime = Long.MAX_VALUE;
+                for (PendingUdpRequest pending : inFlight) {
+                    endTime = Math.min(endTime, pending.deadline);
+                }
+                if (!unsentReqs.isEmpty()) {
+                    endTime = Math.min(endTime, now + SLOT_POLL_INTERVAL);
+                }
+
+                Object netResp = queue.poll(Math.max(0L, endTime - now), TimeUnit.MILLISECONDS);
+                if (netResp instanceof ReadUdpNetworkNotification) {
+                    ReadUdpNetworkNotification readNetResp = (ReadUdpNetworkNotification) netResp;
+                    PendingUdpRequest matched = matchUdpResponse(inFlight, readNetResp);
+                    if (matched != null) {
+                        inFlight.remove(matched);
+                        limiter.release(1);
+                    }
+                } else if (netResp != null) {
+                    LOG.debug("Expected a read but encountered {} -- skipping", netResp);
+                }
+
+                // Resend requests whose attempt ran out, or give up on them if they're out of attempts
+                now = System.currentTimeMillis();
+                Iterator<PendingUdpRequest> it = inFlight.iterator();
+                while (it.hasNext()) {
+                    PendingUdpRequest pending = it.next();
+                    if (pending.deadline > now) {
+                        continue;
+                    }
+
+                    if (pending.attempt < attemptDurations.length) {
+                        sendUdpAttempt(networkBus, pending, attemptDurations);
+                    } else {
+                        LOG.debug("Timed out waiting for response to {}", pending.req);
+                        it.remove();
+                        limiter.release(1);
+                    }
+                }
+            }
+        } finally {
+            if (!inFlight.isEmpty()) { // interrupted or failed part way through
+                limiter.release(inFlight.size());
+            }
+            for (int id : addressToSocketId.values()) {
+                networkBus.send(new CloseNetworkRequest(id));
+            }
+        }
+
+        LOG.debug("Completed limited udp requests {}", reqs);
+    }
+
+    private static void sendUdpAttempt(Bus networkBus, PendingUdpRequest pending, long[] attemptDurations) {
+        UdpRequest req = pending.req;
+        byte[] reqBytes = req.getRequestToBytesTransformer().create(req.getRequest()); // should never throw an exc -- we created req
+        networkBus.send(new WriteUdpNetworkRequest(pending.socketId, req.getDestinationSocketAddress(), reqBytes));
+
+        pending.deadline = System.currentTimeMillis() + attemptDurations[pending.attempt];
+        pending.attempt++;
+    }
+
+    private static PendingUdpRequest matchUdpResponse(Collection<PendingUdpRequest> candidates, ReadUdpNetworkNotification readNetResp) {
+        InetSocketAddress remoteSocketAddress = readNetResp.getRemoteAddress();
+        byte[] respData = readNetResp.getData();
+        String lastFailureReason = null;
+        for (PendingUdpRequest pending : candidates) {
+            UdpRequest pendingReq = pending.req;
+            if (pending.socketId != readNetResp.getId() || !pendingReq.getDestinationSocketAddress().equals(remoteSocketAddress)) {
+                continue;
+            }
+
+            // Multiple requests may be pending to the same destination (e.g. bulk mappings) -- the transformer rejects responses that
+            // aren't for its request, so keep trying until one of the pending requests accepts it
+            ParseResult<?> result = pendingReq.getBytesToResponseTransformer().create(respData);
+            if (!result.isSuccessful()) {
+                lastFailureReason = result.getFailureReason();
+                continue;
+            }
+
+            Object response = result.getValue();
+            LOG.debug("Parsed the following response to {} from {}", response, respData);
+            pendingReq.addResponse(response);
+            return pending;
+        }
+
+        if (lastFailureReason != null) {
+            // stray traffic (or a late duplicate of a response that's already been processed) is expected, so not an error
+            LOG.debug("Unable to parse response from {}: {}", remoteSocketAddress, lastFailureReason);
+        }
+        return null;
+    }
+
+    private static final class PendingUdpRequest {
+        private final UdpRequest req;
+        private final int socketId;
+        private int attempt;
+        private long deadline;
+
+        PendingUdpRequest(UdpRequest req, int socketId) {
+            this.req = req;
+            this.socketId = socketId;
+        }
+    }
+
+    /**
+     * Perform a group of TCP requests to a single gateway without going over that gateway's limit on requests in flight. Requests are sent
+     * through a sliding window: each request takes a slot from {@code limiter} when its first connection goes out and hands it back as
+     * soon as it gets its response (or runs through all of {@code attemptDurations}), at which point the next request waiting to go out
+     * takes its place. Each request is retried on its own schedule, so one slow request doesn't hold up the others.
+     * @param networkBus network bus
+     * @param limiter limiter for the gateway that {@code reqs} are going to
+     * @param reqs requests to perform
+     * @param attemptDurations amount of time to wait before resending a request
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalStateException if it takes too long to create sockets
+     * @throws IllegalArgumentException if any {@code attemptDuration} element is negative
+     * @throws InterruptedException if interrupted
+     */
+    public static void performLimitedTcpRequests(Bus networkBus, GatewayLimiter limiter, Collection<TcpRequest> reqs,
+            long ... attemptDurations) throws InterruptedException {
+        Validate.notNull(networkBus);
+        Validate.notNull(limiter);
+        Validate.notNull(reqs);
+        Validate.noNullElements(reqs);
+        Validate.notNull(attemptDurations);
+        for (long attemptDuration : attemptDurations) {
+            Validate.isTrue(attemptDuration >= 0);
+        }
+
+        LOG.debug("Performing limited tcp requests {} with durations {}", reqs, attemptDurations);
+
+        if (attemptDurations.length == 0) {
+            return;
+        }
+
+        // Socket IDs are requested while other sockets are sending notifications, so they come back through a bus of their own
+        LinkedBlockingQueue<Object> idQueue = new LinkedBlockingQueue<>();
+        Bus idBus = new BasicBus(idQueue);
+        LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        Bus selfBus = new BasicBus(queue);
+
+        LinkedList<TcpRequest> unsentReqs = new LinkedList<>(reqs);
+        Map<Integer, PendingTcpRequest> socketIdToPending = new HashMap<>();
+
+        try {
+            while (!unsentReqs.isEmpty() || !socketIdToPending.isEmpty()) {
+                // Fill the window -- if nothing is in flight, wait for a slot (otherwise responses will free one up)
+                while (!unsentReqs.isEmpty()) {
+                    if (socketIdToPending.isEmpty()) {
+                        limiter.acquire(1);
+                    } else if (!limiter.tryAcquire()) {
+                        break;
+                    }
+
+                    PendingTcpRequest pending = new PendingTcpRequest(unsentReqs.removeFirst());
+                    startTcpAttempt(networkBus, limiter, idQueue, idBus, selfBus, pending, attemptDurations);
+                    socketIdToPending.put(pending.socketId, pending);
+                }
+
+                // Wait for the next notification, the next attempt to run out, or (if requests are waiting for a slot) a slot freed up
+                // by someone else
+                long now = System.currentTimeMillis();
+                long endTime = Long.MAX_VALUE;
+                for (PendingTcpRequest pending : socketIdToPending.values()) {
+                    endTime = Math.min(endTime, pending.deadline);
+                }
+                if (!unsentReqs.isEmpty()) {
+                    endTime = Math.min(endTime, now + SLOT_POLL_INTERVAL);
+                }
+
+                Object resp = queue.poll(Math.max(0L, endTime - now), TimeUnit.MILLISECONDS);
+                if (resp instanceof ReadTcpNetworkNotification) {
+                    // On read, put in to readBuffer
+                    ReadTcpNetworkNotification readResp = (ReadTcpNetworkNotification) resp;
+                    PendingTcpRequest pending = socketIdToPending.get(readResp.getId());
+                    if (pending != null) {
+                        try {
+                            pending.readBuffer.write(readResp.getData());
+                        } catch (IOException ioe) {
+                            throw new IllegalStateException(); // should never happen
+                        }
+                    }
+                } else if (resp instanceof IdentifiableErrorNetworkResponse || resp instanceof ReadClosedTcpNetworkNotification) {
+                    // On error or no more read, the attempt is over
+                    int id = resp instanceof IdentifiableErrorNetworkResponse
+                            ? ((IdentifiableErrorNetworkResponse) resp).getId()
+                            : ((ReadClosedTcpNetworkNotification) resp).getId();
+                    PendingTcpRequest pending = socketIdToPending.get(id);
+                    if (pending != null) {
+                        pending.deadline = 0L;
+                    }
+                }
+
+                // Finish off attempts that are over -- retry them if they didn't get a response and they have attempts left
+                now = System.currentTimeMillis();
+                Iterator<PendingTcpRequest> it = socketIdToPending.values().iterator();
+                List<PendingTcpRequest> retries = new ArrayList<>();
+                while (it.hasNext()) {
+                    PendingTcpRequest pending = it.next();
+                    if (pending.deadline > now) {
+                        continue;
+                    }
+
+                    it.remove();
+                    networkBus.send(new CloseNetworkRequest(pending.socketId));
+                    parseTcpResponse(pending.req, pending.readBuffer.toByteArray());
+
+                    if (pending.req.getResponse() == null && pending.attempt < attemptDurations.length) {
+                        retries.add(pending);
+                    } else {
+                        limiter.release(1);
+                    }
+                }
+                for (int i = 0; i < retries.size(); i++) {
+                    PendingTcpRequest pending = retries.get(i);
+                    try {
+                        startTcpAttempt(networkBus, limiter, idQueue, idBus, selfBus, pending, attemptDurations);
+                    } catch (InterruptedException | RuntimeException e) {
+                        int unstarted = retries.size() - i - 1;
+                        if (unstarted > 0) {
+                            limiter.release(unstarted); // slots for the retries that never got started
+                        }
+                        throw e;
+                    }
+                    socketIdToPending.put(pending.socketId, pending);
+                }
+            }
+        } finally {
+            // Interrupted or failed part way through
+            for (int id : socketIdToPending.keySet()) {
+                networkBus.send(new CloseNetworkRequest(id));
+            }
+            if (!socketIdToPending.isEmpty()) {
+                limiter.release(socketIdToPending.size());
+            }
+        }
+
+        LOG.debug("Completed limited tcp requests {}", reqs);
+    }
+
+    // If the attempt can't be started, the request's slot is handed back to limiter
+    private static void startTcpAttempt(Bus networkBus, GatewayLimiter limiter, LinkedBlockingQueue<Object> idQueue, Bus idBus,
+            Bus selfBus, PendingTcpRequest pending, long[] attemptDurations) throws InterruptedException {
+        TcpRequest req = pending.req;
+        int id;
+        boolean gotId = false;
+        try {
+            id = getNextNetworkId(networkBus, idQueue, idBus);
+            gotId = true;
+        } finally {
+            if (!gotId) {
+                limiter.release(1);
+            }
+        }
+
+        InetAddress destinationAddress = req.getDestinationSocketAddress().getAddress();
+        int destinationPort = req.getDestinationSocketAddress().getPort();
+        networkBus.send(new CreateTcpNetworkRequest(id, selfBus, req.getSourceAddress(), destinationAddress, destinationPort));
+
+        // Send data to socket (even though socket isn't connected yet, it will flush out once it connects)
+        byte[] reqBytes = req.getRequestToBytesTransformer().create(req.getRequest()); // should never throw an exc -- we created req
+        networkBus.send(new WriteTcpNetworkRequest(id, reqBytes));
+
+        pending.socketId = id;
+        pending.readBuffer = new ByteArrayOutputStream();
+        pending.deadline = System.currentTimeMillis() + attemptDurations[pending.attempt];
+        pending.attempt++;
+    }
+
+    private static void parseTcpResponse(TcpRequest req, byte[] respData) {
+        ParseResult<?> result = req.getBytesToResponseTransformer().create(respData);
+        if (result.isSuccessful()) {
+            Object response = result.getValue();
+            LOG.debug("Parsed the following response to {} from {}", response, respData);
+            req.setResponse(response);
+        } else {
+            LOG.error("Unable to parse response from {}: {}", req.getDestinationSocketAddress(), result.getFailureReason());
+        }
+    }
+
+    private static final class PendingTcpRequest {
+        private final TcpRequest req;
+        private int socketId;
+        private ByteArrayOutputStream readBuffer;
+        private int attempt;
+        private long deadline;
+
+        PendingTcpRequest(TcpRequest req) {
+            this.req = req;
+        }
+    }
+
     /**
      * Perform a group of TCP requests in batched form, such that no destination address and port combination gets more than a certain
      * number of requests at the same time. Use this method when you want to avoid flooding a single destination with a bunch of requests
@@ -856,8 +1318,8 @@ public final class MapperIoUtils {
         int counter = 0;
         while (true) {
             List<TcpRequest> batch = new LinkedList<>();
-            int start = counter * 3;
-            int end = (counter + 1) * 3;
+            int start = counter * batchSize;
+            int end = (counter + 1) * batchSize;
             
             for (InetSocketAddress destinationAddress : ret.keySet()) {
                 List<TcpRequest> destinationRequests = ret.get(destinationAddress);
@@ -912,6 +1374,17 @@ public final class MapperIoUtils {
             remainingAttemptDurations.add(attemptDuration);
         }
         while (!remainingAttemptDurations.isEmpty()) {
+            // Only (re)attempt requests that haven't gotten a response yet
+            List<TcpRequest> pendingReqs = new ArrayList<>();
+            for (TcpRequest req : reqs) {
+                if (req.getResponse() == null) {
+                    pendingReqs.add(req);
+                }
+            }
+            if (pendingReqs.isEmpty()) {
+                break;
+            }
+
             LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
             Bus selfBus = new BasicBus(queue);
             
@@ -924,7 +1397,7 @@ public final class MapperIoUtils {
 
             try {
                 // Assign IDs for new sockets
-                for (TcpRequest req : reqs) {
+                for (TcpRequest req : pendingReqs) {
                     long sleepTime = endTime - System.currentTimeMillis();
                     Validate.validState(sleepTime > 0);
 
@@ -1022,14 +1495,7 @@ public final class MapperIoUtils {
                 int id = entry.getKey();
                 TcpRequest req = sockets.get(id);
 
-                byte[] respData = entry.getValue().toByteArray();
-                try {
-                    Object response = req.getBytesToResponseTransformer().create(respData);
-                    LOG.debug("Parsed the following response to {} from {}", response, respData);
-                    req.setResponse(response);
-                } catch (RuntimeException e) {
-                    LOG.error("Encountered error while parsing response from {}", respData, e);
-                }
+                parseTcpResponse(req, entry.getValue().toByteArray());
             }
         }
         
@@ -1167,12 +1633,12 @@ public final class MapperIoUtils {
      */
     public interface BytesToResponseTransformer {
         /**
-         * Parses a response object from a byte array.
+         * Parses a response object from a byte array. Bytes that can't be parsed (e.g. stray traffic or a response to some other request)
+         * must be reported as a failed result rather than by throwing an exception.
          * @param buffer byte array to convert
-         * @return response object
-         * @throws IllegalArgumentException on failure to parse buffer
+         * @return parse result containing the response object
          * @throws NullPointerException if any argument is {@code null}
          */
-        Object create(byte[] buffer);
+        ParseResult<?> create(byte[] buffer);
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Outcome of parsing a message that may or may not be well-formed. Used instead of throwing an exception for malformed input, since
+ * stray/unrelated traffic is common enough on a network that creating exceptions for it becomes a real cost.
+ * @param <T> message type
+ * @author Kasra Faghihi
+ */
+public final class ParseResult<T> {
+    private final T value;
+    private final String failureReason;
+
+    private ParseResult(T value, String failureReason) {
+        this.value = value;
+        this.failureReason = failureReason;
+    }
+
+    /**
+     * Constructs a successful {@link ParseResult} object.
+     * @param <T> message type
+     * @param value parsed message
+     * @return successful parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static <T> ParseResult<T> success(T value) {
+        Validate.notNull(value);
+        return new ParseResult<>(value, null);
+    }
+
+    /**
+     * Constructs a failed {@link ParseResult} object.
+     * @param <T> message type
+     * @param reason reason for failure
+     * @return failed parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static <T> ParseResult<T> failure(String reason) {
+        Validate.notNull(reason);
+        return new ParseResult<>(null, reason);
+    }
+
+    /**
+     * Check if the message was parsed.
+     * @return {@code true} if successful, {@code false} otherwise
+     */
+    public boolean isSuccessful() {
+        return failureReason == null;
+    }
+
+    /**
+     * Get parsed message.
+     * @return parsed message, or {@code null} if unsuccessful
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * Get reason for failure.
+     * @return reason for failure, or {@code null} if successful
+     */
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    @Override
+    public String toString() {
+        return "ParseResult{" + "value=" + value + ", failureReason=" + failureReason + '}';
+    }
+}
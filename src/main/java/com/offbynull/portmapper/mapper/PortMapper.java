@@ -18,7 +18,11 @@ package com.offbynull.portmapper.mapper;
 import java.net.InetAddress;
 
 /**
- * Interface for port mapping.
+ * Interface for port mapping. Implementations must be thread-safe -- a single mapper may be shared by many threads, and requests from
+ * all mappers talking to the same gateway are throttled through that gateway's {@link GatewayLimiter} so that the gateway isn't
+ * flooded.
+ * <p>
+ * Mappers that can pipeline a group of requests to the gateway implement {@link BulkPortMapper} as well.
  * @author Kasra Faghihi
  */
 public interface PortMapper {
@@ -61,7 +65,7 @@ public interface PortMapper {
      * @throws InterruptedException if thread was interrupted
      */
     MappedPort refreshPort(MappedPort mappedPort, long lifetime) throws InterruptedException;
-    
+
     /**
      * Get the source address used by this port mapper. Use the source IP to figure out which interface the gateway was found on.
      * @return source address
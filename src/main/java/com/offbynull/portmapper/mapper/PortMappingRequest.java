@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+import java.util.Objects;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Describes a port to map as part of a bulk mapping operation.
+ * @author Kasra Faghihi
+ */
+public final class PortMappingRequest {
+    private final PortType portType;
+    private final int internalPort;
+    private final int externalPort;
+    private final long lifetime;
+
+    /**
+     * Constructs a {@link PortMappingRequest} object.
+     * @param portType port type
+     * @param internalPort internal port
+     * @param externalPort suggested external port (mapped external port may be different)
+     * @param lifetime number of seconds to acquire mapping for (may be reduced or extended depending on server and/or client)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code 1 > internalPort > 65535 || 0 > externalPort > 65535 || lifetime < 1}
+     */
+    public PortMappingRequest(PortType portType, int internalPort, int externalPort, long lifetime) {
+        Validate.notNull(portType);
+        Validate.inclusiveBetween(1, 65535, internalPort);
+        Validate.inclusiveBetween(0, 65535, externalPort);
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+        this.portType = portType;
+        this.internalPort = internalPort;
+        this.externalPort = externalPort;
+        this.lifetime = lifetime;
+    }
+
+    /**
+     * Get port type.
+     * @return port type
+     */
+    public PortType getPortType() {
+        return portType;
+    }
+
+    /**
+     * Get internal port.
+     * @return internal port
+     */
+    public int getInternalPort() {
+        return internalPort;
+    }
+
+    /**
+     * Get suggested external port.
+     * @return suggested external port
+     */
+    public int getExternalPort() {
+        return externalPort;
+    }
+
+    /**
+     * Get lifetime.
+     * @return number of seconds to acquire mapping for
+     */
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    @Override
+    public String toString() {
+        return "PortMappingRequest{" + "portType=" + portType + ", internalPort=" + internalPort + ", externalPort=" + externalPort
+                + ", lifetime=" + lifetime + '}';
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 29 * hash + Objects.hashCode(this.portType);
+        hash = 29 * hash + this.internalPort;
+        hash = 29 * hash + this.externalPort;
+        hash = 29 * hash + (int) (this.lifetime ^ (this.lifetime >>> 32));
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final PortMappingRequest other = (PortMappingRequest) obj;
+        if (this.internalPort != other.internalPort) {
+            return false;
+        }
+        if (this.externalPort != other.externalPort) {
+            return false;
+        }
+        if (this.lifetime != other.lifetime) {
+            return false;
+        }
+        if (this.portType != other.portType) {
+            return false;
+        }
+        return true;
+    }
+}
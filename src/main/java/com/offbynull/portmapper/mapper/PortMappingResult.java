@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Outcome of a single port in a bulk map/unmap/refresh operation.
+ * @author Kasra Faghihi
+ */
+public final class PortMappingResult {
+    private final MappedPort mappedPort;
+    private final RuntimeException error;
+
+    /**
+     * Constructs a successful {@link PortMappingResult} object.
+     * @param mappedPort mapped port (for maps/refreshes, the new mapped port -- for unmaps, the mapped port that was unmapped)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public PortMappingResult(MappedPort mappedPort) {
+        Validate.notNull(mappedPort);
+        this.mappedPort = mappedPort;
+        this.error = null;
+    }
+
+    /**
+     * Constructs a failed {@link PortMappingResult} object.
+     * @param error reason for failure
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public PortMappingResult(RuntimeException error) {
+        Validate.notNull(error);
+        this.mappedPort = null;
+        this.error = error;
+    }
+
+    /**
+     * Check if the operation was successful for this port.
+     * @return {@code true} if successful, {@code false} otherwise
+     */
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+    /**
+     * Get mapped port.
+     * @return mapped port, or {@code null} if unsuccessful
+     */
+    public MappedPort getMappedPort() {
+        return mappedPort;
+    }
+
+    /**
+     * Get reason for failure. This is the exception that the equivalent single-port operation would have thrown (e.g.
+     * {@link IllegalStateException} if the port couldn't be mapped).
+     * @return reason for failure, or {@code null} if successful
+     */
+    public RuntimeException getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "PortMappingResult{" + "mappedPort=" + mappedPort + ", error=" + error + '}';
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mapper;
+
+/**
+ * A {@link PortMapper} whose mapped ports can be saved and restored later on, possibly by a different process. This is what allows
+ * mappings left behind by a process that died to be found and cleaned up (or taken over) once it restarts.
+ * @author Kasra Faghihi
+ */
+public interface RestorablePortMapper extends PortMapper {
+
+    /**
+     * Get a string that identifies the device this mapper talks to and the local address it talks to it from. Mapped ports saved by one
+     * mapper can be restored by any other mapper with the same identity.
+     * @return identity of this mapper
+     */
+    String getIdentity();
+
+    /**
+     * Save a mapped port.
+     * @param mappedPort mapped port
+     * @return saved form of {@code mappedPort}
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code mappedPort} is not expected by this mapper (e.g. created by a different mapper or not
+     * the same type of mapped port that was expected by this mapper)
+     */
+    byte[] saveMappedPort(MappedPort mappedPort);
+
+    /**
+     * Restore a mapped port saved by {@link #saveMappedPort(com.offbynull.portmapper.mapper.MappedPort) }. The restored mapped port can be
+     * refreshed/unmapped just like the original could.
+     * @param data saved form of mapped port
+     * @return restored mapped port
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code data} is malformed
+     */
+    MappedPort restoreMappedPort(byte[] data);
+}
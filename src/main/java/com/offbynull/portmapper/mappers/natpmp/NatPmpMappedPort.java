@@ -18,15 +18,18 @@ package com.offbynull.portmapper.mappers.natpmp;
 import com.offbynull.portmapper.mapper.MappedPort;
 import com.offbynull.portmapper.mapper.PortType;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import org.apache.commons.lang3.Validate;
 
 final class NatPmpMappedPort implements MappedPort {
     
-    private int internalPort;
-    private int externalPort;
-    private InetAddress externalAddress;
-    private PortType portType;
-    private long lifetime;
+    private final int internalPort;
+    private final int externalPort;
+    private final InetAddress externalAddress;
+    private final PortType portType;
+    private final long lifetime;
 
     NatPmpMappedPort(int internalPort, int externalPort, InetAddress externalAddress, PortType portType, long duration) {
         Validate.inclusiveBetween(1, 65535, internalPort);
@@ -41,6 +44,36 @@ final class NatPmpMappedPort implements MappedPort {
         this.lifetime = duration;
     }
 
+    byte[] dump() {
+        byte[] addressBytes = externalAddress.getAddress();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + 2 + 8 + 1 + addressBytes.length);
+        buffer.put((byte) portType.ordinal());
+        buffer.putShort((short) internalPort);
+        buffer.putShort((short) externalPort);
+        buffer.putLong(lifetime);
+        buffer.put((byte) addressBytes.length);
+        buffer.put(addressBytes);
+        return buffer.array();
+    }
+
+    static NatPmpMappedPort load(byte[] data) {
+        Validate.notNull(data);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            PortType portType = PortType.values()[buffer.get()];
+            int internalPort = buffer.getShort() & 0xFFFF;
+            int externalPort = buffer.getShort() & 0xFFFF;
+            long lifetime = buffer.getLong();
+            byte[] addressBytes = new byte[buffer.get() & 0xFF];
+            buffer.get(addressBytes);
+            InetAddress externalAddress = InetAddress.getByAddress(addressBytes);
+            Validate.isTrue(!buffer.hasRemaining());
+            return new NatPmpMappedPort(internalPort, externalPort, externalAddress, portType, lifetime);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     @Override
     public int getInternalPort() {
         return internalPort;
@@ -15,20 +15,31 @@
  */
 package com.offbynull.portmapper.mappers.natpmp;
 
+import com.offbynull.portmapper.mapper.BulkPortMapper;
 import com.offbynull.portmapper.mapper.PortMapper;
 import com.offbynull.portmapper.gateway.Bus;
 import com.offbynull.portmapper.helpers.TextUtils;
+import com.offbynull.portmapper.mapper.EpochTracker;
+import com.offbynull.portmapper.mapper.ExternalAddressCache;
+import com.offbynull.portmapper.mapper.GatewayFaultException;
+import com.offbynull.portmapper.mapper.GatewayLimiter;
 import com.offbynull.portmapper.mapper.MappedPort;
 import com.offbynull.portmapper.mapper.MapperIoUtils;
 import com.offbynull.portmapper.mapper.MapperIoUtils.BytesToResponseTransformer;
-import static com.offbynull.portmapper.mapper.MapperIoUtils.PRESET_IPV4_GATEWAY_ADDRESSES;
 import com.offbynull.portmapper.mapper.MapperIoUtils.RequestToBytesTransformer;
 import com.offbynull.portmapper.mapper.MapperIoUtils.UdpRequest;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.calculateExponentialBackoffTimes;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.convertToAddressSet;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.getLocalIpAddresses;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.getPresetIpv4GatewayAddresses;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.performLimitedUdpRequests;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.performUdpRequests;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.runProcesses;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.verifyRefreshes;
+import com.offbynull.portmapper.mapper.ParseResult;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.RestorablePortMapper;
 import com.offbynull.portmapper.mapper.PortType;
 import static com.offbynull.portmapper.mapper.PortType.TCP;
 import static com.offbynull.portmapper.mapper.PortType.UDP;
@@ -36,12 +47,14 @@ import com.offbynull.portmapper.mappers.natpmp.externalmessages.ExternalAddressN
 import com.offbynull.portmapper.mappers.natpmp.externalmessages.ExternalAddressNatPmpResponse;
 import com.offbynull.portmapper.mappers.natpmp.externalmessages.MappingNatPmpRequest;
 import com.offbynull.portmapper.mappers.natpmp.externalmessages.MappingNatPmpResponse;
+import com.offbynull.portmapper.mappers.natpmp.externalmessages.NatPmpResponse;
 import com.offbynull.portmapper.mappers.natpmp.externalmessages.TcpMappingNatPmpRequest;
-import com.offbynull.portmapper.mappers.natpmp.externalmessages.TcpMappingNatPmpResponse;
+import com.offbynull.portmapper.mappers.natpmp.externalmessages.TcpMappingNatPmpResponseView;
 import com.offbynull.portmapper.mappers.natpmp.externalmessages.UdpMappingNatPmpRequest;
-import com.offbynull.portmapper.mappers.natpmp.externalmessages.UdpMappingNatPmpResponse;
+import com.offbynull.portmapper.mappers.natpmp.externalmessages.UdpMappingNatPmpResponseView;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -55,17 +68,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A NAT-PMP {@link PortMapper} implementation.
+ * A NAT-PMP {@link PortMapper} implementation. This class is thread-safe.
  *
  * @author Kasra Faghihi
  */
-public final class NatPmpPortMapper implements PortMapper {
+public final class NatPmpPortMapper implements RestorablePortMapper, BulkPortMapper {
     private static final Logger LOG = LoggerFactory.getLogger(NatPmpPortMapper.class);
     
     private static final int PORT = 5351;
-    private Bus networkBus;
-    private InetAddress internalAddress;
-    private InetAddress gatewayAddress;
+    private static final long EXTERNAL_ADDRESS_TTL = 60000L;
+    private final Bus networkBus;
+    private final InetAddress internalAddress;
+    private final InetAddress gatewayAddress;
+    private final EpochTracker epochTracker;
+    private final ExternalAddressCache externalAddressCache;
 
     /**
      * Identify NAT-PMP devices on all interfaces.
@@ -104,7 +120,7 @@ public final class NatPmpPortMapper implements PortMapper {
         
         // Aggregate results
         Set<InetAddress> potentialGatewayAddresses = new HashSet<>();
-        potentialGatewayAddresses.addAll(PRESET_IPV4_GATEWAY_ADDRESSES);
+        potentialGatewayAddresses.addAll(getPresetIpv4GatewayAddresses());
         potentialGatewayAddresses.addAll(Arrays.asList(additionalIps));
         
         for (MapperIoUtils.ProcessRequest req : processReqs) {
@@ -146,7 +162,7 @@ public final class NatPmpPortMapper implements PortMapper {
         // Create mappers and returns
         List<NatPmpPortMapper> mappers = new LinkedList<>();
         for (UdpRequest udpReq : udpReqs) {
-            if (udpReq.getResponse() != null) {
+            if (toError((NatPmpResponse) udpReq.getResponse(), "") == null) {
                 NatPmpPortMapper portMapper = new NatPmpPortMapper(
                         networkBus,
                         udpReq.getSourceAddress(),
@@ -173,32 +189,60 @@ public final class NatPmpPortMapper implements PortMapper {
         this.networkBus = networkBus;
         this.internalAddress = internalAddress;
         this.gatewayAddress = gatewayAddress;
+        this.epochTracker = new EpochTracker();
+        this.externalAddressCache = new ExternalAddressCache(EXTERNAL_ADDRESS_TTL);
     }
 
 
     @Override
     public MappedPort mapPort(PortType portType, int internalPort, int externalPort, long lifetime) throws InterruptedException {
+        return mapPort(portType, internalPort, externalPort, lifetime, true);
+    }
+
+    // If removeOnFailure is set and the mapping goes through but its external address can't be found, the mapping is removed before
+    // failing -- otherwise the caller would have no MappedPort to unmap it with. Refreshes leave it be, since the caller still holds the
+    // MappedPort for it.
+    private MappedPort mapPort(PortType portType, int internalPort, int externalPort, long lifetime, boolean removeOnFailure)
+            throws InterruptedException {
         LOG.info("Attempting to map {} Internal:{} External:{} Lifetime:{}", portType, internalPort, externalPort, lifetime);
         
         Validate.notNull(portType);
         Validate.inclusiveBetween(1, 65535, internalPort);
         Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
 
-        UdpRequest externalIpReq = createGetExternalIpUdpRequest(internalAddress, gatewayAddress);
-        performUdpRequests(networkBus, Collections.singleton(externalIpReq), false, calculateExponentialBackoffTimes(4));
-        if (externalIpReq.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to getting external IP");
+        // If the external address isn't cached, ask for it at the same time as the mapping so that it doesn't cost an extra round-trip
+        InetAddress externalAddress = externalAddressCache.get();
+        List<UdpRequest> reqs = new ArrayList<>(2);
+        UdpRequest mapIpReq = createMappingUdpRequest(internalAddress, gatewayAddress, portType, internalPort, externalPort, lifetime);
+        reqs.add(mapIpReq);
+        UdpRequest externalIpReq = null;
+        if (externalAddress == null) {
+            externalIpReq = createGetExternalIpUdpRequest(internalAddress, gatewayAddress);
+            reqs.add(externalIpReq);
         }
-        InetAddress externalAddress = ((ExternalAddressNatPmpResponse) externalIpReq.getResponse()).getAddress();
+        performLimitedUdpRequests(networkBus, getLimiter(), reqs, calculateExponentialBackoffTimes(4));
         
-        
-        
-        UdpRequest mapIpReq = createMappingUdpRequest(internalAddress, gatewayAddress, portType, internalPort, externalPort, lifetime);
-        performUdpRequests(networkBus, Collections.singleton(mapIpReq), false, calculateExponentialBackoffTimes(4));
-        if (mapIpReq.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to mapping port");
+        if (externalIpReq != null && toError((NatPmpResponse) externalIpReq.getResponse(), "") == null) {
+            externalAddress = handleExternalIpResponse((ExternalAddressNatPmpResponse) externalIpReq.getResponse());
         }
         MappingNatPmpResponse mappingResp = ((MappingNatPmpResponse) mapIpReq.getResponse());
+        IllegalStateException error = toError(mappingResp, "No response/invalid response to mapping port");
+        if (error != null) {
+            throw error;
+        }
+        trackEpoch(mappingResp);
+        
+        if (externalAddress == null) {
+            // mapping went through but the external address request didn't -- try once more on its own
+            try {
+                externalAddress = getExternalAddress();
+            } catch (IllegalStateException ise) {
+                if (removeOnFailure) {
+                    removeMappings(Collections.singletonList(new PortMappingRequest(portType, internalPort, externalPort, lifetime)));
+                }
+                throw ise;
+            }
+        }
         
         
         
@@ -220,10 +264,13 @@ public final class NatPmpPortMapper implements PortMapper {
         int internalPort = mappedPort.getInternalPort();
         
         UdpRequest mapIpReq = createMappingUdpRequest(internalAddress, gatewayAddress, portType, internalPort, 0, 0L);
-        performUdpRequests(networkBus, Collections.singleton(mapIpReq), false, calculateExponentialBackoffTimes(4));
-        if (mapIpReq.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to mapping port");
+        performLimitedUdpRequests(networkBus, getLimiter(), Collections.singleton(mapIpReq), calculateExponentialBackoffTimes(4));
+        NatPmpResponse resp = (NatPmpResponse) mapIpReq.getResponse();
+        IllegalStateException error = toError(resp, "No response/invalid response to mapping port");
+        if (error != null) {
+            throw error;
         }
+        trackEpoch(resp);
         
         LOG.debug("Unmap successful {}", mappedPort);
     }
@@ -235,11 +282,13 @@ public final class NatPmpPortMapper implements PortMapper {
         Validate.notNull(mappedPort);
         Validate.isTrue(mappedPort instanceof NatPmpMappedPort);
         Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
-        MappedPort newMappedPort = mapPort(mappedPort.getPortType(), mappedPort.getInternalPort(), mappedPort.getExternalPort(), lifetime);
+        MappedPort newMappedPort = mapPort(mappedPort.getPortType(), mappedPort.getInternalPort(), mappedPort.getExternalPort(), lifetime,
+                false);
         
         if (mappedPort.getExternalPort() != newMappedPort.getExternalPort()
                 || !Objects.equals(mappedPort.getExternalAddress(), newMappedPort.getExternalAddress())) {
             LOG.warn("Failed refresh mapping {}: ", mappedPort, newMappedPort);
+            externalAddressCache.invalidate(); // gateway may have been reset/re-addressed, don't trust the cached address
             try {
                 unmapPort(newMappedPort);
             } catch (IllegalStateException ise) {
@@ -257,6 +306,204 @@ public final class NatPmpPortMapper implements PortMapper {
         return newMappedPort;
     }
 
+    @Override
+    public List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException {
+        return mapPorts(requests, true);
+    }
+
+    // See mapPort(PortType, int, int, long, boolean) for what removeOnFailure does
+    private List<PortMappingResult> mapPorts(List<PortMappingRequest> requests, boolean removeOnFailure) throws InterruptedException {
+        LOG.info("Attempting to map {}", requests);
+
+        Validate.notNull(requests);
+        Validate.noNullElements(requests);
+
+        List<PortMappingResult> results = new ArrayList<>(requests.size());
+        if (requests.isEmpty()) {
+            return results;
+        }
+
+        // All mapping requests go out on the same socket at the same time -- responses are matched back up by internal port. If the
+        // external address isn't cached, it's asked for alongside the mappings.
+        InetAddress externalAddress = externalAddressCache.get();
+        List<UdpRequest> mapIpReqs = new ArrayList<>(requests.size());
+        for (PortMappingRequest request : requests) {
+            mapIpReqs.add(createMappingUdpRequest(internalAddress, gatewayAddress, request.getPortType(), request.getInternalPort(),
+                    request.getExternalPort(), request.getLifetime()));
+        }
+        List<UdpRequest> reqs = new ArrayList<>(mapIpReqs);
+        UdpRequest externalIpReq = null;
+        if (externalAddress == null) {
+            externalIpReq = createGetExternalIpUdpRequest(internalAddress, gatewayAddress);
+            reqs.add(externalIpReq);
+        }
+        performLimitedUdpRequests(networkBus, getLimiter(), reqs, calculateExponentialBackoffTimes(4));
+
+        if (externalIpReq != null && toError((NatPmpResponse) externalIpReq.getResponse(), "") == null) {
+            externalAddress = handleExternalIpResponse((ExternalAddressNatPmpResponse) externalIpReq.getResponse());
+        }
+        if (externalAddress == null) {
+            try {
+                externalAddress = getExternalAddress();
+            } catch (IllegalStateException ise) {
+                List<PortMappingRequest> grantedRequests = new ArrayList<>();
+                for (int i = 0; i < requests.size(); i++) {
+                    if (toError((NatPmpResponse) mapIpReqs.get(i).getResponse(), "") == null) {
+                        grantedRequests.add(requests.get(i));
+                    }
+                    results.add(new PortMappingResult(ise));
+                }
+                if (removeOnFailure && !grantedRequests.isEmpty()) {
+                    removeMappings(grantedRequests);
+                }
+                return results;
+            }
+        }
+
+
+
+        for (int i = 0; i < requests.size(); i++) {
+            MappingNatPmpResponse mappingResp = (MappingNatPmpResponse) mapIpReqs.get(i).getResponse();
+            IllegalStateException error = toError(mappingResp, "No response/invalid response to mapping port");
+            if (error != null) {
+                results.add(new PortMappingResult(error));
+                continue;
+            }
+            trackEpoch(mappingResp);
+
+            MappedPort mappedPort = new NatPmpMappedPort(mappingResp.getInternalPort(), mappingResp.getExternalPort(), externalAddress,
+                    requests.get(i).getPortType(), mappingResp.getLifetime());
+            results.add(new PortMappingResult(mappedPort));
+        }
+        LOG.debug("Bulk map completed {}", results);
+
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        LOG.info("Attempting to unmap {}", mappedPorts);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof NatPmpMappedPort);
+        }
+
+        List<UdpRequest> mapIpReqs = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            mapIpReqs.add(createMappingUdpRequest(internalAddress, gatewayAddress, mappedPort.getPortType(), mappedPort.getInternalPort(),
+                    0, 0L));
+        }
+        if (!mapIpReqs.isEmpty()) {
+            performLimitedUdpRequests(networkBus, getLimiter(), mapIpReqs, calculateExponentialBackoffTimes(4));
+        }
+
+        List<PortMappingResult> results = new ArrayList<>(mappedPorts.size());
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            NatPmpResponse resp = (NatPmpResponse) mapIpReqs.get(i).getResponse();
+            IllegalStateException error = toError(resp, "No response/invalid response to mapping port");
+            if (error != null) {
+                results.add(new PortMappingResult(error));
+                continue;
+            }
+            trackEpoch(resp);
+            results.add(new PortMappingResult(mappedPorts.get(i)));
+        }
+        LOG.debug("Bulk unmap completed {}", results);
+
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        LOG.info("Attempting to refresh mappings {} for {}", mappedPorts, lifetime);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof NatPmpMappedPort);
+        }
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        List<PortMappingRequest> requests = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            requests.add(new PortMappingRequest(mappedPort.getPortType(), mappedPort.getInternalPort(), mappedPort.getExternalPort(),
+                    lifetime));
+        }
+        List<PortMappingResult> results = mapPorts(requests, false);
+        List<PortMappingResult> verifiedResults = verifyRefreshes(this, mappedPorts, results);
+
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).isSuccessful() && !verifiedResults.get(i).isSuccessful()) {
+                externalAddressCache.invalidate(); // gateway may have been reset/re-addressed, don't trust the cached address
+                break;
+            }
+        }
+
+        return verifiedResults;
+    }
+
+    // Shared with every other mapper talking to the same gateway -- looked up each time so that parallelism changes take effect right away
+    private GatewayLimiter getLimiter() {
+        return GatewayLimiter.forGateway(gatewayAddress);
+    }
+
+    // Error result codes are definitive answers from the gateway -- responses carrying them are accepted (rather than treated like lost
+    // packets and re-sent until the backoff runs out), so they have to be checked for here
+    private static IllegalStateException toError(NatPmpResponse resp, String noResponseMessage) {
+        if (resp == null) {
+            return new IllegalStateException(noResponseMessage);
+        }
+
+        int resultCode = resp.getResultCode();
+        if (resultCode == NatPmpResultCode.SUCCESS.ordinal()) {
+            return null;
+        }
+
+        NatPmpResultCode[] resultCodes = NatPmpResultCode.values();
+        String message = resultCode < resultCodes.length
+                ? resultCodes[resultCode] + " (" + resultCodes[resultCode].getMessage() + ")"
+                : "Unknown result code " + resultCode;
+        return new GatewayFaultException("Gateway responded with error: " + message);
+    }
+
+    private void trackEpoch(NatPmpResponse resp) {
+        if (epochTracker.update(resp.getSecondsSinceStartOfEpoch())) {
+            LOG.warn("Gateway {} appears to have lost its mappings (epoch {})", gatewayAddress, resp.getSecondsSinceStartOfEpoch());
+            externalAddressCache.invalidate();
+        }
+    }
+
+    private InetAddress handleExternalIpResponse(ExternalAddressNatPmpResponse resp) {
+        trackEpoch(resp);
+        InetAddress externalAddress = resp.getAddress();
+        externalAddressCache.put(externalAddress);
+        return externalAddress;
+    }
+
+    // Best-effort removal of mappings that were granted but can't be handed back to the caller
+    private void removeMappings(List<PortMappingRequest> requests) throws InterruptedException {
+        LOG.warn("Removing mappings that were granted but whose external address is unknown {}", requests);
+        List<UdpRequest> mapIpReqs = new ArrayList<>(requests.size());
+        for (PortMappingRequest request : requests) {
+            mapIpReqs.add(createMappingUdpRequest(internalAddress, gatewayAddress, request.getPortType(), request.getInternalPort(), 0,
+                    0L));
+        }
+        performLimitedUdpRequests(networkBus, getLimiter(), mapIpReqs, calculateExponentialBackoffTimes(4));
+    }
+
+    private InetAddress getExternalAddress() throws InterruptedException {
+        UdpRequest externalIpReq = createGetExternalIpUdpRequest(internalAddress, gatewayAddress);
+        performLimitedUdpRequests(networkBus, getLimiter(), Collections.singleton(externalIpReq), calculateExponentialBackoffTimes(4));
+        IllegalStateException error = toError((NatPmpResponse) externalIpReq.getResponse(),
+                "No response/invalid response to getting external IP");
+        if (error != null) {
+            throw error;
+        }
+        return handleExternalIpResponse((ExternalAddressNatPmpResponse) externalIpReq.getResponse());
+    }
+
     private static UdpRequest createGetExternalIpUdpRequest(InetAddress internalAddress, InetAddress gatewayAddress) {
         UdpRequest externalIpReq = new UdpRequest(
                 internalAddress,
@@ -270,19 +517,15 @@ public final class NatPmpPortMapper implements PortMapper {
                 },
                 new BytesToResponseTransformer() {
                     @Override
-                    public Object create(byte[] buffer) {
-                        ExternalAddressNatPmpResponse resp = new ExternalAddressNatPmpResponse(buffer);
-                        if (resp.getResultCode() != NatPmpResultCode.SUCCESS.ordinal()) {
-                            throw new IllegalArgumentException();
-                        }
-                        return resp;
+                    public ParseResult<?> create(byte[] buffer) {
+                        return ExternalAddressNatPmpResponse.tryParse(buffer);
                     }
                 });
         return externalIpReq;
     }
 
     private static UdpRequest createMappingUdpRequest(InetAddress internalAddress, InetAddress gatewayAddress, PortType portType,
-            int internalPort, int externalPort, long lifetime) {
+            final int internalPort, int externalPort, long lifetime) {
         MappingNatPmpRequest request;
         RequestToBytesTransformer requestToBytesTransformer;
         BytesToResponseTransformer bytesToResponseTransformer;
@@ -296,13 +539,21 @@ public final class NatPmpPortMapper implements PortMapper {
                     }
                 };
                 bytesToResponseTransformer = new BytesToResponseTransformer() {
+                    private final TcpMappingNatPmpResponseView view = new TcpMappingNatPmpResponseView();
+
                     @Override
-                    public Object create(byte[] buffer) {
-                        TcpMappingNatPmpResponse resp = new TcpMappingNatPmpResponse(buffer);
-                        if (resp.getResultCode() != NatPmpResultCode.SUCCESS.ordinal()) {
-                            throw new IllegalArgumentException();
+                    public ParseResult<?> create(byte[] buffer) {
+                        if (!view.wrap(ByteBuffer.wrap(buffer))) {
+                            return ParseResult.failure("Not a well-formed TCP mapping NAT-PMP response");
+                        }
+                        try {
+                            if (view.getInternalPort() != internalPort) {
+                                return ParseResult.failure("Response for a different mapping"); // some other request to the same gateway
+                            }
+                            return ParseResult.success(view.toResponse());
+                        } finally {
+                            view.clear();
                         }
-                        return resp;
                     }
                 };
                 break;
@@ -315,13 +566,21 @@ public final class NatPmpPortMapper implements PortMapper {
                     }
                 };
                 bytesToResponseTransformer = new BytesToResponseTransformer() {
+                    private final UdpMappingNatPmpResponseView view = new UdpMappingNatPmpResponseView();
+
                     @Override
-                    public Object create(byte[] buffer) {
-                        UdpMappingNatPmpResponse resp = new UdpMappingNatPmpResponse(buffer);
-                        if (resp.getResultCode() != NatPmpResultCode.SUCCESS.ordinal()) {
-                            throw new IllegalArgumentException();
+                    public ParseResult<?> create(byte[] buffer) {
+                        if (!view.wrap(ByteBuffer.wrap(buffer))) {
+                            return ParseResult.failure("Not a well-formed UDP mapping NAT-PMP response");
+                        }
+                        try {
+                            if (view.getInternalPort() != internalPort) {
+                                return ParseResult.failure("Response for a different mapping"); // some other request to the same gateway
+                            }
+                            return ParseResult.success(view.toResponse());
+                        } finally {
+                            view.clear();
                         }
-                        return resp;
                     }
                 };
                 break;
@@ -339,15 +598,59 @@ public final class NatPmpPortMapper implements PortMapper {
         return mapIpReq;
     }
 
+    @Override
+    public String getIdentity() {
+        return "NAT-PMP " + internalAddress.getHostAddress() + " " + gatewayAddress.getHostAddress();
+    }
+
+    @Override
+    public byte[] saveMappedPort(MappedPort mappedPort) {
+        Validate.notNull(mappedPort);
+        Validate.isTrue(mappedPort instanceof NatPmpMappedPort);
+        return ((NatPmpMappedPort) mappedPort).dump();
+    }
+
+    @Override
+    public MappedPort restoreMappedPort(byte[] data) {
+        return NatPmpMappedPort.load(data);
+    }
+
     @Override
     public InetAddress getSourceAddress() {
         return internalAddress;
     }
 
+    /**
+     * Get the address of the gateway this mapper talks to.
+     * @return gateway address
+     */
+    public InetAddress getGatewayAddress() {
+        return gatewayAddress;
+    }
+
+    /**
+     * Get the tracker for the epoch reported by the gateway this mapper talks to. The tracker is updated with the epoch of every response
+     * received by this mapper, and may be updated externally (e.g. by announcements received from the gateway).
+     * @return epoch tracker for the gateway
+     */
+    public EpochTracker getEpochTracker() {
+        return epochTracker;
+    }
+
+    /**
+     * Get the cache for the external address reported by the gateway this mapper talks to. Mappings use the cached address (if it hasn't
+     * expired) instead of querying the gateway every time. The cache is invalidated whenever the gateway is detected as having lost its
+     * state or a refresh comes back with a different external port.
+     * @return external address cache for the gateway
+     */
+    public ExternalAddressCache getExternalAddressCache() {
+        return externalAddressCache;
+    }
+
     @Override
     public String toString() {
         return "NatPmpPortMapper{" + "networkBus=" + networkBus + ", internalAddress=" + internalAddress + ", gatewayAddress="
-                + gatewayAddress + '}';
+                + gatewayAddress + ", epochTracker=" + epochTracker + ", externalAddressCache=" + externalAddressCache + '}';
     }
 
 }
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.natpmp.externalmessages;
 
+import java.nio.ByteBuffer;
 import org.apache.commons.lang3.Validate;
 
 /**
@@ -63,8 +64,13 @@ public final class ExternalAddressNatPmpRequest extends NatPmpRequest {
     }
 
     @Override
-    public byte[] dump() {
-        return new byte[] {0, OP};
+    public int getBufferLength() {
+        return LENGTH;
+    }
+
+    @Override
+    void encodeBodyTo(ByteBuffer dst) {
+        // nothing after the header
     }
 
     @Override
@@ -16,8 +16,10 @@
 package com.offbynull.portmapper.mappers.natpmp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 import org.apache.commons.lang3.Validate;
 
@@ -75,6 +77,22 @@ public final class ExternalAddressNatPmpResponse extends NatPmpResponse {
         Validate.validState(inetAddress instanceof Inet4Address); // should never happen -- sanity check
     }
 
+    /**
+     * Parses a {@link ExternalAddressNatPmpResponse} object from a buffer. Unlike {@link #ExternalAddressNatPmpResponse(byte[]) }, a
+     * malformed buffer is reported through the returned result rather than by throwing an exception. The buffer is validated in place (see
+     * {@link ExternalAddressNatPmpResponseView}) before anything is created.
+     * @param buffer buffer containing NAT-PMP response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<ExternalAddressNatPmpResponse> tryParse(byte[] buffer) {
+        ExternalAddressNatPmpResponseView view = new ExternalAddressNatPmpResponseView();
+        if (!view.wrap(ByteBuffer.wrap(buffer))) {
+            return ParseResult.failure("Not a well-formed external address NAT-PMP response");
+        }
+        return ParseResult.success(view.toResponse());
+    }
+
     /**
      * Constructs a {@link ExternalAddressNatPmpResponse} object.
      * @param resultCode result code
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.natpmp.externalmessages;
+
+/**
+ * Flyweight view over a NAT-PMP external address response datagram. See {@link NatPmpResponseView} and
+ * {@link ExternalAddressNatPmpResponse}. The address is exposed as an int rather than as an {@link java.net.InetAddress}, so that it can
+ * be checked without creating anything.
+ * @author Kasra Faghihi
+ */
+public final class ExternalAddressNatPmpResponseView extends NatPmpResponseView {
+    private static final int LENGTH = 12;
+    private static final int OP = 128;
+
+    /**
+     * Construct a {@link ExternalAddressNatPmpResponseView} object. Nothing is wrapped until {@link #wrap(java.nio.ByteBuffer) } is
+     * called.
+     */
+    public ExternalAddressNatPmpResponseView() {
+        super(OP, LENGTH);
+    }
+
+    @Override
+    boolean isBodyValid() {
+        return true;
+    }
+
+    /**
+     * Get external IPv4 address.
+     * @return external IPv4 address (network byte order)
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public int getAddress() {
+        checkWrapped();
+        return (int) u32(8);
+    }
+
+    @Override
+    public ExternalAddressNatPmpResponse toResponse() {
+        return new ExternalAddressNatPmpResponse(copyBuffer());
+    }
+}
@@ -15,7 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.natpmp.externalmessages;
 
-import static com.offbynull.portmapper.mappers.natpmp.externalmessages.InternalUtils.NAT_PMP_VERSION;
+import java.nio.ByteBuffer;
 import org.apache.commons.lang3.Validate;
 
 /**
@@ -177,18 +177,16 @@ public abstract class MappingNatPmpRequest extends NatPmpRequest {
     }
 
     @Override
-    public final byte[] dump() {
-        byte[] data = new byte[LENGTH];
-
-        data[0] = NAT_PMP_VERSION;
-        data[1] = (byte) getOp();
-        data[2] = 0;
-        data[3] = 0;
-        InternalUtils.shortToBytes(data, 4, (short) internalPort);
-        InternalUtils.shortToBytes(data, 6, (short) suggestedExternalPort);
-        InternalUtils.intToBytes(data, 8, (int) lifetime);
+    public final int getBufferLength() {
+        return LENGTH;
+    }
 
-        return data;
+    @Override
+    final void encodeBodyTo(ByteBuffer dst) {
+        dst.putShort((short) 0); // reserved
+        dst.putShort((short) internalPort);
+        dst.putShort((short) suggestedExternalPort);
+        dst.putInt((int) lifetime);
     }
 
     /**
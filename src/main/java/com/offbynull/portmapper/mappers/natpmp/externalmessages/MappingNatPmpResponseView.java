@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.natpmp.externalmessages;
+
+/**
+ * Flyweight view over a NAT-PMP mapping response datagram. See {@link NatPmpResponseView} and {@link MappingNatPmpResponse}.
+ * @author Kasra Faghihi
+ */
+public abstract class MappingNatPmpResponseView extends NatPmpResponseView {
+    private static final int LENGTH = 16;
+
+    MappingNatPmpResponseView(int expectedOp) {
+        super(expectedOp, LENGTH);
+    }
+
+    @Override
+    final boolean isBodyValid() {
+        // same checks as MappingNatPmpResponse -- a lifetime of 0 means the mapping was deleted, in which case external port is 0
+        return u16(8) != 0 && (u32(12) == 0L || u16(10) != 0);
+    }
+
+    /**
+     * Get internal port.
+     * @return internal port
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final int getInternalPort() {
+        checkWrapped();
+        return u16(8);
+    }
+
+    /**
+     * Get external port.
+     * @return external port
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final int getExternalPort() {
+        checkWrapped();
+        return u16(10);
+    }
+
+    /**
+     * Get lifetime.
+     * @return lifetime
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final long getLifetime() {
+        checkWrapped();
+        return u32(12);
+    }
+
+    @Override
+    public abstract MappingNatPmpResponse toResponse();
+}
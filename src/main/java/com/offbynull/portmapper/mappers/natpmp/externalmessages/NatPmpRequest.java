@@ -16,6 +16,9 @@
 package com.offbynull.portmapper.mappers.natpmp.externalmessages;
 
 import static com.offbynull.portmapper.mappers.natpmp.externalmessages.InternalUtils.NAT_PMP_VERSION;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import org.apache.commons.lang3.Validate;
 
 /**
@@ -59,6 +62,47 @@ public abstract class NatPmpRequest implements NatPmpMessage {
         return op;
     }
 
+    /**
+     * Get the number of bytes this NAT-PMP request takes up when dumped out (length of buffer returned by {@link #dump() }).
+     * @return length of buffer containing NAT-PMP request
+     */
+    public abstract int getBufferLength();
+
+    @Override
+    public final byte[] dump() {
+        ByteBuffer buffer = ByteBuffer.allocate(getBufferLength());
+        encodeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Write this NAT-PMP request in to a buffer. Writes the same bytes as {@link #dump() } starting at {@code dst}'s position, but
+     * without creating any intermediate arrays -- use this to encode directly in to a reusable (or direct) buffer. Exactly
+     * {@link #getBufferLength() } bytes are written.
+     * @param dst buffer to write to (byte order is ignored, NAT-PMP fields are always written in network byte order)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws BufferOverflowException if {@code dst} has less than {@link #getBufferLength() } bytes remaining
+     */
+    public final void encodeTo(ByteBuffer dst) {
+        Validate.notNull(dst);
+        if (dst.remaining() < getBufferLength()) {
+            throw new BufferOverflowException();
+        }
+
+        ByteOrder oldOrder = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        try {
+            dst.put((byte) NAT_PMP_VERSION);
+            dst.put((byte) op);
+            encodeBodyTo(dst);
+        } finally {
+            dst.order(oldOrder);
+        }
+    }
+
+    // Writes everything after the version/op header. Buffer is guaranteed to have enough space and be in network byte order.
+    abstract void encodeBodyTo(ByteBuffer dst);
+
     // CHECKSTYLE:OFF:DesignForExtension
     @Override
     public String toString() {
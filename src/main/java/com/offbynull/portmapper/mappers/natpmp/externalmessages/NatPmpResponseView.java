@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.natpmp.externalmessages;
+
+import static com.offbynull.portmapper.mappers.natpmp.externalmessages.InternalUtils.NAT_PMP_VERSION;
+import java.nio.ByteBuffer;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Flyweight view over a NAT-PMP response datagram. Unlike {@link NatPmpResponse}, nothing is copied or created when a datagram is
+ * wrapped: the datagram is validated in place and fields are decoded straight out of the buffer when they're asked for. The same view can
+ * be re-wrapped around each datagram that comes in, so checking if a datagram is the response being waited on (and if it's a success)
+ * doesn't allocate anything. Use {@link #toResponse() } to get a full {@link NatPmpResponse} once a response is accepted.
+ * <p>
+ * Views hold on to the wrapped buffer without copying it, so the buffer's contents must not change while wrapped. This class is not
+ * thread-safe.
+ * @author Kasra Faghihi
+ */
+public abstract class NatPmpResponseView {
+    private final int expectedOp;
+    private final int expectedLength;
+
+    private ByteBuffer buffer;
+    private int start;
+
+    NatPmpResponseView(int expectedOp, int expectedLength) {
+        this.expectedOp = expectedOp;
+        this.expectedLength = expectedLength;
+    }
+
+    /**
+     * Wrap a NAT-PMP response datagram. The datagram is the bytes between {@code buffer}'s position and limit. Neither the position nor
+     * the limit of {@code buffer} are modified.
+     * @param buffer buffer containing NAT-PMP response datagram
+     * @return {@code true} if the datagram is a well-formed response of the type this view is for (in which case it's now wrapped),
+     * {@code false} otherwise (in which case nothing is wrapped)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public final boolean wrap(ByteBuffer buffer) {
+        Validate.notNull(buffer);
+
+        if (buffer.remaining() != expectedLength) {
+            clear();
+            return false;
+        }
+
+        this.buffer = buffer;
+        this.start = buffer.position();
+
+        if (u8(0) != NAT_PMP_VERSION || u8(1) != expectedOp || !isBodyValid()) {
+            clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release the wrapped datagram (if any).
+     */
+    public final void clear() {
+        buffer = null;
+        start = 0;
+    }
+
+    /**
+     * Check if a datagram is wrapped.
+     * @return {@code true} if a datagram is wrapped, {@code false} otherwise
+     */
+    public final boolean isWrapped() {
+        return buffer != null;
+    }
+
+    /**
+     * Get op code.
+     * @return op code
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final int getOp() {
+        checkWrapped();
+        return u8(1);
+    }
+
+    /**
+     * Get result code.
+     * @return result code
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final int getResultCode() {
+        checkWrapped();
+        return u16(2);
+    }
+
+    /**
+     * Get seconds since start of epoch.
+     * @return seconds since start of epoch
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final long getSecondsSinceStartOfEpoch() {
+        checkWrapped();
+        return u32(4);
+    }
+
+    /**
+     * Copy the wrapped datagram out.
+     * @return copy of wrapped datagram
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    protected final byte[] copyBuffer() {
+        checkWrapped();
+        byte[] data = new byte[expectedLength];
+        for (int i = 0; i < expectedLength; i++) {
+            data[i] = buffer.get(start + i);
+        }
+        return data;
+    }
+
+    /**
+     * Parse the wrapped datagram in to a full response object. This creates a copy of the datagram.
+     * @return response object
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public abstract NatPmpResponse toResponse();
+
+    // Called once the header has been checked, validates everything after it
+    abstract boolean isBodyValid();
+
+    final void checkWrapped() {
+        Validate.validState(buffer != null, "Nothing wrapped");
+    }
+
+    final int u8(int offset) {
+        return buffer.get(start + offset) & 0xFF;
+    }
+
+    final int u16(int offset) {
+        return (u8(offset) << 8) | u8(offset + 1);
+    }
+
+    final long u32(int offset) {
+        return ((long) u16(offset) << 16) | u16(offset + 2);
+    }
+}
@@ -15,6 +15,9 @@
  */
 package com.offbynull.portmapper.mappers.natpmp.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
+import java.nio.ByteBuffer;
+
 /**
  * Represents a NAT-PMP TCP mapping response. From the RFC:
  * <pre>
@@ -138,6 +141,22 @@ public final class TcpMappingNatPmpResponse extends MappingNatPmpResponse {
         super(OP, buffer);
     }
 
+    /**
+     * Parses a {@link TcpMappingNatPmpResponse} object from a buffer. Unlike {@link #TcpMappingNatPmpResponse(byte[]) }, a malformed buffer
+     * is reported through the returned result rather than by throwing an exception. The buffer is validated in place (see {@link
+     * TcpMappingNatPmpResponseView}) before anything is created.
+     * @param buffer buffer containing NAT-PMP response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<TcpMappingNatPmpResponse> tryParse(byte[] buffer) {
+        TcpMappingNatPmpResponseView view = new TcpMappingNatPmpResponseView();
+        if (!view.wrap(ByteBuffer.wrap(buffer))) {
+            return ParseResult.failure("Not a well-formed TCP mapping NAT-PMP response");
+        }
+        return ParseResult.success(view.toResponse());
+    }
+
     /**
      * Construct a {@link TcpMappingNatPmpResponse} object.
      * @param resultCode result code
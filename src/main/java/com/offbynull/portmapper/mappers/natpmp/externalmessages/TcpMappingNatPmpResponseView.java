@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.natpmp.externalmessages;
+
+/**
+ * Flyweight view over a TCP NAT-PMP mapping response datagram. See {@link NatPmpResponseView} and {@link TcpMappingNatPmpResponse}.
+ * @author Kasra Faghihi
+ */
+public final class TcpMappingNatPmpResponseView extends MappingNatPmpResponseView {
+    private static final int OP = 130;
+
+    /**
+     * Construct a {@link TcpMappingNatPmpResponseView} object. Nothing is wrapped until {@link #wrap(java.nio.ByteBuffer) } is called.
+     */
+    public TcpMappingNatPmpResponseView() {
+        super(OP);
+    }
+
+    @Override
+    public TcpMappingNatPmpResponse toResponse() {
+        return new TcpMappingNatPmpResponse(copyBuffer());
+    }
+}
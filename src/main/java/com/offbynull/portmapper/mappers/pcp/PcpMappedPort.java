@@ -18,17 +18,20 @@ package com.offbynull.portmapper.mappers.pcp;
 import com.offbynull.portmapper.mapper.MappedPort;
 import com.offbynull.portmapper.mapper.PortType;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import org.apache.commons.lang3.Validate;
 
 final class PcpMappedPort implements MappedPort {
     
-    private byte[] nonce;
-    private int internalPort;
-    private int externalPort;
-    private InetAddress externalAddress;
-    private PortType portType;
-    private long lifetime;
+    private final byte[] nonce;
+    private final int internalPort;
+    private final int externalPort;
+    private final InetAddress externalAddress;
+    private final PortType portType;
+    private final long lifetime;
 
     PcpMappedPort(byte[] nonce, int internalPort, int externalPort, InetAddress externalAddress, PortType portType, long duration) {
         Validate.notNull(nonce);
@@ -50,6 +53,39 @@ final class PcpMappedPort implements MappedPort {
         return Arrays.copyOf(nonce, nonce.length);
     }
 
+    byte[] dump() {
+        byte[] addressBytes = externalAddress.getAddress();
+        ByteBuffer buffer = ByteBuffer.allocate(nonce.length + 1 + 2 + 2 + 8 + 1 + addressBytes.length);
+        buffer.put(nonce);
+        buffer.put((byte) portType.ordinal());
+        buffer.putShort((short) internalPort);
+        buffer.putShort((short) externalPort);
+        buffer.putLong(lifetime);
+        buffer.put((byte) addressBytes.length);
+        buffer.put(addressBytes);
+        return buffer.array();
+    }
+
+    static PcpMappedPort load(byte[] data) {
+        Validate.notNull(data);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            byte[] nonce = new byte[12];
+            buffer.get(nonce);
+            PortType portType = PortType.values()[buffer.get()];
+            int internalPort = buffer.getShort() & 0xFFFF;
+            int externalPort = buffer.getShort() & 0xFFFF;
+            long lifetime = buffer.getLong();
+            byte[] addressBytes = new byte[buffer.get() & 0xFF];
+            buffer.get(addressBytes);
+            InetAddress externalAddress = InetAddress.getByAddress(addressBytes);
+            Validate.isTrue(!buffer.hasRemaining());
+            return new PcpMappedPort(nonce, internalPort, externalPort, externalAddress, portType, lifetime);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     @Override
     public int getInternalPort() {
         return internalPort;
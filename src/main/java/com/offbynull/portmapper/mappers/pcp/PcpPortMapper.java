@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.pcp;
 
+import com.offbynull.portmapper.mapper.BulkPortMapper;
 import com.offbynull.portmapper.mapper.MappedPort;
 import com.offbynull.portmapper.mapper.PortMapper;
 import com.offbynull.portmapper.mapper.PortType;
@@ -22,27 +23,38 @@ import com.offbynull.portmapper.gateway.Bus;
 import static com.offbynull.portmapper.helpers.NetworkUtils.ZERO_IPV4;
 import static com.offbynull.portmapper.helpers.NetworkUtils.ZERO_IPV6;
 import com.offbynull.portmapper.helpers.TextUtils;
+import com.offbynull.portmapper.mapper.EpochTracker;
+import com.offbynull.portmapper.mapper.GatewayFaultException;
+import com.offbynull.portmapper.mapper.GatewayLimiter;
 import com.offbynull.portmapper.mapper.MapperIoUtils;
 import com.offbynull.portmapper.mapper.MapperIoUtils.BytesToResponseTransformer;
-import static com.offbynull.portmapper.mapper.MapperIoUtils.PRESET_IPV4_GATEWAY_ADDRESSES;
 import com.offbynull.portmapper.mapper.MapperIoUtils.RequestToBytesTransformer;
 import com.offbynull.portmapper.mapper.MapperIoUtils.UdpRequest;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.calculateExponentialBackoffTimes;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.convertToAddressSet;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.getLocalIpAddresses;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.getPresetIpv4GatewayAddresses;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.performLimitedUdpRequests;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.performUdpRequests;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.runProcesses;
+import com.offbynull.portmapper.mapper.ParseResult;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.RestorablePortMapper;
 import com.offbynull.portmapper.mappers.pcp.externalmessages.MapPcpRequest;
 import com.offbynull.portmapper.mappers.pcp.externalmessages.MapPcpResponse;
+import com.offbynull.portmapper.mappers.pcp.externalmessages.MapPcpResponseView;
+import com.offbynull.portmapper.mappers.pcp.externalmessages.PcpResponse;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import org.apache.commons.lang3.Validate;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -50,19 +62,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A PCP {@link PortMapper} implementation.
+ * A PCP {@link PortMapper} implementation. This class is thread-safe.
  * @author Kasra Faghihi
  */
-public final class PcpPortMapper implements PortMapper {
+public final class PcpPortMapper implements RestorablePortMapper, BulkPortMapper {
     
     private static final Logger LOG = LoggerFactory.getLogger(PcpPortMapper.class);
     
     private static final int PORT = 5351;
     
-    private Bus networkBus;
-    private InetAddress internalAddress;
-    private InetAddress gatewayAddress;
-    private Random random;
+    private final Bus networkBus;
+    private final InetAddress internalAddress;
+    private final InetAddress gatewayAddress;
+    private final EpochTracker epochTracker;
 
     /**
      * Identify PCP devices on all interfaces.
@@ -98,7 +110,7 @@ public final class PcpPortMapper implements PortMapper {
         
         // Aggregate results
         Set<InetAddress> potentialGatewayAddresses = new HashSet<>();
-        potentialGatewayAddresses.addAll(PRESET_IPV4_GATEWAY_ADDRESSES);
+        potentialGatewayAddresses.addAll(getPresetIpv4GatewayAddresses());
         potentialGatewayAddresses.addAll(Arrays.asList(additionalIps));
         
         for (MapperIoUtils.ProcessRequest req : processReqs) {
@@ -137,14 +149,13 @@ public final class PcpPortMapper implements PortMapper {
                         },
                         new BytesToResponseTransformer() {
                             @Override
-                            public Object create(byte[] buffer) {
+                            public ParseResult<?> create(byte[] buffer) {
                                 // so long as version is 2, we can assume that this is a PCP router's response
                                 if (buffer.length < 4 || buffer[0] != 2) {
-                                    throw new IllegalArgumentException();
+                                    return ParseResult.failure("Not a PCP response");
                                 }
 
-                                MapPcpResponse resp = new MapPcpResponse(buffer);
-                                return resp;
+                                return MapPcpResponse.tryParse(buffer);
                             }
                         });
                 
@@ -185,10 +196,10 @@ public final class PcpPortMapper implements PortMapper {
         Validate.notNull(internalAddress);
         Validate.notNull(gatewayAddress);
 
-        this.random = new Random();
         this.networkBus = networkBus;
         this.internalAddress = internalAddress;
         this.gatewayAddress = gatewayAddress;
+        this.epochTracker = new EpochTracker();
     }
 
 
@@ -204,12 +215,14 @@ public final class PcpPortMapper implements PortMapper {
         // PERFORM MAPPING
         //
         byte[] nonce = nextNonce();
-        UdpRequest mapIpReq = createMappingUdpRequest(nonce, portType, internalPort, externalPort, lifetime);
-        performUdpRequests(networkBus, Collections.singleton(mapIpReq), false, calculateExponentialBackoffTimes(4));
-        if (mapIpReq.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to mapping port");
-        }
+        UdpRequest mapIpReq = createMappingUdpRequest(nonce, portType, internalPort, externalPort, ZERO_IPV6, lifetime);
+        performLimitedUdpRequests(networkBus, getLimiter(), Collections.singleton(mapIpReq), calculateExponentialBackoffTimes(4));
         MapPcpResponse mappingResp = ((MapPcpResponse) mapIpReq.getResponse());
+        IllegalStateException error = toError(mappingResp, "No response/invalid response to mapping port");
+        if (error != null) {
+            throw error;
+        }
+        trackEpoch(mappingResp);
         
         
         
@@ -231,11 +244,14 @@ public final class PcpPortMapper implements PortMapper {
         PortType portType = mappedPort.getPortType();
         int internalPort = mappedPort.getInternalPort();
         
-        UdpRequest mapIpReq = createMappingUdpRequest(nonce, portType, internalPort, 0, 0L);
-        performUdpRequests(networkBus, Collections.singleton(mapIpReq), false, calculateExponentialBackoffTimes(4));
-        if (mapIpReq.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to mapping port");
+        UdpRequest mapIpReq = createMappingUdpRequest(nonce, portType, internalPort, 0, ZERO_IPV6, 0L);
+        performLimitedUdpRequests(networkBus, getLimiter(), Collections.singleton(mapIpReq), calculateExponentialBackoffTimes(4));
+        MapPcpResponse resp = (MapPcpResponse) mapIpReq.getResponse();
+        IllegalStateException error = toError(resp, "No response/invalid response to mapping port");
+        if (error != null) {
+            throw error;
         }
+        trackEpoch(resp);
         
         LOG.debug("Unmap successful {}", mappedPort);
     }
@@ -247,33 +263,175 @@ public final class PcpPortMapper implements PortMapper {
         Validate.notNull(mappedPort);
         Validate.isTrue(mappedPort instanceof PcpMappedPort);
         Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
-        MappedPort newMappedPort = mapPort(mappedPort.getPortType(), mappedPort.getInternalPort(), mappedPort.getExternalPort(), lifetime);
+
+        UdpRequest mapIpReq = createRenewalUdpRequest((PcpMappedPort) mappedPort, lifetime);
+        performLimitedUdpRequests(networkBus, getLimiter(), Collections.singleton(mapIpReq), calculateExponentialBackoffTimes(4));
+        MapPcpResponse mappingResp = ((MapPcpResponse) mapIpReq.getResponse());
+        IllegalStateException error = toError(mappingResp, "No response/invalid response to refreshing port");
+        if (error != null) {
+            throw error;
+        }
+        trackEpoch(mappingResp);
+
+        MappedPort newMappedPort = toRenewedMappedPort((PcpMappedPort) mappedPort, mappingResp);
+        LOG.debug("Mapping refreshed {}: ", mappedPort, newMappedPort);
         
-        if (mappedPort.getExternalPort() != newMappedPort.getExternalPort()
-                || !Objects.equals(mappedPort.getExternalAddress(), newMappedPort.getExternalAddress())) {
-            LOG.warn("Failed refresh mapping {}: ", mappedPort, newMappedPort);
+        return newMappedPort;
+    }
+
+    @Override
+    public List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException {
+        LOG.info("Attempting to map {}", requests);
+
+        Validate.notNull(requests);
+        Validate.noNullElements(requests);
+
+        // All mapping requests go out on the same socket at the same time -- responses are matched back up by nonce
+        List<byte[]> nonces = new ArrayList<>(requests.size());
+        List<UdpRequest> mapIpReqs = new ArrayList<>(requests.size());
+        for (PortMappingRequest request : requests) {
+            byte[] nonce = nextNonce();
+            nonces.add(nonce);
+            mapIpReqs.add(createMappingUdpRequest(nonce, request.getPortType(), request.getInternalPort(), request.getExternalPort(),
+                    ZERO_IPV6, request.getLifetime()));
+        }
+        if (!mapIpReqs.isEmpty()) {
+            performLimitedUdpRequests(networkBus, getLimiter(), mapIpReqs, calculateExponentialBackoffTimes(4));
+        }
+
+        List<PortMappingResult> results = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            MapPcpResponse mappingResp = (MapPcpResponse) mapIpReqs.get(i).getResponse();
+            IllegalStateException error = toError(mappingResp, "No response/invalid response to mapping port");
+            if (error != null) {
+                results.add(new PortMappingResult(error));
+                continue;
+            }
+            trackEpoch(mappingResp);
+
+            MappedPort mappedPort = new PcpMappedPort(nonces.get(i), mappingResp.getInternalPort(),
+                    mappingResp.getAssignedExternalPort(), mappingResp.getAssignedExternalIpAddress(), requests.get(i).getPortType(),
+                    mappingResp.getLifetime());
+            results.add(new PortMappingResult(mappedPort));
+        }
+        LOG.debug("Bulk map completed {}", results);
+
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        LOG.info("Attempting to unmap {}", mappedPorts);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof PcpMappedPort);
+        }
+
+        List<UdpRequest> mapIpReqs = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            byte[] nonce = ((PcpMappedPort) mappedPort).getNonce();
+            mapIpReqs.add(createMappingUdpRequest(nonce, mappedPort.getPortType(), mappedPort.getInternalPort(), 0, ZERO_IPV6, 0L));
+        }
+        if (!mapIpReqs.isEmpty()) {
+            performLimitedUdpRequests(networkBus, getLimiter(), mapIpReqs, calculateExponentialBackoffTimes(4));
+        }
+
+        List<PortMappingResult> results = new ArrayList<>(mappedPorts.size());
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            MapPcpResponse resp = (MapPcpResponse) mapIpReqs.get(i).getResponse();
+            IllegalStateException error = toError(resp, "No response/invalid response to mapping port");
+            if (error != null) {
+                results.add(new PortMappingResult(error));
+                continue;
+            }
+            trackEpoch(resp);
+            results.add(new PortMappingResult(mappedPorts.get(i)));
+        }
+        LOG.debug("Bulk unmap completed {}", results);
+
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        LOG.info("Attempting to refresh mappings {} for {}", mappedPorts, lifetime);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof PcpMappedPort);
+        }
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        // All renewals go out on the same socket at the same time -- responses are matched back up by nonce
+        List<UdpRequest> mapIpReqs = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            mapIpReqs.add(createRenewalUdpRequest((PcpMappedPort) mappedPort, lifetime));
+        }
+        if (!mapIpReqs.isEmpty()) {
+            performLimitedUdpRequests(networkBus, getLimiter(), mapIpReqs, calculateExponentialBackoffTimes(4));
+        }
+
+        List<PortMappingResult> results = new ArrayList<>(mappedPorts.size());
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            MapPcpResponse mappingResp = (MapPcpResponse) mapIpReqs.get(i).getResponse();
+            IllegalStateException error = toError(mappingResp, "No response/invalid response to refreshing port");
+            if (error != null) {
+                results.add(new PortMappingResult(error));
+                continue;
+            }
+            trackEpoch(mappingResp);
+
             try {
-                unmapPort(newMappedPort);
+                results.add(new PortMappingResult(toRenewedMappedPort((PcpMappedPort) mappedPorts.get(i), mappingResp)));
             } catch (IllegalStateException ise) {
-                // do nothing
+                results.add(new PortMappingResult(ise));
             }
-            
-            throw new IllegalStateException("External IP/port changed from "
-                    + mappedPort.getExternalAddress() + ":" + mappedPort.getExternalPort()
-                    + " to "
-                    + newMappedPort.getExternalAddress() + ":" + newMappedPort.getExternalPort());
         }
-        
-        LOG.debug("Mapping refreshed {}: ", mappedPort, newMappedPort);
-        
-        return newMappedPort;
+        LOG.debug("Bulk refresh completed {}", results);
+
+        return results;
+    }
+
+    // Shared with every other mapper talking to the same gateway -- looked up each time so that parallelism changes take effect right away
+    private GatewayLimiter getLimiter() {
+        return GatewayLimiter.forGateway(gatewayAddress);
+    }
+
+    // Error result codes are definitive answers from the gateway -- responses carrying them are accepted (rather than treated like lost
+    // packets and re-sent until the backoff runs out), so they have to be checked for here
+    private static IllegalStateException toError(PcpResponse resp, String noResponseMessage) {
+        if (resp == null) {
+            return new IllegalStateException(noResponseMessage);
+        }
+
+        int resultCode = resp.getResultCode();
+        if (resultCode == PcpResultCode.SUCCESS.ordinal()) {
+            return null;
+        }
+
+        PcpResultCode[] resultCodes = PcpResultCode.values();
+        String message = resultCode < resultCodes.length
+                ? resultCodes[resultCode] + " (" + resultCodes[resultCode].getMessage() + ")"
+                : "Unknown result code " + resultCode;
+        return new GatewayFaultException("Gateway responded with error: " + message);
     }
 
-    private UdpRequest createMappingUdpRequest(byte[] nonce, PortType portType, int internalPort, int externalPort, long lifetime) {
+    private void trackEpoch(PcpResponse resp) {
+        if (epochTracker.update(resp.getEpochTime())) {
+            LOG.warn("Gateway {} appears to have lost its mappings (epoch {})", gatewayAddress, resp.getEpochTime());
+        }
+    }
+
+    private UdpRequest createMappingUdpRequest(final byte[] nonce, final PortType portType, final int internalPort, int externalPort,
+            InetAddress externalAddress, long lifetime) {
         UdpRequest mapIpReq = new UdpRequest(
                 internalAddress,
                 new InetSocketAddress(gatewayAddress, PORT),
-                new MapPcpRequest(nonce, portType.getProtocolNumber(), internalPort, externalPort, ZERO_IPV6, lifetime, internalAddress),
+                new MapPcpRequest(nonce, portType.getProtocolNumber(), internalPort, externalPort, externalAddress, lifetime,
+                        internalAddress),
                 new RequestToBytesTransformer() {
                     @Override
                     public byte[] create(Object request) {
@@ -281,33 +439,106 @@ public final class PcpPortMapper implements PortMapper {
                     }
                 },
                 new BytesToResponseTransformer() {
+                    // Bulk requests to the same gateway get offered each other's responses, so check with a flyweight before parsing
+                    private final MapPcpResponseView view = new MapPcpResponseView();
+
                     @Override
-                    public Object create(byte[] buffer) {
-                        MapPcpResponse resp = new MapPcpResponse(buffer);
-                        if (resp.getResultCode() != PcpResultCode.SUCCESS.ordinal()) {
-                            throw new IllegalArgumentException();
+                    public ParseResult<?> create(byte[] buffer) {
+                        if (!view.wrap(ByteBuffer.wrap(buffer))) {
+                            return ParseResult.failure("Not a well-formed MAP PCP response");
+                        }
+                        try {
+                            if (!view.isMappingNonce(nonce)
+                                    || view.getProtocol() != portType.getProtocolNumber()
+                                    || view.getInternalPort() != internalPort) {
+                                return ParseResult.failure("Response for a different mapping"); // some other request to the same gateway
+                            }
+                            return ParseResult.success(view.toResponse());
+                        } finally {
+                            view.clear();
                         }
-                        return resp;
                     }
                 });
         return mapIpReq;
     }
 
+    // Renewal as per RFC 6887 (section 11.2.1) -- same nonce/protocol/internal port as the original request, with the assigned external
+    // IP/port as suggestions. The server extends the existing mapping rather than creating a new one, so sending the same renewal more
+    // than once is harmless.
+    private UdpRequest createRenewalUdpRequest(PcpMappedPort mappedPort, long lifetime) {
+        return createMappingUdpRequest(mappedPort.getNonce(), mappedPort.getPortType(), mappedPort.getInternalPort(),
+                mappedPort.getExternalPort(), mappedPort.getExternalAddress(), lifetime);
+    }
+
+    private PcpMappedPort toRenewedMappedPort(PcpMappedPort mappedPort, MapPcpResponse mappingResp) {
+        PcpMappedPort newMappedPort = new PcpMappedPort(mappedPort.getNonce(), mappingResp.getInternalPort(),
+                mappingResp.getAssignedExternalPort(), mappingResp.getAssignedExternalIpAddress(), mappedPort.getPortType(),
+                mappingResp.getLifetime());
+
+        // If the server couldn't keep the suggested external IP/port (e.g. it lost state and the port got taken in the meantime), the
+        // mapping it handed back is still the one identified by our nonce/protocol/internal port. There's no need to remove it here --
+        // unmapping the original mapped port removes it.
+        if (mappedPort.getExternalPort() != newMappedPort.getExternalPort()
+                || !Objects.equals(mappedPort.getExternalAddress(), newMappedPort.getExternalAddress())) {
+            LOG.warn("Failed refresh mapping {}: {}", mappedPort, newMappedPort);
+            throw new IllegalStateException("External IP/port changed from "
+                    + mappedPort.getExternalAddress() + ":" + mappedPort.getExternalPort()
+                    + " to "
+                    + newMappedPort.getExternalAddress() + ":" + newMappedPort.getExternalPort());
+        }
+
+        return newMappedPort;
+    }
+
+    @Override
+    public String getIdentity() {
+        return "PCP " + internalAddress.getHostAddress() + " " + gatewayAddress.getHostAddress();
+    }
+
+    @Override
+    public byte[] saveMappedPort(MappedPort mappedPort) {
+        Validate.notNull(mappedPort);
+        Validate.isTrue(mappedPort instanceof PcpMappedPort);
+        return ((PcpMappedPort) mappedPort).dump();
+    }
+
+    @Override
+    public MappedPort restoreMappedPort(byte[] data) {
+        return PcpMappedPort.load(data);
+    }
+
     @Override
     public InetAddress getSourceAddress() {
         return internalAddress;
     }
 
+    /**
+     * Get the address of the gateway this mapper talks to.
+     * @return gateway address
+     */
+    public InetAddress getGatewayAddress() {
+        return gatewayAddress;
+    }
+
+    /**
+     * Get the tracker for the epoch reported by the gateway this mapper talks to. The tracker is updated with the epoch of every response
+     * received by this mapper, and may be updated externally (e.g. by announcements received from the gateway).
+     * @return epoch tracker for the gateway
+     */
+    public EpochTracker getEpochTracker() {
+        return epochTracker;
+    }
+
     private byte[] nextNonce() {
         byte[] mappingNonce = new byte[12];
-        random.nextBytes(mappingNonce);
+        ThreadLocalRandom.current().nextBytes(mappingNonce); // no contention between threads mapping at the same time
         return mappingNonce;
     }
 
     @Override
     public String toString() {
         return "PcpPortMapper{" + "networkBus=" + networkBus + ", internalAddress=" + internalAddress + ", gatewayAddress="
-                + gatewayAddress + ", random=" + random + '}';
+                + gatewayAddress + ", epochTracker=" + epochTracker + '}';
     }
     
 }
@@ -15,6 +15,9 @@
  */
 package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
+import java.nio.ByteBuffer;
+
 /**
  * Represents an ANNOUNCE PCP response. This response has no op-code specific payload.
  * @author Kasra Faghihi
@@ -54,6 +57,22 @@ public final class AnnouncePcpResponse extends PcpResponse {
                                                        // verifying
     }
 
+    /**
+     * Parses a {@link AnnouncePcpResponse} object from a buffer. Unlike {@link #AnnouncePcpResponse(byte[]) }, a malformed buffer is
+     * reported through the returned result rather than by throwing an exception. The buffer is validated in place (see {@link
+     * AnnouncePcpResponseView}) before anything is created.
+     * @param buffer buffer containing PCP response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<AnnouncePcpResponse> tryParse(byte[] buffer) {
+        AnnouncePcpResponseView view = new AnnouncePcpResponseView();
+        if (!view.wrap(ByteBuffer.wrap(buffer))) {
+            return ParseResult.failure("Not a well-formed ANNOUNCE PCP response");
+        }
+        return ParseResult.success(view.toResponse());
+    }
+
     @Override
     public byte[] getData() {
         return new byte[OPCODE_SPECIFIC_DATA_LENGTH];
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.pcp.externalmessages;
+
+/**
+ * Flyweight view over an ANNOUNCE PCP response datagram. See {@link PcpResponseView} and {@link AnnouncePcpResponse}.
+ * @author Kasra Faghihi
+ */
+public final class AnnouncePcpResponseView extends PcpResponseView {
+    private static final int OPCODE = 0;
+    private static final int DATA_LENGTH = 0;
+
+    @Override
+    boolean isDataValid() {
+        return true; // no opcode-specific data
+    }
+
+    @Override
+    int getExpectedOp() {
+        return OPCODE;
+    }
+
+    @Override
+    int getDataLength() {
+        return DATA_LENGTH;
+    }
+
+    @Override
+    public AnnouncePcpResponse toResponse() {
+        return new AnnouncePcpResponse(copyBuffer());
+    }
+}
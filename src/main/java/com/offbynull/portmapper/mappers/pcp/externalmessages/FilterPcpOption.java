@@ -17,6 +17,7 @@ package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 import org.apache.commons.lang3.Validate;
 
@@ -73,6 +74,7 @@ public final class FilterPcpOption extends PcpOption {
     private int prefixLength;
     private int remotePeerPort;
     private InetAddress remotePeerIpAddress;
+    private byte[] remotePeerIpAddressBytes; // ipv6 form, kept so encoding doesn't have to convert every time
     
     /**
      * Constructs a {@link FilterPcpOption} by parsing a buffer.
@@ -102,6 +104,7 @@ public final class FilterPcpOption extends PcpOption {
         Validate.inclusiveBetween(0, 65535, remotePeerPort); // 0 indicates 'all ports', should never trigger
         
         remotePeerIpAddress = NetworkUtils.convertBytesToAddress(buffer, offset, 16);
+        remotePeerIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(remotePeerIpAddress);
         offset += 16;
     }
     
@@ -123,6 +126,7 @@ public final class FilterPcpOption extends PcpOption {
         this.prefixLength = prefixLength;
         this.remotePeerPort = remotePeerPort;
         this.remotePeerIpAddress = remotePeerIpAddress;
+        this.remotePeerIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(remotePeerIpAddress);
     }
 
     /**
@@ -160,13 +164,19 @@ public final class FilterPcpOption extends PcpOption {
         // write port
         InternalUtils.shortToBytes(data, 2, (short) remotePeerPort);
         // write ip
-        byte[] ipv6AsBytes = NetworkUtils.convertAddressToIpv6Bytes(remotePeerIpAddress);
-        Validate.validState(ipv6AsBytes.length == 16); // sanity check, should never throw exception
-        System.arraycopy(ipv6AsBytes, 0, data, 4, ipv6AsBytes.length);
+        System.arraycopy(remotePeerIpAddressBytes, 0, data, 4, remotePeerIpAddressBytes.length);
         
         return data;
     }
 
+    @Override
+    protected void encodeDataTo(ByteBuffer dst) {
+        dst.put((byte) 0); // reserved
+        dst.put((byte) prefixLength);
+        dst.putShort((short) remotePeerPort);
+        dst.put(remotePeerIpAddressBytes);
+    }
+
     @Override
     public String toString() {
         return "FilterPcpOption{super=" + super.toString() + "prefixLength=" + prefixLength + ", remotePeerPort=" + remotePeerPort
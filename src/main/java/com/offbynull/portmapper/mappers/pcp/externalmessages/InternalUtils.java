@@ -37,6 +37,10 @@ final class InternalUtils {
 
     static final int MAX_UDP_PAYLOAD = 1100;
     
+    private static final int THIRD_PARTY_OPTION_CODE = 1;
+    private static final int PREFER_FAILURE_OPTION_CODE = 2;
+    private static final int FILTER_OPTION_CODE = 3;
+    
     private InternalUtils() {
         // do nothing
     }
@@ -97,36 +101,30 @@ final class InternalUtils {
         
         List<PcpOption> pcpOptionsList = new ArrayList<>();
         while (offset < buffer.length) {
-            PcpOption option;
-
+            // Only try the option type that the code says it is, rather than trying each type until one doesn't throw -- a known option
+            // that's malformed still gets treated as an unknown option
+            PcpOption option = null;
             try {
-                option = new FilterPcpOption(buffer, offset);
-                offset += option.getBufferLength();
-                pcpOptionsList.add(option);
-                continue;
+                switch (buffer[offset] & 0xFF) {
+                    case THIRD_PARTY_OPTION_CODE:
+                        option = new ThirdPartyPcpOption(buffer, offset);
+                        break;
+                    case PREFER_FAILURE_OPTION_CODE:
+                        option = new PreferFailurePcpOption(buffer, offset);
+                        break;
+                    case FILTER_OPTION_CODE:
+                        option = new FilterPcpOption(buffer, offset);
+                        break;
+                    default:
+                        break;
+                }
             } catch (IllegalArgumentException iae) {
                 // do nothing
             }
             
-            try {
-                option = new PreferFailurePcpOption(buffer, offset);
-                offset += option.getBufferLength();
-                pcpOptionsList.add(option);
-                continue;
-            } catch (IllegalArgumentException iae) {
-                // do nothing
+            if (option == null) {
+                option = new UnknownPcpOption(buffer, offset);
             }
-            
-            try {
-                option = new ThirdPartyPcpOption(buffer, offset);
-                offset += option.getBufferLength();
-                pcpOptionsList.add(option);
-                continue;
-            } catch (IllegalArgumentException iae) {
-                // do nothing
-            }
-            
-            option = new UnknownPcpOption(buffer, offset);
             offset += option.getBufferLength();
             pcpOptionsList.add(option);
         }
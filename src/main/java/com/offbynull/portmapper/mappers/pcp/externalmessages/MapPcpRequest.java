@@ -17,6 +17,7 @@ package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 import org.apache.commons.lang3.Validate;
@@ -98,6 +99,7 @@ public final class MapPcpRequest extends PcpRequest {
     private int internalPort;
     private int suggestedExternalPort;
     private InetAddress suggestedExternalIpAddress;
+    private byte[] suggestedExternalIpAddressBytes; // ipv6 form, kept so encoding doesn't have to convert every time
 
     /**
      * Constructs a {@link MapPcpRequest} object.
@@ -126,6 +128,7 @@ public final class MapPcpRequest extends PcpRequest {
         this.internalPort = internalPort;
         this.suggestedExternalPort = suggestedExternalPort;
         this.suggestedExternalIpAddress = suggestedExternalIpAddress; // for any ipv4 must be ::ffff:0:0, for any ipv6 must be ::
+        this.suggestedExternalIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(suggestedExternalIpAddress);
     }
 
     /**
@@ -163,6 +166,7 @@ public final class MapPcpRequest extends PcpRequest {
         offset += 2;
 
         suggestedExternalIpAddress = NetworkUtils.convertBytesToAddress(buffer, offset, 16);
+        suggestedExternalIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(suggestedExternalIpAddress);
         offset += 16;
         
         validateState();
@@ -205,13 +209,22 @@ public final class MapPcpRequest extends PcpRequest {
         InternalUtils.shortToBytes(data, offset, (short) suggestedExternalPort);
         offset += 2;
 
-        byte[] ipv6Array = NetworkUtils.convertAddressToIpv6Bytes(suggestedExternalIpAddress);
-        System.arraycopy(ipv6Array, 0, data, offset, ipv6Array.length);
-        offset += ipv6Array.length;
+        System.arraycopy(suggestedExternalIpAddressBytes, 0, data, offset, suggestedExternalIpAddressBytes.length);
+        offset += suggestedExternalIpAddressBytes.length;
         
         return data;
     }
 
+    @Override
+    protected void encodeDataTo(ByteBuffer dst) {
+        dst.put(mappingNonce);
+        dst.put((byte) protocol);
+        dst.put((byte) 0).put((byte) 0).put((byte) 0); // 3 reserved bytes
+        dst.putShort((short) internalPort);
+        dst.putShort((short) suggestedExternalPort);
+        dst.put(suggestedExternalIpAddressBytes);
+    }
+
     /**
      * Get nonce.
      * @return nonce
@@ -16,8 +16,10 @@
 package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.InetAddress;
 import java.nio.BufferUnderflowException; // NOPMD Javadoc not recognized (fixed in latest PMD but maven plugin has to catch up)
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 import org.apache.commons.lang3.Validate;
@@ -148,10 +150,10 @@ public final class MapPcpResponse extends PcpResponse {
         
         offset += 3; // 3 reserved bytes
         
-        internalPort = InternalUtils.bytesToShort(buffer, offset);
+        internalPort = InternalUtils.bytesToShort(buffer, offset) & 0xFFFF;
         offset += 2;
         
-        assignedExternalPort = InternalUtils.bytesToShort(buffer, offset);
+        assignedExternalPort = InternalUtils.bytesToShort(buffer, offset) & 0xFFFF;
         offset += 2;
         
         assignedExternalIpAddress = NetworkUtils.convertBytesToAddress(buffer, offset, 16);
@@ -159,6 +161,22 @@ public final class MapPcpResponse extends PcpResponse {
         
         validateState();
     }
+
+    /**
+     * Parses a {@link MapPcpResponse} object from a buffer. Unlike {@link #MapPcpResponse(byte[]) }, a malformed buffer is reported through
+     * the returned result rather than by throwing an exception. The buffer is validated in place (see {@link MapPcpResponseView}) before
+     * anything is created.
+     * @param buffer buffer containing PCP response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<MapPcpResponse> tryParse(byte[] buffer) {
+        MapPcpResponseView view = new MapPcpResponseView();
+        if (!view.wrap(ByteBuffer.wrap(buffer))) {
+            return ParseResult.failure("Not a well-formed MAP PCP response");
+        }
+        return ParseResult.success(view.toResponse());
+    }
     
     private void validateState() {
         Validate.notNull(mappingNonce);
@@ -15,6 +15,9 @@
  */
 package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import org.apache.commons.lang3.Validate;
 
 /**
@@ -150,19 +153,53 @@ public abstract class PcpOption {
      * @return buffer containing PCP option
      */
     public final byte[] dump() {
-        byte[] data = getData();
-        
-        int bufferLength = getBufferLength();        
-        byte[] buffer = new byte[bufferLength];
-        
-        buffer[0] = (byte) code; // pcp code
-        buffer[1] = (byte) 0; // reserved
-        InternalUtils.shortToBytes(buffer, 2, (short) data.length); // length of pcp data
-        System.arraycopy(data, 0, buffer, 4, data.length); // pcp data
+        ByteBuffer buffer = ByteBuffer.allocate(getBufferLength());
+        encodeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Write this PCP option in to a buffer. Writes the same bytes as {@link #dump() } starting at {@code dst}'s position, but without
+     * creating any intermediate arrays -- use this to encode directly in to a reusable (or direct) buffer. Exactly
+     * {@link #getBufferLength() } bytes are written.
+     * @param dst buffer to write to (byte order is ignored, PCP fields are always written in network byte order)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws BufferOverflowException if {@code dst} has less than {@link #getBufferLength() } bytes remaining
+     */
+    public final void encodeTo(ByteBuffer dst) {
+        Validate.notNull(dst);
+        int bufferLength = getBufferLength();
+        if (dst.remaining() < bufferLength) {
+            throw new BufferOverflowException();
+        }
 
-        return buffer;
+        ByteOrder oldOrder = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        try {
+            int endPosition = dst.position() + bufferLength;
+            dst.put((byte) code); // pcp code
+            dst.put((byte) 0); // reserved
+            dst.putShort((short) dataLength); // length of pcp data
+            encodeDataTo(dst); // pcp data
+            while (dst.position() < endPosition) {
+                dst.put((byte) 0); // padding
+            }
+        } finally {
+            dst.order(oldOrder);
+        }
     }
 
+    // CHECKSTYLE:OFF:DesignForExtension
+    /**
+     * Write PCP option data (without padding) in to a buffer. The buffer is guaranteed to have enough space and be in network byte
+     * order. The default implementation copies {@link #getData() } in, override to write the fields directly instead.
+     * @param dst buffer to write to
+     */
+    protected void encodeDataTo(ByteBuffer dst) {
+        dst.put(getData());
+    }
+    // CHECKSTYLE:ON:DesignForExtension
+
     // CHECKSTYLE:OFF:DesignForExtension
     @Override
     public String toString() {
@@ -18,6 +18,9 @@ package com.offbynull.portmapper.mappers.pcp.externalmessages;
 import com.offbynull.portmapper.helpers.NetworkUtils;
 import static com.offbynull.portmapper.mappers.pcp.externalmessages.InternalUtils.PCP_VERSION;
 import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -102,6 +105,9 @@ public abstract class PcpRequest implements PcpMessage {
     private int dataLength;
     private int optionsLength;
 
+    private byte[] internalIpBytes; // ipv6 form, kept so encoding doesn't have to convert every time
+    private int bufferLength;
+
     /**
      * Constructs a {@link PcpRequest} object.
      * @param op PCP opcode
@@ -128,6 +134,7 @@ public abstract class PcpRequest implements PcpMessage {
         }
         
         validateState();
+        initEncodingState();
     }
 
     /**
@@ -175,6 +182,7 @@ public abstract class PcpRequest implements PcpMessage {
         }
         
         validateState();
+        initEncodingState();
     }
 
     private void validateState() {
@@ -186,6 +194,14 @@ public abstract class PcpRequest implements PcpMessage {
         Validate.noNullElements(options);
     }
 
+    private void initEncodingState() {
+        internalIpBytes = NetworkUtils.convertAddressToIpv6Bytes(internalIp);
+        bufferLength = HEADER_LENGTH + dataLength;
+        for (PcpOption option : options) {
+            bufferLength += option.getBufferLength();
+        }
+    }
+
     /**
      * Get opcode.
      * @return opcode
@@ -233,60 +249,67 @@ public abstract class PcpRequest implements PcpMessage {
     public abstract byte[] getData();
     
     /**
-     * Get the number of bytes this PCP option takes up when dumped out (length of buffer returned by {@link #dump() }).
-     * @return length of buffer containing PCP option
+     * Get the number of bytes this PCP request takes up when dumped out (length of buffer returned by {@link #dump() }).
+     * @return length of buffer containing PCP request
      */
     public final int getBufferLength() {
-        int length = HEADER_LENGTH + dataLength + optionsLength;
-        return length;
+        return bufferLength;
     }
 
     @Override
     public final byte[] dump() {
-        // first pass calculates required size + gets dumps
-        int payloadLength = HEADER_LENGTH;
-        
-        byte[] opcodeSpecificData = getData();
-        payloadLength += opcodeSpecificData.length;
-        
-        List<byte[]> optionsData = new ArrayList<>(options.size());
-        for (PcpOption option : options) {
-            byte[] optionData = option.dump();
-            payloadLength += optionData.length;
-            optionsData.add(optionData);
-        }
-        
-        
-        // combine dumps and return
-        Validate.isTrue(payloadLength <= InternalUtils.MAX_UDP_PAYLOAD);
-        byte[] data = new byte[payloadLength];
+        ByteBuffer buffer = ByteBuffer.allocate(getBufferLength());
+        encodeTo(buffer);
+        return buffer.array();
+    }
 
-        data[0] = 2;
-        data[1] = (byte) op; // topmost bit should be 0, because op is between 0 to 127, which means r-flag = 0
-        InternalUtils.shortToBytes(data, 2, (short) 0);
-        InternalUtils.intToBytes(data, 4, (int) lifetime);
+    /**
+     * Write this PCP request in to a buffer. Writes the same bytes as {@link #dump() } starting at {@code dst}'s position, but without
+     * creating any intermediate arrays -- use this to encode directly in to a reusable (or direct) buffer. Exactly
+     * {@link #getBufferLength() } bytes are written.
+     * @param dst buffer to write to (byte order is ignored, PCP fields are always written in network byte order)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if the generated packet is greater than 1100 bytes (section 7 of the RFC states: All PCP messages
+     * are sent over UDP, with a maximum UDP payload length of 1100 octets)
+     * @throws BufferOverflowException if {@code dst} has less than {@link #getBufferLength() } bytes remaining
+     */
+    public final void encodeTo(ByteBuffer dst) {
+        Validate.notNull(dst);
+        Validate.isTrue(bufferLength <= InternalUtils.MAX_UDP_PAYLOAD);
+        if (dst.remaining() < bufferLength) {
+            throw new BufferOverflowException();
+        }
 
-        // at offset 8, write ipv6 address
-        byte[] selfAddressArr = NetworkUtils.convertAddressToIpv6Bytes(internalIp);
-        System.arraycopy(selfAddressArr, 0, data, 8, selfAddressArr.length);
+        ByteOrder oldOrder = dst.order();
+        dst.order(ByteOrder.BIG_ENDIAN);
+        try {
+            dst.put((byte) PCP_VERSION);
+            dst.put((byte) op); // topmost bit should be 0, because op is between 0 to 127, which means r-flag = 0
+            dst.putShort((short) 0);
+            dst.putInt((int) lifetime);
+            dst.put(internalIpBytes);
 
-        int offset = 24;
-        
-        // write opcode-specific data
-        System.arraycopy(opcodeSpecificData, 0, data, offset, opcodeSpecificData.length);
-        offset += opcodeSpecificData.length;
+            encodeDataTo(dst);
 
-        // write options data
-        for (byte[] optionData : optionsData) {
-            System.arraycopy(optionData, 0, data, offset, optionData.length);
-            offset += optionData.length;
+            for (PcpOption option : options) {
+                option.encodeTo(dst);
+            }
+        } finally {
+            dst.order(oldOrder);
         }
-        
-        
-        // return data
-        return data;
     }
 
+    // CHECKSTYLE:OFF:DesignForExtension
+    /**
+     * Write PCP opcode-specific data in to a buffer. The buffer is guaranteed to have enough space and be in network byte order. The
+     * default implementation copies {@link #getData() } in, override to write the fields directly instead.
+     * @param dst buffer to write to
+     */
+    protected void encodeDataTo(ByteBuffer dst) {
+        dst.put(getData());
+    }
+    // CHECKSTYLE:ON:DesignForExtension
+
     // CHECKSTYLE:OFF:DesignForExtension
     @Override
     public String toString() {
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.pcp.externalmessages;
+
+import static com.offbynull.portmapper.mappers.pcp.externalmessages.InternalUtils.PCP_VERSION;
+import java.nio.ByteBuffer;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Flyweight view over a PCP response datagram. Unlike {@link PcpResponse}, nothing is copied or created when a datagram is wrapped: the
+ * datagram is validated in place and fields are decoded straight out of the buffer when they're asked for. The same view can be
+ * re-wrapped around each datagram that comes in, so checking if a datagram is the response being waited on (and if it's a success)
+ * doesn't allocate anything. Use {@link #toResponse() } to get a full {@link PcpResponse} once a response is accepted.
+ * <p>
+ * Views hold on to the wrapped buffer without copying it, so the buffer's contents must not change while wrapped. This class is not
+ * thread-safe.
+ * @author Kasra Faghihi
+ */
+public abstract class PcpResponseView {
+    /**
+     * PCP response header length.
+     */
+    protected static final int HEADER_LENGTH = 24;
+
+    private ByteBuffer buffer;
+    private int start;
+    private int length;
+
+    PcpResponseView() {
+        // only extendable within this package
+    }
+
+    /**
+     * Wrap a PCP response datagram. The datagram is the bytes between {@code buffer}'s position and limit. Neither the position nor the
+     * limit of {@code buffer} are modified.
+     * @param buffer buffer containing PCP response datagram
+     * @return {@code true} if the datagram is a well-formed response of the type this view is for (in which case it's now wrapped),
+     * {@code false} otherwise (in which case nothing is wrapped)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public final boolean wrap(ByteBuffer buffer) {
+        Validate.notNull(buffer);
+
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.length = buffer.remaining();
+
+        if (!isValid()) {
+            clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release the wrapped datagram (if any).
+     */
+    public final void clear() {
+        buffer = null;
+        start = 0;
+        length = 0;
+    }
+
+    /**
+     * Check if a datagram is wrapped.
+     * @return {@code true} if a datagram is wrapped, {@code false} otherwise
+     */
+    public final boolean isWrapped() {
+        return buffer != null;
+    }
+
+    private boolean isValid() {
+        int dataLength = getDataLength();
+        if (length < HEADER_LENGTH + dataLength || length > InternalUtils.MAX_UDP_PAYLOAD) {
+            return false;
+        }
+
+        if (u8(0) != PCP_VERSION // check pcp version
+                || (u8(1) & 128) != 128 // check top bit (r-flag) is 1
+                || (u8(1) & 0x7F) != getExpectedOp()) {
+            return false;
+        }
+
+        if (!isDataValid()) {
+            return false;
+        }
+
+        // walk the options region -- every option needs its full header + data + padding to be present (see PcpOption)
+        int offset = HEADER_LENGTH + dataLength;
+        while (offset < length) {
+            if (length - offset < PcpOption.HEADER_LENGTH) {
+                return false;
+            }
+            int optionDataLength = u16(offset + 2);
+            int optionLength = PcpOption.HEADER_LENGTH + optionDataLength + optionDataLength % PcpOption.DATA_PADDING_LIMIT;
+            if (length - offset < optionLength) {
+                return false;
+            }
+            offset += optionLength;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get opcode.
+     * @return opcode
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final int getOp() {
+        checkWrapped();
+        return u8(1) & 0x7F;
+    }
+
+    /**
+     * Get result code.
+     * @return result code
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final int getResultCode() {
+        checkWrapped();
+        return u8(3);
+    }
+
+    /**
+     * Get lifetime.
+     * @return lifetime in seconds
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final long getLifetime() {
+        checkWrapped();
+        return u32(4);
+    }
+
+    /**
+     * Get epoch time.
+     * @return epoch time in seconds
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final long getEpochTime() {
+        checkWrapped();
+        return u32(8);
+    }
+
+    /**
+     * Get the number of bytes taken up by PCP options (including option headers and padding).
+     * @return length of options region
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final int getOptionsLength() {
+        checkWrapped();
+        return length - HEADER_LENGTH - getDataLength();
+    }
+
+    /**
+     * Get the length of the wrapped datagram.
+     * @return length of wrapped datagram
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public final int getBufferLength() {
+        checkWrapped();
+        return length;
+    }
+
+    /**
+     * Copy the wrapped datagram out.
+     * @return copy of wrapped datagram
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    protected final byte[] copyBuffer() {
+        checkWrapped();
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = buffer.get(start + i);
+        }
+        return data;
+    }
+
+    /**
+     * Parse the wrapped datagram in to a full response object. This creates a copy of the datagram.
+     * @return response object
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public abstract PcpResponse toResponse();
+
+    abstract int getExpectedOp();
+
+    abstract int getDataLength();
+
+    // Called once the header has been checked, validates the opcode-specific data region (which is guaranteed to be present)
+    abstract boolean isDataValid();
+
+    final void checkWrapped() {
+        Validate.validState(buffer != null, "Nothing wrapped");
+    }
+
+    final int u8(int offset) {
+        return buffer.get(start + offset) & 0xFF;
+    }
+
+    final int u16(int offset) {
+        return (u8(offset) << 8) | u8(offset + 1);
+    }
+
+    final long u32(int offset) {
+        return ((long) u16(offset) << 16) | u16(offset + 2);
+    }
+
+    final long u64(int offset) {
+        return (u32(offset) << 32) | u32(offset + 4);
+    }
+
+    final boolean bytesEqual(int offset, byte[] other) {
+        for (int i = 0; i < other.length; i++) {
+            if (buffer.get(start + offset + i) != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // IPv4 addresses are sent as IPv4-mapped IPv6 addresses (::ffff:a.b.c.d)
+    final boolean isIpv4Mapped(int offset) {
+        return u64(offset) == 0L && u32(offset + 8) == 0xFFFFL;
+    }
+}
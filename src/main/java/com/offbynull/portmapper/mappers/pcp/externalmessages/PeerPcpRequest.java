@@ -17,6 +17,7 @@ package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 import org.apache.commons.lang3.Validate;
@@ -127,8 +128,10 @@ public final class PeerPcpRequest extends PcpRequest {
     private int internalPort;
     private int suggestedExternalPort;
     private InetAddress suggestedExternalIpAddress;
+    private byte[] suggestedExternalIpAddressBytes; // ipv6 form, kept so encoding doesn't have to convert every time
     private int remotePeerPort;
     private InetAddress remotePeerIpAddress;
+    private byte[] remotePeerIpAddressBytes; // ipv6 form, kept so encoding doesn't have to convert every time
     
     /**
      * Constructs a {@link PeerPcpRequest} object.
@@ -162,6 +165,8 @@ public final class PeerPcpRequest extends PcpRequest {
         this.suggestedExternalIpAddress = suggestedExternalIpAddress; // for any ipv4 must be ::ffff:0:0, for any ipv6 must be ::
         this.remotePeerPort = remotePeerPort;
         this.remotePeerIpAddress = remotePeerIpAddress; // for any ipv4 must be ::ffff:0:0, for any ipv6 must be ::
+        this.suggestedExternalIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(suggestedExternalIpAddress);
+        this.remotePeerIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(remotePeerIpAddress);
         
         validateState();
     }
@@ -201,6 +206,7 @@ public final class PeerPcpRequest extends PcpRequest {
         offset += 2;
 
         suggestedExternalIpAddress = NetworkUtils.convertBytesToAddress(buffer, offset, 16);
+        suggestedExternalIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(suggestedExternalIpAddress);
         offset += 16;
 
         remotePeerPort = InternalUtils.bytesToShort(buffer, offset);
@@ -209,6 +215,7 @@ public final class PeerPcpRequest extends PcpRequest {
         offset += 2; // reserved
         
         remotePeerIpAddress = NetworkUtils.convertBytesToAddress(buffer, offset, 16);
+        remotePeerIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(remotePeerIpAddress);
         offset += 16;
         
         
@@ -246,22 +253,33 @@ public final class PeerPcpRequest extends PcpRequest {
         InternalUtils.shortToBytes(data, offset, (short) suggestedExternalPort);
         offset += 2;
         
-        byte[] ipv6Array = NetworkUtils.convertAddressToIpv6Bytes(suggestedExternalIpAddress);
-        System.arraycopy(ipv6Array, 0, data, offset, ipv6Array.length);
-        offset += ipv6Array.length;
+        System.arraycopy(suggestedExternalIpAddressBytes, 0, data, offset, suggestedExternalIpAddressBytes.length);
+        offset += suggestedExternalIpAddressBytes.length;
 
         InternalUtils.shortToBytes(data, offset, (short) remotePeerPort);
         offset += 2;
         
         offset += 2; // 2 reserved bytes
 
-        ipv6Array = NetworkUtils.convertAddressToIpv6Bytes(remotePeerIpAddress);
-        System.arraycopy(ipv6Array, 0, data, offset, ipv6Array.length);
-        offset += ipv6Array.length;
+        System.arraycopy(remotePeerIpAddressBytes, 0, data, offset, remotePeerIpAddressBytes.length);
+        offset += remotePeerIpAddressBytes.length;
         
         return data;
     }
 
+    @Override
+    protected void encodeDataTo(ByteBuffer dst) {
+        dst.put(mappingNonce);
+        dst.put((byte) protocol);
+        dst.put((byte) 0).put((byte) 0).put((byte) 0); // 3 reserved bytes
+        dst.putShort((short) internalPort);
+        dst.putShort((short) suggestedExternalPort);
+        dst.put(suggestedExternalIpAddressBytes);
+        dst.putShort((short) remotePeerPort);
+        dst.put((byte) 0).put((byte) 0); // 2 reserved bytes
+        dst.put(remotePeerIpAddressBytes);
+    }
+
     /**
      * Get nonce.
      * @return nonce
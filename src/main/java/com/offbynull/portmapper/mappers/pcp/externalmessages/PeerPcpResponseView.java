@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.pcp.externalmessages;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Flyweight view over a PEER PCP response datagram. See {@link PcpResponseView} and {@link PeerPcpResponse}. IP addresses are exposed as
+ * two 64-bit words (network byte order) rather than as {@link java.net.InetAddress}es, so that they can be checked without creating
+ * anything.
+ * @author Kasra Faghihi
+ */
+public final class PeerPcpResponseView extends PcpResponseView {
+    private static final int OPCODE = 2;
+    private static final int DATA_LENGTH = 56;
+    private static final int NONCE_LENGTH = 12;
+
+    private static final int PROTOCOL_OFFSET = HEADER_LENGTH + NONCE_LENGTH;
+    private static final int INTERNAL_PORT_OFFSET = PROTOCOL_OFFSET + 4;
+    private static final int ASSIGNED_EXTERNAL_PORT_OFFSET = INTERNAL_PORT_OFFSET + 2;
+    private static final int ASSIGNED_EXTERNAL_IP_OFFSET = ASSIGNED_EXTERNAL_PORT_OFFSET + 2;
+    private static final int REMOTE_PEER_PORT_OFFSET = ASSIGNED_EXTERNAL_IP_OFFSET + 16;
+    private static final int REMOTE_PEER_IP_OFFSET = REMOTE_PEER_PORT_OFFSET + 4;
+
+    @Override
+    boolean isDataValid() {
+        // same checks as PeerPcpResponse
+        if (u8(PROTOCOL_OFFSET) == 0 || u16(INTERNAL_PORT_OFFSET) == 0 || u16(REMOTE_PEER_PORT_OFFSET) == 0) {
+            return false;
+        }
+        if (u8(3) == 0) { // success
+            return u16(ASSIGNED_EXTERNAL_PORT_OFFSET) != 0;
+        }
+        return true;
+    }
+
+    @Override
+    int getExpectedOp() {
+        return OPCODE;
+    }
+
+    @Override
+    int getDataLength() {
+        return DATA_LENGTH;
+    }
+
+    /**
+     * Check if the mapping nonce matches.
+     * @param mappingNonce nonce to compare against
+     * @return {@code true} if the nonces are the same, {@code false} otherwise
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code mappingNonce.length != 12}
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public boolean isMappingNonce(byte[] mappingNonce) {
+        Validate.notNull(mappingNonce);
+        Validate.isTrue(mappingNonce.length == NONCE_LENGTH);
+        checkWrapped();
+        return bytesEqual(HEADER_LENGTH, mappingNonce);
+    }
+
+    /**
+     * Get IANA protocol number.
+     * @return IANA protocol number
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public int getProtocol() {
+        checkWrapped();
+        return u8(PROTOCOL_OFFSET);
+    }
+
+    /**
+     * Get internal port number.
+     * @return internal port number
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public int getInternalPort() {
+        checkWrapped();
+        return u16(INTERNAL_PORT_OFFSET);
+    }
+
+    /**
+     * Get assigned external port number.
+     * @return assigned external port number
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public int getAssignedExternalPort() {
+        checkWrapped();
+        return u16(ASSIGNED_EXTERNAL_PORT_OFFSET);
+    }
+
+    /**
+     * Get the upper 64 bits of the assigned external IP address (as an IPv6 address).
+     * @return upper 64 bits of assigned external IP address
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public long getAssignedExternalIpAddressHigh() {
+        checkWrapped();
+        return u64(ASSIGNED_EXTERNAL_IP_OFFSET);
+    }
+
+    /**
+     * Get the lower 64 bits of the assigned external IP address (as an IPv6 address).
+     * @return lower 64 bits of assigned external IP address
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public long getAssignedExternalIpAddressLow() {
+        checkWrapped();
+        return u64(ASSIGNED_EXTERNAL_IP_OFFSET + 8);
+    }
+
+    /**
+     * Get remote peer port number.
+     * @return remote peer port number
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public int getRemotePeerPort() {
+        checkWrapped();
+        return u16(REMOTE_PEER_PORT_OFFSET);
+    }
+
+    /**
+     * Get the upper 64 bits of the remote peer IP address (as an IPv6 address).
+     * @return upper 64 bits of remote peer IP address
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public long getRemotePeerIpAddressHigh() {
+        checkWrapped();
+        return u64(REMOTE_PEER_IP_OFFSET);
+    }
+
+    /**
+     * Get the lower 64 bits of the remote peer IP address (as an IPv6 address).
+     * @return lower 64 bits of remote peer IP address
+     * @throws IllegalStateException if nothing is wrapped
+     */
+    public long getRemotePeerIpAddressLow() {
+        checkWrapped();
+        return u64(REMOTE_PEER_IP_OFFSET + 8);
+    }
+
+    @Override
+    public PeerPcpResponse toResponse() {
+        return new PeerPcpResponse(copyBuffer());
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
+import java.nio.ByteBuffer;
 import org.apache.commons.lang3.Validate;
 
 /**
@@ -74,6 +75,11 @@ public final class PreferFailurePcpOption extends PcpOption {
         return new byte[0];
     }
 
+    @Override
+    protected void encodeDataTo(ByteBuffer dst) {
+        // no data
+    }
+
     @Override
     public String toString() {
         return "PreferFailurePcpOption{super=" + super.toString() + '}';
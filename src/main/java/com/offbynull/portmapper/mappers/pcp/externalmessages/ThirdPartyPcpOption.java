@@ -17,6 +17,7 @@ package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 import org.apache.commons.lang3.Validate;
 
@@ -68,6 +69,7 @@ public final class ThirdPartyPcpOption extends PcpOption {
     private static final int DATA_LENGTH = 16;
 
     private InetAddress internalIpAddress;
+    private byte[] internalIpAddressBytes; // ipv6 form, kept so encoding doesn't have to convert every time
 
     /**
      * Constructs a {@link ThirdPartyPcpOption} by parsing a buffer.
@@ -86,6 +88,7 @@ public final class ThirdPartyPcpOption extends PcpOption {
         offset += HEADER_LENGTH;
 
         internalIpAddress = NetworkUtils.convertBytesToAddress(buffer, offset, 16);
+        internalIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(internalIpAddress);
         offset += 16;
     }
 
@@ -100,6 +103,7 @@ public final class ThirdPartyPcpOption extends PcpOption {
         Validate.notNull(internalIpAddress);
 
         this.internalIpAddress = internalIpAddress;
+        this.internalIpAddressBytes = NetworkUtils.convertAddressToIpv6Bytes(internalIpAddress);
     }
 
     /**
@@ -115,13 +119,16 @@ public final class ThirdPartyPcpOption extends PcpOption {
         byte[] data = new byte[DATA_LENGTH];
 
         // write ip
-        byte[] ipv6AsBytes = NetworkUtils.convertAddressToIpv6Bytes(internalIpAddress);
-        Validate.validState(ipv6AsBytes.length == 16); // sanity check, should never throw exception
-        System.arraycopy(ipv6AsBytes, 0, data, 0, ipv6AsBytes.length);
+        System.arraycopy(internalIpAddressBytes, 0, data, 0, internalIpAddressBytes.length);
         
         return data;
     }
 
+    @Override
+    protected void encodeDataTo(ByteBuffer dst) {
+        dst.put(internalIpAddressBytes);
+    }
+
     @Override
     public String toString() {
         return "ThirdPartyPcpOption{super=" + super.toString() + "internalIpAddress=" + internalIpAddress + '}';
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -65,6 +66,11 @@ public final class UnknownPcpOption extends PcpOption {
         return Arrays.copyOf(data, data.length);
     }
 
+    @Override
+    protected void encodeDataTo(ByteBuffer dst) {
+        dst.put(data);
+    }
+
     @Override
     public String toString() {
         return "UnknownPcpOption{super=" + super.toString() + "data=" + Arrays.toString(data) + '}';
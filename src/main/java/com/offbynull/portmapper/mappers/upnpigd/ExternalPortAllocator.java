@@ -0,0 +1,298 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import com.offbynull.portmapper.mapper.PortType;
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.RandomUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Chooses external ports to try when a UPnP-IGD device refuses to map the external port that was asked for. Each service on a device gets
+ * its own allocator, shared by every mapper talking to that service, which remembers (per protocol) which external ports are held by those
+ * mappers, which ports the device has refused (most likely because something else on the network holds them), and which ports the caller
+ * has reserved for itself. Candidates skip over all of those and are spread across the device's external port range rather than clustered
+ * together, so conflicts usually resolve within one or two attempts.
+ * <p>
+ * Ports the device refused are forgotten after {@link #CONFLICT_DURATION} milliseconds (the hosts holding them may have let go by then), or
+ * right away if every port in the range ends up excluded.
+ * @author Kasra Faghihi
+ */
+public final class ExternalPortAllocator {
+    /**
+     * Number of milliseconds that a port the device refused is skipped over for.
+     */
+    public static final long CONFLICT_DURATION = 10L * 60L * 1000L;
+
+    private static final int PORTS_PER_TYPE = 65536;
+    private static final double SPREAD = 0.6180339887498949; // golden ratio -- consecutive candidates land far apart in the range
+
+    private static final ConcurrentMap<DeviceKey, ExternalPortAllocator> ALLOCATORS = new ConcurrentHashMap<>();
+
+    private final int minPort;
+    private final int size;
+    private final int step;
+
+    private final long conflictDuration;
+
+    private final BitSet allocated;
+    private final LinkedHashMap<Integer, Long> conflicted; // index to expiry time, in order of expiry (all use the same duration)
+    private final BitSet reserved;
+    private int cursor;
+
+    ExternalPortAllocator(int minPort, int maxPort) {
+        this(minPort, maxPort, CONFLICT_DURATION);
+    }
+
+    ExternalPortAllocator(int minPort, int maxPort, long conflictDuration) {
+        minPort = Math.max(1, minPort); // 0 is a wildcard, never hand it out
+        Validate.isTrue(maxPort <= 65535);
+        Validate.isTrue(conflictDuration >= 0L);
+
+        this.minPort = minPort;
+        this.size = Math.max(0, maxPort - minPort + 1);
+        this.step = calculateStep(size);
+        this.conflictDuration = conflictDuration;
+
+        this.allocated = new BitSet(PORTS_PER_TYPE * PortType.values().length);
+        this.conflicted = new LinkedHashMap<>();
+        this.reserved = new BitSet(PORTS_PER_TYPE * PortType.values().length);
+        this.cursor = size == 0 ? 0 : RandomUtils.nextInt(0, size);
+    }
+
+    // Get the allocator shared by all mappers talking to the same service on a device, creating one if it doesn't exist yet. Mappers are
+    // created fresh every time a device is discovered, so keeping the allocator on the mapper would forget which ports are held/refused
+    // (and which ports the caller reserved) each time.
+    static ExternalPortAllocator forDevice(InetAddress deviceAddress, String serviceType, int minPort, int maxPort) {
+        Validate.notNull(deviceAddress);
+        Validate.notNull(serviceType);
+        DeviceKey key = new DeviceKey(deviceAddress, serviceType, minPort, maxPort);
+        ExternalPortAllocator allocator = ALLOCATORS.get(key);
+        if (allocator == null) {
+            ExternalPortAllocator newAllocator = new ExternalPortAllocator(minPort, maxPort);
+            allocator = ALLOCATORS.putIfAbsent(key, newAllocator);
+            if (allocator == null) {
+                allocator = newAllocator;
+            }
+        }
+        return allocator;
+    }
+
+    private static int calculateStep(int size) {
+        if (size <= 2) {
+            return 1;
+        }
+        int step = (int) (size * SPREAD);
+        while (gcd(step, size) != 1) { // must be coprime with size so that every port in the range gets visited
+            step++;
+        }
+        return step;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Choose the next external port to try. The port returned is within the device's external port range and isn't held by this mapper,
+     * known to be held by something else, or reserved.
+     * @param portType port type
+     * @return external port to try, or {@code -1} if every port in the range is held or reserved
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public synchronized int nextPort(PortType portType) {
+        Validate.notNull(portType);
+
+        expireConflicts();
+        int port = scan(portType);
+        if (port == -1 && clearConflicts(portType)) {
+            port = scan(portType);
+        }
+        return port;
+    }
+
+    private int scan(PortType portType) {
+        for (int i = 0; i < size; i++) {
+            cursor = (cursor + step) % size;
+            int port = minPort + cursor;
+            int idx = index(portType, port);
+            if (!allocated.get(idx) && !conflicted.containsKey(idx) && !reserved.get(idx)) {
+                return port;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reserve a range of external ports so that they're never chosen by {@link #nextPort(com.offbynull.portmapper.mapper.PortType) }.
+     * Reserved ports can still be mapped by explicitly asking for them.
+     * @param portType port type
+     * @param startPort first port in range (inclusive)
+     * @param endPort last port in range (inclusive)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code 1 > startPort > 65535 || 1 > endPort > 65535 || startPort > endPort}
+     */
+    public synchronized void reserve(PortType portType, int startPort, int endPort) {
+        validateRange(portType, startPort, endPort);
+        reserved.set(index(portType, startPort), index(portType, endPort) + 1);
+    }
+
+    /**
+     * Release a range of external ports previously reserved by {@link #reserve(com.offbynull.portmapper.mapper.PortType, int, int) }.
+     * @param portType port type
+     * @param startPort first port in range (inclusive)
+     * @param endPort last port in range (inclusive)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code 1 > startPort > 65535 || 1 > endPort > 65535 || startPort > endPort}
+     */
+    public synchronized void unreserve(PortType portType, int startPort, int endPort) {
+        validateRange(portType, startPort, endPort);
+        reserved.clear(index(portType, startPort), index(portType, endPort) + 1);
+    }
+
+    private static void validateRange(PortType portType, int startPort, int endPort) {
+        Validate.notNull(portType);
+        Validate.inclusiveBetween(1, 65535, startPort);
+        Validate.inclusiveBetween(1, 65535, endPort);
+        Validate.isTrue(startPort <= endPort);
+    }
+
+    /**
+     * Check if the device has refused to map an external port (and that port hasn't since been seen free or been forgotten).
+     * @param portType port type
+     * @param port external port
+     * @return {@code true} if {@code port} is known to be held by something else
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public synchronized boolean isConflicted(PortType portType, int port) {
+        Validate.notNull(portType);
+        expireConflicts();
+        return isValidPort(port) && conflicted.containsKey(index(portType, port));
+    }
+
+    /**
+     * Forget all external ports that the device has refused to map.
+     */
+    public synchronized void clearConflicts() {
+        conflicted.clear();
+    }
+
+    private boolean clearConflicts(PortType portType) {
+        int start = index(portType, 0);
+        int end = start + PORTS_PER_TYPE;
+        boolean found = false;
+        Iterator<Integer> it = conflicted.keySet().iterator();
+        while (it.hasNext()) {
+            int idx = it.next();
+            if (idx >= start && idx < end) {
+                it.remove();
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    private void expireConflicts() {
+        long now = System.nanoTime();
+        Iterator<Long> it = conflicted.values().iterator();
+        while (it.hasNext() && it.next() - now <= 0L) {
+            it.remove();
+        }
+    }
+
+    synchronized void markAllocated(PortType portType, int port) {
+        if (isValidPort(port)) {
+            int idx = index(portType, port);
+            allocated.set(idx);
+            conflicted.remove(idx);
+        }
+    }
+
+    synchronized void markConflicted(PortType portType, int port) {
+        if (isValidPort(port)) {
+            int idx = index(portType, port);
+            allocated.clear(idx);
+            conflicted.remove(idx); // re-added so that it stays in order of expiry
+            conflicted.put(idx, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(conflictDuration));
+        }
+    }
+
+    synchronized void markFree(PortType portType, int port) {
+        if (isValidPort(port)) {
+            int idx = index(portType, port);
+            allocated.clear(idx);
+            conflicted.remove(idx);
+        }
+    }
+
+    private static boolean isValidPort(int port) {
+        return port >= 1 && port <= 65535;
+    }
+
+    private static int index(PortType portType, int port) {
+        return portType.ordinal() * PORTS_PER_TYPE + port;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExternalPortAllocator{" + "minPort=" + minPort + ", size=" + size + ", allocated=" + allocated.cardinality()
+                + ", conflicted=" + conflicted.size() + ", reserved=" + reserved.cardinality() + '}';
+    }
+
+    private static final class DeviceKey {
+        private final InetAddress deviceAddress;
+        private final String serviceType;
+        private final int minPort;
+        private final int maxPort;
+
+        DeviceKey(InetAddress deviceAddress, String serviceType, int minPort, int maxPort) {
+            this.deviceAddress = deviceAddress;
+            this.serviceType = serviceType;
+            this.minPort = minPort;
+            this.maxPort = maxPort;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceAddress, serviceType, minPort, maxPort);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            DeviceKey other = (DeviceKey) obj;
+            return minPort == other.minPort && maxPort == other.maxPort && deviceAddress.equals(other.deviceAddress)
+                    && serviceType.equals(other.serviceType);
+        }
+    }
+}
@@ -18,15 +18,18 @@ package com.offbynull.portmapper.mappers.upnpigd;
 import com.offbynull.portmapper.mapper.MappedPort;
 import com.offbynull.portmapper.mapper.PortType;
 import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import org.apache.commons.lang3.Validate;
 
 final class FirewallMappedPort implements MappedPort {
     
-    private String key;
-    private int internalPort;
-    private int externalPort;
-    private PortType portType;
-    private long lifetime;
+    private final String key;
+    private final int internalPort;
+    private final int externalPort;
+    private final PortType portType;
+    private final long lifetime;
 
     FirewallMappedPort(String key, int internalPort, int externalPort, PortType portType, long duration) {
         Validate.notNull(key);
@@ -45,6 +48,36 @@ final class FirewallMappedPort implements MappedPort {
         return key;
     }
 
+    byte[] dump() {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + 2 + 8 + 2 + keyBytes.length);
+        buffer.put((byte) portType.ordinal());
+        buffer.putShort((short) internalPort);
+        buffer.putShort((short) externalPort);
+        buffer.putLong(lifetime);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        return buffer.array();
+    }
+
+    static FirewallMappedPort load(byte[] data) {
+        Validate.notNull(data);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            PortType portType = PortType.values()[buffer.get()];
+            int internalPort = buffer.getShort() & 0xFFFF;
+            int externalPort = buffer.getShort() & 0xFFFF;
+            long lifetime = buffer.getLong();
+            byte[] keyBytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            Validate.isTrue(!buffer.hasRemaining());
+            return new FirewallMappedPort(key, internalPort, externalPort, portType, lifetime);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
     @Override
     public int getInternalPort() {
         return internalPort;
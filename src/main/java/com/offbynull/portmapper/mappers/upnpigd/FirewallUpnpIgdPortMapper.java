@@ -16,22 +16,27 @@
 package com.offbynull.portmapper.mappers.upnpigd;
 
 import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.ParseResult;
 import com.offbynull.portmapper.mapper.PortType;
 import com.offbynull.portmapper.gateway.Bus;
-import com.offbynull.portmapper.mapper.MapperIoUtils.BytesToResponseTransformer;
 import com.offbynull.portmapper.mapper.MapperIoUtils.TcpRequest;
-import static com.offbynull.portmapper.mapper.MapperIoUtils.performTcpRequests;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.performLimitedTcpRequests;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.AddPinholeUpnpIgdRequest;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.AddPinholeUpnpIgdResponse;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.DeletePinholeUpnpIgdRequest;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.DeletePinholeUpnpIgdResponse;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.NO_SUCH_ENTRY;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.UpdatePinholeUpnpIgdRequest;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.UpdatePinholeUpnpIgdResponse;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
-import org.apache.commons.lang3.RandomUtils;
+import java.util.List;
 import org.apache.commons.lang3.Range;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
@@ -80,69 +85,48 @@ public final class FirewallUpnpIgdPortMapper extends UpnpIgdPortMapper {
         Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
 
         Bus networkBus = getNetworkBus();
-        URL controlUrl = getControlUrl();
-        String serviceType = getServiceType();
-        InetAddress internalAddress = getInternalAddress();
 
-        // attempt to map 5 times -- first attempt should be 3 tries to map the externalPort passed in... anything after that is 1 attempt
-        // to map a randomized externalPort
+        // attempt to map 5 times -- first attempt should be 3 tries to map the externalPort passed in (unless the device is already known
+        // to have refused it)... anything after that is 1 attempt to map an external port picked by the allocator
         long[] retryDurations = new long[] {5000L, 5000L, 5000L};
+        externalPort = firstExternalPort(portType, externalPort);
         for (int i = 0; i < 5; i++) {
             Range<Long> externalPortRange = getExternalPortRange();
-            Range<Long> leaseDurationRange = getLeaseDurationRange();
-            long leaseDuration;
-            if (leaseDurationRange.isBefore(lifetime)) {
-                leaseDuration = leaseDurationRange.getMaximum();
-            } else if (leaseDurationRange.isAfter(lifetime)) {
-                leaseDuration = leaseDurationRange.getMinimum();
-            } else {
-                leaseDuration = lifetime;
-            }
+            long leaseDuration = clampLeaseDuration(lifetime);
 
             Validate.validState(externalPortRange.contains((long) externalPort),
                     "Router reports external port mappings as %s", externalPortRange);
 
-            TcpRequest mapHttpRequest = new TcpRequest(
-                    internalAddress,
-                    controlUrlAddress,
-                    new AddPinholeUpnpIgdRequest(
-                            controlUrl.getAuthority(),
-                            controlUrl.getFile(),
-                            serviceType,
-                            null,
-                            externalPort,
-                            internalAddress,
-                            internalPort,
-                            portType,
-                            leaseDuration),
-                    new BasicRequestTransformer(),
-                    new BytesToResponseTransformer() {
-                        @Override
-                        public Object create(byte[] buffer) {
-                            return new AddPinholeUpnpIgdResponse(buffer);
-                        }
-                    });
-
-            performTcpRequests(
+            TcpRequest mapHttpRequest = createAddPinholeRequest(portType, internalPort, externalPort, leaseDuration);
+
+            performLimitedTcpRequests(
                     networkBus,
+                    getLimiter(),
                     Collections.singleton(mapHttpRequest),
                     retryDurations);
 
             if (mapHttpRequest.getResponse() != null) {
                 // server responded, so we're good to go
                 String key = ((AddPinholeUpnpIgdResponse) mapHttpRequest.getResponse()).getUniqueId();
+                getExternalPortAllocator().markAllocated(portType, externalPort);
                 
                 MappedPort mappedPort = new FirewallMappedPort(key, internalPort, externalPort, portType, leaseDuration);
                 LOG.debug("Map successful {}", mappedPort);
                 
                 return mappedPort;
             }
+            if (!isConflict(mapHttpRequest)) {
+                // no response (already resent, so device is out of reach) or device refused for a reason other than the port being taken
+                // (e.g. firewall disabled or pinhole space exhausted), trying another port won't help
+                throw toError(mapHttpRequest, "No response/invalid response to mapping");
+            }
             
-            // choose another external port for next try -- next try only make 1 attempt
+            // port is taken, choose another external port for next try -- next try only make 1 attempt
             retryDurations = new long[] {5000L};
-            externalPort = RandomUtils.nextInt(
-                    externalPortRange.getMinimum().intValue(), // should never be < 1
-                    externalPortRange.getMaximum().intValue() + 1); // should never be > 65535
+            externalPort = nextExternalPort(portType, externalPort);
+            if (externalPort == -1) {
+                break;
+            }
         }
         
         
@@ -158,35 +142,20 @@ public final class FirewallUpnpIgdPortMapper extends UpnpIgdPortMapper {
         Validate.isTrue(mappedPort instanceof FirewallMappedPort);
 
         Bus networkBus = getNetworkBus();
-        URL controlUrl = getControlUrl();
-        String serviceType = getServiceType();
-        String key = ((FirewallMappedPort) mappedPort).getKey();
-        InetAddress internalAddress = getInternalAddress();
         
-        TcpRequest httpRequest = new TcpRequest(
-                internalAddress,
-                controlUrlAddress,
-                new DeletePinholeUpnpIgdRequest(
-                        controlUrl.getAuthority(),
-                        controlUrl.getFile(),
-                        serviceType,
-                        key),
-                new BasicRequestTransformer(),
-                new BytesToResponseTransformer() {
-                    @Override
-                    public Object create(byte[] buffer) {
-                        return new DeletePinholeUpnpIgdResponse(buffer);
-                    }
-                });
+        TcpRequest httpRequest = createDeletePinholeRequest((FirewallMappedPort) mappedPort);
         
-        performTcpRequests(
+        performLimitedTcpRequests(
                 networkBus,
+                getLimiter(),
                 Collections.singleton(httpRequest),
                 5000L, 5000L, 5000L);
         
-        if (httpRequest.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to unmapping");
+        IllegalStateException error = toUnmapError(httpRequest);
+        if (error != null) {
+            throw error;
         }
+        getExternalPortAllocator().markFree(mappedPort.getPortType(), mappedPort.getExternalPort());
         
         LOG.debug("Unmap successful {}", mappedPort);
     }
@@ -199,44 +168,20 @@ public final class FirewallUpnpIgdPortMapper extends UpnpIgdPortMapper {
         Validate.isTrue(mappedPort instanceof FirewallMappedPort);
 
         Bus networkBus = getNetworkBus();
-        URL controlUrl = getControlUrl();
-        String serviceType = getServiceType();
-        Range<Long> leaseDurationRange = getLeaseDurationRange();
-        long leaseDuration;
-        if (leaseDurationRange.isBefore(lifetime)) {
-            leaseDuration = leaseDurationRange.getMaximum();
-        } else if (leaseDurationRange.isAfter(lifetime)) {
-            leaseDuration = leaseDurationRange.getMinimum();
-        } else {
-            leaseDuration = lifetime;
-        }
+        long leaseDuration = clampLeaseDuration(lifetime);
         String key = ((FirewallMappedPort) mappedPort).getKey();
-        InetAddress internalAddress = getInternalAddress();
         
-        TcpRequest httpRequest = new TcpRequest(
-                internalAddress,
-                controlUrlAddress,
-                new UpdatePinholeUpnpIgdRequest(
-                        controlUrl.getAuthority(),
-                        controlUrl.getFile(),
-                        serviceType,
-                        key,
-                        leaseDuration),
-                new BasicRequestTransformer(),
-                new BytesToResponseTransformer() {
-                    @Override
-                    public Object create(byte[] buffer) {
-                        return new UpdatePinholeUpnpIgdResponse(buffer);
-                    }
-                });
+        TcpRequest httpRequest = createUpdatePinholeRequest(key, leaseDuration);
         
-        performTcpRequests(
+        performLimitedTcpRequests(
                 networkBus,
+                getLimiter(),
                 Collections.singleton(httpRequest),
                 5000L, 5000L, 5000L);
         
-        if (httpRequest.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to refresh");
+        IllegalStateException error = toError(httpRequest, "No response/invalid response to refresh");
+        if (error != null) {
+            throw error;
         }
         
         FirewallMappedPort newMappedPort = new FirewallMappedPort(key, mappedPort.getInternalPort(), mappedPort.getExternalPort(),
@@ -247,6 +192,239 @@ public final class FirewallUpnpIgdPortMapper extends UpnpIgdPortMapper {
         return newMappedPort;
     }
 
+    @Override
+    public List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException {
+        LOG.info("Attempting to map {}", requests);
+
+        Validate.notNull(requests);
+        Validate.noNullElements(requests);
+
+        List<PortMappingResult> results = new ArrayList<>(Collections.<PortMappingResult>nCopies(requests.size(), null));
+        Range<Long> externalPortRange = getExternalPortRange();
+
+        int[] externalPorts = new int[requests.size()];
+        List<Integer> pending = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            int externalPort = requests.get(i).getExternalPort();
+            if (!externalPortRange.contains((long) externalPort)) {
+                results.set(i, new PortMappingResult(
+                        new IllegalStateException("Router reports external port mappings as " + externalPortRange)));
+                continue;
+            }
+            externalPorts[i] = firstExternalPort(requests.get(i).getPortType(), externalPort);
+            pending.add(i);
+        }
+
+        // same approach as mapPort() -- first attempt should be 3 tries to map the externalPorts passed in... anything after that is 1
+        // attempt to map external ports picked by the allocator
+        long[] retryDurations = new long[] {5000L, 5000L, 5000L};
+        for (int attempt = 0; attempt < 5 && !pending.isEmpty(); attempt++) {
+            List<TcpRequest> mapHttpRequests = new ArrayList<>(pending.size());
+            for (int idx : pending) {
+                PortMappingRequest request = requests.get(idx);
+                long leaseDuration = clampLeaseDuration(request.getLifetime());
+                TcpRequest mapHttpRequest = createAddPinholeRequest(request.getPortType(), request.getInternalPort(), externalPorts[idx],
+                        leaseDuration);
+                mapHttpRequest.setOther(idx);
+                mapHttpRequests.add(mapHttpRequest);
+            }
+
+            performLimitedTcpRequests(getNetworkBus(), getLimiter(), mapHttpRequests, retryDurations);
+
+            List<Integer> nextPending = new ArrayList<>();
+            for (TcpRequest mapHttpRequest : mapHttpRequests) {
+                int idx = (Integer) mapHttpRequest.getOther();
+                PortMappingRequest request = requests.get(idx);
+                if (isConflict(mapHttpRequest)) {
+                    // port is taken, choose another external port for next try
+                    externalPorts[idx] = nextExternalPort(request.getPortType(), externalPorts[idx]);
+                    if (externalPorts[idx] != -1) {
+                        nextPending.add(idx);
+                    } else {
+                        results.set(idx, new PortMappingResult(new IllegalStateException("No free external ports left to try")));
+                    }
+                    continue;
+                } else if (!(mapHttpRequest.getResponse() instanceof AddPinholeUpnpIgdResponse)) {
+                    // no response or device refused for a reason other than the port being taken, trying another port won't help
+                    results.set(idx, new PortMappingResult(toError(mapHttpRequest, "No response/invalid response to mapping")));
+                    continue;
+                }
+
+                String key = ((AddPinholeUpnpIgdResponse) mapHttpRequest.getResponse()).getUniqueId();
+                getExternalPortAllocator().markAllocated(request.getPortType(), externalPorts[idx]);
+                MappedPort mappedPort = new FirewallMappedPort(key, request.getInternalPort(), externalPorts[idx], request.getPortType(),
+                        clampLeaseDuration(request.getLifetime()));
+                results.set(idx, new PortMappingResult(mappedPort));
+            }
+
+            pending = nextPending;
+            retryDurations = new long[] {5000L};
+        }
+
+        for (int idx : pending) {
+            results.set(idx, new PortMappingResult(new IllegalStateException("No response/invalid response to mapping")));
+        }
+        LOG.debug("Bulk map completed {}", results);
+
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        LOG.info("Attempting to unmap {}", mappedPorts);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof FirewallMappedPort);
+        }
+
+        List<TcpRequest> httpRequests = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            httpRequests.add(createDeletePinholeRequest((FirewallMappedPort) mappedPort));
+        }
+        if (!httpRequests.isEmpty()) {
+            performLimitedTcpRequests(getNetworkBus(), getLimiter(), httpRequests, 5000L, 5000L, 5000L);
+        }
+
+        List<PortMappingResult> results = new ArrayList<>(mappedPorts.size());
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            MappedPort mappedPort = mappedPorts.get(i);
+            IllegalStateException error = toUnmapError(httpRequests.get(i));
+            if (error != null) {
+                results.add(new PortMappingResult(error));
+            } else {
+                getExternalPortAllocator().markFree(mappedPort.getPortType(), mappedPort.getExternalPort());
+                results.add(new PortMappingResult(mappedPort));
+            }
+        }
+        LOG.debug("Bulk unmap completed {}", results);
+
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        LOG.info("Attempting to refresh mappings {} for {}", mappedPorts, lifetime);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof FirewallMappedPort);
+        }
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        // pinholes are refreshed in place (UpdatePinhole) so unlike the other mappers there's no chance of the external port changing
+        long leaseDuration = clampLeaseDuration(lifetime);
+        List<TcpRequest> httpRequests = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            httpRequests.add(createUpdatePinholeRequest(((FirewallMappedPort) mappedPort).getKey(), leaseDuration));
+        }
+        if (!httpRequests.isEmpty()) {
+            performLimitedTcpRequests(getNetworkBus(), getLimiter(), httpRequests, 5000L, 5000L, 5000L);
+        }
+
+        List<PortMappingResult> results = new ArrayList<>(mappedPorts.size());
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            IllegalStateException error = toError(httpRequests.get(i), "No response/invalid response to refresh");
+            if (error != null) {
+                results.add(new PortMappingResult(error));
+                continue;
+            }
+            FirewallMappedPort mappedPort = (FirewallMappedPort) mappedPorts.get(i);
+            results.add(new PortMappingResult(new FirewallMappedPort(mappedPort.getKey(), mappedPort.getInternalPort(),
+                    mappedPort.getExternalPort(), mappedPort.getPortType(), leaseDuration)));
+        }
+        LOG.debug("Bulk refresh completed {}", results);
+
+        return results;
+    }
+
+    // Deleting a pinhole that the device doesn't have (e.g. it already expired) isn't a failure -- the end result is the same
+    private static IllegalStateException toUnmapError(TcpRequest httpRequest) {
+        FaultUpnpIgdResponse fault = getFault(httpRequest);
+        if (fault != null && fault.getErrorCode() == NO_SUCH_ENTRY) {
+            return null;
+        }
+        return toError(httpRequest, "No response/invalid response to unmapping");
+    }
+
+    private TcpRequest createAddPinholeRequest(PortType portType, int internalPort, int externalPort, long leaseDuration) {
+        URL controlUrl = getControlUrl();
+        InetAddress internalAddress = getInternalAddress();
+        return new TcpRequest(
+                internalAddress,
+                controlUrlAddress,
+                new AddPinholeUpnpIgdRequest(
+                        controlUrl.getAuthority(),
+                        controlUrl.getFile(),
+                        getServiceType(),
+                        null,
+                        externalPort,
+                        internalAddress,
+                        internalPort,
+                        portType,
+                        leaseDuration),
+                new BasicRequestTransformer(),
+                new FaultAwareResponseTransformer() {
+                    @Override
+                    protected ParseResult<?> createResponse(byte[] buffer) {
+                        return AddPinholeUpnpIgdResponse.tryParse(buffer);
+                    }
+                });
+    }
+
+    private TcpRequest createDeletePinholeRequest(FirewallMappedPort mappedPort) {
+        URL controlUrl = getControlUrl();
+        return new TcpRequest(
+                getInternalAddress(),
+                controlUrlAddress,
+                new DeletePinholeUpnpIgdRequest(
+                        controlUrl.getAuthority(),
+                        controlUrl.getFile(),
+                        getServiceType(),
+                        mappedPort.getKey()),
+                new BasicRequestTransformer(),
+                new FaultAwareResponseTransformer() {
+                    @Override
+                    protected ParseResult<?> createResponse(byte[] buffer) {
+                        return DeletePinholeUpnpIgdResponse.tryParse(buffer);
+                    }
+                });
+    }
+
+    private TcpRequest createUpdatePinholeRequest(String key, long leaseDuration) {
+        URL controlUrl = getControlUrl();
+        return new TcpRequest(
+                getInternalAddress(),
+                controlUrlAddress,
+                new UpdatePinholeUpnpIgdRequest(
+                        controlUrl.getAuthority(),
+                        controlUrl.getFile(),
+                        getServiceType(),
+                        key,
+                        leaseDuration),
+                new BasicRequestTransformer(),
+                new FaultAwareResponseTransformer() {
+                    @Override
+                    protected ParseResult<?> createResponse(byte[] buffer) {
+                        return UpdatePinholeUpnpIgdResponse.tryParse(buffer);
+                    }
+                });
+    }
+
+    @Override
+    public byte[] saveMappedPort(MappedPort mappedPort) {
+        Validate.notNull(mappedPort);
+        Validate.isTrue(mappedPort instanceof FirewallMappedPort);
+        return ((FirewallMappedPort) mappedPort).dump();
+    }
+
+    @Override
+    public MappedPort restoreMappedPort(byte[] data) {
+        return FirewallMappedPort.load(data);
+    }
+
     @Override
     public String toString() {
         return "FirewallUpnpIgdPortMapper{super=" + super.toString() + '}';
@@ -18,15 +18,19 @@ package com.offbynull.portmapper.mappers.upnpigd;
 import com.offbynull.portmapper.mapper.MappedPort;
 import com.offbynull.portmapper.mapper.PortType;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import org.apache.commons.lang3.Validate;
 
 final class PortMapperMappedPort implements MappedPort {
     
-    private int internalPort;
-    private int externalPort;
-    private InetAddress externalAddress;
-    private PortType portType;
-    private long lifetime;
+    private final int internalPort;
+    private final int externalPort;
+    private final InetAddress externalAddress;
+    private final PortType portType;
+    private final long lifetime;
+    private final long createTime;
 
     PortMapperMappedPort(int internalPort, int externalPort, InetAddress externalAddress, PortType portType, long duration) {
         Validate.inclusiveBetween(1, 65535, internalPort);
@@ -39,6 +43,37 @@ final class PortMapperMappedPort implements MappedPort {
         this.externalAddress = externalAddress;
         this.portType = portType;
         this.lifetime = duration;
+        this.createTime = System.currentTimeMillis();
+    }
+
+    byte[] dump() {
+        byte[] addressBytes = externalAddress.getAddress();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + 2 + 8 + 1 + addressBytes.length);
+        buffer.put((byte) portType.ordinal());
+        buffer.putShort((short) internalPort);
+        buffer.putShort((short) externalPort);
+        buffer.putLong(lifetime);
+        buffer.put((byte) addressBytes.length);
+        buffer.put(addressBytes);
+        return buffer.array();
+    }
+
+    static PortMapperMappedPort load(byte[] data) {
+        Validate.notNull(data);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            PortType portType = PortType.values()[buffer.get()];
+            int internalPort = buffer.getShort() & 0xFFFF;
+            int externalPort = buffer.getShort() & 0xFFFF;
+            long lifetime = buffer.getLong();
+            byte[] addressBytes = new byte[buffer.get() & 0xFF];
+            buffer.get(addressBytes);
+            InetAddress externalAddress = InetAddress.getByAddress(addressBytes);
+            Validate.isTrue(!buffer.hasRemaining());
+            return new PortMapperMappedPort(internalPort, externalPort, externalAddress, portType, lifetime);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
     }
 
     @Override
@@ -66,6 +101,10 @@ final class PortMapperMappedPort implements MappedPort {
         return lifetime;
     }
 
+    long getCreateTime() {
+        return createTime;
+    }
+
     @Override
     public String toString() {
         return "PortMapperMappedPort{" + "internalPort=" + internalPort + ", externalPort=" + externalPort + ", externalAddress="
@@ -15,26 +15,42 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd;
 
+import com.offbynull.portmapper.mapper.ExternalAddressCache;
 import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.ParseResult;
 import com.offbynull.portmapper.mapper.PortType;
 import com.offbynull.portmapper.gateway.Bus;
-import com.offbynull.portmapper.mapper.MapperIoUtils.BytesToResponseTransformer;
 import com.offbynull.portmapper.mapper.MapperIoUtils.TcpRequest;
-import static com.offbynull.portmapper.mapper.MapperIoUtils.performTcpRequests;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.performLimitedTcpRequests;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.verifyRefreshes;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.AddAnyPortMappingUpnpIgdRequest;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.AddAnyPortMappingUpnpIgdResponse;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.AddPortMappingUpnpIgdRequest;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.AddPortMappingUpnpIgdResponse;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.DeletePortMappingUpnpIgdRequest;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.DeletePortMappingUpnpIgdResponse;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.CONFLICT_IN_MAPPING_ENTRY;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.CONFLICT_WITH_OTHER_MECHANISMS;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.INVALID_ACTION;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.INVALID_ARGS;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.NO_SUCH_ENTRY_IN_ARRAY;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.ONLY_PERMANENT_LEASES_SUPPORTED;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.OPTIONAL_ACTION_NOT_IMPLEMENTED;
+import static com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse.SAME_PORT_VALUES_REQUIRED;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.GetExternalIpAddressUpnpIgdRequest;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.GetExternalIpAddressUpnpIgdResponse;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.GetSpecificPortMappingEntryUpnpIgdRequest;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.GetSpecificPortMappingEntryUpnpIgdResponse;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
-import org.apache.commons.lang3.RandomUtils;
 import org.apache.commons.lang3.Range;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
@@ -51,9 +67,15 @@ import org.slf4j.LoggerFactory;
  */
 public final class PortMapperUpnpIgdPortMapper extends UpnpIgdPortMapper {
     private static final Logger LOG = LoggerFactory.getLogger(PortMapperUpnpIgdPortMapper.class);
+    private static final long EXTERNAL_ADDRESS_TTL = 60000L;
+    private static final long MAX_IGD2_LEASE_DURATION = 604800L; // IGD2 devices must accept leases up to 1 week
+    private static final long LEASE_CLAMP_TOLERANCE = 10L; // seconds of slack before deciding that a device cut a lease short
 
     private final InetSocketAddress controlUrlAddress;
     private final boolean hasAddAnyPortMappingMethod;
+    private final ExternalAddressCache externalAddressCache;
+    private final UpnpIgdCapabilities capabilities;
+    private volatile RefreshStrategy refreshStrategy;
     
     /**
      * Constructs a {@link PortMapperUpnpIgdPortMapper} object.
@@ -75,96 +97,652 @@ public final class PortMapperUpnpIgdPortMapper extends UpnpIgdPortMapper {
         
         controlUrlAddress = getAddressFromUrl(controlUrl);
         this.hasAddAnyPortMappingMethod = hasAddAnyPortMappingMethod;
+        this.externalAddressCache = new ExternalAddressCache(EXTERNAL_ADDRESS_TTL);
+        this.capabilities = getCapabilities();
+        this.refreshStrategy = RefreshStrategy.REMAP;
+    }
+
+    @Override
+    public byte[] saveMappedPort(MappedPort mappedPort) {
+        Validate.notNull(mappedPort);
+        Validate.isTrue(mappedPort instanceof PortMapperMappedPort);
+        return ((PortMapperMappedPort) mappedPort).dump();
+    }
+
+    @Override
+    public MappedPort restoreMappedPort(byte[] data) {
+        return PortMapperMappedPort.load(data);
+    }
+
+    /**
+     * Get the strategy used to refresh mappings.
+     * @return refresh strategy
+     */
+    public RefreshStrategy getRefreshStrategy() {
+        return refreshStrategy;
+    }
+
+    /**
+     * Set the strategy used to refresh mappings. Defaults to {@link RefreshStrategy#REMAP}.
+     * @param refreshStrategy refresh strategy
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void setRefreshStrategy(RefreshStrategy refreshStrategy) {
+        Validate.notNull(refreshStrategy);
+        this.refreshStrategy = refreshStrategy;
+    }
+
+    /**
+     * Get the cache for the external address reported by the device. Mappings use the cached address (if it hasn't expired) instead of
+     * querying the device every time. The cache is invalidated whenever a mapping fails or a refresh comes back with a different external
+     * port.
+     * @return external address cache for the device
+     */
+    public ExternalAddressCache getExternalAddressCache() {
+        return externalAddressCache;
     }
 
 
     @Override
     public MappedPort mapPort(PortType portType, int internalPort, int externalPort, long lifetime) throws InterruptedException {
+        return mapPort(portType, internalPort, externalPort, lifetime, false);
+    }
+
+    // See mapPorts(List, boolean) for what refresh does
+    private MappedPort mapPort(PortType portType, int internalPort, int externalPort, long lifetime, boolean refresh)
+            throws InterruptedException {
         LOG.info("Attempting to map {} Internal:{} External:{} Lifetime:{}", portType, internalPort, externalPort, lifetime);
         
         Validate.notNull(portType);
         Validate.inclusiveBetween(1, 65535, internalPort);
         Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
 
-        Bus networkBus = getNetworkBus();
-        URL controlUrl = getControlUrl();
-        String serviceType = getServiceType();
-        InetAddress internalAddress = getInternalAddress();
+        // Same as a bulk mapping of 1 -- the external IP is asked for alongside the mapping (if not cached) and failed attempts are
+        // handled based on the fault the device sends back
+        PortMappingRequest request = new PortMappingRequest(portType, internalPort, externalPort, lifetime);
+        PortMappingResult result = mapPorts(Collections.singletonList(request), refresh).get(0);
+        if (!result.isSuccessful()) {
+            throw result.getError();
+        }
         
+        MappedPort mappedPort = result.getMappedPort();
+        LOG.debug("Map successful {}", mappedPort);
         
+        return mappedPort;
+    }
+
+    @Override
+    public void unmapPort(MappedPort mappedPort) throws InterruptedException {
+        LOG.info("Attempting to unmap {}", mappedPort);
         
-        //
-        // GET EXTERNAL IP
-        //
-        TcpRequest externalIpHttpRequest = new TcpRequest(
-                internalAddress,
-                controlUrlAddress,
-                new GetExternalIpAddressUpnpIgdRequest(
-                        controlUrl.getAuthority(),
-                        controlUrl.getFile(),
-                        serviceType),
-                new BasicRequestTransformer(),
-                new BytesToResponseTransformer() {
-                    @Override
-                    public Object create(byte[] buffer) {
-                        return new GetExternalIpAddressUpnpIgdResponse(buffer);
-                    }
-                });
+        Validate.notNull(mappedPort);
+        Validate.isTrue(mappedPort instanceof PortMapperMappedPort);
 
-        performTcpRequests(
+        Bus networkBus = getNetworkBus();
+        
+        TcpRequest httpRequest = createDeletePortMappingRequest(mappedPort);
+        
+        performLimitedTcpRequests(
                 networkBus,
-                Collections.singleton(externalIpHttpRequest),
+                getLimiter(),
+                Collections.singleton(httpRequest),
                 5000L, 5000L, 5000L);
         
-        if (externalIpHttpRequest.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to getting external IP");
+        IllegalStateException error = toUnmapError(httpRequest);
+        if (error != null) {
+            throw error;
         }
+        getExternalPortAllocator().markFree(mappedPort.getPortType(), mappedPort.getExternalPort());
+        
+        LOG.debug("Unmap successful {}", mappedPort);
+    }
+
+    @Override
+    public MappedPort refreshPort(MappedPort mappedPort, long lifetime) throws InterruptedException {
+        LOG.info("Attempting to refresh mapping {} for {}", mappedPort, lifetime);
         
-        InetAddress externalAddress = ((GetExternalIpAddressUpnpIgdResponse) externalIpHttpRequest.getResponse()).getIpAddress();
+        Validate.notNull(mappedPort);
+        Validate.isTrue(mappedPort instanceof PortMapperMappedPort);
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        if (refreshStrategy == RefreshStrategy.VERIFY) {
+            PortMappingResult result = verifyAndRefreshPorts(Collections.singletonList(mappedPort), lifetime).get(0);
+            if (!result.isSuccessful()) {
+                throw result.getError();
+            }
+            LOG.debug("Mapping refreshed {}: ", mappedPort, result.getMappedPort());
+            return result.getMappedPort();
+        }
+
+        MappedPort newMappedPort = mapPort(mappedPort.getPortType(), mappedPort.getInternalPort(), mappedPort.getExternalPort(), lifetime,
+                true);
+        
+        if (mappedPort.getExternalPort() != newMappedPort.getExternalPort()
+                || !Objects.equals(mappedPort.getExternalAddress(), newMappedPort.getExternalAddress())) {
+            LOG.warn("Failed refresh mapping {}: ", mappedPort, newMappedPort);
+            externalAddressCache.invalidate(); // device may have been reset/re-addressed, don't trust the cached address
+            try {
+                unmapPort(newMappedPort);
+            } catch (IllegalStateException ise) {
+                // do nothing
+            }
+            
+            throw new IllegalStateException("External IP/port changed from "
+                    + mappedPort.getExternalAddress() + ":" + mappedPort.getExternalPort()
+                    + " to "
+                    + newMappedPort.getExternalAddress() + ":" + newMappedPort.getExternalPort());
+        }
+        
+        LOG.debug("Mapping refreshed {}: ", mappedPort, newMappedPort);
+        
+        return newMappedPort;
+    }
+
+    @Override
+    public List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException {
+        return mapPorts(requests, false);
+    }
+
+    // If the external address can't be found, mappings that the device granted in the meantime are removed before failing (otherwise
+    // the caller would have no MappedPort to unmap them with). If refresh is set, mappings that landed on the external port that was asked
+    // for are left be, since the caller still holds the MappedPort for them.
+    private List<PortMappingResult> mapPorts(List<PortMappingRequest> requests, boolean refresh) throws InterruptedException {
+        LOG.info("Attempting to map {}", requests);
+
+        Validate.notNull(requests);
+        Validate.noNullElements(requests);
+
+        List<PortMappingResult> results = new ArrayList<>(Collections.<PortMappingResult>nCopies(requests.size(), null));
+        if (requests.isEmpty()) {
+            return results;
+        }
+
+        Bus networkBus = getNetworkBus();
+        Range<Long> externalPortRange = getExternalPortRange();
+
+
+
+        //
+        // GET EXTERNAL IP (once for the whole batch) -- if not cached, it's asked for alongside the first round of mappings
+        //
+        InetAddress cachedExternalAddress = externalAddressCache.get();
+        TcpRequest externalIpHttpRequest = cachedExternalAddress == null ? createGetExternalIpRequest() : null;
 
 
 
         //
-        // PERFORM MAPPING
+        // PERFORM MAPPINGS -- requests are spread over a small number of concurrent connections to the device
         //
-        MappedPort mappedPort;
-        if (hasAddAnyPortMappingMethod) {
-            mappedPort = newMapPort(portType, internalPort, externalPort, lifetime, externalAddress);
-        } else {
-            mappedPort = oldMapPort(portType, internalPort, externalPort, lifetime, externalAddress);
+        int[] externalPorts = new int[requests.size()];
+        long[] leaseDurations = new long[requests.size()];
+        List<Integer> pending = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            int externalPort = requests.get(i).getExternalPort();
+            if (!externalPortRange.contains((long) externalPort)) {
+                results.set(i, new PortMappingResult(
+                        new IllegalStateException("Router reports external port mappings as " + externalPortRange)));
+                continue;
+            }
+            externalPorts[i] = firstExternalPort(requests.get(i).getPortType(), externalPort);
+            leaseDurations[i] = capabilities.adjustLeaseDuration(clampLeaseDuration(requests.get(i).getLifetime()));
+            pending.add(i);
         }
-        LOG.debug("Map successful {}", mappedPort);
-        
-        return mappedPort;
+
+        // attempt to map 5 times -- first attempt should be 3 tries to map the externalPorts passed in... anything after that is 1 attempt,
+        // adjusted based on the fault the device sent back (if the device sent back a fault that can't be worked around, stop right away)
+        InetAddress externalAddress = null;
+        long[] retryDurations = new long[] {5000L, 5000L, 5000L};
+        for (int attempt = 0; attempt < 5 && !pending.isEmpty(); attempt++) {
+            boolean useAddAny = hasAddAnyPortMappingMethod && capabilities.isAddAnyPortMappingSupported();
+            List<TcpRequest> mapHttpRequests = new ArrayList<>(pending.size());
+            for (int idx : pending) {
+                PortMappingRequest request = requests.get(idx);
+                long leaseDuration = leaseDurations[idx];
+                PortType portType = request.getPortType();
+                int internalPort = request.getInternalPort();
+                TcpRequest mapHttpRequest = useAddAny
+                        ? createAddAnyPortMappingRequest(portType, internalPort, externalPorts[idx], leaseDuration)
+                        : createAddPortMappingRequest(portType, internalPort, externalPorts[idx], leaseDuration);
+                mapHttpRequest.setOther(idx);
+                mapHttpRequests.add(mapHttpRequest);
+            }
+
+            List<TcpRequest> httpRequests = new ArrayList<>(mapHttpRequests.size() + 1);
+            if (attempt == 0 && externalIpHttpRequest != null) {
+                httpRequests.add(externalIpHttpRequest); // first so that it goes out in the first batch
+            }
+            httpRequests.addAll(mapHttpRequests);
+            performLimitedTcpRequests(networkBus, getLimiter(), httpRequests, retryDurations);
+            if (attempt == 0) {
+                try {
+                    externalAddress = resolveExternalAddress(cachedExternalAddress, externalIpHttpRequest);
+                } catch (IllegalStateException ise) {
+                    externalAddressCache.invalidate();
+                    removeGrantedMappings(requests, mapHttpRequests, externalPorts, refresh);
+                    for (int i = 0; i < requests.size(); i++) {
+                        results.set(i, new PortMappingResult(ise));
+                    }
+                    return results;
+                }
+            }
+
+            List<Integer> nextPending = new ArrayList<>();
+            for (TcpRequest mapHttpRequest : mapHttpRequests) {
+                int idx = (Integer) mapHttpRequest.getOther();
+                Object resp = mapHttpRequest.getResponse();
+                PortMappingRequest request = requests.get(idx);
+                if (resp == null || resp instanceof FaultUpnpIgdResponse) {
+                    int faultCode = resp == null ? -1 : ((FaultUpnpIgdResponse) resp).getErrorCode();
+                    if (useAddAny && (faultCode == INVALID_ACTION || faultCode == OPTIONAL_ACTION_NOT_IMPLEMENTED)) {
+                        // advertised but not actually there -- try again with AddPortMapping (and stick with it from now on)
+                        capabilities.markAddAnyPortMappingUnsupported();
+                        nextPending.add(idx);
+                    } else if (faultCode == ONLY_PERMANENT_LEASES_SUPPORTED && leaseDurations[idx] != 0L) {
+                        // try again with an infinite lease (and use infinite leases from now on)
+                        capabilities.markPermanentLeasesOnly();
+                        leaseDurations[idx] = 0L;
+                        nextPending.add(idx);
+                    } else if (faultCode == INVALID_ARGS && leaseDurations[idx] > MAX_IGD2_LEASE_DURATION) {
+                        // lease duration may be beyond what the device can handle (advertised range is often wrong) -- try again with
+                        // the largest lease that IGD2 devices are required to support (and cap leases to it from now on)
+                        capabilities.lowerMaxLeaseDuration(MAX_IGD2_LEASE_DURATION);
+                        leaseDurations[idx] = MAX_IGD2_LEASE_DURATION;
+                        nextPending.add(idx);
+                    } else if (faultCode == SAME_PORT_VALUES_REQUIRED && !useAddAny
+                            && externalPorts[idx] != request.getInternalPort()
+                            && externalPortRange.contains((long) request.getInternalPort())) {
+                        // try again with external port set to internal port
+                        externalPorts[idx] = request.getInternalPort();
+                        nextPending.add(idx);
+                    } else if (!useAddAny && (faultCode == CONFLICT_IN_MAPPING_ENTRY || faultCode == CONFLICT_WITH_OTHER_MECHANISMS)) {
+                        // external port is taken -- choose another external port for next try
+                        externalPorts[idx] = nextExternalPort(request.getPortType(), externalPorts[idx]);
+                        if (externalPorts[idx] != -1) {
+                            nextPending.add(idx);
+                        } else {
+                            results.set(idx, new PortMappingResult(new IllegalStateException("No free external ports left to try")));
+                        }
+                    } else {
+                        // nothing else to try (no response means the device is out of reach, not that the port is taken -- the request
+                        // was already resent, and marking the port as refused would skip it for every mapper on this device)
+                        if (resp == null) {
+                            externalAddressCache.invalidate(); // device may have been reset/re-addressed, don't trust the cached address
+                        }
+                        results.set(idx, new PortMappingResult(toError(mapHttpRequest, "No response/invalid response to mapping")));
+                    }
+                    continue;
+                }
+
+                int reservedExternalPort = resp instanceof AddAnyPortMappingUpnpIgdResponse
+                        ? ((AddAnyPortMappingUpnpIgdResponse) resp).getReservedPort()
+                        : externalPorts[idx];
+                getExternalPortAllocator().markAllocated(request.getPortType(), reservedExternalPort);
+                MappedPort mappedPort = new PortMapperMappedPort(
+                        request.getInternalPort(),
+                        reservedExternalPort,
+                        externalAddress,
+                        request.getPortType(),
+                        toLifetime(leaseDurations[idx], request.getLifetime()));
+                results.set(idx, new PortMappingResult(mappedPort));
+            }
+
+            pending = nextPending;
+            retryDurations = new long[] {5000L};
+        }
+
+        for (int idx : pending) {
+            results.set(idx, new PortMappingResult(new IllegalStateException("No response/invalid response to mapping")));
+        }
+        if (!pending.isEmpty()) {
+            externalAddressCache.invalidate(); // device may have been reset/re-addressed, don't trust the cached address
+        }
+        LOG.debug("Bulk map completed {}", results);
+
+        return results;
     }
-    
-    private MappedPort newMapPort(PortType portType, int internalPort, int externalPort, long lifetime, InetAddress externalAddress)
+
+    @Override
+    public List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        LOG.info("Attempting to unmap {}", mappedPorts);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof PortMapperMappedPort);
+        }
+
+        List<TcpRequest> httpRequests = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            httpRequests.add(createDeletePortMappingRequest(mappedPort));
+        }
+        if (!httpRequests.isEmpty()) {
+            performLimitedTcpRequests(getNetworkBus(), getLimiter(), httpRequests, 5000L, 5000L, 5000L);
+        }
+
+        List<PortMappingResult> results = new ArrayList<>(mappedPorts.size());
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            MappedPort mappedPort = mappedPorts.get(i);
+            IllegalStateException error = toUnmapError(httpRequests.get(i));
+            if (error != null) {
+                results.add(new PortMappingResult(error));
+            } else {
+                getExternalPortAllocator().markFree(mappedPort.getPortType(), mappedPort.getExternalPort());
+                results.add(new PortMappingResult(mappedPort));
+            }
+        }
+        LOG.debug("Bulk unmap completed {}", results);
+
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        LOG.info("Attempting to refresh mappings {} for {}", mappedPorts, lifetime);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof PortMapperMappedPort);
+        }
+        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
+
+        if (refreshStrategy == RefreshStrategy.VERIFY) {
+            return verifyAndRefreshPorts(mappedPorts, lifetime);
+        }
+        return remapPorts(mappedPorts, lifetime);
+    }
+
+    private List<PortMappingResult> remapPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        List<PortMappingRequest> requests = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            requests.add(new PortMappingRequest(mappedPort.getPortType(), mappedPort.getInternalPort(), mappedPort.getExternalPort(),
+                    lifetime));
+        }
+        List<PortMappingResult> results = mapPorts(requests, true);
+        List<PortMappingResult> verifiedResults = verifyRefreshes(this, mappedPorts, results);
+
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).isSuccessful() && !verifiedResults.get(i).isSuccessful()) {
+                externalAddressCache.invalidate(); // device may have been reset/re-addressed, don't trust the cached address
+                break;
+            }
+        }
+
+        return verifiedResults;
+    }
+
+    private List<PortMappingResult> verifyAndRefreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        long requestedLeaseDuration = capabilities.adjustLeaseDuration(clampLeaseDuration(lifetime));
+        long leaseDuration = toLifetime(requestedLeaseDuration, lifetime);
+        List<PortMappingAudit> audits = auditPorts(mappedPorts);
+
+        List<PortMappingResult> results = new ArrayList<>(Collections.<PortMappingResult>nCopies(mappedPorts.size(), null));
+        List<TcpRequest> mapHttpRequests = new ArrayList<>();
+        List<Integer> unknownIdxs = new ArrayList<>();
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            MappedPort mappedPort = mappedPorts.get(i);
+            PortMappingAudit audit = audits.get(i);
+            PortMappingAudit.Status status = audit.getStatus();
+            long remainingLeaseDuration = audit.getRemainingLeaseDuration();
+
+            if (status == PortMappingAudit.Status.ACTIVE && (remainingLeaseDuration == 0L || remainingLeaseDuration >= leaseDuration)) {
+                // lease never runs out or already covers what was asked for, so there's nothing to do
+                long newLifetime = remainingLeaseDuration == 0L ? leaseDuration : remainingLeaseDuration;
+                results.set(i, new PortMappingResult(new PortMapperMappedPort(mappedPort.getInternalPort(), mappedPort.getExternalPort(),
+                        mappedPort.getExternalAddress(), mappedPort.getPortType(), newLifetime)));
+            } else if (status == PortMappingAudit.Status.ACTIVE || status == PortMappingAudit.Status.MISSING) {
+                // lease needs extending or mapping was lost -- re-add it exactly as it was
+                TcpRequest mapHttpRequest = createAddPortMappingRequest(mappedPort.getPortType(), mappedPort.getInternalPort(),
+                        mappedPort.getExternalPort(), requestedLeaseDuration);
+                mapHttpRequest.setOther(i);
+                mapHttpRequests.add(mapHttpRequest);
+            } else if (status == PortMappingAudit.Status.CONFLICTING) {
+                results.set(i, new PortMappingResult(new IllegalStateException("External port " + mappedPort.getExternalPort()
+                        + " now mapped to some other host/port")));
+            } else {
+                unknownIdxs.add(i);
+            }
+        }
+
+        if (!mapHttpRequests.isEmpty()) {
+            performLimitedTcpRequests(getNetworkBus(), getLimiter(), mapHttpRequests, 5000L, 5000L, 5000L);
+        }
+        for (TcpRequest mapHttpRequest : mapHttpRequests) {
+            int idx = (Integer) mapHttpRequest.getOther();
+            MappedPort mappedPort = mappedPorts.get(idx);
+            PortMappingAudit audit = audits.get(idx);
+            if (toError(mapHttpRequest, "") == null) {
+                getExternalPortAllocator().markAllocated(mappedPort.getPortType(), mappedPort.getExternalPort());
+                results.set(idx, new PortMappingResult(new PortMapperMappedPort(mappedPort.getInternalPort(), mappedPort.getExternalPort(),
+                        mappedPort.getExternalAddress(), mappedPort.getPortType(), leaseDuration)));
+            } else if (audit.getStatus() == PortMappingAudit.Status.ACTIVE) {
+                // some devices reject re-adding a mapping that already exists -- it's still valid for what's left of its lease
+                LOG.warn("Unable to extend lease for {}, {} seconds remaining", mappedPort, audit.getRemainingLeaseDuration());
+                results.set(idx, new PortMappingResult(new PortMapperMappedPort(mappedPort.getInternalPort(), mappedPort.getExternalPort(),
+                        mappedPort.getExternalAddress(), mappedPort.getPortType(), audit.getRemainingLeaseDuration())));
+            } else {
+                results.set(idx, new PortMappingResult(new IllegalStateException("Mapping lost and could not be re-added")));
+            }
+        }
+
+        if (!unknownIdxs.isEmpty()) {
+            // device didn't answer the query properly, fall back to re-mapping
+            List<MappedPort> unknownMappedPorts = new ArrayList<>(unknownIdxs.size());
+            for (int idx : unknownIdxs) {
+                unknownMappedPorts.add(mappedPorts.get(idx));
+            }
+            List<PortMappingResult> remapResults = remapPorts(unknownMappedPorts, lifetime);
+            for (int i = 0; i < unknownIdxs.size(); i++) {
+                results.set(unknownIdxs.get(i), remapResults.get(i));
+            }
+        }
+        LOG.debug("Verified refresh completed {}", results);
+
+        return results;
+    }
+
+    /**
+     * Query the device for the current state of a mapping. This doesn't modify the mapping in any way.
+     * @param mappedPort mapped port
+     * @return state of the mapping
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code mappedPort} was not created by this mapper
+     * @throws InterruptedException if thread was interrupted
+     */
+    public PortMappingAudit auditPort(MappedPort mappedPort) throws InterruptedException {
+        Validate.notNull(mappedPort);
+        return auditPorts(Collections.singletonList(mappedPort)).get(0);
+    }
+
+    /**
+     * Query the device for the current state of a group of mappings. Queries are pipelined to the device rather than performed one after
+     * the other. This doesn't modify the mappings in any way.
+     * @param mappedPorts mapped ports
+     * @return state of each mapping (in the same order as {@code mappedPorts})
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if any element of {@code mappedPorts} was not created by this mapper
+     * @throws InterruptedException if thread was interrupted
+     */
+    public List<PortMappingAudit> auditPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        LOG.info("Attempting to audit {}", mappedPorts);
+
+        Validate.notNull(mappedPorts);
+        Validate.noNullElements(mappedPorts);
+        for (MappedPort mappedPort : mappedPorts) {
+            Validate.isTrue(mappedPort instanceof PortMapperMappedPort);
+        }
+
+        URL controlUrl = getControlUrl();
+        List<TcpRequest> httpRequests = new ArrayList<>(mappedPorts.size());
+        for (MappedPort mappedPort : mappedPorts) {
+            httpRequests.add(new TcpRequest(
+                    getInternalAddress(),
+                    controlUrlAddress,
+                    new GetSpecificPortMappingEntryUpnpIgdRequest(
+                            controlUrl.getAuthority(),
+                            controlUrl.getFile(),
+                            getServiceType(),
+                            null,
+                            mappedPort.getExternalPort(),
+                            mappedPort.getPortType()),
+                    new BasicRequestTransformer(),
+                    new FaultAwareResponseTransformer() {
+                        @Override
+                        protected ParseResult<?> createResponse(byte[] buffer) {
+                            ParseResult<GetSpecificPortMappingEntryUpnpIgdResponse> result =
+                                    GetSpecificPortMappingEntryUpnpIgdResponse.tryParse(buffer);
+                            if (!result.isSuccessful()) {
+                                return result;
+                            }
+                            
+                            // make sure everything needed to audit is there -- getters throw exception if not
+                            GetSpecificPortMappingEntryUpnpIgdResponse resp = result.getValue();
+                            try {
+                                resp.getInternalPort();
+                                resp.getInternalClient();
+                                resp.getEnabled();
+                                resp.getLeaseDuration();
+                            } catch (RuntimeException re) {
+                                return ParseResult.failure("Port mapping entry missing or has malformed arguments");
+                            }
+                            return result;
+                        }
+                    }));
+        }
+        if (!httpRequests.isEmpty()) {
+            performLimitedTcpRequests(getNetworkBus(), getLimiter(), httpRequests, 5000L, 5000L, 5000L);
+        }
+
+        ExternalPortAllocator externalPortAllocator = getExternalPortAllocator();
+        List<PortMappingAudit> audits = new ArrayList<>(mappedPorts.size());
+        for (int i = 0; i < mappedPorts.size(); i++) {
+            MappedPort mappedPort = mappedPorts.get(i);
+            PortMappingAudit audit = toAudit(mappedPort, getInternalAddress(), httpRequests.get(i).getResponse());
+            switch (audit.getStatus()) {
+                case ACTIVE:
+                    externalPortAllocator.markAllocated(mappedPort.getPortType(), mappedPort.getExternalPort());
+                    learnLeaseClamping((PortMapperMappedPort) mappedPort, audit.getRemainingLeaseDuration());
+                    break;
+                case MISSING:
+                    externalPortAllocator.markFree(mappedPort.getPortType(), mappedPort.getExternalPort());
+                    break;
+                case CONFLICTING:
+                    externalPortAllocator.markConflicted(mappedPort.getPortType(), mappedPort.getExternalPort());
+                    break;
+                default:
+                    break; // nothing learned
+            }
+            audits.add(audit);
+        }
+        LOG.debug("Audit completed {}", audits);
+
+        return audits;
+    }
+
+    static PortMappingAudit toAudit(MappedPort mappedPort, InetAddress internalAddress, Object response) {
+        if (response == null) {
+            return new PortMappingAudit(mappedPort, PortMappingAudit.Status.UNKNOWN, -1L);
+        } else if (response instanceof FaultUpnpIgdResponse) {
+            // device says there's no such mapping, or it couldn't tell for some other reason
+            boolean missing = ((FaultUpnpIgdResponse) response).getErrorCode() == NO_SUCH_ENTRY_IN_ARRAY;
+            return new PortMappingAudit(mappedPort, missing ? PortMappingAudit.Status.MISSING : PortMappingAudit.Status.UNKNOWN, -1L);
+        }
+
+        GetSpecificPortMappingEntryUpnpIgdResponse resp = (GetSpecificPortMappingEntryUpnpIgdResponse) response;
+        if (resp.getInternalPort() != mappedPort.getInternalPort() || !resp.getInternalClient().equals(internalAddress)
+                || !resp.getEnabled()) {
+            return new PortMappingAudit(mappedPort, PortMappingAudit.Status.CONFLICTING, -1L);
+        }
+        return new PortMappingAudit(mappedPort, PortMappingAudit.Status.ACTIVE, resp.getLeaseDuration());
+    }
+
+    // Lifetime reported for a mapping -- normally the lease that was asked for, but if the device only allows infinite leases, it's what
+    // the caller asked for so that they keep refreshing/unmapping on their usual schedule
+    private long toLifetime(long leaseDuration, long lifetime) {
+        return leaseDuration == 0L ? clampLeaseDuration(lifetime) : leaseDuration;
+    }
+
+    // Some devices silently cut leases short -- if a mapping has less time left on it than it should, lower the lease duration used from
+    // now on so that the lifetimes handed back to callers (and hence their refresh schedules) are accurate
+    private void learnLeaseClamping(PortMapperMappedPort mappedPort, long remainingLeaseDuration) {
+        if (remainingLeaseDuration == 0L) {
+            return; // infinite lease
+        }
+
+        long elapsed = (System.currentTimeMillis() - mappedPort.getCreateTime()) / 1000L;
+        long expectedRemainingLeaseDuration = mappedPort.getLifetime() - elapsed;
+        if (expectedRemainingLeaseDuration - remainingLeaseDuration > LEASE_CLAMP_TOLERANCE) {
+            long grantedLeaseDuration = Math.max(1L, remainingLeaseDuration + elapsed);
+            LOG.info("Device appears to cap leases at {} seconds (expected {} seconds left on {}, device reports {})", grantedLeaseDuration,
+                    expectedRemainingLeaseDuration, mappedPort, remainingLeaseDuration);
+            capabilities.lowerMaxLeaseDuration(grantedLeaseDuration);
+        }
+    }
+
+    // Deleting a mapping that the device doesn't have (e.g. it already expired) isn't a failure -- the end result is the same
+    private static IllegalStateException toUnmapError(TcpRequest httpRequest) {
+        FaultUpnpIgdResponse fault = getFault(httpRequest);
+        if (fault != null && fault.getErrorCode() == NO_SUCH_ENTRY_IN_ARRAY) {
+            return null;
+        }
+        return toError(httpRequest, "No response/invalid response to unmapping");
+    }
+
+    private InetAddress resolveExternalAddress(InetAddress cachedExternalAddress, TcpRequest externalIpHttpRequest)
             throws InterruptedException {
-        Bus networkBus = getNetworkBus();
+        if (cachedExternalAddress != null) {
+            return cachedExternalAddress;
+        }
+
+        TcpRequest httpRequest = externalIpHttpRequest;
+        if (httpRequest.getResponse() == null) {
+            // request that went out alongside the mapping failed -- try once more on its own
+            httpRequest = createGetExternalIpRequest();
+            performLimitedTcpRequests(
+                    getNetworkBus(),
+                    getLimiter(),
+                    Collections.singleton(httpRequest),
+                    5000L, 5000L, 5000L);
+
+        }
+        IllegalStateException error = toError(httpRequest, "No response/invalid response to getting external IP");
+        if (error != null) {
+            throw error;
+        }
+
+        InetAddress externalAddress = ((GetExternalIpAddressUpnpIgdResponse) httpRequest.getResponse()).getIpAddress();
+        externalAddressCache.put(externalAddress);
+        return externalAddress;
+    }
+
+    private TcpRequest createGetExternalIpRequest() {
+        URL controlUrl = getControlUrl();
+        return new TcpRequest(
+                getInternalAddress(),
+                controlUrlAddress,
+                new GetExternalIpAddressUpnpIgdRequest(
+                        controlUrl.getAuthority(),
+                        controlUrl.getFile(),
+                        getServiceType()),
+                new BasicRequestTransformer(),
+                new FaultAwareResponseTransformer() {
+                    @Override
+                    protected ParseResult<?> createResponse(byte[] buffer) {
+                        return GetExternalIpAddressUpnpIgdResponse.tryParse(buffer);
+                    }
+                });
+    }
+
+    private TcpRequest createAddAnyPortMappingRequest(PortType portType, int internalPort, int externalPort, long leaseDuration) {
         URL controlUrl = getControlUrl();
-        String serviceType = getServiceType();
         InetAddress internalAddress = getInternalAddress();
-        Range<Long> externalPortRange = getExternalPortRange();
-        Range<Long> leaseDurationRange = getLeaseDurationRange();
-        long leaseDuration;
-        if (leaseDurationRange.isBefore(lifetime)) {
-            leaseDuration = leaseDurationRange.getMaximum();
-        } else if (leaseDurationRange.isAfter(lifetime)) {
-            leaseDuration = leaseDurationRange.getMinimum();
-        } else {
-            leaseDuration = lifetime;
-        }
-        
-        Validate.validState(externalPortRange.contains((long) externalPort),
-                "Router reports external port mappings as %s", externalPortRange);
-        
-        TcpRequest mapHttpRequest = new TcpRequest(
+        return new TcpRequest(
                 internalAddress,
                 controlUrlAddress,
                 new AddAnyPortMappingUpnpIgdRequest(
                         controlUrl.getAuthority(),
                         controlUrl.getFile(),
-                        serviceType,
+                        getServiceType(),
                         null,
                         externalPort,
                         portType,
@@ -174,184 +752,113 @@ public final class PortMapperUpnpIgdPortMapper extends UpnpIgdPortMapper {
                         "",
                         leaseDuration),
                 new BasicRequestTransformer(),
-                new BytesToResponseTransformer() {
+                new FaultAwareResponseTransformer() {
                     @Override
-                    public Object create(byte[] buffer) {
-                        return new AddAnyPortMappingUpnpIgdResponse(buffer);
+                    protected ParseResult<?> createResponse(byte[] buffer) {
+                        return AddAnyPortMappingUpnpIgdResponse.tryParse(buffer);
                     }
                 });
-
-        performTcpRequests(
-                networkBus,
-                Collections.singleton(mapHttpRequest),
-                5000L, 5000L, 5000L);
-        
-        if (mapHttpRequest.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to mapping");
-        }
-        
-        
-        
-        int reservedExternalPort = ((AddAnyPortMappingUpnpIgdResponse) mapHttpRequest.getResponse()).getReservedPort();
-        return new PortMapperMappedPort(
-                internalPort,
-                reservedExternalPort,
-                externalAddress,
-                portType,
-                leaseDuration);
     }
-    
-    private MappedPort oldMapPort(PortType portType, int internalPort, int externalPort, long lifetime, InetAddress externalAddress)
-            throws InterruptedException {
-        Bus networkBus = getNetworkBus();
+
+    private TcpRequest createAddPortMappingRequest(PortType portType, int internalPort, int externalPort, long leaseDuration) {
         URL controlUrl = getControlUrl();
-        String serviceType = getServiceType();
         InetAddress internalAddress = getInternalAddress();
-        
-        // attempt to map 5 times -- first attempt should be 3 tries to map the externalPort passed in... anything after that is 1 attempt
-        // to map a randomized externalPort
-        long[] retryDurations = new long[] {5000L, 5000L, 5000L};
-        for (int i = 0; i < 5; i++) {
-            Range<Long> externalPortRange = getExternalPortRange();
-            Range<Long> leaseDurationRange = getLeaseDurationRange();
-            long leaseDuration;
-            if (leaseDurationRange.isBefore(lifetime)) {
-                leaseDuration = leaseDurationRange.getMaximum();
-            } else if (leaseDurationRange.isAfter(lifetime)) {
-                leaseDuration = leaseDurationRange.getMinimum();
-            } else {
-                leaseDuration = lifetime;
-            }
-
-            Validate.validState(externalPortRange.contains((long) externalPort),
-                    "Router reports external port mappings as %s", externalPortRange);
-
-            TcpRequest mapHttpRequest = new TcpRequest(
-                    internalAddress,
-                    controlUrlAddress,
-                    new AddPortMappingUpnpIgdRequest(
-                            controlUrl.getAuthority(),
-                            controlUrl.getFile(),
-                            serviceType,
-                            null,
-                            externalPort,
-                            portType,
-                            internalPort,
-                            internalAddress,
-                            true,
-                            "",
-                            leaseDuration),
-                    new BasicRequestTransformer(),
-                    new BytesToResponseTransformer() {
-                        @Override
-                        public Object create(byte[] buffer) {
-                            return new AddPortMappingUpnpIgdResponse(buffer);
-                        }
-                    });
-
-            performTcpRequests(
-                    networkBus,
-                    Collections.singleton(mapHttpRequest),
-                    retryDurations);
-
-            if (mapHttpRequest.getResponse() != null) {
-                // server responded, so we're good to go
-                return new PortMapperMappedPort(
-                        internalPort,
+        return new TcpRequest(
+                internalAddress,
+                controlUrlAddress,
+                new AddPortMappingUpnpIgdRequest(
+                        controlUrl.getAuthority(),
+                        controlUrl.getFile(),
+                        getServiceType(),
+                        null,
                         externalPort,
-                        externalAddress,
                         portType,
-                        leaseDuration);
+                        internalPort,
+                        internalAddress,
+                        true,
+                        "",
+                        leaseDuration),
+                new BasicRequestTransformer(),
+                new FaultAwareResponseTransformer() {
+                    @Override
+                    protected ParseResult<?> createResponse(byte[] buffer) {
+                        return AddPortMappingUpnpIgdResponse.tryParse(buffer);
+                    }
+                });
+    }
+
+    // Best-effort removal of mappings that were granted but can't be handed back to the caller
+    private void removeGrantedMappings(List<PortMappingRequest> requests, List<TcpRequest> mapHttpRequests, int[] externalPorts,
+            boolean refresh) throws InterruptedException {
+        List<TcpRequest> httpRequests = new ArrayList<>();
+        for (TcpRequest mapHttpRequest : mapHttpRequests) {
+            Object resp = mapHttpRequest.getResponse();
+            if (resp == null || resp instanceof FaultUpnpIgdResponse) {
+                continue;
             }
-            
-            // choose another external port for next try -- next try only make 1 attempt
-            retryDurations = new long[] {5000L};
-            externalPort = RandomUtils.nextInt(
-                    externalPortRange.getMinimum().intValue(), // should never be < 1
-                    externalPortRange.getMaximum().intValue() + 1); // should never be > 65535
+
+            int idx = (Integer) mapHttpRequest.getOther();
+            PortMappingRequest request = requests.get(idx);
+            int reservedExternalPort = resp instanceof AddAnyPortMappingUpnpIgdResponse
+                    ? ((AddAnyPortMappingUpnpIgdResponse) resp).getReservedPort()
+                    : externalPorts[idx];
+            if (refresh && reservedExternalPort == request.getExternalPort()) {
+                continue;
+            }
+            httpRequests.add(createDeletePortMappingRequest(request.getPortType(), reservedExternalPort));
+        }
+
+        if (!httpRequests.isEmpty()) {
+            LOG.warn("Removing {} mappings that were granted but whose external address is unknown", httpRequests.size());
+            performLimitedTcpRequests(getNetworkBus(), getLimiter(), httpRequests, 5000L, 5000L, 5000L);
         }
-        
-        
-        
-        throw new IllegalStateException();
     }
 
-    @Override
-    public void unmapPort(MappedPort mappedPort) throws InterruptedException {
-        LOG.info("Attempting to unmap {}", mappedPort);
-        
-        Validate.notNull(mappedPort);
-        Validate.isTrue(mappedPort instanceof PortMapperMappedPort);
+    private TcpRequest createDeletePortMappingRequest(MappedPort mappedPort) {
+        return createDeletePortMappingRequest(mappedPort.getPortType(), mappedPort.getExternalPort());
+    }
 
-        Bus networkBus = getNetworkBus();
+    private TcpRequest createDeletePortMappingRequest(PortType portType, int externalPort) {
         URL controlUrl = getControlUrl();
-        String serviceType = getServiceType();
-        int externalPort = mappedPort.getExternalPort();
-        InetAddress internalAddress = getInternalAddress();
-        PortType portType = mappedPort.getPortType();
-        
-        TcpRequest httpRequest = new TcpRequest(
-                internalAddress,
+        return new TcpRequest(
+                getInternalAddress(),
                 controlUrlAddress,
                 new DeletePortMappingUpnpIgdRequest(
                         controlUrl.getAuthority(),
                         controlUrl.getFile(),
-                        serviceType,
+                        getServiceType(),
                         null,
                         externalPort,
                         portType),
                 new BasicRequestTransformer(),
-                new BytesToResponseTransformer() {
+                new FaultAwareResponseTransformer() {
                     @Override
-                    public Object create(byte[] buffer) {
-                        return new DeletePortMappingUpnpIgdResponse(buffer);
+                    protected ParseResult<?> createResponse(byte[] buffer) {
+                        return DeletePortMappingUpnpIgdResponse.tryParse(buffer);
                     }
                 });
-        
-        performTcpRequests(
-                networkBus,
-                Collections.singleton(httpRequest),
-                5000L, 5000L, 5000L);
-        
-        if (httpRequest.getResponse() == null) {
-            throw new IllegalStateException("No response/invalid response to unmapping");
-        }
-        
-        LOG.debug("Unmap successful {}", mappedPort);
-    }
-
-    @Override
-    public MappedPort refreshPort(MappedPort mappedPort, long lifetime) throws InterruptedException {
-        LOG.info("Attempting to refresh mapping {} for {}", mappedPort, lifetime);
-        
-        Validate.notNull(mappedPort);
-        Validate.isTrue(mappedPort instanceof PortMapperMappedPort);
-        Validate.inclusiveBetween(1L, Long.MAX_VALUE, lifetime);
-        MappedPort newMappedPort = mapPort(mappedPort.getPortType(), mappedPort.getInternalPort(), mappedPort.getExternalPort(), lifetime);
-        
-        if (mappedPort.getExternalPort() != newMappedPort.getExternalPort()
-                || !Objects.equals(mappedPort.getExternalAddress(), newMappedPort.getExternalAddress())) {
-            LOG.warn("Failed refresh mapping {}: ", mappedPort, newMappedPort);
-            try {
-                unmapPort(newMappedPort);
-            } catch (IllegalStateException ise) {
-                // do nothing
-            }
-            
-            throw new IllegalStateException("External IP/port changed from "
-                    + mappedPort.getExternalAddress() + ":" + mappedPort.getExternalPort()
-                    + " to "
-                    + newMappedPort.getExternalAddress() + ":" + newMappedPort.getExternalPort());
-        }
-        
-        LOG.debug("Mapping refreshed {}: ", mappedPort, newMappedPort);
-        
-        return newMappedPort;
     }
 
     @Override
     public String toString() {
-        return "PortMapperUpnpIgdPortMapper{super=" + super.toString() + ", hasAddAnyPortMappingMethod=" + hasAddAnyPortMappingMethod + '}';
+        return "PortMapperUpnpIgdPortMapper{super=" + super.toString() + ", hasAddAnyPortMappingMethod=" + hasAddAnyPortMappingMethod
+                + ", externalAddressCache=" + externalAddressCache + '}';
     }
 
+    /**
+     * Strategy used to refresh mappings.
+     */
+    public enum RefreshStrategy {
+        /**
+         * Refresh by mapping the port again (GetExternalIPAddress if the external address isn't cached, followed by
+         * AddPortMapping/AddAnyPortMapping). If the device hands back a different external port, that new mapping is removed again.
+         */
+        REMAP,
+        /**
+         * Refresh by first querying the device for the mapping (GetSpecificPortMappingEntry), and only re-adding it (AddPortMapping for the
+         * same external port) if it's gone or its lease needs extending. Suited for devices that keep mappings indefinitely or that reject
+         * re-adding a mapping that already exists.
+         */
+        VERIFY
+    }
 }
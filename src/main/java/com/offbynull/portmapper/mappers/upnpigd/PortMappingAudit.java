@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * State of a mapping as reported by a UPnP-IGD device (via GetSpecificPortMappingEntry).
+ * @author Kasra Faghihi
+ */
+public final class PortMappingAudit {
+    private final MappedPort mappedPort;
+    private final Status status;
+    private final long remainingLeaseDuration;
+
+    PortMappingAudit(MappedPort mappedPort, Status status, long remainingLeaseDuration) {
+        Validate.notNull(mappedPort);
+        Validate.notNull(status);
+        Validate.isTrue(status == Status.ACTIVE ? remainingLeaseDuration >= 0L : remainingLeaseDuration == -1L);
+        this.mappedPort = mappedPort;
+        this.status = status;
+        this.remainingLeaseDuration = remainingLeaseDuration;
+    }
+
+    /**
+     * Get the mapped port that was audited.
+     * @return mapped port
+     */
+    public MappedPort getMappedPort() {
+        return mappedPort;
+    }
+
+    /**
+     * Get the state of the mapping.
+     * @return state of the mapping
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Get the number of seconds left on the mapping's lease.
+     * @return seconds left on the lease ({@code 0} means the device keeps the mapping indefinitely), or {@code -1} if status isn't
+     * {@link Status#ACTIVE}
+     */
+    public long getRemainingLeaseDuration() {
+        return remainingLeaseDuration;
+    }
+
+    @Override
+    public String toString() {
+        return "PortMappingAudit{" + "mappedPort=" + mappedPort + ", status=" + status + ", remainingLeaseDuration="
+                + remainingLeaseDuration + '}';
+    }
+
+    /**
+     * Mapping state.
+     */
+    public enum Status {
+        /**
+         * Mapping exists and points to this host.
+         */
+        ACTIVE,
+        /**
+         * Mapping doesn't exist (e.g. lease ran out or device restarted).
+         */
+        MISSING,
+        /**
+         * External port is mapped, but to some other host/port or the mapping is disabled.
+         */
+        CONFLICTING,
+        /**
+         * Device didn't respond or gave an invalid response.
+         */
+        UNKNOWN
+    }
+}
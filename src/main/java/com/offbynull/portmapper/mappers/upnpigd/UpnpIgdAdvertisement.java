@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Objects;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A UPnP-IGD device/service that has advertised itself through SSDP notifications.
+ * @author Kasra Faghihi
+ */
+public final class UpnpIgdAdvertisement {
+    private final String usn;
+    private final String serviceType;
+    private final URL location;
+    private final String server;
+    private final InetAddress sourceAddress;
+    private final long maxAge;
+
+    UpnpIgdAdvertisement(String usn, String serviceType, URL location, String server, InetAddress sourceAddress, long maxAge) {
+        Validate.notNull(usn);
+        Validate.notNull(serviceType);
+//        Validate.notNull(location); // can be null
+//        Validate.notNull(server); // can be null
+        Validate.notNull(sourceAddress);
+        Validate.isTrue(maxAge >= 0L);
+        this.usn = usn;
+        this.serviceType = serviceType;
+        this.location = location;
+        this.server = server;
+        this.sourceAddress = sourceAddress;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Get unique service identifier.
+     * @return unique service identifier
+     */
+    public String getUsn() {
+        return usn;
+    }
+
+    /**
+     * Get the type of device/service being advertised.
+     * @return device/service type
+     */
+    public String getServiceType() {
+        return serviceType;
+    }
+
+    /**
+     * Get location of the device's description.
+     * @return location (may be {@code null})
+     */
+    public URL getLocation() {
+        return location;
+    }
+
+    /**
+     * Get server description.
+     * @return server description (may be {@code null})
+     */
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Get the address the advertisement was sent from.
+     * @return address the advertisement was sent from
+     */
+    public InetAddress getSourceAddress() {
+        return sourceAddress;
+    }
+
+    /**
+     * Get the number of seconds this advertisement remains valid for from the time it was last received.
+     * @return number of seconds this advertisement remains valid for
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    @Override
+    public String toString() {
+        return "UpnpIgdAdvertisement{" + "usn=" + usn + ", serviceType=" + serviceType + ", location=" + location + ", server=" + server
+                + ", sourceAddress=" + sourceAddress + ", maxAge=" + maxAge + '}';
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 47 * hash + Objects.hashCode(this.usn);
+        hash = 47 * hash + Objects.hashCode(this.serviceType);
+        hash = 47 * hash + Objects.hashCode(this.location);
+        hash = 47 * hash + Objects.hashCode(this.server);
+        hash = 47 * hash + Objects.hashCode(this.sourceAddress);
+        hash = 47 * hash + (int) (this.maxAge ^ (this.maxAge >>> 32));
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final UpnpIgdAdvertisement other = (UpnpIgdAdvertisement) obj;
+        if (this.maxAge != other.maxAge) {
+            return false;
+        }
+        if (!Objects.equals(this.usn, other.usn)) {
+            return false;
+        }
+        if (!Objects.equals(this.serviceType, other.serviceType)) {
+            return false;
+        }
+        if (!Objects.equals(this.server, other.server)) {
+            return false;
+        }
+        if (!Objects.equals(this.location, other.location)) { // URL.equals() may resolve hosts, but location is always a numeric address
+            return false;
+        }
+        if (!Objects.equals(this.sourceAddress, other.sourceAddress)) {
+            return false;
+        }
+        return true;
+    }
+}
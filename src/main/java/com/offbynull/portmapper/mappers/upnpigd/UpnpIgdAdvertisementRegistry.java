@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.ServiceNotificationUpnpIgdResponse;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Tracks UPnP-IGD advertisements keyed by USN. Not thread-safe on its own -- access is synchronized by UpnpIgdNotificationMonitor.
+final class UpnpIgdAdvertisementRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(UpnpIgdAdvertisementRegistry.class);
+
+    // UPnP device architecture says max-age should be at least 1800 seconds -- use that if device doesn't give us one
+    static final long DEFAULT_MAX_AGE = 1800L;
+
+    private static final String[] IGD_TYPES = new String[] {
+        ":device:InternetGatewayDevice:",
+        ":device:WANDevice:",
+        ":device:WANConnectionDevice:",
+        ":service:WANIPConnection:",
+        ":service:WANPPPConnection:",
+        ":service:WANIPv6FirewallControl:"
+    };
+
+    private final UpnpIgdNotificationListener listener;
+    private final Map<String, Record> records;
+
+    UpnpIgdAdvertisementRegistry(UpnpIgdNotificationListener listener) {
+        Validate.notNull(listener);
+        this.listener = listener;
+        this.records = new HashMap<>();
+    }
+
+    void handle(ServiceNotificationUpnpIgdResponse notification, InetAddress sourceAddress, long currentTime) {
+        Validate.notNull(notification);
+        Validate.notNull(sourceAddress);
+
+        String usn = notification.getUsn();
+        Record record = records.get(usn);
+
+        switch (notification.getNotificationType()) {
+            case BYEBYE: {
+                if (record != null) {
+                    records.remove(usn);
+                    fireGone(record.advertisement, false);
+                }
+                break;
+            }
+            case ALIVE:
+            case UPDATE: {
+                String serviceType = notification.getServiceType();
+                if (serviceType == null || !isIgdType(serviceType)) {
+                    return;
+                }
+
+                URL location;
+                try {
+                    location = notification.getLocation();
+                } catch (IllegalStateException ise) {
+                    LOG.debug("Ignoring notification with bad location: {}", notification);
+                    return;
+                }
+
+                Long maxAge = notification.getMaxAge();
+                UpnpIgdAdvertisement advertisement = new UpnpIgdAdvertisement(usn, serviceType, location, notification.getServer(),
+                        sourceAddress, maxAge == null ? DEFAULT_MAX_AGE : maxAge);
+                long expireTime = currentTime + advertisement.getMaxAge() * 1000L;
+                records.put(usn, new Record(advertisement, expireTime));
+
+                if (record == null) {
+                    fireAlive(advertisement);
+                } else if (notification.getNotificationType() == ServiceNotificationUpnpIgdResponse.NotificationType.UPDATE) {
+                    fireUpdated(advertisement);
+                } else if (!Objects.equals(record.advertisement.getLocation(), advertisement.getLocation())
+                        || !Objects.equals(record.advertisement.getServer(), advertisement.getServer())) {
+                    fireAlive(advertisement);
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException(); // should never happen
+        }
+    }
+
+    void expire(long currentTime) {
+        Iterator<Entry<String, Record>> it = records.entrySet().iterator();
+        while (it.hasNext()) {
+            Record record = it.next().getValue();
+            if (currentTime >= record.expireTime) {
+                it.remove();
+                fireGone(record.advertisement, true);
+            }
+        }
+    }
+
+    List<UpnpIgdAdvertisement> getAdvertisements() {
+        List<UpnpIgdAdvertisement> ret = new ArrayList<>(records.size());
+        for (Record record : records.values()) {
+            ret.add(record.advertisement);
+        }
+        return ret;
+    }
+
+    static boolean isIgdType(String serviceType) {
+        for (String igdType : IGD_TYPES) {
+            if (StringUtils.containsIgnoreCase(serviceType, igdType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fireAlive(UpnpIgdAdvertisement advertisement) {
+        try {
+            listener.deviceAlive(advertisement);
+        } catch (RuntimeException re) {
+            LOG.error("Listener threw exception", re);
+        }
+    }
+
+    private void fireUpdated(UpnpIgdAdvertisement advertisement) {
+        try {
+            listener.deviceUpdated(advertisement);
+        } catch (RuntimeException re) {
+            LOG.error("Listener threw exception", re);
+        }
+    }
+
+    private void fireGone(UpnpIgdAdvertisement advertisement, boolean expired) {
+        try {
+            listener.deviceGone(advertisement, expired);
+        } catch (RuntimeException re) {
+            LOG.error("Listener threw exception", re);
+        }
+    }
+
+    private static final class Record {
+        private final UpnpIgdAdvertisement advertisement;
+        private final long expireTime;
+
+        Record(UpnpIgdAdvertisement advertisement, long expireTime) {
+            this.advertisement = advertisement;
+            this.expireTime = expireTime;
+        }
+    }
+}
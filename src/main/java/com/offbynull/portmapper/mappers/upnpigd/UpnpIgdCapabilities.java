@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * What's been learned about a UPnP-IGD device from how it responds to requests. Devices often advertise things they don't actually
+ * support (e.g. AddAnyPortMapping, or a lease duration range pulled from the service description), so rather than making the same mistake
+ * on every request, mappers remember what went wrong and work around it from then on.
+ * @author Kasra Faghihi
+ */
+public final class UpnpIgdCapabilities {
+    private volatile boolean addAnyPortMappingSupported;
+    private volatile boolean permanentLeasesOnly;
+    private volatile long maxLeaseDuration;
+
+    UpnpIgdCapabilities() {
+        this.addAnyPortMappingSupported = true;
+        this.permanentLeasesOnly = false;
+        this.maxLeaseDuration = Long.MAX_VALUE;
+    }
+
+    /**
+     * Check if the AddAnyPortMapping action works (assuming it was advertised in the first place).
+     * @return {@code false} if the device has rejected AddAnyPortMapping as an invalid/unimplemented action, {@code true} otherwise
+     */
+    public boolean isAddAnyPortMappingSupported() {
+        return addAnyPortMappingSupported;
+    }
+
+    void markAddAnyPortMappingUnsupported() {
+        addAnyPortMappingSupported = false;
+    }
+
+    /**
+     * Check if the device only accepts mappings with an infinite lease (lease duration of 0).
+     * @return {@code true} if the device has rejected a non-zero lease duration with OnlyPermanentLeasesSupported, {@code false} otherwise
+     */
+    public boolean isPermanentLeasesOnly() {
+        return permanentLeasesOnly;
+    }
+
+    void markPermanentLeasesOnly() {
+        permanentLeasesOnly = true;
+    }
+
+    /**
+     * Get the largest lease duration the device is known to honour. This starts off unbounded and is lowered when the device rejects
+     * a lease duration or is caught silently cutting one short.
+     * @return largest lease duration known to be honoured (in seconds), or {@link Long#MAX_VALUE} if not known
+     */
+    public long getMaxLeaseDuration() {
+        return maxLeaseDuration;
+    }
+
+    synchronized void lowerMaxLeaseDuration(long leaseDuration) {
+        Validate.isTrue(leaseDuration >= 1L);
+        if (leaseDuration < maxLeaseDuration) {
+            maxLeaseDuration = leaseDuration;
+        }
+    }
+
+    /**
+     * Adjust a lease duration so that it's something the device is known to accept.
+     * @param leaseDuration lease duration (in seconds, {@code 0} means infinite)
+     * @return {@code 0} if the device only accepts infinite leases, otherwise {@code leaseDuration} capped to
+     * {@link #getMaxLeaseDuration() }
+     */
+    public long adjustLeaseDuration(long leaseDuration) {
+        if (permanentLeasesOnly) {
+            return 0L;
+        } else if (leaseDuration == 0L) {
+            return 0L;
+        }
+        return Math.min(leaseDuration, maxLeaseDuration);
+    }
+
+    @Override
+    public String toString() {
+        return "UpnpIgdCapabilities{" + "addAnyPortMappingSupported=" + addAnyPortMappingSupported + ", permanentLeasesOnly="
+                + permanentLeasesOnly + ", maxLeaseDuration=" + maxLeaseDuration + '}';
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd;
+
+/**
+ * Receives changes to the set of UPnP-IGD devices/services advertised on the network. Methods are invoked from the thread that's listening
+ * for notifications, so implementations should return quickly.
+ * @author Kasra Faghihi
+ */
+public interface UpnpIgdNotificationListener {
+
+    /**
+     * Called when a device/service that wasn't previously known announces itself ({@code ssdp:alive}), or when a known device/service
+     * re-announces itself with a different location or server.
+     * @param advertisement advertisement
+     */
+    void deviceAlive(UpnpIgdAdvertisement advertisement);
+
+    /**
+     * Called when a known device/service announces that it has changed ({@code ssdp:update}).
+     * @param advertisement advertisement
+     */
+    void deviceUpdated(UpnpIgdAdvertisement advertisement);
+
+    /**
+     * Called when a known device/service goes away, either because it announced that it's leaving ({@code ssdp:byebye}) or because it
+     * stopped re-announcing itself before its max-age elapsed.
+     * @param advertisement last advertisement received for the device/service
+     * @param expired {@code true} if the device/service expired, {@code false} if it announced that it was leaving
+     */
+    void deviceGone(UpnpIgdAdvertisement advertisement, boolean expired);
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import com.offbynull.portmapper.gateway.Bus;
+import com.offbynull.portmapper.gateways.network.internalmessages.CloseNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.IdentifiableErrorNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.IdentifiableErrorNetworkResponse;
+import com.offbynull.portmapper.gateways.network.internalmessages.ReadUdpNetworkNotification;
+import static com.offbynull.portmapper.mapper.MapperIoUtils.listenMulticastUdp;
+import com.offbynull.portmapper.mapper.ParseResult;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.ServiceDiscoveryUpnpIgdRequest.ProbeDeviceType;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.ServiceNotificationUpnpIgdResponse;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passively listens for UPnP-IGD SSDP notifications ({@code NOTIFY * HTTP/1.1}) and keeps a live registry of the UPnP-IGD devices/services
+ * that have advertised themselves. Unlike {@link UpnpIgdPortMapper#identify(com.offbynull.portmapper.gateway.Bus) }, no probes are sent
+ * -- the monitor simply reacts to devices announcing themselves, re-announcing themselves, changing, and leaving.
+ * <p>
+ * Advertisements are keyed by USN and expire if they aren't renewed within the max-age the device specified. Sockets are created through
+ * the network gateway, so the monitor doesn't need an IO thread of its own.
+ * @author Kasra Faghihi
+ */
+public final class UpnpIgdNotificationMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(UpnpIgdNotificationMonitor.class);
+
+    private static final int PORT = 1900;
+    private static final long EXPIRE_CHECK_INTERVAL = 1000L;
+
+    private final Bus networkBus;
+    private final LinkedBlockingQueue<Object> queue;
+    private final List<Integer> socketIds;
+    private final UpnpIgdAdvertisementRegistry registry;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Creates a {@link UpnpIgdNotificationMonitor} object and starts listening. SSDP multicast groups are joined on the interfaces that
+     * {@code sourceAddresses} belong to ({@code 239.255.255.250} for IPv4 addresses and {@code FF02::C} for IPv6 addresses).
+     * @param networkBus network bus
+     * @param sourceAddresses local addresses identifying the interfaces to listen on
+     * @param listener listener to notify of changes
+     * @return new {@link UpnpIgdNotificationMonitor}
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if {@code sourceAddresses} is empty
+     * @throws IllegalStateException if the network gateway didn't respond
+     * @throws InterruptedException if interrupted
+     */
+    public static UpnpIgdNotificationMonitor create(Bus networkBus, Set<InetAddress> sourceAddresses, UpnpIgdNotificationListener listener)
+            throws InterruptedException {
+        Validate.notNull(networkBus);
+        Validate.notNull(sourceAddresses);
+        Validate.noNullElements(sourceAddresses);
+        Validate.notNull(listener);
+        Validate.isTrue(!sourceAddresses.isEmpty());
+
+        LOG.info("Attempting to listen for notifications on {}", sourceAddresses);
+
+        LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+        // Create sockets and join groups -- failures show up as errors on the queue and get logged
+        List<Integer> socketIds = listenMulticastUdp(networkBus, queue, PORT, ProbeDeviceType.IPV4.getMulticastSocketAddress().getAddress(),
+                ProbeDeviceType.IPV6_LINK_LOCAL.getMulticastSocketAddress().getAddress(), sourceAddresses);
+
+        UpnpIgdNotificationMonitor monitor = new UpnpIgdNotificationMonitor(networkBus, queue, socketIds,
+                new UpnpIgdAdvertisementRegistry(listener));
+        monitor.thread.start();
+        return monitor;
+    }
+
+    private UpnpIgdNotificationMonitor(Bus networkBus, LinkedBlockingQueue<Object> queue, List<Integer> socketIds,
+            UpnpIgdAdvertisementRegistry registry) {
+        this.networkBus = networkBus;
+        this.queue = queue;
+        this.socketIds = socketIds;
+        this.registry = registry;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        });
+        this.thread.setDaemon(true);
+        this.thread.setName("UPnP-IGD Notification Monitor");
+    }
+
+    /**
+     * Get the UPnP-IGD devices/services currently advertised.
+     * @return advertisements that haven't expired or said byebye
+     */
+    public List<UpnpIgdAdvertisement> getAdvertisements() {
+        synchronized (registry) {
+            return registry.getAdvertisements();
+        }
+    }
+
+    /**
+     * Stop listening. Does nothing if already stopped.
+     */
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Wait for the listening thread to die.
+     * @throws InterruptedException if interrupted
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    private void listen() {
+        LOG.debug("Starting notification monitor");
+        try {
+            while (!closed) {
+                Object msg = queue.poll(EXPIRE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+                if (msg instanceof ReadUdpNetworkNotification) {
+                    ReadUdpNetworkNotification readMsg = (ReadUdpNetworkNotification) msg;
+
+                    ParseResult<ServiceNotificationUpnpIgdResponse> result = ServiceNotificationUpnpIgdResponse.tryParse(readMsg.getData());
+                    if (!result.isSuccessful()) {
+                        // Not a notification (e.g. someone else's M-SEARCH) -- skip
+                        continue;
+                    }
+                    ServiceNotificationUpnpIgdResponse notification = result.getValue();
+
+                    LOG.debug("Received notification from {}: {}", readMsg.getRemoteAddress(), notification);
+
+                    synchronized (registry) {
+                        long time = currentTime();
+                        registry.handle(notification, readMsg.getRemoteAddress().getAddress(), time);
+                        registry.expire(time);
+                    }
+                } else {
+                    if (msg instanceof IdentifiableErrorNetworkResponse || msg instanceof IdentifiableErrorNetworkNotification) {
+                        LOG.warn("Encountered socket error: {}", msg);
+                    }
+
+                    synchronized (registry) {
+                        registry.expire(currentTime());
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            // do nothing -- closed
+        } finally {
+            LOG.debug("Stopping notification monitor");
+            for (int id : socketIds) {
+                networkBus.send(new CloseNetworkRequest(id));
+            }
+        }
+    }
+
+    private static long currentTime() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -15,7 +15,14 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd;
 
+import com.offbynull.portmapper.mapper.BulkPortMapper;
+import com.offbynull.portmapper.mapper.GatewayFaultException;
+import com.offbynull.portmapper.mapper.GatewayLimiter;
+import com.offbynull.portmapper.mapper.MapperIoUtils;
+import com.offbynull.portmapper.mapper.ParseResult;
 import com.offbynull.portmapper.mapper.PortMapper;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mapper.RestorablePortMapper;
 import com.offbynull.portmapper.gateway.Bus;
 import com.offbynull.portmapper.helpers.NetworkUtils;
 import com.offbynull.portmapper.mapper.MapperIoUtils.BytesToResponseTransformer;
@@ -25,6 +32,7 @@ import com.offbynull.portmapper.mapper.MapperIoUtils.UdpRequest;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.getLocalIpAddresses;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.performBatchedTcpRequests;
 import static com.offbynull.portmapper.mapper.MapperIoUtils.performUdpRequests;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.RootUpnpIgdRequest;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.RootUpnpIgdResponse;
 import com.offbynull.portmapper.mappers.upnpigd.externalmessages.RootUpnpIgdResponse.ServiceReference;
@@ -57,11 +65,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * UPNP-IGD {@link PortMapper} implementation.
+ * UPNP-IGD {@link PortMapper} implementation. This class is thread-safe.
  *
  * @author Kasra Faghihi
  */
-public abstract class UpnpIgdPortMapper implements PortMapper {
+public abstract class UpnpIgdPortMapper implements RestorablePortMapper, BulkPortMapper {
     private static final Logger LOG = LoggerFactory.getLogger(UpnpIgdPortMapper.class);
 
     private final Bus networkBus;
@@ -71,6 +79,8 @@ public abstract class UpnpIgdPortMapper implements PortMapper {
     private final String serviceType;
     private final Range<Long> externalPortRange;
     private final Range<Long> leaseDurationRange;
+    private final ExternalPortAllocator externalPortAllocator;
+    private final UpnpIgdCapabilities capabilities;
 
     /**
      * Constructs a {@link UpnpIgdPortMapper} object.
@@ -107,6 +117,9 @@ public abstract class UpnpIgdPortMapper implements PortMapper {
         this.serviceType = serviceType;
         this.externalPortRange = externalPortRange;
         this.leaseDurationRange = leaseDurationRange;
+        this.externalPortAllocator = ExternalPortAllocator.forDevice(getAddressFromUrl(controlUrl).getAddress(), serviceType,
+                externalPortRange.getMinimum().intValue(), externalPortRange.getMaximum().intValue());
+        this.capabilities = new UpnpIgdCapabilities();
     }
 
     /**
@@ -165,12 +178,127 @@ public abstract class UpnpIgdPortMapper implements PortMapper {
         return leaseDurationRange;
     }
 
+    /**
+     * Clamp a requested lifetime to the lease duration range supported by the device.
+     * @param lifetime requested lifetime
+     * @return lease duration to request from the device
+     */
+    protected final long clampLeaseDuration(long lifetime) {
+        if (leaseDurationRange.isBefore(lifetime)) {
+            return leaseDurationRange.getMaximum();
+        } else if (leaseDurationRange.isAfter(lifetime)) {
+            return leaseDurationRange.getMinimum();
+        } else {
+            return lifetime;
+        }
+    }
+
+    /**
+     * Get the allocator used to pick external ports when the device refuses to map the port that was asked for. Use it to reserve ranges
+     * of external ports that should never be picked. The allocator is shared with every other mapper for the same service on the same
+     * device.
+     * @return external port allocator for the device
+     */
+    public final ExternalPortAllocator getExternalPortAllocator() {
+        return externalPortAllocator;
+    }
+
+    /**
+     * Get the limiter shared by everything talking to the device. All requests to the device should go through it (see
+     * {@link MapperIoUtils#performLimitedTcpRequests(com.offbynull.portmapper.gateway.Bus, com.offbynull.portmapper.mapper.GatewayLimiter,
+     * java.util.Collection, long...) }) so that the device never has more requests in flight than it can handle.
+     * @return limiter for the device
+     */
+    protected final GatewayLimiter getLimiter() {
+        // looked up each time so that parallelism changes take effect right away
+        return GatewayLimiter.forGateway(getAddressFromUrl(controlUrl).getAddress());
+    }
+
+    /**
+     * Get what's been learned about the device from how it has responded to requests so far.
+     * @return learned capabilities of the device
+     */
+    public final UpnpIgdCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Pick the external port to try next when the device refuses to map the port that was asked for because it's taken (see
+     * {@link #isConflict(com.offbynull.portmapper.mapper.MapperIoUtils.TcpRequest) }). The refused port is remembered for a while so it
+     * doesn't get picked again.
+     * @param portType port type
+     * @param refusedExternalPort external port that the device refused to map
+     * @return external port to try next, or {@code -1} if there are no more ports to try
+     */
+    protected final int nextExternalPort(PortType portType, int refusedExternalPort) {
+        externalPortAllocator.markConflicted(portType, refusedExternalPort);
+        return externalPortAllocator.nextPort(portType);
+    }
+
+    /**
+     * Pick the external port to try first. This is {@code externalPort} unless the device has already refused to map it, in which case
+     * another port is picked so that the doomed attempt is skipped.
+     * @param portType port type
+     * @param externalPort external port that was asked for
+     * @return external port to try first
+     */
+    protected final int firstExternalPort(PortType portType, int externalPort) {
+        if (externalPortAllocator.isConflicted(portType, externalPort)) {
+            int nextExternalPort = externalPortAllocator.nextPort(portType);
+            if (nextExternalPort != -1) {
+                return nextExternalPort;
+            }
+        }
+        return externalPort;
+    }
+
+    /**
+     * Get the SOAP fault that the device sent back in place of a response.
+     * @param httpRequest request
+     * @return fault, or {@code null} if the device didn't send back a fault (either it sent back a response or it didn't respond at all)
+     */
+    protected static FaultUpnpIgdResponse getFault(TcpRequest httpRequest) {
+        Object response = httpRequest.getResponse();
+        return response instanceof FaultUpnpIgdResponse ? (FaultUpnpIgdResponse) response : null;
+    }
+
+    /**
+     * Check if the device refused a request because the external port is taken. Only the faults that say so count: a missing response
+     * says nothing about the port, so it must not get the port skipped over.
+     * @param httpRequest request
+     * @return {@code true} if the device sent back a fault saying that the external port conflicts with an existing mapping
+     */
+    protected static boolean isConflict(TcpRequest httpRequest) {
+        FaultUpnpIgdResponse fault = getFault(httpRequest);
+        return fault != null && (fault.getErrorCode() == FaultUpnpIgdResponse.CONFLICT_IN_MAPPING_ENTRY
+                || fault.getErrorCode() == FaultUpnpIgdResponse.CONFLICT_WITH_OTHER_MECHANISMS);
+    }
+
+    /**
+     * Check if a request was successful.
+     * @param httpRequest request
+     * @param noResponseMessage message to use if the device didn't respond (or the response couldn't be parsed)
+     * @return {@code null} if the device sent back a response, otherwise the error to report (a {@link GatewayFaultException} if the device
+     * sent back a fault)
+     */
+    protected static IllegalStateException toError(TcpRequest httpRequest, String noResponseMessage) {
+        Object response = httpRequest.getResponse();
+        if (response == null) {
+            return new IllegalStateException(noResponseMessage);
+        } else if (response instanceof FaultUpnpIgdResponse) {
+            FaultUpnpIgdResponse fault = (FaultUpnpIgdResponse) response;
+            return new GatewayFaultException("Device responded with fault " + fault.getErrorCode() + " (" + fault.getErrorDescription()
+                    + ")");
+        }
+        return null;
+    }
+
     // CHECKSTYLE:OFF:DesignForExtension
     @Override
     public String toString() {
         return "UpnpIgdPortMapper{" + "internalAddress=" + internalAddress + ", controlUrl=" + controlUrl + ", serverName=" + serverName
                 + ", serviceType=" + serviceType + ", externalPortRange=" + externalPortRange + ", leaseDurationRange=" + leaseDurationRange
-                + '}';
+                + ", externalPortAllocator=" + externalPortAllocator + ", capabilities=" + capabilities + '}';
     }
     // CHECKSTYLE:ON:DesignForExtension
 
@@ -358,6 +486,11 @@ public abstract class UpnpIgdPortMapper implements PortMapper {
     }
 
 
+    @Override
+    public final String getIdentity() {
+        return "UPNP-IGD " + serviceType + " " + internalAddress.getHostAddress() + " " + controlUrl;
+    }
+
     @Override
     public final InetAddress getSourceAddress() {
         return internalAddress;
@@ -413,8 +546,8 @@ public abstract class UpnpIgdPortMapper implements PortMapper {
     private static final class ServiceDiscoveryResponseTransformer implements BytesToResponseTransformer {
 
         @Override
-        public Object create(byte[] buffer) {
-            return new ServiceDiscoveryUpnpIgdResponse(buffer);
+        public ParseResult<?> create(byte[] buffer) {
+            return ServiceDiscoveryUpnpIgdResponse.tryParse(buffer);
         }
     }
 
@@ -427,16 +560,45 @@ public abstract class UpnpIgdPortMapper implements PortMapper {
         }
 
         @Override
-        public Object create(byte[] buffer) {
-            return new RootUpnpIgdResponse(baseUrl, buffer);
+        public ParseResult<?> create(byte[] buffer) {
+            return RootUpnpIgdResponse.tryParse(baseUrl, buffer);
         }
     }
 
     private static final class ServiceDescriptionUpnpIgdBytesToResponseTransformer implements BytesToResponseTransformer {
 
         @Override
-        public Object create(byte[] buffer) {
-            return new ServiceDescriptionUpnpIgdResponse(buffer);
+        public ParseResult<?> create(byte[] buffer) {
+            return ServiceDescriptionUpnpIgdResponse.tryParse(buffer);
         }
     }
+
+    /**
+     * Transforms bytes to a response object, or to a {@link FaultUpnpIgdResponse} if the device sent back a SOAP fault instead. A fault is
+     * a definitive answer from the device, so it's handed back rather than rejected (a rejected response is treated the same as no
+     * response, meaning the request gets sent again until it times out).
+     */
+    protected abstract static class FaultAwareResponseTransformer implements BytesToResponseTransformer {
+
+        @Override
+        public final ParseResult<?> create(byte[] buffer) {
+            ParseResult<?> result = createResponse(buffer);
+            if (result.isSuccessful()) {
+                return result;
+            }
+            
+            ParseResult<FaultUpnpIgdResponse> faultResult = FaultUpnpIgdResponse.tryParse(buffer);
+            if (faultResult.isSuccessful()) {
+                return faultResult;
+            }
+            return result; // not a fault either -- report why it failed as a response
+        }
+
+        /**
+         * Parses a response object from a byte array.
+         * @param buffer byte array to convert
+         * @return parse result containing the response object (failed rather than thrown if {@code buffer} couldn't be parsed)
+         */
+        protected abstract ParseResult<?> createResponse(byte[] buffer);
+    }
 }
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.util.Arrays;
 import java.util.HashSet;
 import org.apache.commons.lang3.Validate;
@@ -34,7 +35,22 @@ public final class AddAnyPortMappingUpnpIgdResponse extends UpnpIgdSoapResponse
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public AddAnyPortMappingUpnpIgdResponse(byte[] buffer) {
-        super("AddAnyPortMappingResponse", new HashSet<>(Arrays.asList("NewReservedPort")), buffer);
+        this(buffer, true);
+    }
+
+    private AddAnyPortMappingUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super("AddAnyPortMappingResponse", new HashSet<>(Arrays.asList("NewReservedPort")), buffer, strict);
+    }
+
+    /**
+     * Parses a {@link AddAnyPortMappingUpnpIgdResponse} object from a buffer. Unlike {@link #AddAnyPortMappingUpnpIgdResponse(byte[]) }, a
+     * malformed buffer is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<AddAnyPortMappingUpnpIgdResponse> tryParse(byte[] buffer) {
+        return toParseResult(new AddAnyPortMappingUpnpIgdResponse(buffer, false));
     }
     
     /**
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.util.Arrays;
 import java.util.HashSet;
 import org.apache.commons.lang3.Validate;
@@ -34,7 +35,22 @@ public final class AddPinholeUpnpIgdResponse extends UpnpIgdSoapResponse {
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public AddPinholeUpnpIgdResponse(byte[] buffer) {
-        super("AddPinholeResponse", new HashSet<>(Arrays.asList("UniqueID")), buffer);
+        this(buffer, true);
+    }
+
+    private AddPinholeUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super("AddPinholeResponse", new HashSet<>(Arrays.asList("UniqueID")), buffer, strict);
+    }
+
+    /**
+     * Parses a {@link AddPinholeUpnpIgdResponse} object from a buffer. Unlike {@link #AddPinholeUpnpIgdResponse(byte[]) }, a malformed
+     * buffer is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<AddPinholeUpnpIgdResponse> tryParse(byte[] buffer) {
+        return toParseResult(new AddPinholeUpnpIgdResponse(buffer, false));
     }
     
     /**
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.util.Collections;
 
 /**
@@ -32,7 +33,22 @@ public final class AddPortMappingUpnpIgdResponse extends UpnpIgdSoapResponse {
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public AddPortMappingUpnpIgdResponse(byte[] buffer) {
-        super("AddPortMappingResponse", Collections.<String>emptySet(), buffer);
+        this(buffer, true);
+    }
+
+    private AddPortMappingUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super("AddPortMappingResponse", Collections.<String>emptySet(), buffer, strict);
+    }
+
+    /**
+     * Parses a {@link AddPortMappingUpnpIgdResponse} object from a buffer. Unlike {@link #AddPortMappingUpnpIgdResponse(byte[]) }, a
+     * malformed buffer is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<AddPortMappingUpnpIgdResponse> tryParse(byte[] buffer) {
+        return toParseResult(new AddPortMappingUpnpIgdResponse(buffer, false));
     }
 
     @Override
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.util.Collections;
 
 /**
@@ -32,7 +33,22 @@ public final class DeletePinholeUpnpIgdResponse extends UpnpIgdSoapResponse {
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public DeletePinholeUpnpIgdResponse(byte[] buffer) {
-        super("DeletePinholeResponse", Collections.<String>emptySet(), buffer);
+        this(buffer, true);
+    }
+
+    private DeletePinholeUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super("DeletePinholeResponse", Collections.<String>emptySet(), buffer, strict);
+    }
+
+    /**
+     * Parses a {@link DeletePinholeUpnpIgdResponse} object from a buffer. Unlike {@link #DeletePinholeUpnpIgdResponse(byte[]) }, a
+     * malformed buffer is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<DeletePinholeUpnpIgdResponse> tryParse(byte[] buffer) {
+        return toParseResult(new DeletePinholeUpnpIgdResponse(buffer, false));
     }
 
     @Override
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.util.Collections;
 
 /**
@@ -32,7 +33,22 @@ public final class DeletePortMappingUpnpIgdResponse extends UpnpIgdSoapResponse
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public DeletePortMappingUpnpIgdResponse(byte[] buffer) {
-        super("DeletePortMappingResponse", Collections.<String>emptySet(), buffer);
+        this(buffer, true);
+    }
+
+    private DeletePortMappingUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super("DeletePortMappingResponse", Collections.<String>emptySet(), buffer, strict);
+    }
+
+    /**
+     * Parses a {@link DeletePortMappingUpnpIgdResponse} object from a buffer. Unlike {@link #DeletePortMappingUpnpIgdResponse(byte[]) }, a
+     * malformed buffer is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<DeletePortMappingUpnpIgdResponse> tryParse(byte[] buffer) {
+        return toParseResult(new DeletePortMappingUpnpIgdResponse(buffer, false));
     }
 
     @Override
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
+
+import com.offbynull.portmapper.mapper.ParseResult;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Represents a SOAP fault sent back by a UPnP-IGD device in place of the response to an action (e.g. ConflictInMappingEntry in response to
+ * an AddPortMapping request).
+ * <p>
+ * For a more thorough description of error codes, see docs at http://upnp.org/specs/gw/igd1 and http://upnp.org/specs/gw/igd2.
+ * @author Kasra Faghihi
+ */
+public final class FaultUpnpIgdResponse extends UpnpIgdHttpResponse {
+
+    /**
+     * Invalid Action.
+     */
+    public static final int INVALID_ACTION = 401;
+    /**
+     * Invalid Args.
+     */
+    public static final int INVALID_ARGS = 402;
+    /**
+     * Action Failed.
+     */
+    public static final int ACTION_FAILED = 501;
+    /**
+     * Optional Action Not Implemented.
+     */
+    public static final int OPTIONAL_ACTION_NOT_IMPLEMENTED = 602;
+    /**
+     * Action not authorized.
+     */
+    public static final int ACTION_NOT_AUTHORIZED = 606;
+    /**
+     * NoSuchEntry (pinhole doesn't exist).
+     */
+    public static final int NO_SUCH_ENTRY = 704;
+    /**
+     * NoSuchEntryInArray (port mapping doesn't exist).
+     */
+    public static final int NO_SUCH_ENTRY_IN_ARRAY = 714;
+    /**
+     * ConflictInMappingEntry (external port already mapped to another client).
+     */
+    public static final int CONFLICT_IN_MAPPING_ENTRY = 718;
+    /**
+     * SamePortValuesRequired (external port and internal port must be the same).
+     */
+    public static final int SAME_PORT_VALUES_REQUIRED = 724;
+    /**
+     * OnlyPermanentLeasesSupported (lease duration must be 0).
+     */
+    public static final int ONLY_PERMANENT_LEASES_SUPPORTED = 725;
+    /**
+     * NoPortMapsAvailable (no more mappings can be created).
+     */
+    public static final int NO_PORT_MAPS_AVAILABLE = 728;
+    /**
+     * ConflictWithOtherMechanisms (external port already in use by some other mechanism on the device).
+     */
+    public static final int CONFLICT_WITH_OTHER_MECHANISMS = 729;
+
+    private final int errorCode;
+    private final String errorDescription;
+    private final String failureReason; // null if well-formed -- can only be non-null for responses created through tryParse()
+
+    /**
+     * Constructs a {@link FaultUpnpIgdResponse} object.
+     * @param buffer buffer containing response data
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code buffer} was malformed or didn't contain a SOAP fault
+     */
+    public FaultUpnpIgdResponse(byte[] buffer) {
+        this(buffer, true);
+    }
+
+    private FaultUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super(buffer);
+
+        String content = getContent();
+
+        // Single pass over the body that collects the leaf elements of <soapprefix:Fault>, including those nested in its
+        // <detail><UPnPError> block
+        SoapBodyIndex index = content == null ? null : new SoapBodyIndex(content, null);
+        if (index == null) {
+            failureReason = "No content";
+        } else if (!index.isFault()) {
+            failureReason = "Fault element not found";
+        } else {
+            failureReason = null;
+        }
+        Validate.isTrue(!strict || failureReason == null, failureReason);
+        
+        if (failureReason != null) {
+            errorCode = -1;
+            errorDescription = null;
+            return;
+        }
+
+        // Some devices send back faults without the UPnPError detail -- still a fault, just one without a code
+        String errorCodeStr = index.getLeafIgnoreCase("errorCode");
+        int code = -1;
+        if (errorCodeStr != null) {
+            try {
+                code = Integer.parseInt(errorCodeStr);
+            } catch (NumberFormatException nfe) {
+                // do nothing -- keep it as -1
+            }
+        }
+
+        this.errorCode = code;
+        this.errorDescription = index.getLeafIgnoreCase("errorDescription");
+    }
+
+    /**
+     * Parses a {@link FaultUpnpIgdResponse} object from a buffer. Unlike {@link #FaultUpnpIgdResponse(byte[]) }, a buffer that's malformed
+     * or doesn't contain a SOAP fault is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<FaultUpnpIgdResponse> tryParse(byte[] buffer) {
+        FaultUpnpIgdResponse response = new FaultUpnpIgdResponse(buffer, false);
+        if (response.failureReason != null) {
+            return ParseResult.failure(response.failureReason);
+        }
+        return ParseResult.success(response);
+    }
+
+    /**
+     * Get UPnP error code.
+     * @return error code, or {@code -1} if the fault didn't contain one
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Get UPnP error description.
+     * @return error description, or {@code null} if the fault didn't contain one
+     */
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+
+    @Override
+    public String toString() {
+        return "FaultUpnpIgdResponse{super=" + super.toString() + ", errorCode=" + errorCode + ", errorDescription=" + errorDescription
+                + '}';
+    }
+
+    // NO NON-STATIC FIELDS THAT AREN'T DERIVED FROM CONTENT, so parent's equals/hashCode should work
+}
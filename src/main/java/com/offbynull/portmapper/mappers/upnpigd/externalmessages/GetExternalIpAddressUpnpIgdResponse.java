@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
@@ -36,7 +37,22 @@ public final class GetExternalIpAddressUpnpIgdResponse extends UpnpIgdSoapRespon
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public GetExternalIpAddressUpnpIgdResponse(byte[] buffer) {
-        super("GetExternalIPAddressResponse", new HashSet<>(Arrays.asList("NewExternalIPAddress")), buffer);
+        this(buffer, true);
+    }
+
+    private GetExternalIpAddressUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super("GetExternalIPAddressResponse", new HashSet<>(Arrays.asList("NewExternalIPAddress")), buffer, strict);
+    }
+
+    /**
+     * Parses a {@link GetExternalIpAddressUpnpIgdResponse} object from a buffer. Unlike {@link #GetExternalIpAddressUpnpIgdResponse(byte[])
+     * }, a malformed buffer is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<GetExternalIpAddressUpnpIgdResponse> tryParse(byte[] buffer) {
+        return toParseResult(new GetExternalIpAddressUpnpIgdResponse(buffer, false));
     }
     
     /**
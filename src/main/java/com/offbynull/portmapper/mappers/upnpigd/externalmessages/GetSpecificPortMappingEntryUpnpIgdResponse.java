@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Arrays;
@@ -36,6 +37,10 @@ public final class GetSpecificPortMappingEntryUpnpIgdResponse extends UpnpIgdSoa
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public GetSpecificPortMappingEntryUpnpIgdResponse(byte[] buffer) {
+        this(buffer, true);
+    }
+
+    private GetSpecificPortMappingEntryUpnpIgdResponse(byte[] buffer, boolean strict) {
         super("GetSpecificPortMappingEntryResponse",
                 new HashSet<>(Arrays.asList(
                         "NewInternalPort",
@@ -43,7 +48,20 @@ public final class GetSpecificPortMappingEntryUpnpIgdResponse extends UpnpIgdSoa
                         "NewEnabled",
                         "NewPortMappingDescription",
                         "NewLeaseDuration")),
-                buffer);
+                buffer,
+                strict);
+    }
+
+    /**
+     * Parses a {@link GetSpecificPortMappingEntryUpnpIgdResponse} object from a buffer. Unlike {@link
+     * #GetSpecificPortMappingEntryUpnpIgdResponse(byte[]) }, a malformed buffer is reported through the returned result rather than by
+     * throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<GetSpecificPortMappingEntryUpnpIgdResponse> tryParse(byte[] buffer) {
+        return toParseResult(new GetSpecificPortMappingEntryUpnpIgdResponse(buffer, false));
     }
 
     /**
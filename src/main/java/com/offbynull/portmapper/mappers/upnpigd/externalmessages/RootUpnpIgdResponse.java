@@ -16,6 +16,7 @@
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
 import com.offbynull.portmapper.helpers.TextUtils;
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -34,7 +35,8 @@ import org.apache.commons.lang3.Validate;
  */
 public final class RootUpnpIgdResponse extends UpnpIgdHttpResponse {
 
-    private List<ServiceReference> services;
+    private final List<ServiceReference> services;
+    private final String failureReason; // null if well-formed -- can only be non-null for responses created through tryParse()
 
     /**
      * Constructs a {@link RootUpnpIgdResponse} object by parsing a buffer.
@@ -45,19 +47,34 @@ public final class RootUpnpIgdResponse extends UpnpIgdHttpResponse {
      * @throws IllegalArgumentException if any argument is {@code null}
      */
     public RootUpnpIgdResponse(URL baseUrl, byte[] buffer) {
+        this(baseUrl, buffer, true);
+    }
+
+    private RootUpnpIgdResponse(URL baseUrl, byte[] buffer, boolean strict) {
         super(buffer);
 
 //        Validate.isTrue(isResponseSuccessful());
         Validate.notNull(baseUrl);
 
         String content = getContent();
+        if (content == null) {
+            Validate.isTrue(!strict, "No content");
+            this.services = Collections.emptyList();
+            this.failureReason = "No content";
+            return;
+        }
 
         String baseUrlOverrideStr = TextUtils.findFirstBlock(content, "<URLBase>", "</URLBase>", true);
         if (baseUrlOverrideStr != null) {
             try {
                 baseUrl = new URL(baseUrlOverrideStr);
             } catch (MalformedURLException ex) {
-                throw new IllegalArgumentException(ex);
+                if (strict) {
+                    throw new IllegalArgumentException(ex);
+                }
+                this.services = Collections.emptyList();
+                this.failureReason = "Malformed URLBase";
+                return;
             }
         }
 
@@ -84,6 +101,23 @@ public final class RootUpnpIgdResponse extends UpnpIgdHttpResponse {
         }
 
         this.services = Collections.unmodifiableList(servicesList);
+        this.failureReason = null;
+    }
+
+    /**
+     * Parses a {@link RootUpnpIgdResponse} object from a buffer. Unlike {@link #RootUpnpIgdResponse(java.net.URL, byte[]) }, a malformed
+     * buffer is reported through the returned result rather than by throwing an exception.
+     * @param baseUrl device URI
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<RootUpnpIgdResponse> tryParse(URL baseUrl, byte[] buffer) {
+        RootUpnpIgdResponse response = new RootUpnpIgdResponse(baseUrl, buffer, false);
+        if (response.failureReason != null) {
+            return ParseResult.failure(response.failureReason);
+        }
+        return ParseResult.success(response);
     }
 
     /**
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+
+// Index of a UPnP service description (SCPD) built in a single pass over the document: action name -> argument name -> related state
+// variable, and state variable name -> allowed value range. Names are keyed in lowercase and the first occurrence of each action/argument/
+// state variable wins, which is how the old block-by-block search behaved. Tag names are matched case-insensitively and attributes on tags
+// are ignored. The scanner is tolerant rather than validating -- it doesn't care about nesting beyond the few tags it tracks, unknown tags
+// are skipped, and anything left unterminated at the end of the document is dropped.
+final class ScpdIndex {
+    
+    private static final int TAG_OTHER = 0;
+    private static final int TAG_ACTION = 1;
+    private static final int TAG_ARGUMENT = 2;
+    private static final int TAG_STATE_VARIABLE = 3;
+    private static final int TAG_ALLOWED_VALUE_RANGE = 4;
+    private static final int TAG_NAME = 5;
+    private static final int TAG_RELATED_STATE_VARIABLE = 6;
+    private static final int TAG_MINIMUM = 7;
+    private static final int TAG_MAXIMUM = 8;
+    
+    private static final String[] TAG_NAMES = {
+        null,
+        "action",
+        "argument",
+        "stateVariable",
+        "allowedValueRange",
+        "name",
+        "relatedStateVariable",
+        "minimum",
+        "maximum"
+    };
+    
+    private final Map<String, Map<String, String>> actions = new HashMap<>();
+    private final Map<String, StateVariable> stateVariables = new HashMap<>();
+
+    ScpdIndex(String content) {
+        Validate.notNull(content);
+        
+        boolean inAction = false;
+        String actionName = null;
+        Map<String, String> actionArgs = null;
+        
+        boolean inArgument = false;
+        String argName = null;
+        String argRelatedStateVar = null;
+        
+        boolean inStateVar = false;
+        boolean inRange = false;
+        String stateVarName = null;
+        StateVariable stateVar = null;
+        
+        int captureTag = TAG_OTHER;
+        int captureStart = -1;
+        
+        int idx = 0;
+        while (true) {
+            int tagStart = content.indexOf('<', idx);
+            if (tagStart == -1) {
+                break;
+            }
+            int tagEnd = content.indexOf('>', tagStart + 1);
+            if (tagEnd == -1) {
+                break;
+            }
+            idx = tagEnd + 1;
+            
+            boolean closing = tagStart + 1 < tagEnd && content.charAt(tagStart + 1) == '/';
+            int tag = identifyTag(content, closing ? tagStart + 2 : tagStart + 1, tagEnd);
+            if (tag == TAG_OTHER || (!closing && content.charAt(tagEnd - 1) == '/')) { // skip unknown and self-closing (empty) tags
+                continue;
+            }
+            
+            if (!closing) {
+                switch (tag) {
+                    case TAG_ACTION:
+                        inAction = true;
+                        actionName = null;
+                        actionArgs = new HashMap<>();
+                        inArgument = false;
+                        break;
+                    case TAG_ARGUMENT:
+                        inArgument = inAction;
+                        argName = null;
+                        argRelatedStateVar = null;
+                        break;
+                    case TAG_STATE_VARIABLE:
+                        inStateVar = true;
+                        inRange = false;
+                        stateVarName = null;
+                        stateVar = new StateVariable();
+                        break;
+                    case TAG_ALLOWED_VALUE_RANGE:
+                        if (inStateVar && !stateVar.hasRange) { // only the first allowedValueRange is used
+                            inRange = true;
+                            stateVar.hasRange = true;
+                        }
+                        break;
+                    default: // value tags -- start capturing if not already capturing
+                        if (captureTag == TAG_OTHER) {
+                            captureTag = tag;
+                            captureStart = tagEnd + 1;
+                        }
+                        break;
+                }
+                continue;
+            }
+            
+            switch (tag) {
+                case TAG_ACTION:
+                    if (inAction && actionName != null) {
+                        String key = actionName.toLowerCase(Locale.ENGLISH);
+                        if (!actions.containsKey(key)) {
+                            actions.put(key, actionArgs);
+                        }
+                    }
+                    inAction = false;
+                    inArgument = false;
+                    break;
+                case TAG_ARGUMENT:
+                    if (inArgument && argName != null) {
+                        String key = argName.toLowerCase(Locale.ENGLISH);
+                        if (!actionArgs.containsKey(key)) {
+                            actionArgs.put(key, argRelatedStateVar);
+                        }
+                    }
+                    inArgument = false;
+                    break;
+                case TAG_STATE_VARIABLE:
+                    if (inStateVar && stateVarName != null) {
+                        String key = stateVarName.toLowerCase(Locale.ENGLISH);
+                        if (!stateVariables.containsKey(key)) {
+                            stateVariables.put(key, stateVar);
+                        }
+                    }
+                    inStateVar = false;
+                    inRange = false;
+                    break;
+                case TAG_ALLOWED_VALUE_RANGE:
+                    inRange = false;
+                    break;
+                default: { // value tags -- only the tag that started the capture can end it
+                    if (tag != captureTag) {
+                        break;
+                    }
+                    String value = content.substring(captureStart, tagStart).trim();
+                    captureTag = TAG_OTHER;
+                    
+                    if (inStateVar) {
+                        if (inRange) {
+                            if (tag == TAG_MINIMUM && stateVar.minimum == null) {
+                                stateVar.minimum = value;
+                            } else if (tag == TAG_MAXIMUM && stateVar.maximum == null) {
+                                stateVar.maximum = value;
+                            }
+                        } else if (tag == TAG_NAME && stateVarName == null) {
+                            stateVarName = value;
+                        }
+                    } else if (inArgument) {
+                        if (tag == TAG_NAME && argName == null) {
+                            argName = value;
+                        } else if (tag == TAG_RELATED_STATE_VARIABLE && argRelatedStateVar == null) {
+                            argRelatedStateVar = value;
+                        }
+                    } else if (inAction) {
+                        if (tag == TAG_NAME && actionName == null) {
+                            actionName = value;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    // Identifies the tag whose name starts at start, ignoring case and anything after the name (attributes / self-closing slash).
+    private static int identifyTag(String content, int start, int end) {
+        int nameEnd = start;
+        while (nameEnd < end) {
+            char ch = content.charAt(nameEnd);
+            if (ch == '/' || Character.isWhitespace(ch)) {
+                break;
+            }
+            nameEnd++;
+        }
+        
+        int len = nameEnd - start;
+        for (int i = 1; i < TAG_NAMES.length; i++) {
+            String tagName = TAG_NAMES[i];
+            if (tagName.length() == len && content.regionMatches(true, start, tagName, 0, len)) {
+                return i;
+            }
+        }
+        return TAG_OTHER;
+    }
+    
+    boolean hasAction(String actionName) {
+        Validate.notNull(actionName);
+        return actions.containsKey(actionName.toLowerCase(Locale.ENGLISH));
+    }
+    
+    // Returns null if the action, the argument, or the argument's related state variable wasn't found.
+    String getRelatedStateVariable(String actionName, String argName) {
+        Validate.notNull(actionName);
+        Validate.notNull(argName);
+        Map<String, String> args = actions.get(actionName.toLowerCase(Locale.ENGLISH));
+        if (args == null) {
+            return null;
+        }
+        return args.get(argName.toLowerCase(Locale.ENGLISH));
+    }
+    
+    // Returns {minimum, maximum} of the state variable's allowed value range (either can be null if missing), or null if the state
+    // variable wasn't found or doesn't have an allowed value range.
+    String[] getAllowedValueRange(String stateVarName) {
+        Validate.notNull(stateVarName);
+        StateVariable stateVar = stateVariables.get(stateVarName.toLowerCase(Locale.ENGLISH));
+        if (stateVar == null || !stateVar.hasRange) {
+            return null;
+        }
+        return new String[] { stateVar.minimum, stateVar.maximum };
+    }
+    
+    private static final class StateVariable {
+        private boolean hasRange;
+        private String minimum;
+        private String maximum;
+    }
+}
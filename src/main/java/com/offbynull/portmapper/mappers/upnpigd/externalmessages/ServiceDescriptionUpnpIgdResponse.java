@@ -15,10 +15,9 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
-import com.offbynull.portmapper.helpers.TextUtils;
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import org.apache.commons.lang3.Range;
@@ -38,7 +37,8 @@ import org.apache.commons.lang3.Validate;
  */
 public final class ServiceDescriptionUpnpIgdResponse extends UpnpIgdHttpResponse {
     
-    private Map<ServiceType, IdentifiedService> identifiedServices;
+    private final Map<ServiceType, IdentifiedService> identifiedServices;
+    private final String failureReason; // null if well-formed -- can only be non-null for responses created through tryParse()
 
     /**
      * Constructs a {@link ServiceDescriptionUpnpIgdResponse} object by parsing a buffer.
@@ -47,30 +47,58 @@ public final class ServiceDescriptionUpnpIgdResponse extends UpnpIgdHttpResponse
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public ServiceDescriptionUpnpIgdResponse(byte[] buffer) {
+        this(buffer, true);
+    }
+
+    private ServiceDescriptionUpnpIgdResponse(byte[] buffer, boolean strict) {
         super(buffer);
         
 //        Validate.isTrue(isResponseSuccessful());
 
-        String content = getContent();
+        if (getContent() == null) {
+            Validate.isTrue(!strict, "No content");
+            this.identifiedServices = Collections.emptyMap();
+            this.failureReason = "No content";
+            return;
+        }
 
+        // index the description once and identify services off of that index -- descriptions for some devices are large, and rescanning
+        // them for every action/argument/state variable lookup gets expensive
+        ScpdIndex index = new ScpdIndex(getContent());
         
         Map<ServiceType, IdentifiedService> descs = new HashMap<>();
 
         // check for new portmapper version first -- if we checked for the old one first it would pass even if its the new one because the
         // new version contains all the old version methods
         IdentifiedService portMappingDescription;
-        if ((portMappingDescription = getAsNewPortMappingService(content)) != null) {
+        if ((portMappingDescription = getAsNewPortMappingService(index)) != null) {
             descs.put(ServiceType.NEW_PORT_MAPPER, portMappingDescription);
-        } else if ((portMappingDescription = getAsOldPortMappingService(content)) != null) {
+        } else if ((portMappingDescription = getAsOldPortMappingService(index)) != null) {
             descs.put(ServiceType.OLD_PORT_MAPPER, portMappingDescription);
         }
         
-        IdentifiedService firewallDescription = getAsFirewallService(content);
+        IdentifiedService firewallDescription = getAsFirewallService(index);
         if (firewallDescription != null) {
             descs.put(ServiceType.FIREWALL, firewallDescription);
         }
         
         identifiedServices = Collections.unmodifiableMap(descs);
+        failureReason = null;
+    }
+
+    /**
+     * Parses a {@link ServiceDescriptionUpnpIgdResponse} object from a buffer. Unlike {@link #ServiceDescriptionUpnpIgdResponse(byte[]) },
+     * a malformed buffer is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<ServiceDescriptionUpnpIgdResponse> tryParse(byte[] buffer) {
+        ServiceDescriptionUpnpIgdResponse response = new ServiceDescriptionUpnpIgdResponse(buffer, false);
+        if (response.failureReason != null) {
+            return ParseResult.failure(response.failureReason);
+        }
+        return ParseResult.success(response);
     }
 
     /**
@@ -87,90 +115,66 @@ public final class ServiceDescriptionUpnpIgdResponse extends UpnpIgdHttpResponse
         return identifiedServices;
     }
 
-    private static IdentifiedService getAsOldPortMappingService(String content) {
-        List<String> actionBlocks = TextUtils.findAllBlocks(content, "<action>", "</action>", true);
-        List<String> stateVarBlocks = TextUtils.findAllBlocks(content, "<stateVariable>", "</stateVariable>", true);
-
-        String getExtIpActionBlock = searchBlocksForTag(actionBlocks, "name", "GetExternalIPAddress");
-        String getMappingActionBlock = searchBlocksForTag(actionBlocks, "name", "GetSpecificPortMappingEntry");
-        String deleteMappingActionBlock = searchBlocksForTag(actionBlocks, "name", "DeletePortMapping");
-        String addMappingActionBlock = searchBlocksForTag(actionBlocks, "name", "AddPortMapping");
-        
-        if (getExtIpActionBlock == null || getMappingActionBlock == null || deleteMappingActionBlock == null
-                || addMappingActionBlock == null) {
+    private static IdentifiedService getAsOldPortMappingService(ScpdIndex index) {
+        if (!index.hasAction("GetExternalIPAddress") || !index.hasAction("GetSpecificPortMappingEntry")
+                || !index.hasAction("DeletePortMapping") || !index.hasAction("AddPortMapping")) {
             return null;
         }
         
         Range<Long> externalPortRange = getAllowedValueRange(
-                addMappingActionBlock,
-                stateVarBlocks,
+                index,
+                "AddPortMapping",
                 "NewExternalPort",
                 Range.between(0L, 65535L)); // based on docs
         Range<Long> leaseTimeRange = getAllowedValueRange(
-                addMappingActionBlock,
-                stateVarBlocks,
+                index,
+                "AddPortMapping",
                 "NewLeaseDuration",
                 Range.between(1L, 604800L)); // based on docs
         
         return new IdentifiedService(leaseTimeRange, externalPortRange);
     }
 
-    private static IdentifiedService getAsNewPortMappingService(String content) {
-        List<String> actionBlocks = TextUtils.findAllBlocks(content, "<action>", "</action>", true);
-        List<String> stateVarBlocks = TextUtils.findAllBlocks(content, "<stateVariable>", "</stateVariable>", true);
-
-        String getExtIpActionBlock = searchBlocksForTag(actionBlocks, "name", "GetExternalIPAddress");
-        String getMappingActionBlock = searchBlocksForTag(actionBlocks, "name", "GetSpecificPortMappingEntry");
-        String deleteMappingActionBlock = searchBlocksForTag(actionBlocks, "name", "DeletePortMapping");
-        String addAnyMappingActionBlock = searchBlocksForTag(actionBlocks, "name", "AddAnyPortMapping");
-        
-        if (getExtIpActionBlock == null || getMappingActionBlock == null || deleteMappingActionBlock == null
-                || addAnyMappingActionBlock == null) {
+    private static IdentifiedService getAsNewPortMappingService(ScpdIndex index) {
+        if (!index.hasAction("GetExternalIPAddress") || !index.hasAction("GetSpecificPortMappingEntry")
+                || !index.hasAction("DeletePortMapping") || !index.hasAction("AddAnyPortMapping")) {
             return null;
         }
         
         Range<Long> externalPortRange = getAllowedValueRange(
-                addAnyMappingActionBlock,
-                stateVarBlocks,
+                index,
+                "AddAnyPortMapping",
                 "NewExternalPort",
                 Range.between(0L, 65535L)); // based on docs
         Range<Long> leaseTimeRange = getAllowedValueRange(
-                addAnyMappingActionBlock,
-                stateVarBlocks,
+                index,
+                "AddAnyPortMapping",
                 "NewLeaseDuration",
                 Range.between(1L, 604800L)); // based on docs
         
         return new IdentifiedService(leaseTimeRange, externalPortRange);
     }
     
-    private static IdentifiedService getAsFirewallService(String content) {
-        List<String> actionBlocks = TextUtils.findAllBlocks(content, "<action>", "</action>", true);
-        List<String> stateVarBlocks = TextUtils.findAllBlocks(content, "<stateVariable>", "</stateVariable>", true);
-        
-
+    private static IdentifiedService getAsFirewallService(ScpdIndex index) {
 //       "GetFirewallStatus" required -- but don't bother checking because we don't care about it... technically this action is used to see
 //                                       if the firewall is active and accepting inbound
-        String addPinholeActionBlock = searchBlocksForTag(actionBlocks, "name", "AddPinhole");
-        String updatePinholeActionBlock = searchBlocksForTag(actionBlocks, "name", "UpdatePinhole");
-        String deletePinholeActionBlock = searchBlocksForTag(actionBlocks, "name", "DeletePinhole");
-        
-        if (addPinholeActionBlock == null || updatePinholeActionBlock == null || deletePinholeActionBlock == null) {
+        if (!index.hasAction("AddPinhole") || !index.hasAction("UpdatePinhole") || !index.hasAction("DeletePinhole")) {
             return null;
         }
         
         Range<Long> remotePortRange = getAllowedValueRange(
-                addPinholeActionBlock,
-                stateVarBlocks,
+                index,
+                "AddPinhole",
                 "RemotePort",
                 Range.between(0L, 65535L)); // based on docs
         Range<Long> addPinholeLeaseTimeRange = getAllowedValueRange(
-                addPinholeActionBlock,
-                stateVarBlocks,
+                index,
+                "AddPinhole",
                 "LeaseTime",
                 Range.between(1L, 86400L)); // based on docs
         Range<Long> updatePinholeLeaseTimeRange = getAllowedValueRange(
-                updatePinholeActionBlock,
-                stateVarBlocks,
+                index,
+                "UpdatePinhole",
                 "LeaseTime",
                 Range.between(1L, 86400L)); // based on docs
         
@@ -180,59 +184,39 @@ public final class ServiceDescriptionUpnpIgdResponse extends UpnpIgdHttpResponse
         return new IdentifiedService(leaseTimeRange, remotePortRange);
     }
 
-    private static Range<Long> getAllowedValueRange(String actionBlock, List<String> stateVars, String expectedArgName,
-            Range<Long> maxRange) {
-        // get arguments
-        List<String> argBlocks = TextUtils.findAllBlocks(actionBlock, "<argument>", "</argument>", true);
-        
-        
-        // find argument
-        String foundArgBlock = searchBlocksForTag(argBlocks, "name", expectedArgName);
-        if (foundArgBlock == null) { // didn't find arg that shuold be there -- try to be fault tolerant and return max range
-            return maxRange;
-        }
-        
-        
+    private static Range<Long> getAllowedValueRange(ScpdIndex index, String actionName, String expectedArgName, Range<Long> maxRange) {
         // find state variable referenced by argument
-        String expectedStateVar = TextUtils.findFirstBlock(foundArgBlock, "<relatedStateVariable>", "</relatedStateVariable>", true);
-        if (expectedStateVar == null) { // didn't find related state var for arg -- try to be fault tolerant and return max range
+        String expectedStateVar = index.getRelatedStateVariable(actionName, expectedArgName);
+        if (expectedStateVar == null) { // didn't find arg or related state var for arg -- try to be fault tolerant and return max range
             return maxRange;
         }
-        expectedStateVar = expectedStateVar.trim();
         
         
-        // find state variable
-        String foundStateVarBlock = searchBlocksForTag(stateVars, "name", expectedStateVar);
-        if (foundStateVarBlock == null) { // didn't find statevar referenced by arg -- try to be fault tolerant and return max range
+        // find allowed value range of that state variable
+        String[] allowedRange = index.getAllowedValueRange(expectedStateVar);
+        if (allowedRange == null) { // didn't find statevar referenced by arg or statevar has no range -- return max range
             return maxRange;
         }
-        
-        
-        // parse allowed value range from that state variable
-        String allowedRangeBlock = TextUtils.findFirstBlock(foundStateVarBlock, "<allowedValueRange>", "</allowedValueRange>", true);
-        if (allowedRangeBlock == null) {
-            return maxRange; // no allowed range value found, return max range
-        }
         // parse minimum -- default to maxRange's min if couldn't be understood or not found
-        String minStr = TextUtils.findFirstBlock(allowedRangeBlock, "<minimum>", "</minimum>", true);
+        String minStr = allowedRange[0];
         long min;
         if (minStr == null) {
             min = maxRange.getMinimum();
         } else {
             try {
-                min = Long.parseLong(minStr.trim());
+                min = Long.parseLong(minStr);
             } catch (NumberFormatException nfe) {
                 min = maxRange.getMinimum();
             }
         }
         // parse maximum -- default to maxRange's max if couldn't be understood or not found
-        String maxStr = TextUtils.findFirstBlock(allowedRangeBlock, "<maximum>", "</maximum>", true);
+        String maxStr = allowedRange[1];
         long max;
         if (maxStr == null) {
             max = maxRange.getMaximum();
         } else {
             try {
-                max = Long.parseLong(maxStr.trim());
+                max = Long.parseLong(maxStr);
             } catch (NumberFormatException nfe) {
                 max = maxRange.getMaximum();
             }
@@ -246,22 +230,6 @@ public final class ServiceDescriptionUpnpIgdResponse extends UpnpIgdHttpResponse
         return Range.between(min, max);
     }
 
-    private static String searchBlocksForTag(List<String> blocks, String tagToSearch, String expectedValue) {
-        for (String block : blocks) {
-            String name = TextUtils.findFirstBlock(block, "<" + tagToSearch + ">", "</" + tagToSearch + ">", true);
-            if (name == null) {
-                continue;
-            }
-
-            name = name.trim();
-            if (expectedValue.equalsIgnoreCase(name)) { // ignore case to be fault tolerant
-                return block;
-            }
-        }
-        
-        return null;
-    }
-
     @Override
     public String toString() {
         return "ServiceDescriptionUpnpIgdResponse{super=" + super.toString() + "identifiedServices=" + identifiedServices + '}';
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.MalformedURLException;
 import java.net.URL;
 import org.apache.commons.lang3.Validate;
@@ -76,6 +77,22 @@ public final class ServiceDiscoveryUpnpIgdResponse extends UpnpIgdHttpResponse {
 //        Validate.isTrue(isResponseSuccessful());
     }
 
+    /**
+     * Parses a {@link ServiceDiscoveryUpnpIgdResponse} object from a buffer. Unlike {@link #ServiceDiscoveryUpnpIgdResponse(byte[]) }, a
+     * buffer without a LOCATION header is rejected (through the returned result rather than by throwing an exception). Other devices on the
+     * network may answer or announce over the same multicast address, and anything without a location can't be used.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<ServiceDiscoveryUpnpIgdResponse> tryParse(byte[] buffer) {
+        ServiceDiscoveryUpnpIgdResponse response = new ServiceDiscoveryUpnpIgdResponse(buffer);
+        if (response.getHeaderIgnoreCase("LOCATION") == null) {
+            return ParseResult.failure("LOCATION header missing");
+        }
+        return ParseResult.success(response);
+    }
+
     /**
      * Get location to access service.
      * @return location
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
+
+import com.offbynull.portmapper.mapper.ParseResult;
+import java.net.MalformedURLException;
+import java.net.URL;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Represents an unsolicited UPnP SSDP notification ({@code NOTIFY * HTTP/1.1}). Devices multicast these to announce that they've come
+ * online ({@code ssdp:alive}), that they're going offline ({@code ssdp:byebye}), or that their description has changed
+ * ({@code ssdp:update}).
+ * <p>
+ * Specifications are documented at http://quimby.gnus.org/internet-drafts/draft-cai-ssdp-v1-03.txt and
+ * http://upnp.org/specs/arch/UPnP-arch-DeviceArchitecture-v1.1.pdf
+ * @author Kasra Faghihi
+ */
+public final class ServiceNotificationUpnpIgdResponse extends UpnpIgdHttpResponse {
+
+    private static final String MAX_AGE_KEY = "max-age";
+
+    private final NotificationType notificationType;
+    private final String failureReason; // null if well-formed -- can only be non-null for responses created through tryParse()
+
+    /**
+     * Constructs a {@link ServiceNotificationUpnpIgdResponse} object by parsing a buffer.
+     * @param buffer buffer containing notification data
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if buffer is malformed (NTS header is missing or unrecognized, or USN header is missing)
+     */
+    public ServiceNotificationUpnpIgdResponse(byte[] buffer) {
+        this(buffer, true);
+    }
+
+    private ServiceNotificationUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super(buffer);
+
+        String ntsStr = getHeaderIgnoreCase("NTS");
+        notificationType = ntsStr == null ? null : NotificationType.fromValue(ntsStr);
+        if (notificationType == null) {
+            failureReason = "NTS header missing or unrecognized";
+        } else if (getHeaderIgnoreCase("USN") == null) {
+            failureReason = "USN header missing";
+        } else {
+            failureReason = null;
+        }
+        Validate.isTrue(!strict || failureReason == null, failureReason);
+    }
+
+    /**
+     * Parses a {@link ServiceNotificationUpnpIgdResponse} object from a buffer. Unlike {@link #ServiceNotificationUpnpIgdResponse(byte[])
+     * }, a malformed buffer is reported through the returned result rather than by throwing an exception. Multicast SSDP traffic is noisy,
+     * so this is what should be used when listening for notifications.
+     * @param buffer buffer containing notification data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<ServiceNotificationUpnpIgdResponse> tryParse(byte[] buffer) {
+        ServiceNotificationUpnpIgdResponse response = new ServiceNotificationUpnpIgdResponse(buffer, false);
+        if (response.failureReason != null) {
+            return ParseResult.failure(response.failureReason);
+        }
+        return ParseResult.success(response);
+    }
+
+    /**
+     * Get notification sub-type (the NTS header).
+     * @return notification sub-type
+     */
+    public NotificationType getNotificationType() {
+        return notificationType;
+    }
+
+    /**
+     * Get the type of device/service being announced (the NT header).
+     * @return device/service type (may be {@code null})
+     */
+    public String getServiceType() {
+        return getHeaderIgnoreCase("NT");
+    }
+
+    /**
+     * Get unique service identifier.
+     * @return unique service identifier
+     */
+    public String getUsn() {
+        return getHeaderIgnoreCase("USN");
+    }
+
+    /**
+     * Get location to access service. Byebye notifications typically don't include this.
+     * @return location (may be {@code null})
+     * @throws IllegalStateException if could not be interpreted
+     */
+    public URL getLocation() {
+        String uriStr = getHeaderIgnoreCase("LOCATION");
+        if (uriStr == null) {
+            return null;
+        }
+        try {
+            return new URL(uriStr);
+        } catch (MalformedURLException urise) {
+            throw new IllegalStateException(urise);
+        }
+    }
+
+    /**
+     * Get server description.
+     * @return server description (may be {@code null})
+     */
+    public String getServer() {
+        return getHeaderIgnoreCase("SERVER");
+    }
+
+    /**
+     * Get the number of seconds this notification remains valid for (the max-age directive of the CACHE-CONTROL header).
+     * @return number of seconds this notification remains valid for, or {@code null} if not present or could not be interpreted
+     */
+    public Long getMaxAge() {
+        String cacheControlStr = getHeaderIgnoreCase("CACHE-CONTROL");
+        if (cacheControlStr == null) {
+            return null;
+        }
+
+        for (String directive : StringUtils.split(cacheControlStr, ',')) {
+            String[] splitDirective = StringUtils.split(directive, "=", 2);
+            if (splitDirective.length != 2 || !MAX_AGE_KEY.equalsIgnoreCase(splitDirective[0].trim())) {
+                continue;
+            }
+
+            try {
+                long maxAge = Long.parseLong(splitDirective[1].trim());
+                return maxAge < 0L ? null : maxAge;
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceNotificationUpnpIgdResponse{super=" + super.toString() + ", notificationType=" + notificationType + '}';
+    }
+
+    // notificationType is derived from headers, so parent's equals/hashCode should work
+
+    /**
+     * Notification sub-type.
+     */
+    public enum NotificationType {
+        /**
+         * Device/service is available.
+         */
+        ALIVE("ssdp:alive"),
+        /**
+         * Device/service is going away.
+         */
+        BYEBYE("ssdp:byebye"),
+        /**
+         * Device/service has changed.
+         */
+        UPDATE("ssdp:update");
+
+        private final String value;
+
+        NotificationType(String value) {
+            this.value = value;
+        }
+
+        /**
+         * Get the NTS header value for this notification sub-type.
+         * @return NTS header value
+         */
+        public String getValue() {
+            return value;
+        }
+
+        static NotificationType fromValue(String value) {
+            for (NotificationType type : values()) {
+                if (type.value.equalsIgnoreCase(value.trim())) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+}
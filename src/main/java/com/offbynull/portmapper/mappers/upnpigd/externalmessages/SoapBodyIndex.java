@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.Validate;
+
+// Index of a SOAP response body built in a single forward pass. The scan looks for the first element named either after the expected
+// response (e.g. AddPortMappingResponse) or Fault, and collects every leaf element inside of it (e.g. NewExternalIPAddress, or errorCode
+// and errorDescription nested in a fault's detail/UPnPError) keyed by its lowercase local name. Namespace prefixes are ignored, names are
+// matched case-insensitively, and the first occurrence of a leaf wins. Only leaf values are ever copied out of the content -- they're
+// unescaped and trimmed.
+//
+// The scanner is tolerant rather than validating -- comments/processing instructions/CDATA sections are skipped over, a self-closing leaf
+// is treated as empty, and scanning stops once the matched element closes (or the content runs out).
+final class SoapBodyIndex {
+
+    private static final String FAULT_NAME = "Fault";
+    
+    private final boolean response;
+    private final boolean fault;
+    private final Map<String, String> leaves;
+
+    SoapBodyIndex(String content, String responseName) {
+        Validate.notNull(content);
+//        Validate.notNull(responseName); // may be null if only looking for a fault
+
+        Map<String, String> foundLeaves = new HashMap<>();
+        boolean foundResponse = false;
+        boolean foundFault = false;
+
+        int depth = 0;
+        int scopeDepth = -1; // depth of the matched element, -1 means not matched yet
+        
+        int leafNameStart = -1; // local name of the element that'll be a leaf if it closes before anything else opens, -1 if none
+        int leafNameEnd = -1;
+        int leafValueStart = -1;
+
+        int idx = 0;
+        scan:
+        while (true) {
+            int tagStart = content.indexOf('<', idx);
+            if (tagStart == -1) {
+                break;
+            }
+            
+            // skip over comments, CDATA sections, processing instructions, and doctypes
+            if (content.startsWith("<!--", tagStart)) {
+                idx = skipPast(content, tagStart + 4, "-->");
+                continue;
+            } else if (content.startsWith("<![CDATA[", tagStart)) {
+                idx = skipPast(content, tagStart + 9, "]]>");
+                continue;
+            } else if (content.startsWith("<?", tagStart) || content.startsWith("<!", tagStart)) {
+                idx = skipPast(content, tagStart + 2, ">");
+                continue;
+            }
+            
+            int tagEnd = content.indexOf('>', tagStart + 1);
+            if (tagEnd == -1) {
+                break;
+            }
+            idx = tagEnd + 1;
+
+            boolean closing = content.charAt(tagStart + 1) == '/';
+            boolean selfClosing = !closing && content.charAt(tagEnd - 1) == '/';
+            
+            // get local name (strip namespace prefix)
+            int nameStart = closing ? tagStart + 2 : tagStart + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < tagEnd) {
+                char ch = content.charAt(nameEnd);
+                if (ch == '/' || Character.isWhitespace(ch)) {
+                    break;
+                } else if (ch == ':') {
+                    nameStart = nameEnd + 1;
+                }
+                nameEnd++;
+            }
+
+            if (closing) {
+                if (scopeDepth != -1 && depth > scopeDepth + 1 && leafNameStart != -1
+                        && regionEqualsIgnoreCase(content, leafNameStart, leafNameEnd, nameStart, nameEnd)) {
+                    putLeaf(foundLeaves, content, leafNameStart, leafNameEnd, leafValueStart, tagStart);
+                }
+                leafNameStart = -1;
+                
+                depth--;
+                if (scopeDepth != -1 && depth == scopeDepth) { // matched element closed, nothing left to collect
+                    break scan;
+                }
+                continue;
+            }
+            
+            if (scopeDepth == -1) {
+                // look for the response or fault element
+                if (responseName != null && regionEqualsIgnoreCase(content, nameStart, nameEnd, responseName)) {
+                    foundResponse = true;
+                } else if (regionEqualsIgnoreCase(content, nameStart, nameEnd, FAULT_NAME)) {
+                    foundFault = true;
+                }
+                
+                if (foundResponse || foundFault) {
+                    if (selfClosing) { // matched element is empty, nothing to collect
+                        break;
+                    }
+                    scopeDepth = depth;
+                }
+            } else if (selfClosing) {
+                putLeaf(foundLeaves, content, nameStart, nameEnd, tagEnd, tagEnd); // empty leaf
+            }
+            
+            if (selfClosing) {
+                leafNameStart = -1;
+            } else {
+                depth++;
+                leafNameStart = nameStart;
+                leafNameEnd = nameEnd;
+                leafValueStart = tagEnd + 1;
+            }
+        }
+        
+        this.response = foundResponse;
+        this.fault = foundFault;
+        this.leaves = foundLeaves;
+    }
+
+    private static int skipPast(String content, int offset, String end) {
+        int idx = content.indexOf(end, offset);
+        return idx == -1 ? content.length() : idx + end.length();
+    }
+    
+    private static boolean regionEqualsIgnoreCase(String content, int start, int end, String str) {
+        return end - start == str.length() && content.regionMatches(true, start, str, 0, str.length());
+    }
+    
+    private static boolean regionEqualsIgnoreCase(String content, int start1, int end1, int start2, int end2) {
+        return end1 - start1 == end2 - start2 && content.regionMatches(true, start1, content, start2, end1 - start1);
+    }
+
+    private static void putLeaf(Map<String, String> leaves, String content, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        String name = content.substring(nameStart, nameEnd).toLowerCase(Locale.ENGLISH);
+        if (leaves.containsKey(name)) { // first occurrence wins
+            return;
+        }
+        
+        String value = content.substring(valueStart, valueEnd);
+        if (value.indexOf('&') != -1) {
+            value = StringEscapeUtils.unescapeXml(value);
+        }
+        leaves.put(name, value.trim());
+    }
+
+    boolean isResponse() {
+        return response;
+    }
+
+    boolean isFault() {
+        return fault;
+    }
+
+    // Returns null if no such leaf was found inside of the matched response/fault element.
+    String getLeafIgnoreCase(String name) {
+        Validate.notNull(name);
+        return leaves.get(name.toLowerCase(Locale.ENGLISH));
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013-2016, Kasra Faghihi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.Validate;
+
+// Precompiled SOAP request for a (host, control location, service type, action, argument names) combination. Everything other than the
+// argument values and the Content-Length is the same for every request sent to a service, so it's escaped and encoded to bytes once. When a
+// request is dumped, the argument values are escaped straight in to an exactly sized output array beside those precompiled segments.
+//
+// Templates are cached (bounded, least recently used evicted) so that a mapper talking to the same service keeps reusing the same one.
+final class SoapRequestTemplate {
+
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+    private static final int MAX_CACHED_TEMPLATES = 64;
+    
+    private static final Map<List<String>, SoapRequestTemplate> CACHE
+            = new LinkedHashMap<List<String>, SoapRequestTemplate>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<List<String>, SoapRequestTemplate> eldest) {
+            return size() > MAX_CACHED_TEMPLATES;
+        }
+    };
+    
+    private final List<String> key; // host, location, service type, action name, followed by argument names
+    
+    private final byte[] headersPrefix; // request line and headers, up to and including "Content-Length: "
+    private final byte[] contentPrefix; // end of headers, up to and including the action's start tag
+    private final byte[][] argumentPrefixes; // start tag of each argument
+    private final byte[][] argumentSuffixes; // end tag of each argument
+    private final byte[] contentSuffix; // action's end tag and the rest of the envelope
+    private final int constantContentLength;
+
+    private SoapRequestTemplate(List<String> key, String host, String location, String serviceType, String actionName,
+            String[] argumentNames) {
+        this.key = key;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("POST ").append(location).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host).append("\r\n");
+        sb.append("Content-Type: text/xml\r\n");
+        sb.append("SOAPAction: ").append(serviceType).append('#').append(actionName).append("\r\n");
+        sb.append("Connection: Close\r\n");
+        sb.append("Cache-Control: no-cache\r\n");
+        sb.append("Pragma: no-cache\r\n");
+        sb.append("Content-Length: ");
+        headersPrefix = sb.toString().getBytes(CHARSET);
+
+        String escapedServiceType = StringEscapeUtils.escapeXml10(serviceType);
+        String escapedActionName = StringEscapeUtils.escapeXml10(actionName);
+        
+        sb.setLength(0);
+        sb.append("\r\n");
+        sb.append("\r\n"); // split
+        sb.append("<?xml version=\"1.0\"?>\r\n");
+        sb.append("<soap:Envelope ")
+                .append("xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope/\" ")
+                .append("soap:encodingStyle=\"http://www.w3.org/2003/05/soap-encoding\">\r\n");
+        sb.append("<soap:Body>\r\n");
+        sb.append("<u:").append(escapedActionName).append(" xmlns:u=\"").append(escapedServiceType).append("\">\r\n");
+        contentPrefix = sb.toString().getBytes(CHARSET);
+        
+        int constantLen = contentPrefix.length - 4; // first 2 terminators belong to the headers, not the content
+        argumentPrefixes = new byte[argumentNames.length][];
+        argumentSuffixes = new byte[argumentNames.length][];
+        for (int i = 0; i < argumentNames.length; i++) {
+            String escapedName = StringEscapeUtils.escapeXml10(argumentNames[i]);
+            argumentPrefixes[i] = ("<" + escapedName + ">").getBytes(CHARSET);
+            argumentSuffixes[i] = ("</" + escapedName + ">\r\n").getBytes(CHARSET);
+            constantLen += argumentPrefixes[i].length + argumentSuffixes[i].length;
+        }
+
+        sb.setLength(0);
+        sb.append("</u:").append(escapedActionName).append(">\r\n");
+        sb.append("</soap:Body>\r\n");
+        sb.append("</soap:Envelope>\r\n");
+        contentSuffix = sb.toString().getBytes(CHARSET);
+        constantLen += contentSuffix.length;
+        
+        constantContentLength = constantLen;
+    }
+
+    static SoapRequestTemplate get(String host, String location, String serviceType, String actionName, String[] argumentNames) {
+        Validate.notNull(host);
+        Validate.notNull(location);
+        Validate.notNull(serviceType);
+        Validate.notNull(actionName);
+        Validate.noNullElements(argumentNames);
+        
+        List<String> key = new ArrayList<>(4 + argumentNames.length);
+        key.add(host);
+        key.add(location);
+        key.add(serviceType);
+        key.add(actionName);
+        Collections.addAll(key, argumentNames);
+        
+        synchronized (CACHE) {
+            SoapRequestTemplate template = CACHE.get(key);
+            if (template == null) {
+                template = new SoapRequestTemplate(key, host, location, serviceType, actionName, argumentNames);
+                CACHE.put(key, template);
+            }
+            return template;
+        }
+    }
+
+    List<String> getKey() {
+        return key;
+    }
+
+    byte[] encode(String[] argumentValues) {
+        Validate.noNullElements(argumentValues);
+        Validate.isTrue(argumentValues.length == argumentPrefixes.length);
+        
+        // values that need more than the basic escapes are rare (they'd have to contain control or non-ASCII characters), so those get
+        // escaped the slow way and everything else gets escaped in place
+        byte[][] slowEscapedValues = null;
+        int contentLength = constantContentLength;
+        for (int i = 0; i < argumentValues.length; i++) {
+            int len = escapedLength(argumentValues[i]);
+            if (len == -1) {
+                if (slowEscapedValues == null) {
+                    slowEscapedValues = new byte[argumentValues.length][];
+                }
+                slowEscapedValues[i] = StringEscapeUtils.escapeXml10(argumentValues[i]).getBytes(CHARSET);
+                len = slowEscapedValues[i].length;
+            }
+            contentLength += len;
+        }
+        
+        int contentLengthDigits = 1;
+        for (int i = contentLength; i >= 10; i /= 10) {
+            contentLengthDigits++;
+        }
+
+        byte[] ret = new byte[headersPrefix.length + contentLengthDigits + 4 + contentLength]; // +4 for the 2 terminators after the length
+        int offset = 0;
+        offset = put(ret, offset, headersPrefix);
+        for (int i = contentLength, j = offset + contentLengthDigits - 1; j >= offset; i /= 10, j--) {
+            ret[j] = (byte) ('0' + i % 10);
+        }
+        offset += contentLengthDigits;
+        offset = put(ret, offset, contentPrefix);
+        for (int i = 0; i < argumentValues.length; i++) {
+            offset = put(ret, offset, argumentPrefixes[i]);
+            if (slowEscapedValues != null && slowEscapedValues[i] != null) {
+                offset = put(ret, offset, slowEscapedValues[i]);
+            } else {
+                offset = putEscaped(ret, offset, argumentValues[i]);
+            }
+            offset = put(ret, offset, argumentSuffixes[i]);
+        }
+        offset = put(ret, offset, contentSuffix);
+        
+        return ret;
+    }
+
+    private static int put(byte[] dst, int offset, byte[] src) {
+        System.arraycopy(src, 0, dst, offset, src.length);
+        return offset + src.length;
+    }
+
+    // Length of value once escaped, or -1 if value has characters other than printable ASCII/tab/CR/LF (they need escapeXml10's handling)
+    private static int escapedLength(String value) {
+        int len = value.length();
+        int ret = 0;
+        for (int i = 0; i < len; i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '&':
+                    ret += 5; // &amp;
+                    break;
+                case '<':
+                case '>':
+                    ret += 4; // &lt; &gt;
+                    break;
+                case '"':
+                case '\'':
+                    ret += 6; // &quot; &apos;
+                    break;
+                case '\t':
+                case '\r':
+                case '\n':
+                    ret++;
+                    break;
+                default:
+                    if (ch < ' ' || ch > '~') {
+                        return -1;
+                    }
+                    ret++;
+                    break;
+            }
+        }
+        return ret;
+    }
+
+    // Must only be called on values that escapedLength() accepted
+    private static int putEscaped(byte[] dst, int offset, String value) {
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '&':
+                    offset = putAscii(dst, offset, "&amp;");
+                    break;
+                case '<':
+                    offset = putAscii(dst, offset, "&lt;");
+                    break;
+                case '>':
+                    offset = putAscii(dst, offset, "&gt;");
+                    break;
+                case '"':
+                    offset = putAscii(dst, offset, "&quot;");
+                    break;
+                case '\'':
+                    offset = putAscii(dst, offset, "&apos;");
+                    break;
+                default:
+                    dst[offset] = (byte) ch;
+                    offset++;
+                    break;
+            }
+        }
+        return offset;
+    }
+
+    private static int putAscii(byte[] dst, int offset, String str) {
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            dst[offset + i] = (byte) str.charAt(i);
+        }
+        return offset + len;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.util.Collections;
 
 /**
@@ -32,7 +33,22 @@ public final class UpdatePinholeUpnpIgdResponse extends UpnpIgdSoapResponse {
      * @throws IllegalArgumentException if {@code buffer} was malformed
      */
     public UpdatePinholeUpnpIgdResponse(byte[] buffer) {
-        super("UpdatePinholeResponse", Collections.<String>emptySet(), buffer);
+        this(buffer, true);
+    }
+
+    private UpdatePinholeUpnpIgdResponse(byte[] buffer, boolean strict) {
+        super("UpdatePinholeResponse", Collections.<String>emptySet(), buffer, strict);
+    }
+
+    /**
+     * Parses a {@link UpdatePinholeUpnpIgdResponse} object from a buffer. Unlike {@link #UpdatePinholeUpnpIgdResponse(byte[]) }, a
+     * malformed buffer is reported through the returned result rather than by throwing an exception.
+     * @param buffer buffer containing response data
+     * @return parse result
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static ParseResult<UpdatePinholeUpnpIgdResponse> tryParse(byte[] buffer) {
+        return toParseResult(new UpdatePinholeUpnpIgdResponse(buffer, false));
     }
 
     @Override
@@ -59,11 +59,25 @@ public abstract class UpnpIgdHttpRequest {
         this.content = content;
     }
 
+    // For subclasses that encode themselves (by overriding encode()) -- method/location/headers/content aren't tracked, so these subclasses
+    // must also override toString/equals/hashCode
+    UpnpIgdHttpRequest() {
+        this.method = null;
+        this.location = null;
+        this.headers = null;
+        this.content = null;
+    }
+
     /**
      * Dump out the UPnP-IGD request as a buffer.
      * @return UPnP-IGD packet/buffer
      */
     public final byte[] dump() {
+        return encode();
+    }
+
+    // CHECKSTYLE:OFF:DesignForExtension
+    byte[] encode() {
         StringBuilder sb = new StringBuilder();
 
         sb.append(method).append(' ').append(location).append(' ').append(HTTP_VERSION).append(TERMINATOR);
@@ -88,6 +102,7 @@ public abstract class UpnpIgdHttpRequest {
             return sb.toString().getBytes(Charset.forName("US-ASCII"));
         }
     }
+    // CHECKSTYLE:ON:DesignForExtension
 
     // CHECKSTYLE:OFF:DesignForExtension
     @Override
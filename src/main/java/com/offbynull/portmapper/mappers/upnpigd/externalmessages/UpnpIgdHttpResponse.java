@@ -16,130 +16,291 @@
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.StringTokenizer;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 
 /**
  * Represents a UPnP-IGD response. Note that these messages aren't bound to any specific protocol. Some will be sent over UDP broadcast and
  * others will be sent via TCP (HTTP).
+ * <p>
+ * Responses are parsed directly from their raw bytes. Only the offsets of each header name/value are recorded up front, along with an
+ * index keyed on the lowercase hash of each header name. Header values and the content are only decoded when asked for.
  * @author Kasra Faghihi
  */
 public abstract class UpnpIgdHttpResponse {
 
-    private static final String TERMINATOR = "\r\n";
-    private static final String HEADER_SPLIT_POINT = TERMINATOR + TERMINATOR;
-
-    private final Map<String, String> headers;
-    private final String content;
-
-    UpnpIgdHttpResponse(Map<String, String> headers, String content) {
-        Validate.notNull(headers);
-        Validate.noNullElements(headers.keySet());
-        Validate.noNullElements(headers.values());
-//        Validate.notNull(content); // content may be null
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+    private static final int INITIAL_HEADER_CAPACITY = 16;
+    
+    // Each header takes up 4 slots in positions: name start, name end, value start, value end
+    private static final int NAME_START = 0;
+    private static final int NAME_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int POSITION_STRIDE = 4;
 
-        // content len calculated on dump
-        for (String header : headers.keySet()) {
-            if (header.equalsIgnoreCase("Content-Length")) {
-                throw new IllegalArgumentException();
-            }
-        }
+    private final byte[] buffer;
+    private final int[] positions;
+    private final int[] nameHashes;
+    private final int headerCount;
+    private final int[] index; // open addressing table of header idx + 1 (0 means empty slot) -- length always a power of 2
+    private final int contentStart; // -1 if there's no content
 
-        this.headers = new HashMap<>(headers);
-        this.content = content;
-    }
+    private volatile String content; // decoded lazily
+    private volatile Map<String, String> headers; // built lazily, only used for toString/equals/hashCode
 
     UpnpIgdHttpResponse(byte[] buffer) {
         Validate.notNull(buffer);
 
-        // Convert buffer to string
-        String bufferStr = new String(buffer, Charset.forName("US-ASCII"));
+        this.buffer = buffer.clone();
 
         // Split buffer to header and content
-        int splitIdx = bufferStr.indexOf(HEADER_SPLIT_POINT);
-        String headersStr;
-        String contentStr;
+        int splitIdx = indexOfHeaderSplitPoint(this.buffer);
+        int headersEnd;
         if (splitIdx == -1) {
             // No content, so just grab headers and say we don't have content? -- trying to be fault tolerant here 
-            headersStr = bufferStr;
-            contentStr = null;
+            headersEnd = this.buffer.length;
+            contentStart = -1;
         } else {
-            headersStr = bufferStr.substring(0, splitIdx);
-            contentStr = bufferStr.substring(splitIdx + HEADER_SPLIT_POINT.length());
+            headersEnd = splitIdx;
+            contentStart = splitIdx + 4;
         }
 
-        // Parse resp and headers
-        StringTokenizer tokenizer = new StringTokenizer(headersStr, TERMINATOR);
-
-        // The following block has been commented out because of issue #24. This check serves no real purpose -- it is against the idea of
-        // being fault tolerant. Sometimes the router may give back a bad response code or a different HTTP version number or may respond to
-        // an SSDP probe with an SSDP notify response (NOTIFY * HTTP/1.1) rather than a standard response (HTTP/1.1 200 OK).
+        // The status line isn't checked because of issue #24. This check serves no real purpose -- it is against the idea of being fault
+        // tolerant. Sometimes the router may give back a bad response code or a different HTTP version number or may respond to an SSDP
+        // probe with an SSDP notify response (NOTIFY * HTTP/1.1) rather than a standard response (HTTP/1.1 200 OK).
         //
         // Instead, we're going to assume that no response header came in and move directly to parsing headers. The header parsing will skip
         // over the response string (assuming it doesn't contain a colon), or it'll incorrectly include it in the list of header (which
         // should be more or less benign).
-//        String respStr = tokenizer.nextToken();
-//        respStr = TextUtils.collapseWhitespace(respStr).trim(); // get resp string, collapse whitespace for fault tolerance
-//
-//        String[] splitResp = StringUtils.split(respStr, ' ');
-//        Validate.isTrue(splitResp.length >= 2); // ignore stuff afterwards if any (reason text)? -- trying to be fault tolerant
-//        Validate.isTrue(HTTP_VERSION.equalsIgnoreCase(splitResp[0])); // case insensitive for fault tolerance
-//        responseCode = Integer.parseInt(splitResp[1]); // throws nfe, but nfe extends illegalargexc so this is okay
-//        
-//        Validate.isTrue(responseCode >= 0);
-
-        Map<String, String> headers = new HashMap<>();
-        while (tokenizer.hasMoreTokens()) {
-            String headerLine = tokenizer.nextToken().trim(); // trim to be fault tolerant, in case header has extra spaces
-            if (headerLine.isEmpty()) {
+        int[] foundPositions = new int[INITIAL_HEADER_CAPACITY * POSITION_STRIDE];
+        int count = 0;
+        
+        int idx = 0;
+        while (idx < headersEnd) {
+            // Lines are split on any CR or LF, and blank lines are skipped over
+            byte ch = this.buffer[idx];
+            if (ch == '\r' || ch == '\n') {
+                idx++;
+                continue;
+            }
+            
+            int lineStart = idx;
+            while (idx < headersEnd && this.buffer[idx] != '\r' && this.buffer[idx] != '\n') {
+                idx++;
+            }
+            int lineEnd = idx;
+
+            // trim to be fault tolerant, in case header has extra spaces -- stop if line is only whitespace
+            lineStart = skipWhitespace(this.buffer, lineStart, lineEnd);
+            lineEnd = skipWhitespaceBackwards(this.buffer, lineStart, lineEnd);
+            if (lineStart == lineEnd) {
                 break;
             }
 
-            String[] splitLine = StringUtils.split(headerLine, ":", 2);
-            if (splitLine.length != 2) {
-                continue; // skip line if no : found
+            // Name is the first run of non-colon characters and value is everything after the run of colons that follows it -- skip line
+            // if no value
+            int nameStart = skipColons(this.buffer, lineStart, lineEnd);
+            int nameEnd = nameStart;
+            while (nameEnd < lineEnd && this.buffer[nameEnd] != ':') {
+                nameEnd++;
+            }
+            int valueStart = skipColons(this.buffer, nameEnd, lineEnd);
+            if (nameEnd == lineEnd || valueStart == lineEnd) {
+                continue;
+            }
+            
+            if ((count + 1) * POSITION_STRIDE > foundPositions.length) {
+                foundPositions = Arrays.copyOf(foundPositions, foundPositions.length * 2);
             }
+            int base = count * POSITION_STRIDE;
+            foundPositions[base + NAME_START] = skipWhitespace(this.buffer, nameStart, nameEnd);
+            foundPositions[base + NAME_END] = skipWhitespaceBackwards(this.buffer, foundPositions[base + NAME_START], nameEnd);
+            foundPositions[base + VALUE_START] = skipWhitespace(this.buffer, valueStart, lineEnd);
+            foundPositions[base + VALUE_END] = lineEnd;
+            count++;
+        }
+        
+        this.positions = foundPositions;
+        this.headerCount = count;
+        
+        // Index headers by lowercase name hash -- if a name shows up more than once, the last one wins
+        this.nameHashes = new int[count];
+        int indexSize = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        this.index = new int[indexSize];
+        for (int i = 0; i < count; i++) {
+            int base = i * POSITION_STRIDE;
+            int hash = lowerCaseHash(this.buffer, positions[base + NAME_START], positions[base + NAME_END]);
+            nameHashes[i] = hash;
+            
+            int slot = hash & (indexSize - 1);
+            while (true) {
+                int existing = index[slot] - 1;
+                if (existing == -1 || (nameHashes[existing] == hash && namesEqualIgnoreCase(existing, i))) {
+                    index[slot] = i + 1;
+                    break;
+                }
+                slot = (slot + 1) & (indexSize - 1);
+            }
+        }
+    }
 
-            String key = splitLine[0].trim();
-            String value = splitLine[1].trim();
+    private static int indexOfHeaderSplitPoint(byte[] buffer) {
+        for (int i = 0; i + 3 < buffer.length; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Whitespace is anything String.trim() would remove: ASCII 0 to 32 (bytes above 127 decode to U+FFFD, which isn't whitespace)
+    private static boolean isWhitespace(byte ch) {
+        return (ch & 0xFF) <= ' ';
+    }
 
-            headers.put(key, value);
+    private static int skipWhitespace(byte[] buffer, int start, int end) {
+        while (start < end && isWhitespace(buffer[start])) {
+            start++;
         }
+        return start;
+    }
 
-        this.headers = Collections.unmodifiableMap(headers);
-        this.content = contentStr;
+    private static int skipWhitespaceBackwards(byte[] buffer, int start, int end) {
+        while (end > start && isWhitespace(buffer[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int skipColons(byte[] buffer, int start, int end) {
+        while (start < end && buffer[start] == ':') {
+            start++;
+        }
+        return start;
+    }
+
+    // Characters as they'd be after being decoded as US-ASCII and lowercased -- only A-Z have case in US-ASCII
+    private static char toLowerCase(char ch) {
+        return ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch;
+    }
+
+    private static char toLowerCase(byte ch) {
+        return ch < 0 ? '\uFFFD' : toLowerCase((char) ch);
+    }
+
+    private static int lowerCaseHash(byte[] buffer, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + toLowerCase(buffer[i]);
+        }
+        return hash;
+    }
+
+    private static int lowerCaseHash(String str) {
+        int hash = 0;
+        int len = str.length();
+        for (int i = 0; i < len; i++) {
+            hash = 31 * hash + toLowerCase(str.charAt(i));
+        }
+        return hash;
+    }
+
+    private boolean namesEqualIgnoreCase(int headerIdx1, int headerIdx2) {
+        int start1 = positions[headerIdx1 * POSITION_STRIDE + NAME_START];
+        int end1 = positions[headerIdx1 * POSITION_STRIDE + NAME_END];
+        int start2 = positions[headerIdx2 * POSITION_STRIDE + NAME_START];
+        int end2 = positions[headerIdx2 * POSITION_STRIDE + NAME_END];
+        if (end1 - start1 != end2 - start2) {
+            return false;
+        }
+        for (int i = 0; i < end1 - start1; i++) {
+            if (toLowerCase(buffer[start1 + i]) != toLowerCase(buffer[start2 + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nameEqualsIgnoreCase(int headerIdx, String name) {
+        int start = positions[headerIdx * POSITION_STRIDE + NAME_START];
+        int end = positions[headerIdx * POSITION_STRIDE + NAME_END];
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (toLowerCase(buffer[start + i]) != toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        return new String(buffer, start, end - start, CHARSET);
     }
     
     final String getHeaderIgnoreCase(String key) {
-        for (Entry<String, String> header : headers.entrySet()) {
-            if (header.getKey().equalsIgnoreCase(key)) {
-                return header.getValue();
+        Validate.notNull(key);
+        
+        int hash = lowerCaseHash(key);
+        int slot = hash & (index.length - 1);
+        while (true) {
+            int headerIdx = index[slot] - 1;
+            if (headerIdx == -1) {
+                return null;
             }
+            if (nameHashes[headerIdx] == hash && nameEqualsIgnoreCase(headerIdx, key)) {
+                int base = headerIdx * POSITION_STRIDE;
+                return decode(positions[base + VALUE_START], positions[base + VALUE_END]);
+            }
+            slot = (slot + 1) & (index.length - 1);
         }
-        return null;
     }
 
     final String getContent() {
-        return content;
+        if (contentStart == -1) {
+            return null;
+        }
+        
+        String ret = content;
+        if (ret == null) {
+            ret = decode(contentStart, buffer.length);
+            content = ret;
+        }
+        return ret;
+    }
+
+    private Map<String, String> getHeaders() {
+        Map<String, String> ret = headers;
+        if (ret == null) {
+            Map<String, String> map = new HashMap<>();
+            for (int i = 0; i < headerCount; i++) {
+                int base = i * POSITION_STRIDE;
+                map.put(decode(positions[base + NAME_START], positions[base + NAME_END]),
+                        decode(positions[base + VALUE_START], positions[base + VALUE_END]));
+            }
+            ret = Collections.unmodifiableMap(map);
+            headers = ret;
+        }
+        return ret;
     }
 
     // CHECKSTYLE:OFF:DesignForExtension
     @Override
     public String toString() {
-        return "UpnpIgdHttpResponse{" + "headers=" + headers + ", content=" + content + '}';
+        return "UpnpIgdHttpResponse{" + "headers=" + getHeaders() + ", content=" + getContent() + '}';
     }
 
     @Override
     public int hashCode() {
         int hash = 5;
-        hash = 29 * hash + Objects.hashCode(this.headers);
-        hash = 29 * hash + Objects.hashCode(this.content);
+        hash = 29 * hash + Objects.hashCode(getHeaders());
+        hash = 29 * hash + Objects.hashCode(getContent());
         return hash;
     }
 
@@ -155,10 +316,10 @@ public abstract class UpnpIgdHttpResponse {
             return false;
         }
         final UpnpIgdHttpResponse other = (UpnpIgdHttpResponse) obj;
-        if (!Objects.equals(this.content, other.content)) {
+        if (!Objects.equals(getContent(), other.getContent())) {
             return false;
         }
-        if (!Objects.equals(this.headers, other.headers)) {
+        if (!Objects.equals(getHeaders(), other.getHeaders())) {
             return false;
         }
         return true;
@@ -15,23 +15,34 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.Validate;
 
 /**
  * Represents a UPnP device query request.
+ * <p>
+ * The envelope is almost entirely constant for a given service and action, so it's precompiled once (and cached) as a template of byte
+ * segments. Dumping a request only escapes the argument values and the Content-Length in to the output.
  *
  * @author Kasra Faghihi
  */
 public abstract class UpnpIgdSoapRequest extends UpnpIgdHttpRequest {
 
+    private final SoapRequestTemplate template;
+    private final String[] argumentValues;
+
     UpnpIgdSoapRequest(String host, String location, String serviceType, String actionName, Map<String, String> arguments) {
-        super("POST", location,
-                generateHeaders(host, serviceType, actionName),
-                generateContent(serviceType, actionName, arguments));
+        Validate.notNull(host);
+        Validate.notNull(location);
+        Validate.notNull(serviceType);
+        Validate.notNull(actionName);
+        Validate.notNull(arguments);
+        Validate.noNullElements(arguments.keySet());
+        Validate.noNullElements(arguments.values());
 
         //<?xml version="1.0"?>
         //<soap:Envelope
@@ -47,62 +58,62 @@ public abstract class UpnpIgdSoapRequest extends UpnpIgdHttpRequest {
         //</soap:Body>
         //</soap:Envelope>
         //<?xml version="1.0"?>
+        String[] argumentNames = new String[arguments.size()];
+        argumentValues = new String[arguments.size()];
+        int i = 0;
+        for (Entry<String, String> argument : arguments.entrySet()) {
+            argumentNames[i] = argument.getKey();
+            argumentValues[i] = argument.getValue();
+            i++;
+        }
+        
+        template = SoapRequestTemplate.get(host, location, serviceType, actionName, argumentNames);
     }
 
-    private static Map<String, String> generateHeaders(String host, String serviceType, String actionName) {
-        Validate.notNull(serviceType);
-        Validate.notNull(actionName);
-
-        Map<String, String> ret = new LinkedHashMap<>();
-
-        // content-length is added by parent class
-        ret.put("Host", host);
-        ret.put("Content-Type", "text/xml");
-        ret.put("SOAPAction", serviceType + "#" + actionName);
-        ret.put("Connection", "Close");
-        ret.put("Cache-Control", "no-cache");
-        ret.put("Pragma", "no-cache");
-
-        return ret;
+    // CHECKSTYLE:OFF:DesignForExtension
+    @Override
+    byte[] encode() {
+        return template.encode(argumentValues);
     }
 
-    private static String generateContent(String serviceType, String actionName, Map<String, String> arguments) {
-        Validate.notNull(serviceType);
-        Validate.notNull(actionName);
-        Validate.notNull(arguments);
-        Validate.noNullElements(arguments.keySet());
-        Validate.noNullElements(arguments.values());
-
-        serviceType = StringEscapeUtils.escapeXml10(serviceType);
-        actionName = StringEscapeUtils.escapeXml10(actionName);
-        
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\"?>\r\n");
-        sb.append("<soap:Envelope ")
-                .append("xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope/\" ")
-                .append("soap:encodingStyle=\"http://www.w3.org/2003/05/soap-encoding\">\r\n");
-        sb.append("<soap:Body>\r\n");
-        sb.append("<u:").append(actionName).append(" xmlns:u=\"").append(serviceType).append("\">\r\n");
-
-        for (Entry<String, String> argument : arguments.entrySet()) {
-            String key = StringEscapeUtils.escapeXml10(argument.getKey());
-            String val = StringEscapeUtils.escapeXml10(argument.getValue());
-            sb.append("<").append(key).append(">").append(val).append("</").append(key).append(">\r\n");
+    @Override
+    public String toString() {
+        List<String> key = template.getKey(); // host, location, service type, action name, argument names
+        Map<String, String> arguments = new LinkedHashMap<>();
+        for (int i = 0; i < argumentValues.length; i++) {
+            arguments.put(key.get(4 + i), argumentValues[i]);
         }
+        return "UpnpIgdSoapRequest{" + "host=" + key.get(0) + ", location=" + key.get(1) + ", serviceType=" + key.get(2)
+                + ", actionName=" + key.get(3) + ", arguments=" + arguments + '}';
+    }
 
-        sb.append("</u:").append(actionName).append(">\r\n");
-        sb.append("</soap:Body>\r\n");
-        sb.append("</soap:Envelope>\r\n");
-
-        return sb.toString();
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 11 * hash + template.getKey().hashCode();
+        hash = 11 * hash + Arrays.hashCode(argumentValues);
+        return hash;
     }
 
-    // CHECKSTYLE:OFF:DesignForExtension
     @Override
-    public String toString() {
-        return "UpnpIgdSoapRequest{super=" + super.toString() + '}';
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final UpnpIgdSoapRequest other = (UpnpIgdSoapRequest) obj;
+        if (!template.getKey().equals(other.template.getKey())) {
+            return false;
+        }
+        if (!Arrays.equals(argumentValues, other.argumentValues)) {
+            return false;
+        }
+        return true;
     }
-    
-    // NO NON-STATIC FIELDS, so parent's equals/hashCode should work
     // CHECKSTYLE:ON:DesignForExtension
 }
@@ -15,13 +15,12 @@
  */
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
-import com.offbynull.portmapper.helpers.TextUtils;
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 
 /**
@@ -31,9 +30,16 @@ import org.apache.commons.lang3.Validate;
  */
 public abstract class UpnpIgdSoapResponse extends UpnpIgdHttpResponse {
 
-    private Map<String, String> arguments;
+    private final Map<String, String> arguments; // keyed by lowercase argument name
+    private final String failureReason; // null if well-formed -- can only be non-null for responses created through tryParse()
     
     UpnpIgdSoapResponse(String expectedResponseAction, Set<String> expectedArguments, byte[] buffer) {
+        this(expectedResponseAction, expectedArguments, buffer, true);
+    }
+
+    // If strict is false, a malformed buffer doesn't cause an exception to be thrown -- the reason is recorded instead and the caller is
+    // expected to check for it via toParseResult()
+    UpnpIgdSoapResponse(String expectedResponseAction, Set<String> expectedArguments, byte[] buffer, boolean strict) {
         super(buffer);
         
         Validate.notNull(expectedArguments);
@@ -47,20 +53,28 @@ public abstract class UpnpIgdSoapResponse extends UpnpIgdHttpResponse {
 //        }
         
         
-        String responseBlock = TextUtils.findFirstBlock(content,
-                /*<soapprefix*/":" + expectedResponseAction,
-                /*</soapprefix:*/":" + expectedResponseAction, true);
-        Validate.isTrue(responseBlock != null);
+        // Single pass over the body that collects the leaf elements of the response element (e.g. <u:AddAnyPortMappingResponse>) -- the
+        // soap prefix in tags isn't consistent between devices, so elements are matched on their local names
+        SoapBodyIndex index = content == null ? null : new SoapBodyIndex(content, expectedResponseAction);
+        if (index == null) {
+            failureReason = "No content";
+        } else if (!index.isResponse()) {
+            failureReason = "Response element not found";
+        } else {
+            failureReason = null;
+        }
+        Validate.isTrue(!strict || failureReason == null, failureReason);
+        
+        if (failureReason != null) {
+            arguments = Collections.emptyMap();
+            return;
+        }
         
         Map<String, String> args = new HashMap<>();
         for (String key : expectedArguments) {
-            // A really hacky way of finding args -- reason why the whole tag isn't used is because the soap prefix in the tag isn't
-            // consistent... we'd have to do more hacky parsing to figure out what it is
-            String value = TextUtils.findFirstBlock(responseBlock, key + ">", key + ">", true);
-            value = StringUtils.substringBeforeLast(value, "<");
+            String value = index.getLeafIgnoreCase(key);
             if (value != null) {
-                value = StringEscapeUtils.unescapeXml(value).trim();
-                args.put(key, value);
+                args.put(key.toLowerCase(Locale.ENGLISH), value);
             }
         }
 
@@ -91,13 +105,17 @@ public abstract class UpnpIgdSoapResponse extends UpnpIgdHttpResponse {
         //</soap:Envelope>
     }
     
-    final String getArgumentIgnoreCase(String key) {
-        for (Map.Entry<String, String> header : arguments.entrySet()) {
-            if (header.getKey().equalsIgnoreCase(key)) {
-                return header.getValue().trim();
-            }
+    static <T extends UpnpIgdSoapResponse> ParseResult<T> toParseResult(T response) {
+        String failureReason = ((UpnpIgdSoapResponse) response).failureReason; // can't get to private field through T
+        if (failureReason != null) {
+            return ParseResult.failure(failureReason);
         }
-        return null;
+        return ParseResult.success(response);
+    }
+    
+    final String getArgumentIgnoreCase(String key) {
+        Validate.notNull(key);
+        return arguments.get(key.toLowerCase(Locale.ENGLISH));
     }
 
     // CHECKSTYLE:OFF:DesignForExtension
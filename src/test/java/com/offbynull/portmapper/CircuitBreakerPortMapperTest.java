@@ -0,0 +1,149 @@
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.GatewayFaultException;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.testtools.TestPortMapper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerPortMapperTest {
+
+    @Test
+    public void mustOpenAfterThresholdAndFailFast() throws Exception {
+        TestPortMapper mapper = new TestPortMapper();
+        mapper.setFailMap(true);
+        List<CircuitState> changes = new ArrayList<>();
+        CircuitBreakerPortMapper fixture = new CircuitBreakerPortMapper(mapper, 3, 60000L, new RecordingListener(changes));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(CircuitState.CLOSED, fixture.getState());
+            mustFail(fixture);
+        }
+        assertEquals(CircuitState.OPEN, fixture.getState());
+        assertEquals(Arrays.asList(CircuitState.OPEN), changes);
+
+        mustFail(fixture);
+        List<PortMappingResult> results = fixture.mapPorts(Arrays.asList(new PortMappingRequest(PortType.TCP, 1000, 2000, 60L)));
+        assertFalse(results.get(0).isSuccessful());
+        assertEquals(3, mapper.getMapCount()); // fail-fast requests never reached the wrapped mapper
+    }
+
+    @Test
+    public void mustCloseWhenProbeSucceeds() throws Exception {
+        TestPortMapper mapper = new TestPortMapper();
+        mapper.setFailMap(true);
+        List<CircuitState> changes = new ArrayList<>();
+        CircuitBreakerPortMapper fixture = new CircuitBreakerPortMapper(mapper, 1, 100L, new RecordingListener(changes));
+
+        mustFail(fixture);
+        assertEquals(CircuitState.OPEN, fixture.getState());
+
+        Thread.sleep(200L);
+        mapper.setFailMap(false);
+        fixture.mapPort(PortType.UDP, 1000, 2000, 60L);
+        assertEquals(CircuitState.CLOSED, fixture.getState());
+        assertEquals(0, fixture.getConsecutiveFailures());
+        assertEquals(Arrays.asList(CircuitState.OPEN, CircuitState.HALF_OPEN, CircuitState.CLOSED), changes);
+    }
+
+    @Test
+    public void mustReopenWhenProbeFails() throws Exception {
+        TestPortMapper mapper = new TestPortMapper();
+        mapper.setFailMap(true);
+        List<CircuitState> changes = new ArrayList<>();
+        CircuitBreakerPortMapper fixture = new CircuitBreakerPortMapper(mapper, 1, 100L, new RecordingListener(changes));
+
+        mustFail(fixture);
+        Thread.sleep(200L);
+        mustFail(fixture); // probe
+        assertEquals(CircuitState.OPEN, fixture.getState());
+        assertEquals(2, mapper.getMapCount());
+
+        mustFail(fixture); // fresh cool-down, so fail fast again
+        assertEquals(2, mapper.getMapCount());
+        assertEquals(Arrays.asList(CircuitState.OPEN, CircuitState.HALF_OPEN, CircuitState.OPEN), changes);
+    }
+
+    @Test
+    public void mustNotCountBadArgumentsAsFailures() throws Exception {
+        TestPortMapper mapper = new TestPortMapper();
+        CircuitBreakerPortMapper fixture = new CircuitBreakerPortMapper(mapper, 1, 60000L,
+                new RecordingListener(new ArrayList<CircuitState>()));
+
+        try {
+            fixture.mapPort(PortType.UDP, 0, 2000, 60L);
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // do nothing
+        }
+        assertEquals(CircuitState.CLOSED, fixture.getState());
+        assertEquals(0, fixture.getConsecutiveFailures());
+    }
+
+    @Test
+    public void mustNotCountGatewayFaultsAsFailures() throws Exception {
+        TestPortMapper mapper = new TestPortMapper();
+        mapper.setFaultMap(true);
+        List<CircuitState> changes = new ArrayList<>();
+        CircuitBreakerPortMapper fixture = new CircuitBreakerPortMapper(mapper, 1, 60000L, new RecordingListener(changes));
+
+        for (int i = 0; i < 3; i++) {
+            mustFail(fixture);
+        }
+        List<PortMappingResult> results = fixture.mapPorts(Arrays.asList(new PortMappingRequest(PortType.TCP, 1000, 2000, 60L)));
+        assertTrue(results.get(0).getError() instanceof GatewayFaultException);
+
+        assertEquals(CircuitState.CLOSED, fixture.getState());
+        assertEquals(0, fixture.getConsecutiveFailures());
+        assertEquals(4, mapper.getMapCount());
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void mustCloseWhenProbeGetsGatewayFault() throws Exception {
+        TestPortMapper mapper = new TestPortMapper();
+        mapper.setFailMap(true);
+        List<CircuitState> changes = new ArrayList<>();
+        CircuitBreakerPortMapper fixture = new CircuitBreakerPortMapper(mapper, 1, 100L, new RecordingListener(changes));
+
+        mustFail(fixture);
+        assertEquals(CircuitState.OPEN, fixture.getState());
+
+        Thread.sleep(200L);
+        mapper.setFailMap(false);
+        mapper.setFaultMap(true);
+        mustFail(fixture); // probe -- gateway refused, but it answered
+        assertEquals(CircuitState.CLOSED, fixture.getState());
+        assertEquals(Arrays.asList(CircuitState.OPEN, CircuitState.HALF_OPEN, CircuitState.CLOSED), changes);
+    }
+
+    private static void mustFail(CircuitBreakerPortMapper fixture) throws InterruptedException {
+        try {
+            fixture.mapPort(PortType.UDP, 1000, 2000, 60L);
+            fail();
+        } catch (IllegalStateException ise) {
+            // do nothing
+        }
+    }
+
+    private static final class RecordingListener implements CircuitStateListener {
+        private final List<CircuitState> changes;
+
+        RecordingListener(List<CircuitState> changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        public void stateChanged(CircuitBreakerPortMapper mapper, CircuitState oldState, CircuitState newState) {
+            changes.add(newState);
+        }
+    }
+}
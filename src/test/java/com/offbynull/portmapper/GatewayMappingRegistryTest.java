@@ -0,0 +1,138 @@
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.EpochResetListener;
+import com.offbynull.portmapper.mapper.EpochTracker;
+import com.offbynull.portmapper.mapper.ExternalAddressCache;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMapper;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mappers.natpmp.externalmessages.ExternalAddressNatPmpResponse;
+import com.offbynull.portmapper.mappers.pcp.externalmessages.AnnouncePcpResponse;
+import com.offbynull.portmapper.testtools.TestMappedPort;
+import com.offbynull.portmapper.testtools.TestBulkPortMapper;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GatewayMappingRegistryTest {
+
+    private List<String> events;
+    private List<EpochTracker> resets;
+    private GatewayMappingRegistry fixture;
+    private InetAddress gatewayAddress;
+    private InetAddress externalAddress;
+    private EpochTracker epochTracker;
+    private TestBulkPortMapper mapper;
+
+    @Before
+    public void before() throws Exception {
+        events = new ArrayList<>();
+        resets = new ArrayList<>();
+        fixture = new GatewayMappingRegistry(new GatewayAnnouncementListener() {
+            @Override
+            public void mappingRestored(PortMapper mapper, MappedPort oldMappedPort, MappedPort newMappedPort) {
+                events.add("restored " + oldMappedPort.getInternalPort() + " " + newMappedPort.getExternalPort());
+            }
+
+            @Override
+            public void mappingLost(PortMapper mapper, MappedPort mappedPort, RuntimeException cause) {
+                events.add("lost " + mappedPort.getInternalPort());
+            }
+        }, new EpochResetListener() {
+            @Override
+            public void epochReset(EpochTracker epochTracker) {
+                resets.add(epochTracker);
+            }
+        });
+        gatewayAddress = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, 1});
+        externalAddress = InetAddress.getByAddress(new byte[] {1, 2, 3, 4});
+        epochTracker = new EpochTracker();
+        mapper = new TestBulkPortMapper();
+        mapper.setExternalAddress(externalAddress);
+    }
+
+    @Test
+    public void mustRemapAllPortsWhenGatewayRestarts() throws Exception {
+        fixture.add(mapper, gatewayAddress, epochTracker, null, new TestMappedPort(1000, 2000, externalAddress, PortType.TCP, 3600L));
+        fixture.add(mapper, gatewayAddress, epochTracker, null, new TestMappedPort(1001, 2001, externalAddress, PortType.UDP, 3600L));
+
+        GatewayAnnouncementMonitor.handleAnnouncement(fixture, gatewayAddress, new AnnouncePcpResponse(0, 100000L).dump());
+        fixture.remapLost();
+        assertTrue(events.isEmpty());
+
+        GatewayAnnouncementMonitor.handleAnnouncement(fixture, gatewayAddress, new AnnouncePcpResponse(0, 3L).dump());
+        fixture.remapLost();
+        assertEquals(Arrays.asList("restored 1000 2000", "restored 1001 2001"), events);
+        assertEquals(2, mapper.getMapCount());
+        assertEquals(1, mapper.getMapPortsCount()); // both re-mapped through a single bulk request
+
+        events.clear();
+        fixture.remapLost();
+        assertTrue(events.isEmpty());
+        assertEquals(2, fixture.getMappedPorts().size());
+    }
+
+    @Test
+    public void mustSignalAsSoonAsTrackedGatewayResets() throws Exception {
+        MappedPort mappedPort = new TestMappedPort(1000, 2000, externalAddress, PortType.TCP, 3600L);
+        fixture.add(mapper, gatewayAddress, epochTracker, null, mappedPort);
+
+        epochTracker.update(100000L);
+        assertTrue(resets.isEmpty());
+        epochTracker.update(3L); // detected by the mapper itself rather than through an announcement
+        assertEquals(Arrays.asList(epochTracker), resets);
+
+        fixture.remove(mappedPort);
+        epochTracker.update(1L);
+        assertEquals(1, resets.size()); // no longer tracking anything for this mapper
+    }
+
+    @Test
+    public void mustIgnoreAnnouncementsFromOtherGateways() throws Exception {
+        fixture.add(mapper, gatewayAddress, epochTracker, null, new TestMappedPort(1000, 2000, externalAddress, PortType.TCP, 3600L));
+
+        InetAddress otherAddress = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, 2});
+        GatewayAnnouncementMonitor.handleAnnouncement(fixture, gatewayAddress, new AnnouncePcpResponse(0, 100000L).dump());
+        GatewayAnnouncementMonitor.handleAnnouncement(fixture, otherAddress, new AnnouncePcpResponse(0, 3L).dump());
+        fixture.remapLost();
+
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void mustRemapPortsWhenExternalAddressChanges() throws Exception {
+        InetAddress newExternalAddress = InetAddress.getByAddress(new byte[] {5, 6, 7, 8});
+        ExternalAddressCache externalAddressCache = new ExternalAddressCache(60000L);
+        externalAddressCache.put(externalAddress);
+        mapper = new TestBulkPortMapper();
+        mapper.setExternalAddress(newExternalAddress);
+        fixture.add(mapper, gatewayAddress, epochTracker, externalAddressCache,
+                new TestMappedPort(1000, 2000, externalAddress, PortType.TCP, 3600L));
+
+        GatewayAnnouncementMonitor.handleAnnouncement(fixture, gatewayAddress,
+                new ExternalAddressNatPmpResponse(0, 100L, newExternalAddress).dump());
+        fixture.remapLost();
+
+        assertEquals(Arrays.asList("restored 1000 2000"), events);
+        assertEquals(newExternalAddress, fixture.getMappedPorts().get(0).getExternalAddress());
+        assertEquals(newExternalAddress, externalAddressCache.get());
+    }
+
+    @Test
+    public void mustDropPortsThatFailToRemap() throws Exception {
+        mapper.setFailMap(true);
+        fixture.add(mapper, gatewayAddress, epochTracker, null, new TestMappedPort(1000, 2000, externalAddress, PortType.TCP, 3600L));
+
+        epochTracker.update(100000L);
+        epochTracker.update(3L);
+        fixture.remapLost();
+
+        assertEquals(Arrays.asList("lost 1000"), events);
+        assertTrue(fixture.getMappedPorts().isEmpty());
+    }
+}
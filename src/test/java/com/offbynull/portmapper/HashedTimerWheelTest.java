@@ -0,0 +1,70 @@
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.HashedTimerWheel.Timeout;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimerWheelTest {
+
+    @Test
+    public void mustExpireOnlyWhenDeadlineReached() {
+        HashedTimerWheel<String> fixture = new HashedTimerWheel<>(1000L, 100L, 8);
+        fixture.schedule("a", 1250L);
+        fixture.schedule("b", 1301L);
+
+        assertEquals(Collections.<String>emptyList(), fixture.advance(1200L));
+        assertEquals(Arrays.asList("a"), fixture.advance(1300L)); // a's deadline is rounded up to the next tick
+        assertEquals(Collections.<String>emptyList(), fixture.advance(1350L));
+        assertEquals(Arrays.asList("b"), fixture.advance(1400L));
+        assertEquals(0, fixture.size());
+    }
+
+    @Test
+    public void mustExpireTimeoutsMoreThanOneRotationAway() {
+        HashedTimerWheel<String> fixture = new HashedTimerWheel<>(0L, 10L, 4);
+        fixture.schedule("near", 20L);
+        fixture.schedule("far", 100L); // same bucket as "near", but 2 rotations later
+
+        assertEquals(Arrays.asList("near"), fixture.advance(50L));
+        assertEquals(Collections.<String>emptyList(), fixture.advance(90L));
+        assertEquals(Arrays.asList("far"), fixture.advance(100L));
+    }
+
+    @Test
+    public void mustExpireEverythingAfterLongGap() {
+        HashedTimerWheel<String> fixture = new HashedTimerWheel<>(0L, 10L, 4);
+        fixture.schedule("a", 15L);
+        fixture.schedule("b", 75L);
+        fixture.schedule("c", 1000L);
+
+        List<String> expired = fixture.advance(500L);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("a", "b"), expired);
+        assertEquals(1, fixture.size());
+    }
+
+    @Test
+    public void mustFireOverdueTimeoutsOnNextAdvance() {
+        HashedTimerWheel<String> fixture = new HashedTimerWheel<>(0L, 10L, 4);
+        fixture.advance(100L);
+        fixture.schedule("late", 5L);
+
+        assertEquals(Arrays.asList("late"), fixture.advance(110L));
+    }
+
+    @Test
+    public void mustNotExpireCancelledTimeouts() {
+        HashedTimerWheel<String> fixture = new HashedTimerWheel<>(0L, 10L, 4);
+        Timeout<String> a = fixture.schedule("a", 10L);
+        fixture.schedule("b", 10L);
+
+        assertTrue(fixture.cancel(a));
+        assertFalse(fixture.cancel(a));
+        assertEquals(Arrays.asList("b"), fixture.advance(10L));
+    }
+}
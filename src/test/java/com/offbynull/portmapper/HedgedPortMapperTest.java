@@ -0,0 +1,116 @@
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.testtools.TestPortMapper;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HedgedPortMapperTest {
+
+    @Test
+    public void mustHedgeWithNextMapperAndUnmapLoser() throws Exception {
+        TestPortMapper slow = createMapper(2000L, false);
+        slow.setExternalAddress(InetAddress.getByAddress(new byte[] {1, 1, 1, 1}));
+        TestPortMapper fast = createMapper(0L, false);
+        fast.setExternalAddress(InetAddress.getByAddress(new byte[] {2, 2, 2, 2}));
+        HedgedPortMapper fixture = new HedgedPortMapper(Arrays.asList(slow, fast), 100L);
+
+        MappedPort mappedPort = fixture.mapPort(PortType.TCP, 1000, 2000, 60L);
+        assertEquals(1000, mappedPort.getInternalPort());
+        assertEquals(1, fast.getMapCount());
+
+        // slow mapper eventually succeeds too, but since it lost the race it must take its mapping back down
+        assertTrue(slow.awaitUnmap(5000L));
+        assertEquals(0, fast.getUnmapCount());
+
+        fixture.unmapPort(mappedPort);
+        assertEquals(1, fast.getUnmapCount());
+    }
+
+    @Test
+    public void mustNotUnmapLoserThatMappedSameEntryAsWinner() throws Exception {
+        // e.g. NAT-PMP and PCP mappers for the same router -- both end up pointing at the same NAT entry
+        InetAddress externalAddress = InetAddress.getByAddress(new byte[] {1, 1, 1, 1});
+        TestPortMapper slow = createMapper(500L, false);
+        slow.setExternalAddress(externalAddress);
+        TestPortMapper fast = createMapper(0L, false);
+        fast.setExternalAddress(externalAddress);
+        HedgedPortMapper fixture = new HedgedPortMapper(Arrays.asList(slow, fast), 100L);
+
+        MappedPort mappedPort = fixture.mapPort(PortType.TCP, 1000, 2000, 60L);
+        assertEquals(1, fast.getMapCount());
+
+        // slow mapper eventually succeeds too, but unmapping what it mapped would take down the winner's mapping
+        assertFalse(slow.awaitUnmap(2000L));
+        assertEquals(1, slow.getMapCount());
+        assertEquals(0, fast.getUnmapCount());
+
+        fixture.unmapPort(mappedPort);
+        assertEquals(1, fast.getUnmapCount());
+    }
+
+    @Test
+    public void mustFallThroughImmediatelyOnFailure() throws Exception {
+        TestPortMapper failing = createMapper(0L, true);
+        TestPortMapper working = createMapper(0L, false);
+        HedgedPortMapper fixture = new HedgedPortMapper(Arrays.asList(failing, working), 10000L);
+
+        long startTime = System.nanoTime();
+        fixture.mapPort(PortType.UDP, 1000, 2000, 60L);
+        assertTrue(System.nanoTime() - startTime < TimeUnit.MILLISECONDS.toNanos(5000L)); // didn't sit out the hedge delay
+        assertEquals(1, failing.getMapCount());
+        assertEquals(1, working.getMapCount());
+    }
+
+    @Test
+    public void mustFailWhenAllMappersFail() throws Exception {
+        HedgedPortMapper fixture = new HedgedPortMapper(
+                Arrays.asList(createMapper(0L, true), createMapper(0L, true)), 100L);
+        try {
+            fixture.mapPort(PortType.UDP, 1000, 2000, 60L);
+            fail();
+        } catch (IllegalStateException ise) {
+            assertEquals(1, ise.getSuppressed().length);
+        }
+    }
+
+    @Test
+    public void mustPreferMapperWithBetterTrackRecord() throws Exception {
+        TestPortMapper failing = createMapper(0L, true);
+        TestPortMapper working = createMapper(0L, false);
+        HedgedPortMapper fixture = new HedgedPortMapper(Arrays.asList(failing, working), 100L);
+        assertSame(failing, fixture.getStats().get(0).getMapper());
+
+        List<PortMappingResult> results = fixture.mapPorts(Arrays.asList(
+                new PortMappingRequest(PortType.TCP, 1000, 2000, 60L),
+                new PortMappingRequest(PortType.TCP, 1001, 2001, 60L)));
+        assertTrue(results.get(0).isSuccessful());
+        assertTrue(results.get(1).isSuccessful());
+
+        assertSame(working, fixture.getStats().get(0).getMapper());
+        assertEquals(2L, fixture.getStats().get(0).getSuccessCount());
+        assertEquals(2L, fixture.getStats().get(1).getFailureCount());
+
+        fixture.mapPort(PortType.TCP, 1002, 2002, 60L);
+        assertEquals(3, working.getMapCount());
+        assertEquals(2, failing.getMapCount()); // not tried first anymore, and working mapper answered before the hedge delay
+    }
+
+    private static TestPortMapper createMapper(long delay, boolean fail) {
+        TestPortMapper mapper = new TestPortMapper();
+        mapper.setDelay(delay);
+        mapper.setFailMap(fail);
+        return mapper;
+    }
+}
@@ -0,0 +1,233 @@
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.MapperIoUtils;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mapper.RestorablePortMapper;
+import com.offbynull.portmapper.testtools.TestBulkPortMapper;
+import com.offbynull.portmapper.testtools.TestMappedPort;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappingJournalTest {
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        file = File.createTempFile("journal", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void after() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void mustReplayOnlyLiveMappings() throws Exception {
+        TestBulkPortMapper mapper = new TestBulkPortMapper("gw1");
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            RestorablePortMapper journaledMapper = fixture.wrap(mapper);
+            MappedPort tcpPort = journaledMapper.mapPort(PortType.TCP, 1000, 2000, 60L);
+            MappedPort udpPort = journaledMapper.mapPort(PortType.UDP, 1001, 2001, 60L);
+            journaledMapper.refreshPort(tcpPort, 120L);
+            journaledMapper.unmapPort(udpPort);
+        } // process "dies" without unmapping tcp port
+
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            List<JournaledMapping> mappings = fixture.getMappings();
+            assertEquals(1, mappings.size());
+            assertEquals("gw1", mappings.get(0).getIdentity());
+            assertEquals(PortType.TCP, mappings.get(0).getPortType());
+            assertEquals(1000, mappings.get(0).getInternalPort());
+            assertEquals(2000, mappings.get(0).getExternalPort());
+            assertEquals(120L, mappings.get(0).getLifetime());
+
+            List<MappedPort> adopted = fixture.adopt(mapper);
+            assertEquals(1, adopted.size());
+            assertEquals(2000, adopted.get(0).getExternalPort());
+            assertTrue(fixture.adopt(new TestBulkPortMapper("gw2")).isEmpty());
+        }
+    }
+
+    @Test
+    public void mustUnmapOrphansInBulk() throws Exception {
+        TestBulkPortMapper mapper = new TestBulkPortMapper("gw1");
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            List<PortMappingRequest> requests = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                requests.add(new PortMappingRequest(PortType.TCP, 1000 + i, 2000 + i, 60L));
+            }
+            MapperIoUtils.mapPorts(fixture.wrap(mapper), requests);
+        }
+
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            List<PortMappingResult> results = fixture.unmapOrphans(mapper);
+            assertEquals(10, results.size());
+            assertEquals(1, mapper.getUnmapPortsCount());
+            assertEquals(10, mapper.getUnmapped().size());
+            assertTrue(fixture.getMappings().isEmpty());
+        }
+
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            assertTrue(fixture.getMappings().isEmpty());
+        }
+    }
+
+    @Test
+    public void mustIgnoreTornRecordAtEnd() throws Exception {
+        TestBulkPortMapper mapper = new TestBulkPortMapper("gw1");
+        long tornRecordStart;
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            fixture.recordMapping(mapper, new TestMappedPort(1000, 2000, PortType.TCP, 60L));
+            tornRecordStart = findEnd();
+            fixture.recordMapping(mapper, new TestMappedPort(1001, 2001, PortType.TCP, 60L));
+        }
+
+        // simulate crashing partway through writing the second record
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(tornRecordStart + 10L);
+            raf.write(new byte[] {0x55, 0x55, 0x55, 0x55});
+        }
+
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            assertEquals(1, fixture.getMappings().size());
+            assertEquals(1000, fixture.getMappings().get(0).getInternalPort());
+            fixture.recordMapping(mapper, new TestMappedPort(1002, 2002, PortType.TCP, 60L));
+        }
+
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            assertEquals(2, fixture.getMappings().size());
+            assertEquals(1002, fixture.getMappings().get(1).getInternalPort());
+        }
+    }
+
+    @Test
+    public void mustCompactWhenFull() throws Exception {
+        TestBulkPortMapper mapper = new TestBulkPortMapper("gw1");
+        try (MappingJournal fixture = MappingJournal.open(file, 1024)) {
+            for (int i = 0; i < 500; i++) {
+                MappedPort mappedPort = new TestMappedPort(1000 + (i % 5), 2000 + i, PortType.UDP, 60L);
+                fixture.recordMapping(mapper, mappedPort);
+                if (i % 2 == 0) {
+                    fixture.recordUnmapping(mapper, mappedPort);
+                }
+            }
+            for (int i = 0; i < 100; i++) {
+                fixture.recordMapping(mapper, new TestMappedPort(3000 + i, 4000 + i, PortType.TCP, 60L));
+            }
+        }
+
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            assertEquals(103, fixture.getMappings().size()); // last record for internal ports 1001 and 1003 was an unmap
+        }
+    }
+
+    @Test
+    public void mustReplaceFileWithCompactedOneWhenFullAndKeepAppendingToIt() throws Exception {
+        TestBulkPortMapper mapper = new TestBulkPortMapper("gw1");
+        try (MappingJournal fixture = MappingJournal.open(file, 1024)) {
+            fixture.recordMapping(mapper, new TestMappedPort(1000, 2000, PortType.TCP, 60L));
+            long recordSize = findEnd();
+
+            // fill the journal right up to the end with refreshes of another mapping, then push it over so it has to compact
+            int count = 0;
+            while (findEnd() + recordSize <= 1024L) {
+                fixture.recordMapping(mapper, new TestMappedPort(1001, 3000 + count, PortType.TCP, 60L));
+                fixture.sync();
+                count++;
+            }
+            fixture.recordMapping(mapper, new TestMappedPort(1001, 3000 + count, PortType.TCP, 60L));
+            fixture.sync();
+
+            // file on disk was swapped for the compacted one (2 live mappings + the record that didn't fit), and no temp file left behind
+            assertEquals(1024L, file.length());
+            assertEquals(3L * recordSize, findEnd());
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+
+            // records after the compaction go to the new file
+            fixture.recordMapping(mapper, new TestMappedPort(1002, 4000, PortType.TCP, 60L));
+            fixture.sync();
+            assertEquals(4L * recordSize, findEnd());
+
+            try (MappingJournal other = MappingJournal.open(file, 1024)) {
+                List<JournaledMapping> mappings = other.getMappings();
+                assertEquals(3, mappings.size());
+                assertEquals(2000, mappings.get(0).getExternalPort());
+                assertEquals(3000 + count, mappings.get(1).getExternalPort());
+                assertEquals(4000, mappings.get(2).getExternalPort());
+            }
+        }
+    }
+
+    @Test
+    public void mustRemainUsableWhenCompactionFails() throws Exception {
+        TestBulkPortMapper mapper = new TestBulkPortMapper("gw1");
+        File blocker = new File(file, "blocker");
+        int lastExternalPort = -1;
+        try (MappingJournal fixture = MappingJournal.open(file, 1024)) {
+            fixture.recordMapping(mapper, new TestMappedPort(1000, 2000, PortType.TCP, 60L));
+
+            // put a non-empty directory where the journal is so that the compacted journal can't be moved in to place
+            Assume.assumeTrue(file.delete()); // some platforms won't delete a file that's open
+            assertTrue(file.mkdir());
+            assertTrue(blocker.createNewFile());
+
+            try {
+                for (int i = 0; i < 1000; i++) {
+                    fixture.recordMapping(mapper, new TestMappedPort(1001, 3000 + i, PortType.TCP, 60L));
+                    lastExternalPort = 3000 + i;
+                }
+                fail();
+            } catch (IllegalStateException ise) {
+                // do nothing
+            }
+
+            assertTrue(blocker.delete());
+            assertTrue(file.delete());
+
+            fixture.sync();
+            fixture.recordMapping(mapper, new TestMappedPort(1002, 2002, PortType.TCP, 60L)); // compacts successfully this time
+            assertEquals(3, fixture.getMappings().size());
+        }
+
+        try (MappingJournal fixture = MappingJournal.open(file)) {
+            List<JournaledMapping> mappings = fixture.getMappings();
+            assertEquals(3, mappings.size());
+            assertEquals(2000, mappings.get(0).getExternalPort());
+            assertEquals(lastExternalPort, mappings.get(1).getExternalPort());
+            assertEquals(2002, mappings.get(2).getExternalPort());
+        }
+    }
+
+    // Offset just past the last record written so far
+    private long findEnd() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (true) {
+                int length = buffer.getInt();
+                if (length == 0) {
+                    return buffer.position() - 4;
+                }
+                buffer.position(buffer.position() + length + 4);
+            }
+        }
+    }
+}
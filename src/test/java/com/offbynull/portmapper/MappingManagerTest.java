@@ -0,0 +1,71 @@
+package com.offbynull.portmapper;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.testtools.TestPortMapper;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappingManagerTest {
+
+    @Test
+    public void mustRefreshMappingsAndUnmapOnClose() throws Exception {
+        final LinkedBlockingQueue<MappedPort> refreshed = new LinkedBlockingQueue<>();
+        MappingManager fixture = MappingManager.create(2, 0.5, 0.1, new MappingManagerListener() {
+            @Override
+            public void mappingRefreshed(ManagedMapping mapping, MappedPort oldMappedPort, MappedPort newMappedPort) {
+                refreshed.add(newMappedPort);
+            }
+
+            @Override
+            public void mappingRefreshFailed(ManagedMapping mapping, RuntimeException cause, boolean lost) {
+                // do nothing
+            }
+        });
+
+        TestPortMapper mapper = new TestPortMapper();
+        fixture.map(mapper, PortType.TCP, 1000, 2000, 1L);
+        fixture.map(mapper, PortType.UDP, 1001, 2001, 1L);
+
+        // 1 second lifetimes refreshed at ~half-way point, so each should be refreshed a couple of times in 1.5 seconds
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(refreshed.poll(1500L, TimeUnit.MILLISECONDS));
+        }
+        assertTrue(mapper.getRefreshCount() >= 4);
+        assertEquals(2, fixture.getMappings().size());
+
+        fixture.close();
+        assertEquals(2, mapper.getUnmapCount());
+        assertTrue(fixture.getMappings().isEmpty());
+    }
+
+    @Test
+    public void mustReportLostMappingWhenRefreshKeepsFailing() throws Exception {
+        final LinkedBlockingQueue<Boolean> failures = new LinkedBlockingQueue<>();
+        MappingManager fixture = MappingManager.create(1, 0.5, 0.0, new MappingManagerListener() {
+            @Override
+            public void mappingRefreshed(ManagedMapping mapping, MappedPort oldMappedPort, MappedPort newMappedPort) {
+                // do nothing
+            }
+
+            @Override
+            public void mappingRefreshFailed(ManagedMapping mapping, RuntimeException cause, boolean lost) {
+                failures.add(lost);
+            }
+        });
+
+        TestPortMapper mapper = new TestPortMapper();
+        mapper.setFailRefresh(true);
+        fixture.map(mapper, PortType.TCP, 1000, 2000, 1L);
+
+        assertTrue(failures.poll(2000L, TimeUnit.MILLISECONDS)); // only 500ms left at first refresh, not enough to retry
+        assertTrue(fixture.getMappings().isEmpty());
+
+        fixture.close();
+        assertEquals(0, mapper.getUnmapCount());
+    }
+}
@@ -9,9 +9,14 @@ import com.offbynull.portmapper.gateways.network.internalmessages.CreateUdpNetwo
 import com.offbynull.portmapper.gateways.network.internalmessages.CloseNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.CloseNetworkResponse;
 import com.offbynull.portmapper.gateways.network.internalmessages.ConnectedTcpNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.CreateMulticastUdpNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkRequest;
 import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkResponse;
+import com.offbynull.portmapper.gateways.network.internalmessages.JoinMulticastUdpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.JoinMulticastUdpNetworkResponse;
 import com.offbynull.portmapper.gateways.network.internalmessages.KillNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.LeaveMulticastUdpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.LeaveMulticastUdpNetworkResponse;
 import com.offbynull.portmapper.gateways.network.internalmessages.ReadTcpNetworkNotification;
 import com.offbynull.portmapper.gateways.network.internalmessages.ReadUdpNetworkNotification;
 import com.offbynull.portmapper.gateways.network.internalmessages.WriteEmptyTcpNetworkNotification;
@@ -22,11 +27,15 @@ import com.offbynull.portmapper.gateways.network.internalmessages.WriteUdpNetwor
 import com.offbynull.portmapper.gateways.network.internalmessages.WriteUdpNetworkResponse;
 import com.offbynull.portmapper.testtools.TcpServerEmulator;
 import com.offbynull.portmapper.testtools.UdpServerEmulator;
+import com.offbynull.portmapper.testtools.UdpTestUtils;
 import java.io.ByteArrayOutputStream;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.concurrent.LinkedBlockingQueue;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
@@ -144,4 +153,51 @@ public class NetworkGatewayTest {
         }
     }
 
+    @Test
+    public void mustReceiveMulticastUdp() throws Exception {
+        InetAddress interfaceAddress = null;
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || !networkInterface.supportsMulticast()) {
+                continue;
+            }
+            for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                if (address instanceof Inet4Address) {
+                    interfaceAddress = address;
+                }
+            }
+        }
+        InetAddress groupAddress = InetAddress.getByName("239.255.42.99");
+        
+        LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        Bus responseBus = new BasicBus(queue);
+
+        fixtureBus.send(new GetNextIdNetworkRequest(responseBus));
+        GetNextIdNetworkResponse nextIdResp = (GetNextIdNetworkResponse) queue.take();
+
+        int id = nextIdResp.getId();
+
+        fixtureBus.send(new CreateMulticastUdpNetworkRequest(
+                id,
+                responseBus,
+                InetAddress.getByName("0.0.0.0"),
+                12346,
+                1,
+                true));
+        CreateUdpNetworkResponse resp1 = (CreateUdpNetworkResponse) queue.take();
+        WriteEmptyUdpNetworkNotification writeReadyResp = (WriteEmptyUdpNetworkNotification) queue.take();
+
+        fixtureBus.send(new JoinMulticastUdpNetworkRequest(id, groupAddress, interfaceAddress));
+        JoinMulticastUdpNetworkResponse joinResp = (JoinMulticastUdpNetworkResponse) queue.take();
+
+        UdpTestUtils.sendMulticast(groupAddress, 12346, ByteBuffer.wrap("hello".getBytes("UTF-8")));
+
+        ReadUdpNetworkNotification readResp = (ReadUdpNetworkNotification) queue.take();
+        assertEquals("hello", new String(readResp.getData(), Charset.forName("UTF-8")));
+
+        fixtureBus.send(new LeaveMulticastUdpNetworkRequest(id, groupAddress, interfaceAddress));
+        LeaveMulticastUdpNetworkResponse leaveResp = (LeaveMulticastUdpNetworkResponse) queue.take();
+
+        fixtureBus.send(new CloseNetworkRequest(id));
+        CloseNetworkResponse destoryResp = (CloseNetworkResponse) queue.take();
+    }
 }
@@ -213,6 +213,24 @@ public class TextUtilsTest {
         assertEquals("f8:9:a:b:c:d:e:f", addresses.get(0));
     }
     
+    @Test
+    public void mustSkipOverLongRunsOfDigitsAndHex() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("ffff0");
+        }
+        sb.append(" 1234.1.2.3 12345::1 ");
+        String text = sb.toString();
+
+        List<String> ipv4Addresses = TextUtils.findAllIpv4Addresses(text);
+        assertEquals(1, ipv4Addresses.size());
+        assertEquals("234.1.2.3", ipv4Addresses.get(0)); // 1234 is too long, so it moves up 1 character and restarts
+        
+        List<String> ipv6Addresses = TextUtils.findAllIpv6Addresses(text);
+        assertEquals(1, ipv6Addresses.size());
+        assertEquals("2345::1", ipv6Addresses.get(0)); // 12345 is too long, so it moves up 1 character and restarts
+    }
+    
     @Test
     public void mustFindBlocksOfText() {
         List<String> blocks = TextUtils.findAllBlocks("\t\tsfosnfhello this is a test goodbyes\tfsdfshellogoodbye", "hello", "goodbye",
@@ -0,0 +1,88 @@
+package com.offbynull.portmapper.mapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EpochTrackerTest {
+
+    @Test
+    public void mustNotDetectLossOnFirstUpdate() {
+        EpochTracker fixture = new EpochTracker();
+        assertFalse(fixture.update(1000L, 0L));
+        assertEquals(1000L, fixture.getLastServerEpoch());
+        assertEquals(0L, fixture.getResetCount());
+    }
+
+    @Test
+    public void mustNotDetectLossWhenEpochMovesWithClock() {
+        EpochTracker fixture = new EpochTracker();
+        assertFalse(fixture.update(1000L, 0L));
+        assertFalse(fixture.update(1060L, 60000L));
+        assertFalse(fixture.update(1059L, 60500L)); // within 1 second of slack
+        assertFalse(fixture.update(1660L, 660000L));
+        assertEquals(0L, fixture.getResetCount());
+    }
+
+    @Test
+    public void mustDetectLossWhenEpochGoesBackwards() {
+        EpochTracker fixture = new EpochTracker();
+        assertFalse(fixture.update(1000L, 0L));
+        assertTrue(fixture.update(5L, 1000L));
+        assertEquals(1L, fixture.getResetCount());
+        assertEquals(5L, fixture.getLastServerEpoch());
+    }
+
+    @Test
+    public void mustDetectLossWhenEpochMovesTooLittle() {
+        EpochTracker fixture = new EpochTracker();
+        assertFalse(fixture.update(1000L, 0L));
+        assertTrue(fixture.update(1010L, 600000L)); // 600 seconds passed on client but only 10 on gateway
+        assertEquals(1L, fixture.getResetCount());
+        assertFalse(fixture.update(1070L, 660000L)); // tracks from new epoch afterwards
+        assertEquals(1L, fixture.getResetCount());
+    }
+
+    @Test
+    public void mustDetectLossWhenEpochMovesTooMuch() {
+        EpochTracker fixture = new EpochTracker();
+        assertFalse(fixture.update(1000L, 0L));
+        assertTrue(fixture.update(100000L, 10000L));
+        assertEquals(1L, fixture.getResetCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailOnOutOfRangeEpoch() {
+        EpochTracker fixture = new EpochTracker();
+        fixture.update(0x100000000L, 0L);
+    }
+
+    @Test
+    public void mustNotifyListenersOnlyWhenLossDetected() {
+        final List<EpochTracker> resets = new ArrayList<>();
+        EpochResetListener listener = new EpochResetListener() {
+            @Override
+            public void epochReset(EpochTracker epochTracker) {
+                resets.add(epochTracker);
+            }
+        };
+
+        EpochTracker fixture = new EpochTracker();
+        fixture.addResetListener(listener);
+        fixture.addResetListener(listener);
+        assertFalse(fixture.update(1000L, 0L));
+        assertFalse(fixture.update(1060L, 60000L));
+        assertTrue(resets.isEmpty());
+
+        assertTrue(fixture.update(5L, 61000L));
+        assertEquals(Arrays.asList(fixture), resets);
+
+        fixture.removeResetListener(listener);
+        assertTrue(fixture.update(1L, 62000L));
+        assertEquals(1, resets.size());
+    }
+}
@@ -0,0 +1,38 @@
+package com.offbynull.portmapper.mapper;
+
+import java.net.InetAddress;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ExternalAddressCacheTest {
+
+    @Test
+    public void mustReturnCachedAddressUntilExpired() throws Exception {
+        InetAddress addr = InetAddress.getByName("1.2.3.4");
+        ExternalAddressCache fixture = new ExternalAddressCache(1000L);
+
+        assertNull(fixture.get(0L));
+        fixture.put(addr, 0L);
+        assertEquals(addr, fixture.get(500L));
+        assertEquals(addr, fixture.get(999L));
+        assertNull(fixture.get(1000L));
+        assertNull(fixture.get(500L)); // once expired, stays expired until next put
+
+        assertEquals(2L, fixture.getHitCount());
+        assertEquals(3L, fixture.getMissCount());
+    }
+
+    @Test
+    public void mustReturnNothingAfterInvalidate() throws Exception {
+        InetAddress addr = InetAddress.getByName("1.2.3.4");
+        ExternalAddressCache fixture = new ExternalAddressCache(1000L);
+
+        fixture.put(addr, 0L);
+        fixture.invalidate();
+        assertNull(fixture.get(1L));
+
+        fixture.put(addr, 2L);
+        assertEquals(addr, fixture.get(3L));
+    }
+}
@@ -0,0 +1,94 @@
+package com.offbynull.portmapper.mapper;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GatewayLimiterTest {
+
+    @Test
+    public void mustNeverHandOutMoreThanParallelism() throws Exception {
+        GatewayLimiter fixture = new GatewayLimiter(3);
+
+        assertEquals(3, fixture.acquire(10));
+        assertEquals(3, fixture.getInFlight());
+        fixture.release(3);
+
+        assertEquals(2, fixture.acquire(2));
+        assertEquals(2, fixture.getInFlight());
+        fixture.release(2);
+        assertEquals(0, fixture.getInFlight());
+    }
+
+    @Test
+    public void mustBlockUntilSlotsAreReleased() throws Exception {
+        final GatewayLimiter fixture = new GatewayLimiter(2);
+        assertEquals(2, fixture.acquire(2));
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fixture.acquire(1);
+                    acquired.countDown();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+
+        assertFalse(acquired.await(250L, TimeUnit.MILLISECONDS));
+        fixture.release(2);
+        assertTrue(acquired.await(5000L, TimeUnit.MILLISECONDS));
+        thread.join();
+        assertEquals(1, fixture.getInFlight());
+    }
+
+    @Test
+    public void mustTakeWhateverSlotsAreFreeInsteadOfWaitingForAll() throws Exception {
+        GatewayLimiter fixture = new GatewayLimiter(3);
+        assertTrue(fixture.tryAcquire());
+
+        assertEquals(2, fixture.acquire(3));
+        assertEquals(3, fixture.getInFlight());
+        assertFalse(fixture.tryAcquire());
+    }
+
+    @Test
+    public void mustKeepCountingInFlightRequestsWhenResized() throws Exception {
+        GatewayLimiter fixture = new GatewayLimiter(3);
+        assertEquals(3, fixture.acquire(3));
+
+        fixture.resize(1);
+        assertEquals(1, fixture.getParallelism());
+        fixture.release(2);
+        assertFalse(fixture.tryAcquire()); // 1 still in flight, which is already the new limit
+        fixture.release(1);
+        assertTrue(fixture.tryAcquire());
+
+        fixture.resize(4);
+        assertEquals(3, fixture.acquire(5));
+        assertEquals(4, fixture.getInFlight());
+    }
+
+    @Test
+    public void mustShareLimiterPerGatewayAddress() throws Exception {
+        InetAddress gatewayAddress = InetAddress.getByName("192.0.2.1");
+        InetAddress otherGatewayAddress = InetAddress.getByName("192.0.2.2");
+
+        GatewayLimiter limiter = GatewayLimiter.forGateway(gatewayAddress);
+        assertSame(limiter, GatewayLimiter.forGateway(InetAddress.getByName("192.0.2.1")));
+        assertTrue(limiter != GatewayLimiter.forGateway(otherGatewayAddress));
+
+        GatewayLimiter.setParallelism(gatewayAddress, 1);
+        assertSame(limiter, GatewayLimiter.forGateway(gatewayAddress)); // resized, not replaced
+        assertEquals(1, limiter.getParallelism());
+    }
+}
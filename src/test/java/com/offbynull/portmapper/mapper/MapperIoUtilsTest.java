@@ -0,0 +1,388 @@
+package com.offbynull.portmapper.mapper;
+
+import com.offbynull.portmapper.gateway.Bus;
+import com.offbynull.portmapper.gateways.network.internalmessages.CreateTcpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.CreateUdpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkResponse;
+import com.offbynull.portmapper.gateways.network.internalmessages.ReadClosedTcpNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.ReadTcpNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.ReadUdpNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.WriteTcpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.WriteUdpNetworkRequest;
+import com.offbynull.portmapper.mapper.MapperIoUtils.BytesToResponseTransformer;
+import com.offbynull.portmapper.mapper.MapperIoUtils.RequestToBytesTransformer;
+import com.offbynull.portmapper.mapper.MapperIoUtils.TcpRequest;
+import com.offbynull.portmapper.mapper.MapperIoUtils.UdpRequest;
+import com.offbynull.portmapper.testtools.TestMappedPort;
+import com.offbynull.portmapper.testtools.TestPortMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.IOUtils;
+import org.junit.Ignore;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MapperIoUtilsTest {
+
+    @Test
+    public void mustFailRefreshesWhereExternalPortOrAddressChanged() throws Exception {
+        InetAddress addr1 = InetAddress.getByName("1.1.1.1");
+        InetAddress addr2 = InetAddress.getByName("2.2.2.2");
+
+        MappedPort old1 = new TestMappedPort(1000, 2000, addr1, PortType.TCP, 60L);
+        MappedPort old2 = new TestMappedPort(1001, 2001, addr1, PortType.TCP, 60L);
+        MappedPort old3 = new TestMappedPort(1002, 2002, addr1, PortType.TCP, 60L);
+        MappedPort old4 = new TestMappedPort(1003, 2003, addr1, PortType.TCP, 60L);
+
+        MappedPort new1 = new TestMappedPort(1000, 2000, addr1, PortType.TCP, 60L);
+        MappedPort new2 = new TestMappedPort(1001, 3001, addr1, PortType.TCP, 60L); // different external port
+        MappedPort new3 = new TestMappedPort(1002, 2002, addr2, PortType.TCP, 60L); // different external address
+        IllegalStateException err4 = new IllegalStateException();
+
+        TestPortMapper mapper = new TestPortMapper();
+        List<PortMappingResult> results = MapperIoUtils.verifyRefreshes(
+                mapper,
+                Arrays.asList(old1, old2, old3, old4),
+                Arrays.asList(
+                        new PortMappingResult(new1),
+                        new PortMappingResult(new2),
+                        new PortMappingResult(new3),
+                        new PortMappingResult(err4)));
+
+        assertEquals(4, results.size());
+        assertTrue(results.get(0).isSuccessful());
+        assertSame(new1, results.get(0).getMappedPort());
+        assertFalse(results.get(1).isSuccessful());
+        assertTrue(results.get(1).getError() instanceof IllegalStateException);
+        assertFalse(results.get(2).isSuccessful());
+        assertTrue(results.get(2).getError() instanceof IllegalStateException);
+        assertSame(err4, results.get(3).getError());
+
+        assertEquals(Arrays.asList(new2, new3), mapper.getUnmapped()); // accidentally created mappings must be removed
+    }
+
+    @Test
+    public void mustNotUnmapAnythingWhenAllRefreshesMatch() throws Exception {
+        InetAddress addr = InetAddress.getByName("1.1.1.1");
+        MappedPort old1 = new TestMappedPort(1000, 2000, addr, PortType.TCP, 60L);
+        MappedPort new1 = new TestMappedPort(1000, 2000, addr, PortType.TCP, 60L);
+
+        TestPortMapper mapper = new TestPortMapper();
+        List<PortMappingResult> results = MapperIoUtils.verifyRefreshes(
+                mapper,
+                Arrays.asList(old1),
+                Arrays.asList(new PortMappingResult(new1)));
+
+        assertSame(new1, results.get(0).getMappedPort());
+        assertTrue(mapper.getUnmapped().isEmpty());
+    }
+
+    @Test
+    public void mustFallBackToSingleOperationsForMappersWithoutBulkSupport() throws Exception {
+        TestPortMapper mapper = new TestPortMapper();
+
+        List<PortMappingResult> results = MapperIoUtils.mapPorts(mapper, Arrays.asList(
+                new PortMappingRequest(PortType.TCP, 1000, 2000, 60L),
+                new PortMappingRequest(PortType.UDP, 1001, 2001, 60L)));
+        assertEquals(2, results.size());
+        assertEquals(2000, results.get(0).getMappedPort().getExternalPort());
+        assertEquals(2001, results.get(1).getMappedPort().getExternalPort());
+        assertEquals(2, mapper.getMapCount());
+
+        MappedPort mappedPort = results.get(0).getMappedPort();
+        results = MapperIoUtils.refreshPorts(mapper, Arrays.asList(mappedPort), 120L);
+        assertEquals(120L, results.get(0).getMappedPort().getLifetime());
+
+        results = MapperIoUtils.unmapPorts(mapper, Arrays.asList(mappedPort));
+        assertSame(mappedPort, results.get(0).getMappedPort());
+        assertEquals(Arrays.asList(mappedPort), mapper.getUnmapped());
+
+        mapper.setFailMap(true);
+        results = MapperIoUtils.mapPorts(mapper, Arrays.asList(new PortMappingRequest(PortType.TCP, 1002, 2002, 60L)));
+        assertTrue(results.get(0).getError() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void mustSlideWindowOverLimitedUdpRequestsInsteadOfWaitingOutEachWave() throws Exception {
+        GatewayLimiter limiter = new GatewayLimiter(3);
+        EchoNetworkBus networkBus = new EchoNetworkBus(limiter);
+        List<UdpRequest> reqs = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            reqs.add(createUdpRequest(ECHO_ADDRESS, "req" + i));
+        }
+
+        long startTime = System.currentTimeMillis();
+        MapperIoUtils.performLimitedUdpRequests(networkBus, limiter, reqs, 2000L, 2000L);
+        long duration = System.currentTimeMillis() - startTime;
+
+        for (int i = 0; i < 60; i++) {
+            assertEquals("req" + i, reqs.get(i).getResponse());
+        }
+        assertTrue("Took " + duration + "ms", duration < 2000L); // waves that waited out their attempt would take 20 x 2000ms
+        assertTrue(networkBus.getMaxInFlight() <= 3);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void mustNotLetUnansweredLimitedUdpRequestHoldUpOthers() throws Exception {
+        GatewayLimiter limiter = new GatewayLimiter(2);
+        EchoNetworkBus networkBus = new EchoNetworkBus(limiter);
+        UdpRequest unansweredReq = createUdpRequest(SILENT_ADDRESS, "unanswered");
+        List<UdpRequest> reqs = new ArrayList<>();
+        reqs.add(unansweredReq);
+        for (int i = 0; i < 20; i++) {
+            reqs.add(createUdpRequest(ECHO_ADDRESS, "req" + i));
+        }
+
+        MapperIoUtils.performLimitedUdpRequests(networkBus, limiter, reqs, 250L, 250L);
+
+        assertEquals(null, unansweredReq.getResponse());
+        assertEquals(2, networkBus.getWriteCount(SILENT_ADDRESS)); // resent once on its own schedule
+        for (int i = 1; i < reqs.size(); i++) {
+            assertEquals("req" + (i - 1), reqs.get(i).getResponse());
+        }
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void mustSlideWindowOverLimitedTcpRequests() throws Exception {
+        GatewayLimiter limiter = new GatewayLimiter(3);
+        EchoNetworkBus networkBus = new EchoNetworkBus(limiter);
+        List<TcpRequest> reqs = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            reqs.add(createTcpRequest(ECHO_ADDRESS, "req" + i));
+        }
+        TcpRequest unansweredReq = createTcpRequest(SILENT_ADDRESS, "unanswered");
+        reqs.add(0, unansweredReq);
+
+        long startTime = System.currentTimeMillis();
+        MapperIoUtils.performLimitedTcpRequests(networkBus, limiter, reqs, 500L, 500L);
+        long duration = System.currentTimeMillis() - startTime;
+
+        assertEquals(null, unansweredReq.getResponse());
+        for (int i = 1; i < reqs.size(); i++) {
+            assertEquals("req" + (i - 1), reqs.get(i).getResponse());
+        }
+        assertTrue("Took " + duration + "ms", duration < 2000L); // waves that waited for their slowest request would take 11 x 1000ms
+        assertTrue(networkBus.getMaxInFlight() <= 3);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void mustProvidePresetIpv4GatewayAddresses() throws Exception {
+        Set<InetAddress> addresses = MapperIoUtils.getPresetIpv4GatewayAddresses();
+
+        assertEquals(49, addresses.size());
+        for (InetAddress address : addresses) {
+            assertTrue(address instanceof Inet4Address);
+        }
+        assertTrue(addresses.contains(InetAddress.getByName("192.168.1.1")));
+        assertTrue(addresses.contains(InetAddress.getByName("10.0.0.138")));
+        assertTrue(addresses.contains(InetAddress.getByName("192.168.254.254")));
+        assertSame(addresses, MapperIoUtils.getPresetIpv4GatewayAddresses());
+    }
+
+    @Test
+    public void mustOnlyCreatePresetIpv4GatewayAddressesOnFirstUse() throws Exception {
+        // Load a fresh copy of MapperIoUtils (everything it depends on comes from the parent and is already initialized) so that we can
+        // see which of its classes get pulled in. The preset table used to be built during MapperIoUtils's own class initialization by
+        // resolving ~170 strings through InetAddress.getByName(), one of which wasn't a valid IP and so went out to DNS.
+        IsolatingClassLoader classLoader = new IsolatingClassLoader(MapperIoUtils.class.getName());
+        Class<?> cls = Class.forName(MapperIoUtils.class.getName(), true, classLoader);
+
+        assertFalse(classLoader.isolatedClassNames.contains(MapperIoUtils.class.getName() + "$PresetIpv4GatewayAddressesHolder"));
+
+        Set<?> addresses = (Set<?>) cls.getMethod("getPresetIpv4GatewayAddresses").invoke(null);
+        assertEquals(49, addresses.size());
+        assertTrue(classLoader.isolatedClassNames.contains(MapperIoUtils.class.getName() + "$PresetIpv4GatewayAddressesHolder"));
+    }
+
+    @Test
+    @Ignore("Benchmark -- reports timings instead of asserting on them (wall-clock bounds are flaky on loaded machines), run by hand")
+    public void benchmarkClassInitializationAndFirstUseOfPresetIpv4GatewayAddresses() throws Exception {
+        // Each run loads a fresh copy of MapperIoUtils so that its static initializer runs again. Only the initialization is timed, not
+        // reading/defining the class. Last measured at ~1ms median (0.9ms to 1.5ms) for class initialization, so milliseconds rather
+        // than microseconds -- but loading MapperIoUtils used to resolve ~170 strings through InetAddress.getByName() (one of which
+        // went out to DNS, taking seconds on hosts with a broken resolver).
+        int runs = 50;
+        long[] initTimes = new long[runs];
+        long[] firstUseTimes = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            IsolatingClassLoader classLoader = new IsolatingClassLoader(MapperIoUtils.class.getName());
+            Class<?> cls = Class.forName(MapperIoUtils.class.getName(), false, classLoader);
+
+            long startTime = System.nanoTime();
+            Class.forName(MapperIoUtils.class.getName(), true, classLoader);
+            initTimes[i] = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            cls.getMethod("getPresetIpv4GatewayAddresses").invoke(null);
+            firstUseTimes[i] = System.nanoTime() - startTime;
+        }
+
+        System.out.println("MapperIoUtils class initialization: " + summarizeNanos(initTimes));
+        System.out.println("getPresetIpv4GatewayAddresses() first use: " + summarizeNanos(firstUseTimes));
+    }
+
+    private static String summarizeNanos(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return String.format("min=%.3fms median=%.3fms max=%.3fms (%d runs)",
+                sorted[0] / 1000000.0, sorted[sorted.length / 2] / 1000000.0, sorted[sorted.length - 1] / 1000000.0, sorted.length);
+    }
+
+    private static final InetAddress SOURCE_ADDRESS = toAddress(192, 168, 1, 2);
+    private static final InetAddress ECHO_ADDRESS = toAddress(192, 168, 1, 1);
+    private static final InetAddress SILENT_ADDRESS = toAddress(192, 168, 1, 254);
+
+    private static InetAddress toAddress(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    private static UdpRequest createUdpRequest(InetAddress destination, String request) {
+        EchoTransformer transformer = new EchoTransformer(request);
+        return new UdpRequest(SOURCE_ADDRESS, new InetSocketAddress(destination, 5351), request, transformer, transformer);
+    }
+
+    private static TcpRequest createTcpRequest(InetAddress destination, String request) {
+        EchoTransformer transformer = new EchoTransformer(request);
+        return new TcpRequest(SOURCE_ADDRESS, new InetSocketAddress(destination, 80), request, transformer, transformer);
+    }
+
+    // Only accepts its own request echoed back, the same way mapper responses are only accepted by the request they're for
+    private static final class EchoTransformer implements RequestToBytesTransformer, BytesToResponseTransformer {
+        private final String request;
+
+        EchoTransformer(String request) {
+            this.request = request;
+        }
+
+        @Override
+        public byte[] create(Object request) {
+            return ((String) request).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public ParseResult<?> create(byte[] buffer) {
+            String response = new String(buffer, StandardCharsets.US_ASCII);
+            return response.equals(request) ? ParseResult.success(response) : ParseResult.<String>failure("Not " + request);
+        }
+    }
+
+    // Stands in for the network gateway -- echoes back whatever's written to ECHO_ADDRESS and ignores whatever's written to anywhere else
+    private static final class EchoNetworkBus implements Bus {
+        private final GatewayLimiter limiter;
+        private final Map<Integer, Bus> responseBuses = new HashMap<>();
+        private final Map<InetAddress, Integer> writeCounts = new HashMap<>();
+        private final Map<Integer, InetAddress> tcpDestinations = new HashMap<>();
+        private int maxInFlight;
+        private int nextId;
+
+        EchoNetworkBus(GatewayLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        synchronized int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        synchronized int getWriteCount(InetAddress destination) {
+            Integer count = writeCounts.get(destination);
+            return count == null ? 0 : count;
+        }
+
+        @Override
+        public synchronized void send(Object msg) {
+            if (msg instanceof GetNextIdNetworkRequest) {
+                ((GetNextIdNetworkRequest) msg).getResponseBus().send(new GetNextIdNetworkResponse(nextId++));
+            } else if (msg instanceof CreateUdpNetworkRequest) {
+                CreateUdpNetworkRequest req = (CreateUdpNetworkRequest) msg;
+                responseBuses.put(req.getId(), req.getResponseBus());
+            } else if (msg instanceof CreateTcpNetworkRequest) {
+                CreateTcpNetworkRequest req = (CreateTcpNetworkRequest) msg;
+                responseBuses.put(req.getId(), req.getResponseBus());
+                tcpDestinations.put(req.getId(), req.getDestinationAddress());
+            } else if (msg instanceof WriteUdpNetworkRequest) {
+                WriteUdpNetworkRequest req = (WriteUdpNetworkRequest) msg;
+                InetAddress destination = req.getRemoteAddress().getAddress();
+                recordWrite(destination);
+                if (destination.equals(ECHO_ADDRESS)) {
+                    responseBuses.get(req.getId()).send(new ReadUdpNetworkNotification(req.getId(),
+                            new InetSocketAddress(SOURCE_ADDRESS, 12345), req.getRemoteAddress(), req.getData()));
+                }
+            } else if (msg instanceof WriteTcpNetworkRequest) {
+                WriteTcpNetworkRequest req = (WriteTcpNetworkRequest) msg;
+                InetAddress destination = tcpDestinations.get(req.getId());
+                recordWrite(destination);
+                if (destination.equals(ECHO_ADDRESS)) {
+                    Bus responseBus = responseBuses.get(req.getId());
+                    responseBus.send(new ReadTcpNetworkNotification(req.getId(), req.getData()));
+                    responseBus.send(new ReadClosedTcpNetworkNotification(req.getId()));
+                }
+            }
+        }
+
+        private void recordWrite(InetAddress destination) {
+            writeCounts.put(destination, getWriteCount(destination) + 1);
+            maxInFlight = Math.max(maxInFlight, limiter.getInFlight());
+        }
+    }
+
+    private static final class IsolatingClassLoader extends ClassLoader {
+        private final String prefix;
+        private final Set<String> isolatedClassNames = new HashSet<>();
+
+        IsolatingClassLoader(String prefix) {
+            super(IsolatingClassLoader.class.getClassLoader());
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(prefix)) {
+                return super.loadClass(name, resolve);
+            }
+
+            Class<?> cls = findLoadedClass(name);
+            if (cls == null) {
+                InputStream is = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+                if (is == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                byte[] data;
+                try {
+                    data = IOUtils.toByteArray(is);
+                } catch (IOException ioe) {
+                    throw new ClassNotFoundException(name, ioe);
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+                cls = defineClass(name, data, 0, data.length);
+                isolatedClassNames.add(name);
+            }
+            if (resolve) {
+                resolveClass(cls);
+            }
+            return cls;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.offbynull.portmapper.mappers.natpmp;
+
+import com.offbynull.portmapper.gateway.Bus;
+import com.offbynull.portmapper.gateways.network.internalmessages.CreateUdpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkResponse;
+import com.offbynull.portmapper.gateways.network.internalmessages.ReadUdpNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.WriteUdpNetworkRequest;
+import com.offbynull.portmapper.helpers.NetworkUtils;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mappers.natpmp.externalmessages.TcpMappingNatPmpRequest;
+import com.offbynull.portmapper.mappers.natpmp.externalmessages.TcpMappingNatPmpResponse;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NatPmpPortMapperTest {
+    private static final InetAddress INTERNAL_ADDRESS = NetworkUtils.convertBytesToAddress(new byte[] {(byte) 192, (byte) 168, 1, 2});
+    private static final InetAddress GATEWAY_ADDRESS = NetworkUtils.convertBytesToAddress(new byte[] {(byte) 192, (byte) 168, 1, 1});
+    private static final InetAddress EXTERNAL_ADDRESS = NetworkUtils.convertBytesToAddress(new byte[] {1, 2, 3, 4});
+
+    private GatewayBus gatewayBus;
+    private NatPmpPortMapper fixture;
+
+    @Before
+    public void before() {
+        gatewayBus = new GatewayBus();
+        fixture = new NatPmpPortMapper(gatewayBus, INTERNAL_ADDRESS, GATEWAY_ADDRESS);
+    }
+
+    @Test
+    public void mustRemoveGrantedMappingsWhenExternalAddressUnknown() throws Exception {
+        List<PortMappingResult> results = fixture.mapPorts(Arrays.asList(
+                new PortMappingRequest(PortType.TCP, 1000, 2000, 60L),
+                new PortMappingRequest(PortType.TCP, 1001, 2001, 60L)));
+
+        assertFalse(results.get(0).isSuccessful());
+        assertFalse(results.get(1).isSuccessful());
+        assertEquals(new HashSet<>(Arrays.asList(1000, 1001)), gatewayBus.getUnmappedInternalPorts());
+    }
+
+    @Test
+    public void mustRemoveGrantedMappingWhenExternalAddressUnknown() throws Exception {
+        try {
+            fixture.mapPort(PortType.TCP, 1000, 2000, 60L);
+            fail();
+        } catch (IllegalStateException ise) {
+            // do nothing
+        }
+
+        assertEquals(new HashSet<>(Arrays.asList(1000)), gatewayBus.getUnmappedInternalPorts());
+    }
+
+    @Test
+    public void mustNotRemoveRefreshedMappingsWhenExternalAddressUnknown() throws Exception {
+        MappedPort mappedPort = new NatPmpMappedPort(1000, 2000, EXTERNAL_ADDRESS, PortType.TCP, 60L);
+
+        List<PortMappingResult> results = fixture.refreshPorts(Arrays.asList(mappedPort), 60L);
+
+        assertFalse(results.get(0).isSuccessful());
+        assertEquals(new HashSet<Integer>(), gatewayBus.getUnmappedInternalPorts()); // caller still holds mappedPort to unmap it with
+    }
+
+    // Stands in for the network gateway -- grants every TCP mapping asked for, but never answers external address requests
+    private static final class GatewayBus implements Bus {
+        private final Map<Integer, Bus> responseBuses = new HashMap<>();
+        private final List<TcpMappingNatPmpRequest> requests = new ArrayList<>();
+        private int nextId;
+
+        synchronized Set<Integer> getUnmappedInternalPorts() {
+            Set<Integer> ret = new HashSet<>();
+            for (TcpMappingNatPmpRequest request : requests) {
+                if (request.getLifetime() == 0L) {
+                    ret.add(request.getInternalPort());
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        public synchronized void send(Object msg) {
+            if (msg instanceof GetNextIdNetworkRequest) {
+                ((GetNextIdNetworkRequest) msg).getResponseBus().send(new GetNextIdNetworkResponse(nextId++));
+            } else if (msg instanceof CreateUdpNetworkRequest) {
+                CreateUdpNetworkRequest req = (CreateUdpNetworkRequest) msg;
+                responseBuses.put(req.getId(), req.getResponseBus());
+            } else if (msg instanceof WriteUdpNetworkRequest) {
+                WriteUdpNetworkRequest req = (WriteUdpNetworkRequest) msg;
+                if (req.getData()[1] != 2) { // only answer TCP mapping requests
+                    return;
+                }
+
+                TcpMappingNatPmpRequest mapReq = new TcpMappingNatPmpRequest(req.getData());
+                requests.add(mapReq);
+
+                TcpMappingNatPmpResponse mapResp = new TcpMappingNatPmpResponse(0, 1000L, mapReq.getInternalPort(),
+                        mapReq.getSuggestedExternalPort(), mapReq.getLifetime());
+                responseBuses.get(req.getId()).send(new ReadUdpNetworkNotification(req.getId(),
+                        new InetSocketAddress(INTERNAL_ADDRESS, 12345), req.getRemoteAddress(), mapResp.dump()));
+            }
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package com.offbynull.portmapper.mappers.natpmp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.InetAddress;
 import java.util.Arrays;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 public class ExternalAddressNatPmpResponseTest {
@@ -59,4 +64,42 @@ public class ExternalAddressNatPmpResponseTest {
         
         ExternalAddressNatPmpRequest parsedReq = new ExternalAddressNatPmpRequest(buffer);
     }
+
+    @Test
+    public void mustParseResultCodeWithHighBitSet() throws Exception {
+        ExternalAddressNatPmpResponse origResp = new ExternalAddressNatPmpResponse(0xFFFF, 0xFFFFFFFFL, IPV4_TEST_ADDRESS);
+        byte[] buffer = origResp.dump();
+
+        ExternalAddressNatPmpResponse parsedResp = new ExternalAddressNatPmpResponse(buffer);
+
+        assertEquals(0xFFFF, parsedResp.getResultCode());
+    }
+
+    @Test
+    public void mustTryParseCreatedPacket() throws Exception {
+        ExternalAddressNatPmpResponse origResp = new ExternalAddressNatPmpResponse(1, 0xFFFFFFFFL, IPV4_TEST_ADDRESS);
+        byte[] buffer = origResp.dump();
+
+        ParseResult<ExternalAddressNatPmpResponse> result = ExternalAddressNatPmpResponse.tryParse(buffer);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(1, result.getValue().getResultCode());
+        assertEquals(0xFFFFFFFFL, result.getValue().getSecondsSinceStartOfEpoch());
+        assertEquals(IPV4_TEST_ADDRESS, result.getValue().getAddress());
+    }
+
+    @Test
+    public void mustFailToTryParseMalformedPackets() throws Exception {
+        ExternalAddressNatPmpResponse origResp = new ExternalAddressNatPmpResponse(1, 0xFFFFFFFFL, IPV4_TEST_ADDRESS);
+        byte[] buffer = origResp.dump();
+
+        assertFalse(ExternalAddressNatPmpResponse.tryParse(Arrays.copyOf(buffer, buffer.length - 1)).isSuccessful());
+        assertFalse(ExternalAddressNatPmpResponse.tryParse(Arrays.copyOf(buffer, buffer.length + 1)).isSuccessful());
+        assertFalse(ExternalAddressNatPmpResponse.tryParse(new ExternalAddressNatPmpRequest().dump()).isSuccessful());
+        
+        ParseResult<ExternalAddressNatPmpResponse> result = ExternalAddressNatPmpResponse.tryParse(new byte[0]);
+        assertFalse(result.isSuccessful());
+        assertNull(result.getValue());
+        assertNotNull(result.getFailureReason());
+    }
 }
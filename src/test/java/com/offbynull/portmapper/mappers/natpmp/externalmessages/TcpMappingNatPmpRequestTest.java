@@ -1,6 +1,9 @@
 package com.offbynull.portmapper.mappers.natpmp.externalmessages;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 
@@ -55,4 +58,19 @@ public class TcpMappingNatPmpRequestTest {
         
         TcpMappingNatPmpRequest parsedReq = new TcpMappingNatPmpRequest(buffer);
     }
+
+    @Test
+    public void mustEncodeIntoBufferInNetworkByteOrder() {
+        TcpMappingNatPmpRequest origReq = new TcpMappingNatPmpRequest(0xF1F2, 0xF3F4, 0x01020304L);
+        ByteBuffer dst = ByteBuffer.allocateDirect(64).order(ByteOrder.LITTLE_ENDIAN);
+
+        origReq.encodeTo(dst);
+        assertEquals(origReq.getBufferLength(), dst.position());
+
+        byte[] buffer = new byte[origReq.getBufferLength()];
+        dst.flip();
+        dst.get(buffer);
+        assertArrayEquals(new byte[] {0, 2, 0, 0, (byte) 0xF1, (byte) 0xF2, (byte) 0xF3, (byte) 0xF4, 1, 2, 3, 4}, buffer);
+        assertArrayEquals(origReq.dump(), buffer);
+    }
 }
@@ -0,0 +1,42 @@
+package com.offbynull.portmapper.mappers.natpmp.externalmessages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class TcpMappingNatPmpResponseViewTest {
+
+    @Test
+    public void mustReadFieldsInPlace() {
+        TcpMappingNatPmpResponse resp = new TcpMappingNatPmpResponse(0, 0xFFFFFFFEL, 0xF1F2, 0xF3F4, 0xFFFFFFFFL);
+
+        TcpMappingNatPmpResponseView view = new TcpMappingNatPmpResponseView();
+        assertTrue(view.wrap(ByteBuffer.wrap(resp.dump())));
+        assertEquals(130, view.getOp());
+        assertEquals(0, view.getResultCode());
+        assertEquals(0xFFFFFFFEL, view.getSecondsSinceStartOfEpoch());
+        assertEquals(0xF1F2, view.getInternalPort());
+        assertEquals(0xF3F4, view.getExternalPort());
+        assertEquals(0xFFFFFFFFL, view.getLifetime());
+        assertEquals(resp, view.toResponse());
+    }
+
+    @Test
+    public void mustRejectMalformedDatagrams() {
+        byte[] data = new TcpMappingNatPmpResponse(0, 0L, 0xF1F2, 0xF3F4, 100L).dump();
+        TcpMappingNatPmpResponseView view = new TcpMappingNatPmpResponseView();
+
+        assertFalse(view.wrap(ByteBuffer.wrap(Arrays.copyOf(data, data.length - 1))));
+        assertFalse(view.wrap(ByteBuffer.wrap(Arrays.copyOf(data, data.length + 1))));
+        assertFalse(view.wrap(ByteBuffer.wrap(new UdpMappingNatPmpResponse(0, 0L, 0xF1F2, 0xF3F4, 100L).dump())));
+
+        byte[] zeroExternalPort = Arrays.copyOf(data, data.length);
+        zeroExternalPort[10] = 0;
+        zeroExternalPort[11] = 0;
+        assertFalse(view.wrap(ByteBuffer.wrap(zeroExternalPort))); // only allowed if lifetime is 0
+        assertFalse(view.isWrapped());
+    }
+}
@@ -0,0 +1,163 @@
+package com.offbynull.portmapper.mappers.pcp;
+
+import com.offbynull.portmapper.gateway.Bus;
+import com.offbynull.portmapper.gateways.network.internalmessages.CreateUdpNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkRequest;
+import com.offbynull.portmapper.gateways.network.internalmessages.GetNextIdNetworkResponse;
+import com.offbynull.portmapper.gateways.network.internalmessages.ReadUdpNetworkNotification;
+import com.offbynull.portmapper.gateways.network.internalmessages.WriteUdpNetworkRequest;
+import com.offbynull.portmapper.helpers.NetworkUtils;
+import com.offbynull.portmapper.mapper.GatewayFaultException;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mappers.pcp.externalmessages.MapPcpRequest;
+import com.offbynull.portmapper.mappers.pcp.externalmessages.MapPcpResponse;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PcpPortMapperTest {
+    private static final InetAddress INTERNAL_ADDRESS = NetworkUtils.convertBytesToAddress(new byte[] {(byte) 192, (byte) 168, 1, 2});
+    private static final InetAddress GATEWAY_ADDRESS = NetworkUtils.convertBytesToAddress(new byte[] {(byte) 192, (byte) 168, 1, 1});
+    private static final InetAddress EXTERNAL_ADDRESS = NetworkUtils.convertBytesToAddress(new byte[] {1, 2, 3, 4});
+
+    private static final byte[] NONCE1 = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12};
+    private static final byte[] NONCE2 = new byte[] {12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1};
+
+    private GatewayBus gatewayBus;
+    private PcpPortMapper fixture;
+
+    @Before
+    public void before() {
+        gatewayBus = new GatewayBus();
+        fixture = new PcpPortMapper(gatewayBus, INTERNAL_ADDRESS, GATEWAY_ADDRESS);
+    }
+
+    @Test
+    public void mustRenewExistingMappingWhenRefreshing() throws Exception {
+        PcpMappedPort mappedPort = new PcpMappedPort(NONCE1, 1000, 2000, EXTERNAL_ADDRESS, PortType.TCP, 60L);
+
+        MappedPort newMappedPort = fixture.refreshPort(mappedPort, 500L);
+
+        assertEquals(1, gatewayBus.requests.size());
+        assertRenewal(mappedPort, 500L, gatewayBus.requests.get(0));
+
+        assertArrayEquals(NONCE1, ((PcpMappedPort) newMappedPort).getNonce());
+        assertEquals(1000, newMappedPort.getInternalPort());
+        assertEquals(2000, newMappedPort.getExternalPort());
+        assertEquals(EXTERNAL_ADDRESS, newMappedPort.getExternalAddress());
+        assertEquals(PortType.TCP, newMappedPort.getPortType());
+        assertEquals(500L, newMappedPort.getLifetime());
+    }
+
+    @Test
+    public void mustRenewExistingMappingsWhenRefreshingInBulk() throws Exception {
+        PcpMappedPort mappedPort1 = new PcpMappedPort(NONCE1, 1000, 2000, EXTERNAL_ADDRESS, PortType.TCP, 60L);
+        PcpMappedPort mappedPort2 = new PcpMappedPort(NONCE2, 1001, 2001, EXTERNAL_ADDRESS, PortType.UDP, 60L);
+
+        List<PortMappingResult> results = fixture.refreshPorts(Arrays.<MappedPort>asList(mappedPort1, mappedPort2), 500L);
+
+        assertEquals(2, gatewayBus.requests.size());
+        assertRenewal(mappedPort1, 500L, gatewayBus.requests.get(0));
+        assertRenewal(mappedPort2, 500L, gatewayBus.requests.get(1));
+
+        assertArrayEquals(NONCE1, ((PcpMappedPort) results.get(0).getMappedPort()).getNonce());
+        assertEquals(2000, results.get(0).getMappedPort().getExternalPort());
+        assertArrayEquals(NONCE2, ((PcpMappedPort) results.get(1).getMappedPort()).getNonce());
+        assertEquals(2001, results.get(1).getMappedPort().getExternalPort());
+    }
+
+    @Test
+    public void mustFailRefreshWithoutUnmappingWhenExternalPortChanges() throws Exception {
+        gatewayBus.externalPortOffset = 1; // gateway lost the old mapping and the port got taken in the meantime
+        PcpMappedPort mappedPort = new PcpMappedPort(NONCE1, 1000, 2000, EXTERNAL_ADDRESS, PortType.TCP, 60L);
+
+        try {
+            fixture.refreshPort(mappedPort, 500L);
+            fail();
+        } catch (IllegalStateException ise) {
+            // do nothing
+        }
+
+        assertEquals(1, gatewayBus.requests.size()); // renewal only -- no unmap (MAP with a lifetime of 0) was sent
+        assertRenewal(mappedPort, 500L, gatewayBus.requests.get(0));
+    }
+
+    @Test
+    public void mustFailBulkRefreshWithoutUnmappingWhenExternalPortChanges() throws Exception {
+        gatewayBus.externalPortOffset = 1;
+        PcpMappedPort mappedPort = new PcpMappedPort(NONCE1, 1000, 2000, EXTERNAL_ADDRESS, PortType.TCP, 60L);
+
+        List<PortMappingResult> results = fixture.refreshPorts(Arrays.<MappedPort>asList(mappedPort), 500L);
+
+        assertFalse(results.get(0).isSuccessful());
+        assertTrue(results.get(0).getError() instanceof IllegalStateException);
+        assertEquals(1, gatewayBus.requests.size());
+        assertRenewal(mappedPort, 500L, gatewayBus.requests.get(0));
+    }
+
+    @Test
+    public void mustSurfaceErrorResultCodeAsGatewayFault() throws Exception {
+        gatewayBus.resultCode = PcpResultCode.NOT_AUTHORIZED.ordinal();
+        PcpMappedPort mappedPort = new PcpMappedPort(NONCE1, 1000, 2000, EXTERNAL_ADDRESS, PortType.TCP, 60L);
+
+        try {
+            fixture.refreshPort(mappedPort, 500L);
+            fail();
+        } catch (GatewayFaultException gfe) {
+            // do nothing
+        }
+
+        assertEquals(1, gatewayBus.requests.size()); // definitive answer, so it wasn't re-sent
+    }
+
+    private static void assertRenewal(PcpMappedPort mappedPort, long lifetime, MapPcpRequest request) {
+        assertArrayEquals(mappedPort.getNonce(), request.getMappingNonce());
+        assertEquals(mappedPort.getPortType().getProtocolNumber(), request.getProtocol());
+        assertEquals(mappedPort.getInternalPort(), request.getInternalPort());
+        assertEquals(mappedPort.getExternalPort(), request.getSuggestedExternalPort());
+        assertEquals(mappedPort.getExternalAddress(), request.getSuggestedExternalIpAddress());
+        assertEquals(lifetime, request.getLifetime());
+    }
+
+    // Stands in for the network gateway -- answers every MAP request written to it as if it came from the PCP server
+    private static final class GatewayBus implements Bus {
+        private final Map<Integer, Bus> responseBuses = new HashMap<>();
+        private final List<MapPcpRequest> requests = new ArrayList<>();
+        private volatile int externalPortOffset;
+        private volatile int resultCode;
+        private int nextId;
+
+        @Override
+        public synchronized void send(Object msg) {
+            if (msg instanceof GetNextIdNetworkRequest) {
+                ((GetNextIdNetworkRequest) msg).getResponseBus().send(new GetNextIdNetworkResponse(nextId++));
+            } else if (msg instanceof CreateUdpNetworkRequest) {
+                CreateUdpNetworkRequest req = (CreateUdpNetworkRequest) msg;
+                responseBuses.put(req.getId(), req.getResponseBus());
+            } else if (msg instanceof WriteUdpNetworkRequest) {
+                WriteUdpNetworkRequest req = (WriteUdpNetworkRequest) msg;
+                MapPcpRequest mapReq = new MapPcpRequest(req.getData());
+                requests.add(mapReq);
+
+                MapPcpResponse mapResp = new MapPcpResponse(mapReq.getMappingNonce(), mapReq.getProtocol(), mapReq.getInternalPort(),
+                        mapReq.getSuggestedExternalPort() + externalPortOffset, mapReq.getSuggestedExternalIpAddress(), resultCode,
+                        mapReq.getLifetime(), 1000L);
+                responseBuses.get(req.getId()).send(new ReadUdpNetworkNotification(req.getId(),
+                        new InetSocketAddress(INTERNAL_ADDRESS, 12345), req.getRemoteAddress(), mapResp.dump()));
+            }
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
 import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Collections;
 import static org.junit.Assert.assertArrayEquals;
@@ -129,4 +132,29 @@ public class MapPcpRequestTest {
         
         MapPcpRequest parsedReq = new MapPcpRequest(buffer);
     }
+
+    @Test
+    public void mustEncodeIntoBufferAtItsPosition() {
+        MapPcpRequest origReq = new MapPcpRequest(nonce, 1, 2, 0, IPV4_TEST_ADDRESS, 0xFFFFFFFFL, IPV6_TEST_ADDRESS,
+                new PreferFailurePcpOption(), new ThirdPartyPcpOption(IPV6_TEST_ADDRESS));
+        ByteBuffer dst = ByteBuffer.allocateDirect(1100).order(ByteOrder.LITTLE_ENDIAN);
+        dst.position(7);
+
+        origReq.encodeTo(dst);
+        assertEquals(7 + origReq.getBufferLength(), dst.position());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, dst.order()); // caller's byte order left untouched
+
+        byte[] buffer = new byte[origReq.getBufferLength()];
+        dst.position(7);
+        dst.get(buffer);
+        assertArrayEquals(origReq.dump(), buffer);
+        assertEquals(origReq, new MapPcpRequest(buffer));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void mustFailToEncodeIntoBufferThatsTooSmall() {
+        MapPcpRequest origReq = new MapPcpRequest(nonce, 1, 2, 0, IPV4_TEST_ADDRESS, 0xFFFFFFFFL, IPV6_TEST_ADDRESS,
+                new PreferFailurePcpOption(), new ThirdPartyPcpOption(IPV6_TEST_ADDRESS));
+        origReq.encodeTo(ByteBuffer.allocate(origReq.getBufferLength() - 1));
+    }
 }
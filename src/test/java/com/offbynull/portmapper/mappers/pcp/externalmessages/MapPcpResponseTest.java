@@ -1,11 +1,14 @@
 package com.offbynull.portmapper.mappers.pcp.externalmessages;
 
 import com.offbynull.portmapper.helpers.NetworkUtils;
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.InetAddress;
 import java.util.Arrays;
 import java.util.Collections;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 public class MapPcpResponseTest {
@@ -140,4 +143,35 @@ public class MapPcpResponseTest {
         
         MapPcpResponse parsedReq = new MapPcpResponse(buffer);
     }
+
+    @Test
+    public void mustTryParseCreatedPacket() {
+        MapPcpResponse origReq = new MapPcpResponse(nonce, 1, 2, 3, IPV6_TEST_ADDRESS, 0, 0xFFFFFFFFL, 0xFFFFFFFEL,
+                new PreferFailurePcpOption(), new ThirdPartyPcpOption(IPV4_TEST_ADDRESS));
+        byte[] buffer = origReq.dump();
+
+        ParseResult<MapPcpResponse> result = MapPcpResponse.tryParse(buffer);
+
+        assertTrue(result.isSuccessful());
+        assertArrayEquals(nonce, result.getValue().getMappingNonce());
+        assertEquals(2, result.getValue().getInternalPort());
+        assertEquals(3, result.getValue().getAssignedExternalPort());
+        assertEquals(Arrays.asList(
+                new PreferFailurePcpOption(),
+                new ThirdPartyPcpOption(IPV4_TEST_ADDRESS)), result.getValue().getOptions());
+    }
+
+    @Test
+    public void mustFailToTryParseMalformedPackets() {
+        MapPcpResponse origReq = new MapPcpResponse(nonce, 1, 2, 3, IPV6_TEST_ADDRESS, 0, 0xFFFFFFFFL, 0xFFFFFFFEL,
+                new PreferFailurePcpOption(), new ThirdPartyPcpOption(IPV4_TEST_ADDRESS));
+        byte[] buffer = origReq.dump();
+
+        assertFalse(MapPcpResponse.tryParse(Arrays.copyOf(buffer, buffer.length - 1)).isSuccessful());
+        assertFalse(MapPcpResponse.tryParse(new byte[0]).isSuccessful());
+        assertFalse(MapPcpResponse.tryParse(new byte[1101]).isSuccessful());
+        
+        buffer[1] = 0; // ANNOUNCE response rather than MAP response
+        assertFalse(MapPcpResponse.tryParse(buffer).isSuccessful());
+    }
 }
@@ -0,0 +1,85 @@
+package com.offbynull.portmapper.mappers.pcp.externalmessages;
+
+import com.offbynull.portmapper.helpers.NetworkUtils;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MapPcpResponseViewTest {
+    private static final InetAddress IPV4_TEST_ADDRESS
+            = NetworkUtils.convertBytesToAddress(new byte[] {1, 2, 3, 4});
+    private static final InetAddress IPV6_TEST_ADDRESS
+            = NetworkUtils.convertBytesToAddress(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+
+    private static byte[] nonce = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 }; // DONT CHANGE CONTENTS IN TEST, POTENTIAL THREADING
+                                                                                        // ISSUE
+
+    @Test
+    public void mustReadFieldsInPlace() throws Exception {
+        MapPcpResponse resp = new MapPcpResponse(nonce, 6, 40000, 50000, IPV6_TEST_ADDRESS, 0, 0xFFFFFFFFL, 0xFFFFFFFEL,
+                new ThirdPartyPcpOption(IPV4_TEST_ADDRESS));
+        byte[] data = resp.dump();
+        ByteBuffer buffer = ByteBuffer.allocate(data.length + 10);
+        buffer.position(10);
+        buffer.put(data);
+        buffer.position(10);
+
+        MapPcpResponseView view = new MapPcpResponseView();
+        assertTrue(view.wrap(buffer));
+        assertEquals(10, buffer.position()); // wrapping must not move the buffer
+        assertEquals(1, view.getOp());
+        assertEquals(0, view.getResultCode());
+        assertEquals(0xFFFFFFFFL, view.getLifetime());
+        assertEquals(0xFFFFFFFEL, view.getEpochTime());
+        assertTrue(view.isMappingNonce(nonce));
+        assertFalse(view.isMappingNonce(new byte[12]));
+        assertEquals(6, view.getProtocol());
+        assertEquals(40000, view.getInternalPort());
+        assertEquals(50000, view.getAssignedExternalPort());
+        assertEquals(0x0102030405060708L, view.getAssignedExternalIpAddressHigh());
+        assertEquals(0x090A0B0C0D0E0F10L, view.getAssignedExternalIpAddressLow());
+        assertFalse(view.isAssignedExternalIpAddressIpv4());
+        assertEquals(20, view.getOptionsLength());
+        assertEquals(resp, view.toResponse());
+    }
+
+    @Test
+    public void mustReadIpv4AddressAsInt() throws Exception {
+        MapPcpResponse resp = new MapPcpResponse(nonce, 17, 2, 3, IPV4_TEST_ADDRESS, 0, 100L, 0L);
+
+        MapPcpResponseView view = new MapPcpResponseView();
+        assertTrue(view.wrap(ByteBuffer.wrap(resp.dump())));
+        assertTrue(view.isAssignedExternalIpAddressIpv4());
+        assertEquals(0x01020304, view.getAssignedExternalIpv4Address());
+    }
+
+    @Test
+    public void mustRejectMalformedDatagrams() throws Exception {
+        byte[] data = new MapPcpResponse(nonce, 1, 2, 3, IPV6_TEST_ADDRESS, 0, 100L, 0L).dump();
+        MapPcpResponseView view = new MapPcpResponseView();
+
+        assertFalse(view.wrap(ByteBuffer.wrap(Arrays.copyOf(data, data.length - 1)))); // truncated
+        assertFalse(view.isWrapped());
+
+        byte[] badVersion = Arrays.copyOf(data, data.length);
+        badVersion[0] = 1;
+        assertFalse(view.wrap(ByteBuffer.wrap(badVersion)));
+
+        byte[] peerOp = Arrays.copyOf(data, data.length);
+        peerOp[1] = (byte) (128 | 2);
+        assertFalse(view.wrap(ByteBuffer.wrap(peerOp)));
+
+        byte[] truncatedOption = Arrays.copyOf(data, data.length + 4);
+        truncatedOption[data.length + 3] = 4; // option claims 4 bytes of data that aren't there
+        assertFalse(view.wrap(ByteBuffer.wrap(truncatedOption)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void mustFailToReadWhenNothingWrapped() throws Exception {
+        new MapPcpResponseView().getResultCode();
+    }
+}
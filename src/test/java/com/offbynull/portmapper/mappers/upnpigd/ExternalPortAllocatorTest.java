@@ -0,0 +1,132 @@
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import com.offbynull.portmapper.mapper.PortType;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ExternalPortAllocatorTest {
+
+    @Test
+    public void mustVisitEveryFreePortBeforeRepeating() {
+        ExternalPortAllocator fixture = new ExternalPortAllocator(1000, 1099);
+
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            int port = fixture.nextPort(PortType.TCP);
+            assertTrue(port >= 1000 && port <= 1099);
+            assertTrue(seen.add(port));
+        }
+    }
+
+    @Test
+    public void mustSpreadCandidatesAcrossRange() {
+        ExternalPortAllocator fixture = new ExternalPortAllocator(1, 65535);
+
+        int last = fixture.nextPort(PortType.TCP);
+        for (int i = 0; i < 10; i++) {
+            int port = fixture.nextPort(PortType.TCP);
+            assertTrue(Math.abs(port - last) > 1000);
+            last = port;
+        }
+    }
+
+    @Test
+    public void mustSkipAllocatedConflictedAndReservedPorts() {
+        ExternalPortAllocator fixture = new ExternalPortAllocator(1000, 1009);
+        fixture.markAllocated(PortType.TCP, 1000);
+        fixture.markConflicted(PortType.TCP, 1001);
+        fixture.reserve(PortType.TCP, 1002, 1008);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(1009, fixture.nextPort(PortType.TCP));
+        }
+        assertTrue(fixture.isConflicted(PortType.TCP, 1001));
+        assertFalse(fixture.isConflicted(PortType.UDP, 1001)); // protocols tracked separately
+
+        fixture.markFree(PortType.TCP, 1000);
+        fixture.unreserve(PortType.TCP, 1002, 1008);
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < 9; i++) {
+            seen.add(fixture.nextPort(PortType.TCP));
+        }
+        assertEquals(9, seen.size());
+        assertFalse(seen.contains(1001));
+    }
+
+    @Test
+    public void mustForgetConflictsWhenRangeExhausted() {
+        ExternalPortAllocator fixture = new ExternalPortAllocator(1000, 1001);
+        fixture.markAllocated(PortType.UDP, 1000);
+        fixture.markConflicted(PortType.UDP, 1001);
+
+        assertEquals(1001, fixture.nextPort(PortType.UDP));
+        assertFalse(fixture.isConflicted(PortType.UDP, 1001));
+
+        fixture.markAllocated(PortType.UDP, 1001);
+        assertEquals(-1, fixture.nextPort(PortType.UDP));
+    }
+
+    @Test
+    public void mustForgetConflictsOnceTheyExpire() throws Exception {
+        ExternalPortAllocator fixture = new ExternalPortAllocator(1000, 1009, 200L);
+        fixture.markConflicted(PortType.TCP, 1001);
+        Thread.sleep(100L);
+        fixture.markConflicted(PortType.TCP, 1002);
+
+        assertTrue(fixture.isConflicted(PortType.TCP, 1001));
+        assertTrue(fixture.isConflicted(PortType.TCP, 1002));
+
+        Thread.sleep(150L);
+        assertFalse(fixture.isConflicted(PortType.TCP, 1001));
+        assertTrue(fixture.isConflicted(PortType.TCP, 1002));
+
+        Thread.sleep(100L);
+        assertFalse(fixture.isConflicted(PortType.TCP, 1002));
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            seen.add(fixture.nextPort(PortType.TCP));
+        }
+        assertEquals(10, seen.size());
+    }
+
+    @Test
+    public void mustRestartExpiryWhenConflictedAgain() throws Exception {
+        ExternalPortAllocator fixture = new ExternalPortAllocator(1000, 1009, 200L);
+        fixture.markConflicted(PortType.TCP, 1001);
+        fixture.markConflicted(PortType.TCP, 1002);
+        Thread.sleep(100L);
+        fixture.markConflicted(PortType.TCP, 1001);
+
+        Thread.sleep(150L);
+        assertTrue(fixture.isConflicted(PortType.TCP, 1001));
+        assertFalse(fixture.isConflicted(PortType.TCP, 1002));
+    }
+
+    @Test
+    public void mustNeverHandOutWildcardPort() {
+        ExternalPortAllocator fixture = new ExternalPortAllocator(0, 1);
+
+        assertEquals(1, fixture.nextPort(PortType.TCP));
+        assertEquals(1, fixture.nextPort(PortType.TCP));
+    }
+
+    @Test
+    public void mustShareAllocatorAcrossMappersForSameDevice() throws Exception {
+        InetAddress device1 = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, 1});
+        InetAddress device2 = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 2, 1});
+        String serviceType = "urn:schemas-upnp-org:service:WANIPConnection:1";
+
+        ExternalPortAllocator allocator = ExternalPortAllocator.forDevice(device1, serviceType, 1, 65535);
+
+        assertSame(allocator, ExternalPortAllocator.forDevice(device1, serviceType, 1, 65535));
+        assertNotSame(allocator, ExternalPortAllocator.forDevice(device2, serviceType, 1, 65535));
+        assertNotSame(allocator, ExternalPortAllocator.forDevice(device1, "urn:schemas-upnp-org:service:WANPPPConnection:1", 1, 65535));
+    }
+}
@@ -0,0 +1,122 @@
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.FaultUpnpIgdResponse;
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.GetSpecificPortMappingEntryUpnpIgdResponse;
+import java.net.InetAddress;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+public class PortMapperUpnpIgdPortMapperTest {
+
+    private static final InetAddress INTERNAL_ADDRESS = address(10, 0, 0, 1);
+    private static final MappedPort MAPPED_PORT = new PortMapperMappedPort(200, 300, address(1, 2, 3, 4), PortType.TCP, 1000L);
+
+    @Test
+    public void mustAuditMissingMappingOnNoSuchEntryFault() throws Exception {
+        String bufferStr
+                = "HTTP/1.1 500 Internal Server Error\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+                + "<s:Body>"
+                + "<s:Fault>"
+                + "<faultcode>s:Client</faultcode>"
+                + "<faultstring>UPnPError</faultstring>"
+                + "<detail>"
+                + "<UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\">"
+                + "<errorCode> 714 </errorCode>"
+                + "<errorDescription>NoSuchEntryInArray</errorDescription>"
+                + "</UPnPError>"
+                + "</detail>"
+                + "</s:Fault>"
+                + "</s:Body>"
+                + "</s:Envelope>";
+
+        FaultUpnpIgdResponse noSuchEntry = new FaultUpnpIgdResponse(bufferStr.getBytes("US-ASCII"));
+        FaultUpnpIgdResponse otherFault = new FaultUpnpIgdResponse(bufferStr.replace("714", "501").getBytes("US-ASCII"));
+
+        assertEquals(PortMappingAudit.Status.MISSING,
+                PortMapperUpnpIgdPortMapper.toAudit(MAPPED_PORT, INTERNAL_ADDRESS, noSuchEntry).getStatus());
+        assertEquals(PortMappingAudit.Status.UNKNOWN,
+                PortMapperUpnpIgdPortMapper.toAudit(MAPPED_PORT, INTERNAL_ADDRESS, otherFault).getStatus());
+    }
+
+    @Test
+    public void mustAuditActiveMapping() throws Exception {
+        PortMappingAudit audit = PortMapperUpnpIgdPortMapper.toAudit(MAPPED_PORT, INTERNAL_ADDRESS, parse(200, "10.0.0.1", 1, 500));
+
+        assertEquals(PortMappingAudit.Status.ACTIVE, audit.getStatus());
+        assertEquals(500L, audit.getRemainingLeaseDuration());
+    }
+
+    @Test
+    public void mustAuditConflictingMapping() throws Exception {
+        assertEquals(PortMappingAudit.Status.CONFLICTING,
+                PortMapperUpnpIgdPortMapper.toAudit(MAPPED_PORT, INTERNAL_ADDRESS, parse(201, "10.0.0.1", 1, 500)).getStatus());
+        assertEquals(PortMappingAudit.Status.CONFLICTING,
+                PortMapperUpnpIgdPortMapper.toAudit(MAPPED_PORT, INTERNAL_ADDRESS, parse(200, "10.0.0.2", 1, 500)).getStatus());
+        assertEquals(PortMappingAudit.Status.CONFLICTING,
+                PortMapperUpnpIgdPortMapper.toAudit(MAPPED_PORT, INTERNAL_ADDRESS, parse(200, "10.0.0.1", 0, 500)).getStatus());
+    }
+
+    @Test
+    public void mustRestoreSavedMappedPort() throws Exception {
+        MappedPort restored = PortMapperMappedPort.load(((PortMapperMappedPort) MAPPED_PORT).dump());
+
+        assertEquals(200, restored.getInternalPort());
+        assertEquals(300, restored.getExternalPort());
+        assertEquals(address(1, 2, 3, 4), restored.getExternalAddress());
+        assertEquals(PortType.TCP, restored.getPortType());
+        assertEquals(1000L, restored.getLifetime());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToRestoreTruncatedMappedPort() throws Exception {
+        byte[] data = ((PortMapperMappedPort) MAPPED_PORT).dump();
+        PortMapperMappedPort.load(Arrays.copyOf(data, data.length - 1));
+    }
+
+    @Test
+    public void mustAuditUnknownMappingWhenNoResponse() throws Exception {
+        PortMappingAudit audit = PortMapperUpnpIgdPortMapper.toAudit(MAPPED_PORT, INTERNAL_ADDRESS, null);
+
+        assertEquals(PortMappingAudit.Status.UNKNOWN, audit.getStatus());
+        assertEquals(-1L, audit.getRemainingLeaseDuration());
+    }
+
+    private static GetSpecificPortMappingEntryUpnpIgdResponse parse(int internalPort, String internalClient, int enabled,
+            long leaseDuration) throws Exception {
+        String bufferStr = entryResponse(internalPort, internalClient, enabled, leaseDuration);
+        return new GetSpecificPortMappingEntryUpnpIgdResponse(bufferStr.getBytes("US-ASCII"));
+    }
+
+    private static String entryResponse(int internalPort, String internalClient, int enabled, long leaseDuration) {
+        return "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+                + "<s:Body>"
+                + "<u:GetSpecificPortMappingEntryResponse xmlns:u=\"urn:schemas-upnp-org:service:WANIPConnection:1\">"
+                + "<NewInternalPort>" + internalPort + "</NewInternalPort>"
+                + "<NewInternalClient>" + internalClient + "</NewInternalClient>"
+                + "<NewEnabled>" + enabled + "</NewEnabled>"
+                + "<NewPortMappingDescription></NewPortMappingDescription>"
+                + "<NewLeaseDuration>" + leaseDuration + "</NewLeaseDuration>"
+                + "</u:GetSpecificPortMappingEntryResponse>"
+                + "</s:Body>"
+                + "</s:Envelope>";
+    }
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.ServiceNotificationUpnpIgdResponse;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class UpnpIgdAdvertisementRegistryTest {
+
+    private static final String USN = "uuid:UPnP-SpeedTouch510::urn:schemas-upnp-org:service:WANPPPConnection:1";
+    private static final String NT = "urn:schemas-upnp-org:service:WANPPPConnection:1";
+
+    private List<String> events;
+    private UpnpIgdAdvertisementRegistry fixture;
+    private InetAddress source;
+
+    @Before
+    public void before() throws Exception {
+        events = new ArrayList<>();
+        fixture = new UpnpIgdAdvertisementRegistry(new UpnpIgdNotificationListener() {
+            @Override
+            public void deviceAlive(UpnpIgdAdvertisement advertisement) {
+                events.add("alive " + advertisement.getLocation());
+            }
+
+            @Override
+            public void deviceUpdated(UpnpIgdAdvertisement advertisement) {
+                events.add("updated " + advertisement.getLocation());
+            }
+
+            @Override
+            public void deviceGone(UpnpIgdAdvertisement advertisement, boolean expired) {
+                events.add("gone " + expired);
+            }
+        });
+        source = InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) 138});
+    }
+
+    @Test
+    public void mustTrackAliveAndByeBye() throws Exception {
+        fixture.handle(notification("ssdp:alive", NT, "http://10.0.0.138:80/IGD.xml", 120), source, 0L);
+        fixture.handle(notification("ssdp:alive", NT, "http://10.0.0.138:80/IGD.xml", 120), source, 1000L);
+        assertEquals(1, fixture.getAdvertisements().size());
+        assertEquals(USN, fixture.getAdvertisements().get(0).getUsn());
+        assertEquals(new URL("http://10.0.0.138:80/IGD.xml"), fixture.getAdvertisements().get(0).getLocation());
+
+        fixture.handle(notification("ssdp:byebye", NT, null, -1), source, 2000L);
+        assertEquals(0, fixture.getAdvertisements().size());
+
+        assertEquals(2, events.size());
+        assertEquals("alive http://10.0.0.138:80/IGD.xml", events.get(0));
+        assertEquals("gone false", events.get(1));
+    }
+
+    @Test
+    public void mustFireOnLocationChangeAndUpdate() throws Exception {
+        fixture.handle(notification("ssdp:alive", NT, "http://10.0.0.138:80/IGD.xml", 120), source, 0L);
+        fixture.handle(notification("ssdp:alive", NT, "http://10.0.0.138:81/IGD.xml", 120), source, 0L);
+        fixture.handle(notification("ssdp:update", NT, "http://10.0.0.138:81/IGD.xml", 120), source, 0L);
+
+        assertEquals(3, events.size());
+        assertEquals("alive http://10.0.0.138:80/IGD.xml", events.get(0));
+        assertEquals("alive http://10.0.0.138:81/IGD.xml", events.get(1));
+        assertEquals("updated http://10.0.0.138:81/IGD.xml", events.get(2));
+    }
+
+    @Test
+    public void mustExpireAfterMaxAge() throws Exception {
+        fixture.handle(notification("ssdp:alive", NT, "http://10.0.0.138:80/IGD.xml", 120), source, 0L);
+        fixture.expire(119999L);
+        assertEquals(1, fixture.getAdvertisements().size());
+
+        fixture.handle(notification("ssdp:alive", NT, "http://10.0.0.138:80/IGD.xml", 120), source, 100000L);
+        fixture.expire(219999L);
+        assertEquals(1, fixture.getAdvertisements().size());
+
+        fixture.expire(220000L);
+        assertEquals(0, fixture.getAdvertisements().size());
+
+        assertEquals(2, events.size());
+        assertEquals("gone true", events.get(1));
+    }
+
+    @Test
+    public void mustIgnoreNonIgdAdvertisementsAndUnknownByeByes() throws Exception {
+        fixture.handle(notification("ssdp:alive", "urn:schemas-upnp-org:device:MediaServer:1", "http://10.0.0.5/desc.xml", 120), source,
+                0L);
+        fixture.handle(notification("ssdp:byebye", NT, null, -1), source, 0L);
+
+        assertEquals(0, fixture.getAdvertisements().size());
+        assertEquals(0, events.size());
+    }
+
+    private static ServiceNotificationUpnpIgdResponse notification(String nts, String nt, String location, int maxAge)
+            throws Exception {
+        String data = "NOTIFY * HTTP/1.1\r\n"
+                + "HOST: 239.255.255.250:1900\r\n"
+                + (maxAge >= 0 ? "CACHE-CONTROL: max-age=" + maxAge + "\r\n" : "")
+                + (location != null ? "LOCATION: " + location + "\r\n" : "")
+                + "NT: " + nt + "\r\n"
+                + "NTS: " + nts + "\r\n"
+                + "USN: " + USN + "\r\n"
+                + "\r\n";
+        return new ServiceNotificationUpnpIgdResponse(data.getBytes("US-ASCII"));
+    }
+}
@@ -0,0 +1,50 @@
+package com.offbynull.portmapper.mappers.upnpigd;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpnpIgdCapabilitiesTest {
+
+    @Test
+    public void mustPassThroughLeaseDurationsWhenNothingLearned() {
+        UpnpIgdCapabilities fixture = new UpnpIgdCapabilities();
+
+        assertTrue(fixture.isAddAnyPortMappingSupported());
+        assertFalse(fixture.isPermanentLeasesOnly());
+        assertEquals(3600L, fixture.adjustLeaseDuration(3600L));
+        assertEquals(0L, fixture.adjustLeaseDuration(0L));
+    }
+
+    @Test
+    public void mustOnlyEverLowerMaxLeaseDuration() {
+        UpnpIgdCapabilities fixture = new UpnpIgdCapabilities();
+        fixture.lowerMaxLeaseDuration(604800L);
+        fixture.lowerMaxLeaseDuration(3600L);
+        fixture.lowerMaxLeaseDuration(7200L);
+
+        assertEquals(3600L, fixture.getMaxLeaseDuration());
+        assertEquals(3600L, fixture.adjustLeaseDuration(86400L));
+        assertEquals(60L, fixture.adjustLeaseDuration(60L));
+        assertEquals(0L, fixture.adjustLeaseDuration(0L)); // infinite stays infinite
+    }
+
+    @Test
+    public void mustForceInfiniteLeasesOncePermanentOnly() {
+        UpnpIgdCapabilities fixture = new UpnpIgdCapabilities();
+        fixture.lowerMaxLeaseDuration(3600L);
+        fixture.markPermanentLeasesOnly();
+
+        assertTrue(fixture.isPermanentLeasesOnly());
+        assertEquals(0L, fixture.adjustLeaseDuration(60L));
+    }
+
+    @Test
+    public void mustRememberAddAnyPortMappingUnsupported() {
+        UpnpIgdCapabilities fixture = new UpnpIgdCapabilities();
+        fixture.markAddAnyPortMappingUnsupported();
+
+        assertFalse(fixture.isAddAnyPortMappingSupported());
+    }
+}
@@ -113,6 +113,44 @@ public class AddPortMappingUpnpIgdRequestTest {
                 bufferText);
     }
 
+    @Test
+    public void mustEscapeArgumentsWhenReusingTemplate() throws Exception {
+        AddPortMappingUpnpIgdRequest req1 = new AddPortMappingUpnpIgdRequest("fake", "/controllink",
+                "service:type", InetAddress.getByAddress(new byte[]{1, 2, 3, 4}), 15, PortType.TCP, 12345,
+                InetAddress.getByAddress(new byte[]{5, 6, 7, 8}), true, "desc", 1000);
+        AddPortMappingUpnpIgdRequest req2 = new AddPortMappingUpnpIgdRequest("fake", "/controllink",
+                "service:type", InetAddress.getByAddress(new byte[]{1, 2, 3, 4}), 15, PortType.TCP, 12345,
+                InetAddress.getByAddress(new byte[]{5, 6, 7, 8}), true, "a<b & 'c' \u00e9\u0001", 1000);
+        req1.dump(); // make sure template is built/cached before req2 is dumped
+        String bufferText = new String(req2.dump(), "US-ASCII");
+
+        assertEquals("POST /controllink HTTP/1.1\r\n"
+                + "Host: fake\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "SOAPAction: service:type#AddPortMapping\r\n"
+                + "Connection: Close\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Pragma: no-cache\r\n"
+                + "Content-Length: 621\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>\r\n"
+                + "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope/\" soap:encodingStyle=\"http://www.w3.org/2003/05/soap-encoding\">\r\n"
+                + "<soap:Body>\r\n"
+                + "<u:AddPortMapping xmlns:u=\"service:type\">\r\n"
+                + "<NewRemoteHost>1.2.3.4</NewRemoteHost>\r\n"
+                + "<NewExternalPort>15</NewExternalPort>\r\n"
+                + "<NewProtocol>TCP</NewProtocol>\r\n"
+                + "<NewInternalPort>12345</NewInternalPort>\r\n"
+                + "<NewInternalClient>5.6.7.8</NewInternalClient>\r\n"
+                + "<NewEnabled>1</NewEnabled>\r\n"
+                + "<NewPortMappingDescription>a&lt;b &amp; &apos;c&apos; ?</NewPortMappingDescription>\r\n"
+                + "<NewLeaseDuration>1000</NewLeaseDuration>\r\n"
+                + "</u:AddPortMapping>\r\n"
+                + "</soap:Body>\r\n"
+                + "</soap:Envelope>\r\n",
+                bufferText);
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void mustFailToGenerateWhenInternalPortIsWildcard() throws Exception {
         AddPortMappingUpnpIgdRequest req = new AddPortMappingUpnpIgdRequest("fake", "/controllink",
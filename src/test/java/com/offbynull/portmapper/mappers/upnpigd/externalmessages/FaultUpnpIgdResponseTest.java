@@ -0,0 +1,103 @@
+package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class FaultUpnpIgdResponseTest {
+
+    @Test
+    public void mustParseResponse() throws Exception {
+        String bufferStr
+                = "HTTP/1.1 500 Internal Server Error\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+                + "<s:Body>"
+                + "<s:Fault>"
+                + "<faultcode>s:Client</faultcode>"
+                + "<faultstring>UPnPError</faultstring>"
+                + "<detail>"
+                + "<UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\">"
+                + "<errorCode>718</errorCode>"
+                + "<errorDescription>ConflictInMappingEntry</errorDescription>"
+                + "</UPnPError>"
+                + "</detail>"
+                + "</s:Fault>"
+                + "</s:Body>"
+                + "</s:Envelope>";
+        byte[] buffer = bufferStr.getBytes("US-ASCII");
+        FaultUpnpIgdResponse resp = new FaultUpnpIgdResponse(buffer);
+
+        assertEquals(FaultUpnpIgdResponse.CONFLICT_IN_MAPPING_ENTRY, resp.getErrorCode());
+        assertEquals("ConflictInMappingEntry", resp.getErrorDescription());
+    }
+
+    @Test
+    public void mustParseResponseWithoutErrorDetail() throws Exception {
+        String bufferStr
+                = "HTTP/1.1 500 Internal Server Error\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+                + "<s:Body>"
+                + "<s:Fault>"
+                + "<faultcode>s:Client</faultcode>"
+                + "<faultstring>UPnPError</faultstring>"
+                + "</s:Fault>"
+                + "</s:Body>"
+                + "</s:Envelope>";
+        byte[] buffer = bufferStr.getBytes("US-ASCII");
+        FaultUpnpIgdResponse resp = new FaultUpnpIgdResponse(buffer);
+
+        assertEquals(-1, resp.getErrorCode());
+        assertNull(resp.getErrorDescription());
+    }
+
+    @Test
+    public void mustParseResponseWithEscapedDescriptionAndNoPrefix() throws Exception {
+        String bufferStr
+                = "HTTP/1.1 500 Internal Server Error\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<Envelope>"
+                + "<Body>"
+                + "<Fault>"
+                + "<faultcode>Client</faultcode>"
+                + "<faultstring>UPnPError</faultstring>"
+                + "<detail>"
+                + "<u:UPnPError xmlns:u=\"urn:schemas-upnp-org:control-1-0\">"
+                + "<u:errorCode> 725 </u:errorCode>"
+                + "<u:errorDescription>Only&#32;Permanent &amp; &lt;Leases&gt;</u:errorDescription>"
+                + "</u:UPnPError>"
+                + "</detail>"
+                + "</Fault>"
+                + "</Body>"
+                + "</Envelope>";
+        byte[] buffer = bufferStr.getBytes("US-ASCII");
+        FaultUpnpIgdResponse resp = new FaultUpnpIgdResponse(buffer);
+
+        assertEquals(FaultUpnpIgdResponse.ONLY_PERMANENT_LEASES_SUPPORTED, resp.getErrorCode());
+        assertEquals("Only Permanent & <Leases>", resp.getErrorDescription());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToParseNonFaultResponse() throws Exception {
+        String bufferStr
+                = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\">"
+                + "<s:Body>"
+                + "<u:DeletePortMappingResponse xmlns:u=\"urn:schemas-upnp-org:service:WANPPPConnection:1\">"
+                + "</u:DeletePortMappingResponse>"
+                + "</s:Body>"
+                + "</s:Envelope>";
+        byte[] buffer = bufferStr.getBytes("US-ASCII");
+        new FaultUpnpIgdResponse(buffer);
+    }
+}
@@ -1,7 +1,10 @@
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.InetAddress;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
 public class GetExternalIpAddressUpnpIgdResponseTest {
@@ -85,6 +88,81 @@ public class GetExternalIpAddressUpnpIgdResponseTest {
         assertEquals(InetAddress.getByAddress(new byte[]{10, 0, 0, 1}), resp.getIpAddress());
     }
 
+    @Test
+    public void mustParseResponseWithOtherPrefixesAndCase() throws Exception {
+        String bufferStr
+                = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<SOAP-ENV:Body>"
+                + "<m:getexternalipaddressresponse xmlns:m=\"urn:schemas-upnp-org:service:WANIPConnection:1\">"
+                + "<!-- <NewExternalIPAddress>1.1.1.1</NewExternalIPAddress> -->"
+                + "<m:newexternalipaddress> 10.0.0.1 </m:newexternalipaddress>"
+                + "<NewExternalIPAddress>2.2.2.2</NewExternalIPAddress>"
+                + "</m:getexternalipaddressresponse>"
+                + "</SOAP-ENV:Body>"
+                + "</SOAP-ENV:Envelope>";
+        byte[] buffer = bufferStr.getBytes("US-ASCII");
+        GetExternalIpAddressUpnpIgdResponse resp = new GetExternalIpAddressUpnpIgdResponse(buffer);
+
+        assertEquals(InetAddress.getByAddress(new byte[]{10, 0, 0, 1}), resp.getIpAddress());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToParseFault() throws Exception {
+        String bufferStr
+                = "HTTP/1.1 500 Internal Server Error\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<s:Body>"
+                + "<s:Fault>"
+                + "<faultcode>s:Client</faultcode>"
+                + "<faultstring>UPnPError</faultstring>"
+                + "<detail>"
+                + "<UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\">"
+                + "<errorCode>501</errorCode>"
+                + "<errorDescription>Action Failed</errorDescription>"
+                + "</UPnPError>"
+                + "</detail>"
+                + "</s:Fault>"
+                + "</s:Body>"
+                + "</s:Envelope>";
+        byte[] buffer = bufferStr.getBytes("US-ASCII");
+        new GetExternalIpAddressUpnpIgdResponse(buffer);
+    }
+
+    @Test
+    public void mustFailToTryParseFault() throws Exception {
+        String bufferStr
+                = "HTTP/1.1 500 Internal Server Error\r\n"
+                + "Content-Type: text/xml\r\n"
+                + "\r\n"
+                + "<?xml version=\"1.0\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<s:Body>"
+                + "<s:Fault>"
+                + "<faultcode>s:Client</faultcode>"
+                + "<faultstring>UPnPError</faultstring>"
+                + "<detail>"
+                + "<UPnPError xmlns=\"urn:schemas-upnp-org:control-1-0\">"
+                + "<errorCode>501</errorCode>"
+                + "<errorDescription>Action Failed</errorDescription>"
+                + "</UPnPError>"
+                + "</detail>"
+                + "</s:Fault>"
+                + "</s:Body>"
+                + "</s:Envelope>";
+        byte[] buffer = bufferStr.getBytes("US-ASCII");
+        ParseResult<GetExternalIpAddressUpnpIgdResponse> result = GetExternalIpAddressUpnpIgdResponse.tryParse(buffer);
+
+        assertFalse(result.isSuccessful());
+        assertTrue(FaultUpnpIgdResponse.tryParse(buffer).isSuccessful());
+    }
+
     public void mustIgnoreError() throws Exception {
         String bufferStr
                 = "HTTP/1.1 500 error\r\n"
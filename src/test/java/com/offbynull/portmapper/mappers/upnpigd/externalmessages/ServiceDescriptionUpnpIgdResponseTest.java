@@ -2821,4 +2821,43 @@ public class ServiceDescriptionUpnpIgdResponseTest {
         assertEquals(0, services.size());
     }
 
+    @Test
+    public void mustIgnoreTagCaseAndAttributes() throws Exception {
+        String content = WAN_IPV6_FIREWALL_CONTROL
+                .replace("<stateVariable>", "<STATEVARIABLE sendEvents=\"no\">")
+                .replace("</stateVariable>", "</STATEVARIABLE>")
+                .replace("<name>", "<Name >");
+        byte[] buffer = content.getBytes("US-ASCII");
+        ServiceDescriptionUpnpIgdResponse resp = new ServiceDescriptionUpnpIgdResponse(buffer);
+
+        Map<ServiceType, IdentifiedService> services = resp.getIdentifiedServices();
+        assertEquals(1, services.size());
+        assertTrue(services.containsKey(ServiceType.FIREWALL));
+    }
+
+    @Test(timeout = 10000L)
+    public void mustParseLargeDescriptionsInLinearTime() throws Exception {
+        // pad the hybrid fixture out with thousands of unrelated actions and state variables -- rescanning the whole document for each
+        // lookup (what used to happen) makes this crawl, while a single indexing pass should get through it in a few milliseconds
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            padding.append("<action><name>Padding").append(i).append("</name><argumentList><argument><name>Arg</name>")
+                    .append("<relatedStateVariable>PaddingVar").append(i).append("</relatedStateVariable></argument></argumentList>")
+                    .append("</action>\n");
+            padding.append("<stateVariable><name>PaddingVar").append(i).append("</name><dataType>ui4</dataType>")
+                    .append("<allowedValueRange><minimum>1</minimum><maximum>2</maximum></allowedValueRange></stateVariable>\n");
+        }
+        String content = HYBRID_IP_CONNECTION_AND_IPV6_FIREWALL_CONTROL_WITH_FAULTY_XML.replace("\r\n\r\n", "\r\n\r\n" + padding);
+        byte[] buffer = content.getBytes("US-ASCII");
+
+        for (int i = 0; i < 20; i++) {
+            ServiceDescriptionUpnpIgdResponse resp = new ServiceDescriptionUpnpIgdResponse(buffer);
+
+            Map<ServiceType, IdentifiedService> services = resp.getIdentifiedServices();
+            assertEquals(2, services.size());
+            assertEquals(Range.between(123L, 500L), services.get(ServiceType.FIREWALL).getExternalPortRange());
+            assertEquals(Range.between(1L, 11111L), services.get(ServiceType.FIREWALL).getLeaseDurationRange());
+        }
+    }
+
 }
@@ -1,9 +1,12 @@
 package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
 
+import com.offbynull.portmapper.mapper.ParseResult;
 import java.net.URL;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class ServiceDiscoveryUpnpIgdResponseTest {
 
@@ -121,4 +124,50 @@ public class ServiceDiscoveryUpnpIgdResponseTest {
         assertEquals("uuid:UPnP-SpeedTouch510::urn:schemas-upnp-org:service:WANPPPConnection:1", resp.getUsn());
     }
 
+    @Test
+    public void mustLookUpHeadersIgnoringCaseAndWhitespace() throws Exception {
+        StringBuilder sb = new StringBuilder("NOTIFY * HTTP/1.1\r\n");
+        for (int i = 0; i < 40; i++) {
+            sb.append("X-Filler-").append(i).append(": ").append(i).append("\r\n");
+        }
+        sb.append("  location :  http://10.0.0.138:80/old.xml  \r\n");
+        sb.append("Location::http://10.0.0.138:80/IGD.xml\r\n"); // last one wins
+        sb.append("sErVeR:SpeedTouch 510\r\n");
+        sb.append("st: urn:schemas-upnp-org:service:WANPPPConnection:1\r\n");
+        sb.append("\r\n");
+        byte[] buffer = sb.toString().getBytes("US-ASCII");
+        ServiceDiscoveryUpnpIgdResponse resp = new ServiceDiscoveryUpnpIgdResponse(buffer);
+        
+        assertEquals(new URL("http://10.0.0.138:80/IGD.xml"), resp.getLocation());
+        assertEquals("SpeedTouch 510", resp.getServer());
+        assertEquals("urn:schemas-upnp-org:service:WANPPPConnection:1", resp.getServiceType());
+    }
+
+    @Test
+    public void mustFailToTryParseBufferWithoutLocationHeader() throws Exception {
+        byte[] buffer = ("HTTP/1.1 200 OK\r\n"
+                + "CACHE-CONTROL:max-age=1800\r\n"
+                + "EXT:\r\n"
+                + "SERVER:SpeedTouch 510 4.0.0.9.0 UPnP/1.0 (DG233B00011961)\r\n"
+                + "ST: urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "\r\n")
+                .getBytes("US-ASCII");
+        ParseResult<ServiceDiscoveryUpnpIgdResponse> result = ServiceDiscoveryUpnpIgdResponse.tryParse(buffer);
+        
+        assertFalse(result.isSuccessful());
+        assertNull(result.getValue());
+    }
+
+    @Test
+    public void mustTryParseBuffer() throws Exception {
+        byte[] buffer = ("HTTP/1.1 200 OK\r\n"
+                + "LOCATION: http://10.0.0.138:80/IGD.xml\r\n"
+                + "ST: urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "\r\n")
+                .getBytes("US-ASCII");
+        ParseResult<ServiceDiscoveryUpnpIgdResponse> result = ServiceDiscoveryUpnpIgdResponse.tryParse(buffer);
+        
+        assertTrue(result.isSuccessful());
+        assertEquals(new URL("http://10.0.0.138:80/IGD.xml"), result.getValue().getLocation());
+    }
 }
@@ -0,0 +1,88 @@
+package com.offbynull.portmapper.mappers.upnpigd.externalmessages;
+
+import com.offbynull.portmapper.mappers.upnpigd.externalmessages.ServiceNotificationUpnpIgdResponse.NotificationType;
+import java.net.URL;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ServiceNotificationUpnpIgdResponseTest {
+
+    @Test
+    public void mustProperlyParseAliveBuffer() throws Exception {
+        byte[] buffer = ("NOTIFY * HTTP/1.1\r\n"
+                + "HOST: 239.255.255.250:1900\r\n"
+                + "CACHE-CONTROL: max-age = 120\r\n"
+                + "LOCATION: http://10.0.0.138:80/IGD.xml\r\n"
+                + "NT: urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "NTS: ssdp:alive\r\n"
+                + "SERVER:SpeedTouch 510 4.0.0.9.0 UPnP/1.0 (DG233B00011961)\r\n"
+                + "USN:uuid:UPnP-SpeedTouch510::urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "\r\n")
+                .getBytes("US-ASCII");
+        ServiceNotificationUpnpIgdResponse resp = new ServiceNotificationUpnpIgdResponse(buffer);
+
+        assertEquals(NotificationType.ALIVE, resp.getNotificationType());
+        assertEquals(new URL("http://10.0.0.138:80/IGD.xml"), resp.getLocation());
+        assertEquals("SpeedTouch 510 4.0.0.9.0 UPnP/1.0 (DG233B00011961)", resp.getServer());
+        assertEquals("urn:schemas-upnp-org:service:WANPPPConnection:1", resp.getServiceType());
+        assertEquals("uuid:UPnP-SpeedTouch510::urn:schemas-upnp-org:service:WANPPPConnection:1", resp.getUsn());
+        assertEquals((Long) 120L, resp.getMaxAge());
+    }
+
+    @Test
+    public void mustProperlyParseByeByeBufferWithoutLocationOrMaxAge() throws Exception {
+        byte[] buffer = ("NOTIFY * HTTP/1.1\r\n"
+                + "HOST: 239.255.255.250:1900\r\n"
+                + "NT: urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "NTS: SSDP:BYEBYE\r\n"
+                + "USN:uuid:UPnP-SpeedTouch510::urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "\r\n")
+                .getBytes("US-ASCII");
+        ServiceNotificationUpnpIgdResponse resp = new ServiceNotificationUpnpIgdResponse(buffer);
+
+        assertEquals(NotificationType.BYEBYE, resp.getNotificationType());
+        assertNull(resp.getLocation());
+        assertNull(resp.getServer());
+        assertNull(resp.getMaxAge());
+        assertEquals("uuid:UPnP-SpeedTouch510::urn:schemas-upnp-org:service:WANPPPConnection:1", resp.getUsn());
+    }
+
+    @Test
+    public void mustIgnoreBadMaxAge() throws Exception {
+        byte[] buffer = ("NOTIFY * HTTP/1.1\r\n"
+                + "CACHE-CONTROL: no-cache, max-age=abc\r\n"
+                + "NT: urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "NTS: ssdp:update\r\n"
+                + "USN:uuid:UPnP-SpeedTouch510::urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "\r\n")
+                .getBytes("US-ASCII");
+        ServiceNotificationUpnpIgdResponse resp = new ServiceNotificationUpnpIgdResponse(buffer);
+
+        assertEquals(NotificationType.UPDATE, resp.getNotificationType());
+        assertNull(resp.getMaxAge());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailOnSearchRequest() throws Exception {
+        byte[] buffer = ("M-SEARCH * HTTP/1.1\r\n"
+                + "HOST: 239.255.255.250:1900\r\n"
+                + "MAN: \"ssdp:discover\"\r\n"
+                + "MX: 3\r\n"
+                + "ST: ssdp:all\r\n"
+                + "\r\n")
+                .getBytes("US-ASCII");
+        new ServiceNotificationUpnpIgdResponse(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailOnUnknownNotificationType() throws Exception {
+        byte[] buffer = ("NOTIFY * HTTP/1.1\r\n"
+                + "NT: urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "NTS: ssdp:fake\r\n"
+                + "USN:uuid:UPnP-SpeedTouch510::urn:schemas-upnp-org:service:WANPPPConnection:1\r\n"
+                + "\r\n")
+                .getBytes("US-ASCII");
+        new ServiceNotificationUpnpIgdResponse(buffer);
+    }
+}
@@ -0,0 +1,76 @@
+package com.offbynull.portmapper.testtools;
+
+import com.offbynull.portmapper.mapper.BulkPortMapper;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortMappingRequest;
+import com.offbynull.portmapper.mapper.PortMappingResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// TestPortMapper that supports bulk operations (performed one port at a time) and counts how many bulk calls it got.
+public class TestBulkPortMapper extends TestPortMapper implements BulkPortMapper {
+    private final AtomicInteger mapPortsCount = new AtomicInteger();
+    private final AtomicInteger unmapPortsCount = new AtomicInteger();
+    private final AtomicInteger refreshPortsCount = new AtomicInteger();
+
+    public TestBulkPortMapper() {
+        super();
+    }
+
+    public TestBulkPortMapper(String identity) {
+        super(identity);
+    }
+
+    public final int getMapPortsCount() {
+        return mapPortsCount.get();
+    }
+
+    public final int getUnmapPortsCount() {
+        return unmapPortsCount.get();
+    }
+
+    public final int getRefreshPortsCount() {
+        return refreshPortsCount.get();
+    }
+
+    @Override
+    public List<PortMappingResult> mapPorts(List<PortMappingRequest> requests) throws InterruptedException {
+        mapPortsCount.incrementAndGet();
+        List<PortMappingResult> results = new ArrayList<>();
+        for (PortMappingRequest request : requests) {
+            try {
+                results.add(new PortMappingResult(mapPort(request.getPortType(), request.getInternalPort(), request.getExternalPort(),
+                        request.getLifetime())));
+            } catch (IllegalStateException ise) {
+                results.add(new PortMappingResult(ise));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> unmapPorts(List<MappedPort> mappedPorts) throws InterruptedException {
+        unmapPortsCount.incrementAndGet();
+        List<PortMappingResult> results = new ArrayList<>();
+        for (MappedPort mappedPort : mappedPorts) {
+            unmapPort(mappedPort);
+            results.add(new PortMappingResult(mappedPort));
+        }
+        return results;
+    }
+
+    @Override
+    public List<PortMappingResult> refreshPorts(List<MappedPort> mappedPorts, long lifetime) throws InterruptedException {
+        refreshPortsCount.incrementAndGet();
+        List<PortMappingResult> results = new ArrayList<>();
+        for (MappedPort mappedPort : mappedPorts) {
+            try {
+                results.add(new PortMappingResult(refreshPort(mappedPort, lifetime)));
+            } catch (IllegalStateException ise) {
+                results.add(new PortMappingResult(ise));
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,56 @@
+package com.offbynull.portmapper.testtools;
+
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortType;
+import java.net.InetAddress;
+
+public final class TestMappedPort implements MappedPort {
+    private final int internalPort;
+    private final int externalPort;
+    private final InetAddress externalAddress;
+    private final PortType portType;
+    private final long lifetime;
+
+    public TestMappedPort(int internalPort, int externalPort, PortType portType, long lifetime) {
+        this(internalPort, externalPort, null, portType, lifetime);
+    }
+
+    public TestMappedPort(int internalPort, int externalPort, InetAddress externalAddress, PortType portType, long lifetime) {
+        this.internalPort = internalPort;
+        this.externalPort = externalPort;
+        this.externalAddress = externalAddress;
+        this.portType = portType;
+        this.lifetime = lifetime;
+    }
+
+    @Override
+    public int getInternalPort() {
+        return internalPort;
+    }
+
+    @Override
+    public int getExternalPort() {
+        return externalPort;
+    }
+
+    @Override
+    public InetAddress getExternalAddress() {
+        return externalAddress;
+    }
+
+    @Override
+    public PortType getPortType() {
+        return portType;
+    }
+
+    @Override
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    @Override
+    public String toString() {
+        return "TestMappedPort{" + "internalPort=" + internalPort + ", externalPort=" + externalPort + ", externalAddress="
+                + externalAddress + ", portType=" + portType + ", lifetime=" + lifetime + '}';
+    }
+}
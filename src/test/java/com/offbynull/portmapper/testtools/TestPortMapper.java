@@ -0,0 +1,144 @@
+package com.offbynull.portmapper.testtools;
+
+import com.offbynull.portmapper.mapper.GatewayFaultException;
+import com.offbynull.portmapper.mapper.MappedPort;
+import com.offbynull.portmapper.mapper.PortType;
+import com.offbynull.portmapper.mapper.RestorablePortMapper;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// In-memory mapper that hands back TestMappedPorts and counts what it was asked to do. Doesn't support bulk operations, so those go
+// through MapperIoUtils's one-at-a-time fallback -- use TestBulkPortMapper to test code that must use bulk operations.
+public class TestPortMapper implements RestorablePortMapper {
+    private final String identity;
+    private final AtomicInteger mapCount = new AtomicInteger();
+    private final AtomicInteger unmapCount = new AtomicInteger();
+    private final AtomicInteger refreshCount = new AtomicInteger();
+    private final List<MappedPort> unmapped = new ArrayList<>();
+    private final CountDownLatch unmapLatch = new CountDownLatch(1);
+    private volatile InetAddress externalAddress;
+    private volatile long delay;
+    private volatile boolean failMap;
+    private volatile boolean faultMap;
+    private volatile boolean failRefresh;
+
+    public TestPortMapper() {
+        this("test");
+    }
+
+    public TestPortMapper(String identity) {
+        this.identity = identity;
+    }
+
+    public final void setExternalAddress(InetAddress externalAddress) {
+        this.externalAddress = externalAddress;
+    }
+
+    public final void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public final void setFailMap(boolean failMap) {
+        this.failMap = failMap;
+    }
+
+    public final void setFaultMap(boolean faultMap) { // as if the gateway answered with an error rather than not answering at all
+        this.faultMap = faultMap;
+    }
+
+    public final void setFailRefresh(boolean failRefresh) {
+        this.failRefresh = failRefresh;
+    }
+
+    public final int getMapCount() {
+        return mapCount.get();
+    }
+
+    public final int getUnmapCount() {
+        return unmapCount.get();
+    }
+
+    public final int getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public final List<MappedPort> getUnmapped() {
+        synchronized (unmapped) {
+            return new ArrayList<>(unmapped);
+        }
+    }
+
+    public final boolean awaitUnmap(long timeout) throws InterruptedException {
+        return unmapLatch.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public MappedPort mapPort(PortType portType, int internalPort, int externalPort, long lifetime) throws InterruptedException {
+        if (internalPort < 1) {
+            throw new IllegalArgumentException();
+        }
+        mapCount.incrementAndGet();
+        Thread.sleep(delay);
+        if (failMap) {
+            throw new IllegalStateException();
+        }
+        if (faultMap) {
+            throw new GatewayFaultException("Gateway responded with error");
+        }
+        return new TestMappedPort(internalPort, externalPort, externalAddress, portType, lifetime);
+    }
+
+    @Override
+    public void unmapPort(MappedPort mappedPort) throws InterruptedException {
+        unmapCount.incrementAndGet();
+        synchronized (unmapped) {
+            unmapped.add(mappedPort);
+        }
+        unmapLatch.countDown();
+    }
+
+    @Override
+    public MappedPort refreshPort(MappedPort mappedPort, long lifetime) throws InterruptedException {
+        if (failRefresh) {
+            throw new IllegalStateException();
+        }
+        refreshCount.incrementAndGet();
+        return new TestMappedPort(mappedPort.getInternalPort(), mappedPort.getExternalPort(), mappedPort.getExternalAddress(),
+                mappedPort.getPortType(), lifetime);
+    }
+
+    @Override
+    public InetAddress getSourceAddress() {
+        return null;
+    }
+
+    @Override
+    public String getIdentity() {
+        return identity;
+    }
+
+    @Override
+    public byte[] saveMappedPort(MappedPort mappedPort) {
+        return ByteBuffer.allocate(13)
+                .putShort((short) mappedPort.getInternalPort())
+                .putShort((short) mappedPort.getExternalPort())
+                .put((byte) mappedPort.getPortType().ordinal())
+                .putLong(mappedPort.getLifetime())
+                .array();
+    }
+
+    @Override
+    public MappedPort restoreMappedPort(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int internalPort = buffer.getShort() & 0xFFFF;
+        int externalPort = buffer.getShort() & 0xFFFF;
+        PortType portType = PortType.values()[buffer.get()];
+        long lifetime = buffer.getLong();
+        return new TestMappedPort(internalPort, externalPort, externalAddress, portType, lifetime);
+    }
+}